@@ -18,12 +18,26 @@ package com.offbynull.coroutines.antplugin;
 
 import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
 import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.SuspendAnalyzer;
 import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.apache.commons.io.FileUtils;
 import org.apache.tools.ant.BuildException;
@@ -42,7 +56,8 @@ import org.apache.tools.ant.Task;
  *    &lt;/taskdef&gt;
  *    
  *    &lt;target name="-post-compile"&gt;
- *        &lt;InstrumentTask classpath="somelib.jar;somefolder;someotherlib.jar" sourceDirectory="build" targetDirectory="build"/&gt;
+ *        &lt;InstrumentTask classpath="somelib.jar;somefolder;someotherlib.jar" sourceDirectory="build" targetDirectory="build"
+ *            threads="4"/&gt;
  *    &lt;/target&gt;
  * </pre>
  *
@@ -50,16 +65,38 @@ import org.apache.tools.ant.Task;
  */
 public final class InstrumentTask extends Task {
 
+    // Written after each run, next to the target directory by default (so that it doesn't get packaged along with the classes in the
+    // target directory). The first line is the settings that the classes were instrumented with, and the remaining lines are the class
+    // files (relative to the source/target directory) that were instrumented.
+    private static final String STAMP_FILE_SUFFIX = ".coroutines-instrument-stamp";
+    private static final String LEGACY_STAMP_FILE_NAME = ".coroutines-instrument-stamp"; // written inside the target directory
+
     private String markerType = MarkerType.NONE.name();
     
     private boolean debugMode = false;
 
+    private boolean metricsMode = false;
+
+    private boolean outlineMode = false;
+
+    private boolean packedStorageMode = false;
+
+    private boolean preemptionMode = false;
+
+    private boolean suspendAnalysisMode = false;
+
+    private boolean force = false;
+
+    private int threads = 1;
+
     private String classpath;
 
     private File sourceDirectory;
     
     private File targetDirectory;
 
+    private File stampFile;
+
     private File jdkLibsDirectory;
 
     /**
@@ -89,6 +126,66 @@ public final class InstrumentTask extends Task {
         this.debugMode = debugMode;
     }
 
+    /**
+     * Sets the metrics mode. Defaults to {@code false}.
+     * @param metricsMode metrics mode
+     */
+    public void setMetricsMode(boolean metricsMode) {
+        this.metricsMode = metricsMode;
+    }
+
+    /**
+     * Sets the outline mode. Defaults to {@code false}.
+     * @param outlineMode outline mode
+     */
+    public void setOutlineMode(boolean outlineMode) {
+        this.outlineMode = outlineMode;
+    }
+
+    /**
+     * Sets the packed storage mode. Defaults to {@code false}.
+     * @param packedStorageMode packed storage mode
+     */
+    public void setPackedStorageMode(boolean packedStorageMode) {
+        this.packedStorageMode = packedStorageMode;
+    }
+
+    /**
+     * Sets the preemption mode. Defaults to {@code false}.
+     * @param preemptionMode preemption mode
+     */
+    public void setPreemptionMode(boolean preemptionMode) {
+        this.preemptionMode = preemptionMode;
+    }
+
+    /**
+     * Sets the suspend analysis mode. Defaults to {@code false}. If enabled, the classes in the source directory are analyzed to find
+     * methods that never suspend, and invocations of those methods are left as normal invocations.
+     * @param suspendAnalysisMode suspend analysis mode
+     */
+    public void setSuspendAnalysisMode(boolean suspendAnalysisMode) {
+        this.suspendAnalysisMode = suspendAnalysisMode;
+    }
+
+    /**
+     * Sets whether all class files should be instrumented, even those that are up-to-date. Defaults to {@code false}, meaning that a class
+     * file is skipped if the class file in the target directory is newer than it (ignored if the source directory and target directory
+     * are the same). All class files are instrumented regardless of this setting if the instrumentation settings or classpath changed
+     * since the last run.
+     * @param force force instrumentation of all class files
+     */
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    /**
+     * Sets the number of class files to instrument at once. Defaults to {@code 1}.
+     * @param threads number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     /**
      * Sets the classpath -- required by instrumenter when instrumenting class files.
      * @param classpath semicolon delimited classpath
@@ -113,6 +210,17 @@ public final class InstrumentTask extends Task {
         this.targetDirectory = targetDirectory;
     }
 
+    /**
+     * Sets the file to keep track of what was instrumented on the last run in (see {@link #setForce(boolean) }). Defaults to a file next to
+     * the target directory, named after the target directory with {@code .coroutines-instrument-stamp} appended (e.g. if the target
+     * directory is {@code build/classes}, the stamp file is {@code build/classes.coroutines-instrument-stamp}). Shouldn't be inside the
+     * target directory if the target directory gets packaged.
+     * @param stampFile stamp file
+     */
+    public void setStampFile(File stampFile) {
+        this.stampFile = stampFile;
+    }
+
     /**
      * Sets the JDK libs directory -- required by instrumenter when instrumenting class files.
      * @param jdkLibsDirectory directory to JDK's libs directory
@@ -158,6 +266,9 @@ public final class InstrumentTask extends Task {
         if (markerType == null) {
             throw new BuildException("Marker type not set");
         }
+        if (threads < 1) {
+            throw new BuildException("Threads must be at least 1: " + threads);
+        }
 
         List<File> combinedClasspath;
         try {
@@ -188,19 +299,160 @@ public final class InstrumentTask extends Task {
     }
 
     private void instrumentPath(Instrumenter instrumenter) throws IOException {
-        for (File inputFile : FileUtils.listFiles(sourceDirectory, new String[]{"class"}, true)) {
-            Path relativePath = sourceDirectory.toPath().relativize(inputFile.toPath());
-            Path outputFilePath = targetDirectory.toPath().resolve(relativePath);
-            File outputFile = outputFilePath.toFile();
+        Collection<File> inputFiles = FileUtils.listFiles(sourceDirectory, new String[]{"class"}, true);
 
-            MarkerType markerTypeEnum = MarkerType.valueOf(markerType);
-            InstrumentationSettings settings = new InstrumentationSettings(markerTypeEnum, debugMode);
-            
-            log("Instrumenting " + inputFile, Project.MSG_INFO);
-            byte[] input = FileUtils.readFileToByteArray(inputFile);
-            byte[] output = instrumenter.instrument(input, settings);
-            log("File size changed from " + input.length + " to " + output.length, Project.MSG_DEBUG);
-            FileUtils.writeByteArrayToFile(outputFile, output);
+        // Skip class files that haven't changed since they were last instrumented. If instrumenting in place, there's no way to tell
+        // from timestamps, but the instrumenter skips classes that have already been instrumented anyways.
+        boolean inPlace = sourceDirectory.getCanonicalFile().equals(targetDirectory.getCanonicalFile());
+
+        // Timestamps don't say anything about which settings the class files in the target directory were instrumented with -- if the
+        // settings changed since the last run (as recorded in the stamp file), everything needs to be redone. If there's no stamp file
+        // (e.g. target directory was instrumented by an older version of this task), fall back to timestamps only.
+        File stampFile = getStampFile();
+        String settingsStamp = getSettingsStamp();
+        List<String> stamp = !inPlace && stampFile.isFile()
+                ? FileUtils.readLines(stampFile, StandardCharsets.UTF_8)
+                : Collections.emptyList();
+        boolean settingsChanged = !stamp.isEmpty() && !stamp.get(0).equals(settingsStamp);
+        if (settingsChanged) {
+            log("Instrumentation settings changed since last run, all class files will be instrumented", Project.MSG_INFO);
+        }
+
+        // Remove the output of class files that were instrumented on the last run but no longer exist in the source directory
+        List<String> relativePaths = inputFiles.stream()
+                .map(x -> toRelativePath(x))
+                .collect(Collectors.toList());
+        Set<String> relativePathSet = new HashSet<>(relativePaths);
+        boolean removed = false;
+        for (String previousRelativePath : stamp.subList(Math.min(1, stamp.size()), stamp.size())) {
+            if (!relativePathSet.contains(previousRelativePath)) {
+                File orphanedFile = targetDirectory.toPath().resolve(previousRelativePath).toFile();
+                log("Removing " + orphanedFile + " (no longer in source directory)", Project.MSG_VERBOSE);
+                FileUtils.deleteQuietly(orphanedFile);
+                removed = true;
+            }
+        }
+
+        List<File> changedInputFiles = inputFiles.stream()
+                .filter(x -> force || inPlace || settingsChanged || isOutOfDate(x))
+                .collect(Collectors.toList());
+        if (changedInputFiles.isEmpty() && !(removed && suspendAnalysisMode)) {
+            log("All " + inputFiles.size() + " class files are up-to-date", Project.MSG_INFO);
+            writeStamp(inPlace, stampFile, settingsStamp, relativePaths);
+            return;
+        }
+
+        Set<String> nonSuspendingMethods = Collections.emptySet();
+        if (suspendAnalysisMode) {
+            log("Analyzing classes for methods that never suspend...", Project.MSG_INFO);
+            List<byte[]> classes = new ArrayList<>();
+            for (File inputFile : inputFiles) {
+                classes.add(FileUtils.readFileToByteArray(inputFile));
+            }
+            nonSuspendingMethods = SuspendAnalyzer.findNonSuspendingMethods(classes, preemptionMode);
+            log("Methods that never suspend: " + nonSuspendingMethods, Project.MSG_DEBUG);
+
+            // A change to (or removal of) one class may change which methods in other classes never suspend, so everything needs to be
+            // redone
+            changedInputFiles = new ArrayList<>(inputFiles);
+        }
+
+        MarkerType markerTypeEnum = MarkerType.valueOf(markerType);
+        InstrumentationSettings settings = new InstrumentationSettings(markerTypeEnum, debugMode, metricsMode, outlineMode,
+                packedStorageMode, preemptionMode, nonSuspendingMethods);
+
+        log("Instrumenting " + changedInputFiles.size() + " of " + inputFiles.size() + " class files", Project.MSG_INFO);
+
+        // All threads share the same instrumenter (and class information repository). Logging is done from this thread only.
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<File, Future<Integer>> futures = new LinkedHashMap<>();
+            for (File inputFile : changedInputFiles) {
+                futures.put(inputFile, executor.submit(() -> {
+                    byte[] input = FileUtils.readFileToByteArray(inputFile);
+                    byte[] output = instrumenter.instrument(input, settings);
+                    FileUtils.writeByteArrayToFile(toOutputFile(inputFile), output);
+                    return output.length;
+                }));
+            }
+
+            for (Entry<File, Future<Integer>> entry : futures.entrySet()) {
+                File inputFile = entry.getKey();
+                log("Instrumenting " + inputFile, Project.MSG_VERBOSE);
+                try {
+                    int outputLength = entry.getValue().get();
+                    log("File size changed from " + inputFile.length() + " to " + outputLength, Project.MSG_DEBUG);
+                } catch (ExecutionException ee) {
+                    throw new BuildException("Failed to instrument " + inputFile, ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException("Interrupted while instrumenting", ie);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Only written once everything was instrumented successfully, so a failed run gets redone from scratch
+        writeStamp(inPlace, stampFile, settingsStamp, relativePaths);
+    }
+
+    private File getStampFile() throws IOException {
+        // Stamp files used to be written inside the target directory -- move any left over out so that they don't get packaged
+        File legacyStampFile = new File(targetDirectory, LEGACY_STAMP_FILE_NAME);
+        File ret = stampFile;
+        if (ret == null) {
+            File parentDirectory = targetDirectory.getCanonicalFile().getParentFile();
+            if (parentDirectory == null) {
+                throw new BuildException("Stamp file must be set if target directory has no parent: " + targetDirectory.getAbsolutePath());
+            }
+            ret = new File(parentDirectory, targetDirectory.getCanonicalFile().getName() + STAMP_FILE_SUFFIX);
+        }
+        if (legacyStampFile.isFile() && !legacyStampFile.getCanonicalFile().equals(ret.getCanonicalFile())) {
+            log("Moving " + legacyStampFile + " to " + ret, Project.MSG_VERBOSE);
+            if (ret.exists()) {
+                FileUtils.forceDelete(legacyStampFile);
+            } else {
+                FileUtils.moveFile(legacyStampFile, ret);
+            }
+        }
+        return ret;
+    }
+
+    private String getSettingsStamp() {
+        String ret = "markerType=" + markerType
+                + ",debugMode=" + debugMode
+                + ",metricsMode=" + metricsMode
+                + ",outlineMode=" + outlineMode
+                + ",packedStorageMode=" + packedStorageMode
+                + ",preemptionMode=" + preemptionMode
+                + ",suspendAnalysisMode=" + suspendAnalysisMode
+                + ",classpath=" + classpath
+                + ",jdkLibsDirectory=" + jdkLibsDirectory.getAbsolutePath();
+        return ret.replace('\r', ' ').replace('\n', ' '); // must fit on a single line of the stamp file
+    }
+
+    private void writeStamp(boolean inPlace, File stampFile, String settingsStamp, List<String> relativePaths) throws IOException {
+        if (inPlace) {
+            return; // nothing to keep track of -- see comments in instrumentPath()
         }
+        List<String> lines = new ArrayList<>();
+        lines.add(settingsStamp);
+        lines.addAll(relativePaths);
+        FileUtils.writeLines(stampFile, StandardCharsets.UTF_8.name(), lines);
+    }
+
+    private boolean isOutOfDate(File inputFile) {
+        File outputFile = toOutputFile(inputFile);
+        return !outputFile.isFile() || outputFile.lastModified() < inputFile.lastModified();
+    }
+
+    private String toRelativePath(File inputFile) {
+        return sourceDirectory.toPath().relativize(inputFile.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private File toOutputFile(File inputFile) {
+        Path relativePath = sourceDirectory.toPath().relativize(inputFile.toPath());
+        return targetDirectory.toPath().resolve(relativePath).toFile();
     }
 }
@@ -62,6 +62,243 @@ public class InstrumentTaskTest {
             
             if (outputDir != null) {
                 FileUtils.deleteDirectory(outputDir);
+                FileUtils.deleteQuietly(new File(outputDir.getPath() + ".coroutines-instrument-stamp"));
+            }
+        }
+    }
+    
+    @Test
+    public void mustInstrumentClassesWithMultipleThreads() throws Exception {
+        byte[] inputContent = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        
+        File inputDir = null;
+        File outputDir = null;
+        try {
+            // create folders
+            inputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            outputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            
+            // write out same class in to multiple packages
+            for (int i = 0; i < 4; i++) {
+                File inputClass = new File(inputDir, "pkg" + i + "/NormalInvokeTest.class");
+                FileUtils.writeByteArrayToFile(inputClass, inputContent);
+            }
+            
+            // setup
+            fixture.setSourceDirectory(inputDir);
+            fixture.setTargetDirectory(outputDir);
+            fixture.setClasspath("");
+            fixture.setThreads(4);
+            
+            // execute plugin
+            fixture.execute();
+            
+            // read back in and test
+            for (int i = 0; i < 4; i++) {
+                File outputClass = new File(outputDir, "pkg" + i + "/NormalInvokeTest.class");
+                byte[] outputContent = FileUtils.readFileToByteArray(outputClass);
+                Assert.assertTrue(outputContent.length > inputContent.length);
+            }
+        } finally {
+            if (inputDir != null) {
+                FileUtils.deleteDirectory(inputDir);
+            }
+            
+            if (outputDir != null) {
+                FileUtils.deleteDirectory(outputDir);
+                FileUtils.deleteQuietly(new File(outputDir.getPath() + ".coroutines-instrument-stamp"));
+            }
+        }
+    }
+
+    @Test
+    public void mustSkipClassesThatAreUpToDate() throws Exception {
+        byte[] inputContent = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        
+        File inputDir = null;
+        File outputDir = null;
+        try {
+            // create folders
+            inputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            outputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            
+            // write out input, and write out garbage as output that's newer than the input
+            File inputClass = new File(inputDir, "NormalInvokeTest.class");
+            FileUtils.writeByteArrayToFile(inputClass, inputContent);
+            inputClass.setLastModified(10000L);
+            File outputClass = new File(outputDir, "NormalInvokeTest.class");
+            FileUtils.writeByteArrayToFile(outputClass, new byte[] { 1, 2, 3 });
+            outputClass.setLastModified(20000L);
+            
+            // setup
+            fixture.setSourceDirectory(inputDir);
+            fixture.setTargetDirectory(outputDir);
+            fixture.setClasspath("");
+            
+            // execute plugin and test that output was left alone
+            fixture.execute();
+            Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, FileUtils.readFileToByteArray(outputClass));
+            
+            // make input newer than output, execute plugin and test that output was instrumented
+            inputClass.setLastModified(30000L);
+            fixture.execute();
+            Assert.assertTrue(FileUtils.readFileToByteArray(outputClass).length > inputContent.length);
+        } finally {
+            if (inputDir != null) {
+                FileUtils.deleteDirectory(inputDir);
+            }
+            
+            if (outputDir != null) {
+                FileUtils.deleteDirectory(outputDir);
+                FileUtils.deleteQuietly(new File(outputDir.getPath() + ".coroutines-instrument-stamp"));
+            }
+        }
+    }
+    
+    @Test
+    public void mustInstrumentAllClassesWhenSettingsChange() throws Exception {
+        byte[] inputContent = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        
+        File inputDir = null;
+        File outputDir = null;
+        try {
+            // create folders
+            inputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            outputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            
+            // write out
+            File inputClass = new File(inputDir, "NormalInvokeTest.class");
+            FileUtils.writeByteArrayToFile(inputClass, inputContent);
+            inputClass.setLastModified(10000L);
+            
+            // setup
+            fixture.setSourceDirectory(inputDir);
+            fixture.setTargetDirectory(outputDir);
+            fixture.setClasspath("");
+            
+            // execute plugin, then replace output with garbage that's newer than the input
+            fixture.execute();
+            File outputClass = new File(outputDir, "NormalInvokeTest.class");
+            FileUtils.writeByteArrayToFile(outputClass, new byte[] { 1, 2, 3 });
+            outputClass.setLastModified(20000L);
+            
+            // execute plugin with same settings and test that output was left alone
+            fixture.execute();
+            Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, FileUtils.readFileToByteArray(outputClass));
+            
+            // change settings, execute plugin and test that output was instrumented even though it's newer than the input
+            fixture.setDebugMode(true);
+            fixture.execute();
+            Assert.assertTrue(FileUtils.readFileToByteArray(outputClass).length > inputContent.length);
+        } finally {
+            if (inputDir != null) {
+                FileUtils.deleteDirectory(inputDir);
+            }
+            
+            if (outputDir != null) {
+                FileUtils.deleteDirectory(outputDir);
+                FileUtils.deleteQuietly(new File(outputDir.getPath() + ".coroutines-instrument-stamp"));
+            }
+        }
+    }
+
+    @Test
+    public void mustRemoveOutputOfClassesRemovedFromSourceDirectory() throws Exception {
+        byte[] inputContent = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        
+        File inputDir = null;
+        File outputDir = null;
+        try {
+            // create folders
+            inputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            outputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            
+            // write out same class in to multiple packages, and write out a class to the output that this task doesn't know about
+            for (int i = 0; i < 2; i++) {
+                File inputClass = new File(inputDir, "pkg" + i + "/NormalInvokeTest.class");
+                FileUtils.writeByteArrayToFile(inputClass, inputContent);
+            }
+            File unrelatedClass = new File(outputDir, "pkg2/NormalInvokeTest.class");
+            FileUtils.writeByteArrayToFile(unrelatedClass, inputContent);
+            
+            // setup
+            fixture.setSourceDirectory(inputDir);
+            fixture.setTargetDirectory(outputDir);
+            fixture.setClasspath("");
+            
+            // execute plugin
+            fixture.execute();
+            Assert.assertTrue(new File(outputDir, "pkg0/NormalInvokeTest.class").isFile());
+            Assert.assertTrue(new File(outputDir, "pkg1/NormalInvokeTest.class").isFile());
+            
+            // remove one of the classes, execute plugin and test that only its output was removed
+            FileUtils.forceDelete(new File(inputDir, "pkg1/NormalInvokeTest.class"));
+            fixture.execute();
+            Assert.assertTrue(new File(outputDir, "pkg0/NormalInvokeTest.class").isFile());
+            Assert.assertFalse(new File(outputDir, "pkg1/NormalInvokeTest.class").exists());
+            Assert.assertTrue(unrelatedClass.isFile());
+        } finally {
+            if (inputDir != null) {
+                FileUtils.deleteDirectory(inputDir);
+            }
+            
+            if (outputDir != null) {
+                FileUtils.deleteDirectory(outputDir);
+                FileUtils.deleteQuietly(new File(outputDir.getPath() + ".coroutines-instrument-stamp"));
+            }
+        }
+    }
+    
+    @Test
+    public void mustWriteStampFileOutsideOfTargetDirectory() throws Exception {
+        byte[] inputContent = readZipFromResource("NormalInvokeTest.zip").get("NormalInvokeTest.class");
+        
+        File inputDir = null;
+        File outputDir = null;
+        File stampDir = null;
+        try {
+            // create folders
+            inputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            outputDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            stampDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+            
+            // write out, along with a stamp file left inside the output by an older version of this task
+            File inputClass = new File(inputDir, "NormalInvokeTest.class");
+            FileUtils.writeByteArrayToFile(inputClass, inputContent);
+            File legacyStampFile = new File(outputDir, ".coroutines-instrument-stamp");
+            FileUtils.writeStringToFile(legacyStampFile, "old settings\n", "UTF-8");
+            
+            // setup
+            fixture.setSourceDirectory(inputDir);
+            fixture.setTargetDirectory(outputDir);
+            fixture.setClasspath("");
+            
+            // execute plugin and test that the stamp file was moved out of the output, next to it
+            fixture.execute();
+            File defaultStampFile = new File(outputDir.getPath() + ".coroutines-instrument-stamp");
+            Assert.assertFalse(legacyStampFile.exists());
+            Assert.assertTrue(defaultStampFile.isFile());
+            Assert.assertTrue(new File(outputDir, "NormalInvokeTest.class").isFile());
+            Assert.assertEquals(1, outputDir.list().length);
+            
+            // set stamp file, execute plugin and test that the stamp file was written there
+            File stampFile = new File(stampDir, "stamp");
+            fixture.setStampFile(stampFile);
+            fixture.execute();
+            Assert.assertTrue(stampFile.isFile());
+            Assert.assertEquals(1, outputDir.list().length);
+        } finally {
+            if (inputDir != null) {
+                FileUtils.deleteDirectory(inputDir);
+            }
+            
+            if (outputDir != null) {
+                FileUtils.deleteDirectory(outputDir);
+                FileUtils.deleteQuietly(new File(outputDir.getPath() + ".coroutines-instrument-stamp"));
+            }
+            
+            if (stampDir != null) {
+                FileUtils.deleteDirectory(stampDir);
             }
         }
     }
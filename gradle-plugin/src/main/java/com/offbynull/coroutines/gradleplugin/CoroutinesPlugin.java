@@ -16,26 +16,21 @@
  */
 package com.offbynull.coroutines.gradleplugin;
 
-import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
-import com.offbynull.coroutines.instrumenter.Instrumenter;
-import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
 import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import static java.util.stream.Collectors.toList;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.jxpath.JXPathContext;
 import org.apache.commons.lang3.reflect.MethodUtils;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.file.FileCollection;
 
 //CHECKSTYLE.OFF:DesignForExtension - Gradle likely needs these classes to be extendable
 /**
- * Coroutines Gradle plugin.
+ * Coroutines Gradle plugin. Adds an {@link InstrumentTask} for the main and test source sets ({@code instrumentCoroutines} and
+ * {@code instrumentTestCoroutines}). The compile task is redirected to write in to an intermediate directory, and the instrument task
+ * writes the instrumented classes in to the source set's classes directory.
  * <p>
  * Usage example...
  * <pre>
@@ -78,67 +73,62 @@ public class CoroutinesPlugin implements Plugin<Project> {
 
         Set<Task> compileJavaTasks = target.getTasksByName("compileJava", true);
         for (Task task : compileJavaTasks) {
-            addInstrumentActionToTask("main", task, config);
+            addInstrumentTask("main", task, config);
         }
 
         Set<Task> compileJavaTestTasks = target.getTasksByName("compileTestJava", true);
         for (Task task : compileJavaTestTasks) {
-            addInstrumentActionToTask("test", task, config);
+            addInstrumentTask("test", task, config);
         }
     }
 
     @SuppressWarnings("unchecked")
-    private void addInstrumentActionToTask(String sourceType, Task task, CoroutinesPluginConfiguration config) {
-        task.doLast(x -> {
+    private void addInstrumentTask(String sourceType, Task compileTask, CoroutinesPluginConfiguration config) {
+        Project proj = compileTask.getProject();
+        proj.afterEvaluate(x -> {
             try {
                 // Get source sets -- since we don't have access to the normal Gradle plugins API (artifact can't be found on any repo) we
                 // have to use Java reflections to access the data.
-                Project proj = task.getProject();
-
                 Object sourceSets = JXPathContext.newContext(proj).getValue("properties/sourceSets");
 
                 // can't use JXPath for this because jxpath can't read inherited properties (getAsMap is inherited??)
                 Map<String, Object> sourceSetsMap = (Map<String, Object>) MethodUtils.invokeMethod(sourceSets, "getAsMap");
 
-                if (sourceSetsMap.containsKey(sourceType)) {
-                    JXPathContext ctx = JXPathContext.newContext(sourceSetsMap);
-                    File classesDir = (File) ctx.getValue(sourceType + "/output/classesDir");
-                    Set<File> compileClasspath = (Set<File>) ctx.getValue(sourceType + "/compileClasspath/files");
-                    
-                    if (classesDir.isDirectory()) {
-                        instrument(classesDir, compileClasspath, config);
-                    }
+                if (!sourceSetsMap.containsKey(sourceType)) {
+                    return;
                 }
-            } catch (Exception e) {
-                throw new IllegalStateException("Coroutines instrumentation failed", e);
-            }
-        });        
-    }
-    
-    private void instrument(File classesDir, Set<File> compileClasspath, CoroutinesPluginConfiguration config) {
-        try {
-            List<File> classpath = new ArrayList<>();
-            classpath.add(classesDir); // change to destinationDir?
-            classpath.addAll(compileClasspath);
-            classpath.addAll(FileUtils.listFiles(new File(config.getJdkLibsDirectory()), new String[]{"jar"}, true));
 
-            classpath = classpath.stream()
-                    .filter(x -> x.exists())
-                    .collect(toList());
+                Object sourceSet = sourceSetsMap.get(sourceType);
+                File classesDir = (File) JXPathContext.newContext(sourceSetsMap).getValue(sourceType + "/output/classesDir");
+                FileCollection compileClasspath = (FileCollection) MethodUtils.invokeMethod(sourceSet, "getCompileClasspath");
+                String classesTaskName = (String) MethodUtils.invokeMethod(sourceSet, "getClassesTaskName");
+                String instrumentTaskName = (String) MethodUtils.invokeMethod(sourceSet, "getTaskName", "instrument", "coroutines");
 
-            MarkerType markerType = MarkerType.valueOf(config.getMarkerType());
-            boolean debugMode = config.isDebugMode();
-            InstrumentationSettings settings = new InstrumentationSettings(markerType, debugMode);
-            Instrumenter instrumenter = new Instrumenter(classpath);
+                // Compile to a separate directory and have the instrument task write the instrumented classes to the source set's classes
+                // directory. Tasks that use the classes (jar, test, ...) pick up the instrumented classes as-is, and neither task modifies
+                // the other's output (modifying compileJava's output in place breaks up-to-date checks and the build cache).
+                File uninstrumentedDir = new File(proj.getBuildDir(), "coroutines/uninstrumented/" + sourceType);
+                MethodUtils.invokeMethod(compileTask, "setDestinationDir", uninstrumentedDir);
 
-            for (File classFile : FileUtils.listFiles(classesDir, new String[]{"class"}, true)) {
-                byte[] input = FileUtils.readFileToByteArray(classFile);
-                byte[] output = instrumenter.instrument(input, settings);
-                FileUtils.writeByteArrayToFile(classFile, output);
+                InstrumentTask instrumentTask = proj.getTasks().create(instrumentTaskName, InstrumentTask.class);
+                instrumentTask.setInputDirectory(uninstrumentedDir);
+                instrumentTask.setOutputDirectory(classesDir);
+                instrumentTask.setClasspath(compileClasspath);
+                instrumentTask.setJdkLibsDirectory(config.getJdkLibsDirectory());
+                instrumentTask.setMarkerType(config.getMarkerType());
+                instrumentTask.setDebugMode(config.isDebugMode());
+                instrumentTask.setMetricsMode(config.isMetricsMode());
+                instrumentTask.setOutlineMode(config.isOutlineMode());
+                instrumentTask.setPackedStorageMode(config.isPackedStorageMode());
+                instrumentTask.setPreemptionMode(config.isPreemptionMode());
+                instrumentTask.setSuspendAnalysisMode(config.isSuspendAnalysisMode());
+                instrumentTask.dependsOn(compileTask);
+
+                proj.getTasks().getByName(classesTaskName).dependsOn(instrumentTask);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Coroutines instrumentation setup failed", e);
             }
-        } catch (IOException ioe) {
-            throw new IllegalStateException("Failed to instrument", ioe);
-        }
+        });
     }
 
 }
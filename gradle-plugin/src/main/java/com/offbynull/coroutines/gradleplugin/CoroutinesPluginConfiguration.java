@@ -27,6 +27,11 @@ public final class CoroutinesPluginConfiguration {
     private String jdkLibsDirectory;
     private String markerType;
     private boolean debugMode;
+    private boolean metricsMode;
+    private boolean outlineMode;
+    private boolean packedStorageMode;
+    private boolean preemptionMode;
+    private boolean suspendAnalysisMode;
 
     /**
      * Constructs a {@link CoroutinesPluginConfiguration} object.
@@ -35,6 +40,11 @@ public final class CoroutinesPluginConfiguration {
         jdkLibsDirectory = System.getProperty("java.home") + "/lib";
         markerType = "NONE";
         debugMode = false;
+        metricsMode = false;
+        outlineMode = false;
+        packedStorageMode = false;
+        preemptionMode = false;
+        suspendAnalysisMode = false;
     }
 
     /**
@@ -94,5 +104,95 @@ public final class CoroutinesPluginConfiguration {
     public void setDebugMode(boolean debugMode) {
         this.debugMode = debugMode;
     }
+
+    /**
+     * Get metrics mode.
+     *
+     * @return metrics mode
+     */
+    public boolean isMetricsMode() {
+        return metricsMode;
+    }
+
+    /**
+     * Set metrics mode.
+     *
+     * @param metricsMode metrics mode
+     */
+    public void setMetricsMode(boolean metricsMode) {
+        this.metricsMode = metricsMode;
+    }
+
+    /**
+     * Get outline mode.
+     *
+     * @return outline mode
+     */
+    public boolean isOutlineMode() {
+        return outlineMode;
+    }
+
+    /**
+     * Set outline mode.
+     *
+     * @param outlineMode outline mode
+     */
+    public void setOutlineMode(boolean outlineMode) {
+        this.outlineMode = outlineMode;
+    }
+
+    /**
+     * Get packed storage mode.
+     *
+     * @return packed storage mode
+     */
+    public boolean isPackedStorageMode() {
+        return packedStorageMode;
+    }
+
+    /**
+     * Set packed storage mode.
+     *
+     * @param packedStorageMode packed storage mode
+     */
+    public void setPackedStorageMode(boolean packedStorageMode) {
+        this.packedStorageMode = packedStorageMode;
+    }
+
+    /**
+     * Get preemption mode.
+     *
+     * @return preemption mode
+     */
+    public boolean isPreemptionMode() {
+        return preemptionMode;
+    }
+
+    /**
+     * Set preemption mode.
+     *
+     * @param preemptionMode preemption mode
+     */
+    public void setPreemptionMode(boolean preemptionMode) {
+        this.preemptionMode = preemptionMode;
+    }
+
+    /**
+     * Get suspend analysis mode.
+     *
+     * @return suspend analysis mode
+     */
+    public boolean isSuspendAnalysisMode() {
+        return suspendAnalysisMode;
+    }
+
+    /**
+     * Set suspend analysis mode.
+     *
+     * @param suspendAnalysisMode suspend analysis mode
+     */
+    public void setSuspendAnalysisMode(boolean suspendAnalysisMode) {
+        this.suspendAnalysisMode = suspendAnalysisMode;
+    }
     
 }
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.gradleplugin;
+
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.SuspendAnalyzer;
+import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static java.util.stream.Collectors.toList;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.Validate;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
+
+//CHECKSTYLE.OFF:DesignForExtension - Gradle needs to be able to extend task classes
+/**
+ * Gradle task that instruments the classes in one directory and writes them out to another directory. Only classes that changed since
+ * the last run get instrumented, and the output can be pulled from Gradle's build cache.
+ * @author Kasra Faghihi
+ */
+@CacheableTask
+public class InstrumentTask extends DefaultTask {
+
+    private File inputDirectory;
+    private File outputDirectory;
+    private FileCollection classpath;
+    private String jdkLibsDirectory;
+    private String markerType = "NONE";
+    private boolean debugMode;
+    private boolean metricsMode;
+    private boolean outlineMode;
+    private boolean packedStorageMode;
+    private boolean preemptionMode;
+    private boolean suspendAnalysisMode;
+
+    /**
+     * Get the directory containing the classes to instrument. The directory doesn't have to exist (e.g. if nothing was compiled).
+     *
+     * @return input directory
+     */
+    @InputFiles // not @InputDirectory -- the task still needs to run (and clear out its output) if the directory doesn't exist
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public File getInputDirectory() {
+        return inputDirectory;
+    }
+
+    /**
+     * Set the directory containing the classes to instrument.
+     *
+     * @param inputDirectory input directory
+     */
+    public void setInputDirectory(File inputDirectory) {
+        this.inputDirectory = inputDirectory;
+    }
+
+    /**
+     * Get the directory to write instrumented classes to.
+     *
+     * @return output directory
+     */
+    @OutputDirectory
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    /**
+     * Set the directory to write instrumented classes to.
+     *
+     * @param outputDirectory output directory
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Get the classpath needed to resolve classes referenced by the classes being instrumented.
+     *
+     * @return classpath
+     */
+    @Classpath
+    public FileCollection getClasspath() {
+        return classpath;
+    }
+
+    /**
+     * Set the classpath needed to resolve classes referenced by the classes being instrumented.
+     *
+     * @param classpath classpath
+     */
+    public void setClasspath(FileCollection classpath) {
+        this.classpath = classpath;
+    }
+
+    /**
+     * Get JDK library directory.
+     *
+     * @return JDK library directory
+     */
+    @Internal // JDK location is different on different machines, and JDK class hierarchy doesn't change in a way that affects output
+    public String getJdkLibsDirectory() {
+        return jdkLibsDirectory;
+    }
+
+    /**
+     * Set JDK library directory.
+     *
+     * @param jdkLibsDirectory JDK library directory
+     */
+    public void setJdkLibsDirectory(String jdkLibsDirectory) {
+        this.jdkLibsDirectory = jdkLibsDirectory;
+    }
+
+    /**
+     * Get marker type.
+     *
+     * @return marker type
+     */
+    @Input
+    public String getMarkerType() {
+        return markerType;
+    }
+
+    /**
+     * Set marker type.
+     *
+     * @param markerType marker type
+     */
+    public void setMarkerType(String markerType) {
+        this.markerType = markerType;
+    }
+
+    /**
+     * Get debug mode.
+     *
+     * @return debug mode
+     */
+    @Input
+    public boolean isDebugMode() {
+        return debugMode;
+    }
+
+    /**
+     * Set debug mode.
+     *
+     * @param debugMode debug mode
+     */
+    public void setDebugMode(boolean debugMode) {
+        this.debugMode = debugMode;
+    }
+
+    /**
+     * Get metrics mode.
+     *
+     * @return metrics mode
+     */
+    @Input
+    public boolean isMetricsMode() {
+        return metricsMode;
+    }
+
+    /**
+     * Set metrics mode.
+     *
+     * @param metricsMode metrics mode
+     */
+    public void setMetricsMode(boolean metricsMode) {
+        this.metricsMode = metricsMode;
+    }
+
+    /**
+     * Get outline mode.
+     *
+     * @return outline mode
+     */
+    @Input
+    public boolean isOutlineMode() {
+        return outlineMode;
+    }
+
+    /**
+     * Set outline mode.
+     *
+     * @param outlineMode outline mode
+     */
+    public void setOutlineMode(boolean outlineMode) {
+        this.outlineMode = outlineMode;
+    }
+
+    /**
+     * Get packed storage mode.
+     *
+     * @return packed storage mode
+     */
+    @Input
+    public boolean isPackedStorageMode() {
+        return packedStorageMode;
+    }
+
+    /**
+     * Set packed storage mode.
+     *
+     * @param packedStorageMode packed storage mode
+     */
+    public void setPackedStorageMode(boolean packedStorageMode) {
+        this.packedStorageMode = packedStorageMode;
+    }
+
+    /**
+     * Get preemption mode.
+     *
+     * @return preemption mode
+     */
+    @Input
+    public boolean isPreemptionMode() {
+        return preemptionMode;
+    }
+
+    /**
+     * Set preemption mode.
+     *
+     * @param preemptionMode preemption mode
+     */
+    public void setPreemptionMode(boolean preemptionMode) {
+        this.preemptionMode = preemptionMode;
+    }
+
+    /**
+     * Get suspend analysis mode.
+     *
+     * @return suspend analysis mode
+     */
+    @Input
+    public boolean isSuspendAnalysisMode() {
+        return suspendAnalysisMode;
+    }
+
+    /**
+     * Set suspend analysis mode.
+     *
+     * @param suspendAnalysisMode suspend analysis mode
+     */
+    public void setSuspendAnalysisMode(boolean suspendAnalysisMode) {
+        this.suspendAnalysisMode = suspendAnalysisMode;
+    }
+
+    /**
+     * Instrument classes.
+     *
+     * @param inputs changes since last run
+     * @throws IllegalStateException if instrumentation failed
+     */
+    @TaskAction
+    public void instrument(IncrementalTaskInputs inputs) {
+        Validate.validState(inputDirectory != null, "Input directory not set");
+        Validate.validState(outputDirectory != null, "Output directory not set");
+        Validate.validState(classpath != null, "Classpath not set");
+        Validate.validState(jdkLibsDirectory != null, "JDK libs directory not set");
+
+        try {
+            // Nothing was compiled (e.g. all the sources were removed), so get rid of anything instrumented on a previous run
+            if (!inputDirectory.isDirectory()) {
+                if (outputDirectory.isDirectory()) {
+                    FileUtils.cleanDirectory(outputDirectory);
+                }
+                return;
+            }
+
+            Path inputPath = inputDirectory.toPath();
+
+            // Suspend analysis looks at all classes at once, so a change to one class may change how other classes get instrumented.
+            List<File> changedFiles = new ArrayList<>();
+            List<File> removedFiles = new ArrayList<>();
+            boolean fullRun = !inputs.isIncremental() || suspendAnalysisMode;
+            if (!fullRun) {
+                inputs.outOfDate(x -> changedFiles.add(x.getFile()));
+                inputs.removed(x -> removedFiles.add(x.getFile()));
+
+                // A change to the classpath may change the class hierarchy used to instrument any of the classes, so redo everything.
+                // Classes in the input directory that depend on a changed class in the same directory will have been recompiled as well,
+                // so those show up as changed.
+                fullRun = Stream.concat(changedFiles.stream(), removedFiles.stream()).anyMatch(x -> !x.toPath().startsWith(inputPath));
+            }
+
+            if (fullRun) {
+                FileUtils.cleanDirectory(outputDirectory);
+                changedFiles.clear();
+                changedFiles.addAll(FileUtils.listFiles(inputDirectory, null, true));
+                removedFiles.clear();
+            }
+
+            for (File removedFile : removedFiles) {
+                FileUtils.deleteQuietly(toOutputFile(removedFile));
+            }
+
+            instrumentFiles(changedFiles);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Failed to instrument", ioe);
+        }
+    }
+
+    private void instrumentFiles(List<File> files) throws IOException {
+        List<File> instrumenterClasspath = new ArrayList<>();
+        instrumenterClasspath.add(inputDirectory);
+        instrumenterClasspath.addAll(classpath.getFiles());
+        instrumenterClasspath.addAll(FileUtils.listFiles(new File(jdkLibsDirectory), new String[]{"jar"}, true));
+        instrumenterClasspath = instrumenterClasspath.stream()
+                .filter(x -> x.exists())
+                .collect(toList());
+
+        Set<String> nonSuspendingMethods = Collections.emptySet();
+        if (suspendAnalysisMode) {
+            List<byte[]> classes = new ArrayList<>();
+            for (File classFile : FileUtils.listFiles(inputDirectory, new String[]{"class"}, true)) {
+                classes.add(FileUtils.readFileToByteArray(classFile));
+            }
+            nonSuspendingMethods = SuspendAnalyzer.findNonSuspendingMethods(classes, preemptionMode);
+        }
+
+        InstrumentationSettings settings = new InstrumentationSettings(MarkerType.valueOf(markerType), debugMode, metricsMode,
+                outlineMode, packedStorageMode, preemptionMode, nonSuspendingMethods);
+        Instrumenter instrumenter = new Instrumenter(instrumenterClasspath);
+
+        // Each class is instrumented independently of the others, so instrument them in parallel
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    File outputFile = toOutputFile(file);
+                    if (file.getName().endsWith(".class")) {
+                        byte[] input = FileUtils.readFileToByteArray(file);
+                        byte[] output = instrumenter.instrument(input, settings);
+                        FileUtils.writeByteArrayToFile(outputFile, output);
+                    } else {
+                        FileUtils.copyFile(file, outputFile);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    throw new IllegalStateException("Failed to instrument", ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while instrumenting", ie);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private File toOutputFile(File inputFile) {
+        Path relativePath = inputDirectory.toPath().relativize(inputFile.toPath());
+        return outputDirectory.toPath().resolve(relativePath).toFile();
+    }
+}
+//CHECKSTYLE.ON:DesignForExtension
@@ -1,9 +1,113 @@
 package com.offbynull.coroutines.gradleplugin;
 
+import com.offbynull.coroutines.user.Continuation;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import static java.util.stream.Collectors.toList;
+import org.apache.commons.io.FileUtils;
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
 public final class CoroutinesPluginTest {
-    
-    // It's difficult to write tests for this plugin. The proper classes aren't made available in the Gradle repo, and trying to mock them
-    // out or otherwise create fake stubs results is too burdensome and results in failure (missing class dependencies in the gradle core
-    // api)?
-    
+
+    // Version of Gradle to run the test builds with -- should match the gradle-core version the plugin is compiled against
+    private static final String GRADLE_VERSION = "3.4";
+
+    private File projectDir;
+    private File instrumentedClass;
+    private File uninstrumentedClass;
+
+    @Before
+    public void setUp() throws Exception {
+        projectDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        instrumentedClass = new File(projectDir, "build/classes/main/SuspendTest.class");
+        uninstrumentedClass = new File(projectDir, "build/coroutines/uninstrumented/main/SuspendTest.class");
+
+        // The user module is a dependency of the instrumenter, so it's on this test's classpath
+        File userClasspath = new File(Continuation.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+
+        FileUtils.write(new File(projectDir, "build.gradle"), ""
+                + "plugins {\n"
+                + "    id 'java'\n"
+                + "    id 'coroutines'\n"
+                + "}\n"
+                + "\n"
+                + "dependencies {\n"
+                + "    compile files('" + userClasspath.getAbsolutePath().replace('\\', '/') + "')\n"
+                + "}\n",
+                StandardCharsets.UTF_8);
+        FileUtils.write(new File(projectDir, "src/main/java/SuspendTest.java"), ""
+                + "import com.offbynull.coroutines.user.Continuation;\n"
+                + "import com.offbynull.coroutines.user.Coroutine;\n"
+                + "\n"
+                + "public class SuspendTest implements Coroutine {\n"
+                + "    public void run(Continuation c) {\n"
+                + "        c.suspend();\n"
+                + "    }\n"
+                + "}\n",
+                StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(projectDir);
+    }
+
+    @Test
+    public void mustInstrumentClassesInToSourceSetClassesDirectory() throws Exception {
+        BuildResult result = runBuild();
+
+        Assert.assertEquals(TaskOutcome.SUCCESS, result.task(":instrumentCoroutines").getOutcome());
+        Assert.assertTrue(instrumentedClass.isFile());
+        Assert.assertTrue(uninstrumentedClass.isFile());
+        Assert.assertTrue(instrumentedClass.length() > uninstrumentedClass.length());
+    }
+
+    @Test
+    public void mustBeUpToDateIfNothingChanged() throws Exception {
+        runBuild();
+        BuildResult result = runBuild();
+
+        Assert.assertEquals(TaskOutcome.UP_TO_DATE, result.task(":instrumentCoroutines").getOutcome());
+        Assert.assertTrue(instrumentedClass.isFile());
+    }
+
+    @Test
+    public void mustRemoveInstrumentedClassesWhenAllSourcesRemoved() throws Exception {
+        runBuild();
+        Assert.assertTrue(instrumentedClass.isFile());
+
+        FileUtils.forceDelete(new File(projectDir, "src/main/java/SuspendTest.java"));
+        runBuild();
+
+        Assert.assertFalse(instrumentedClass.exists());
+    }
+
+    private BuildResult runBuild() throws Exception {
+        return GradleRunner.create()
+                .withGradleVersion(GRADLE_VERSION)
+                .withProjectDir(projectDir)
+                .withPluginClasspath(getPluginClasspath())
+                .withArguments("classes", "--stacktrace")
+                .build();
+    }
+
+    private static List<File> getPluginClasspath() {
+        // Everything on this test's classpath except for Gradle and Groovy (provided by the Gradle version running the build)
+        return Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(x -> new File(x))
+                .filter(x -> {
+                    String path = x.getAbsolutePath().replace('\\', '/');
+                    return !path.contains("/org/gradle/") && !path.contains("/org/codehaus/groovy/");
+                })
+                .collect(toList());
+    }
 }
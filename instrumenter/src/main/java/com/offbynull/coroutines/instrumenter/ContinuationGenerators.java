@@ -16,9 +16,14 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import static com.offbynull.coroutines.instrumenter.InternalUtils.getFrameShape;
 import static com.offbynull.coroutines.instrumenter.InternalUtils.validateAndGetContinuationPoint;
 import static com.offbynull.coroutines.instrumenter.LocalsStateGenerators.loadLocals;
 import static com.offbynull.coroutines.instrumenter.LocalsStateGenerators.saveLocals;
+import static com.offbynull.coroutines.instrumenter.MetricsGenerators.recordInvocation;
+import static com.offbynull.coroutines.instrumenter.MetricsGenerators.recordRestore;
+import static com.offbynull.coroutines.instrumenter.MetricsGenerators.recordRestoreStart;
+import static com.offbynull.coroutines.instrumenter.MetricsGenerators.recordSave;
 import static com.offbynull.coroutines.instrumenter.SynchronizationGenerators.enterStoredMonitors;
 import static com.offbynull.coroutines.instrumenter.SynchronizationGenerators.exitStoredMonitors;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.addLabel;
@@ -46,6 +51,11 @@ import com.offbynull.coroutines.user.LockState;
 import com.offbynull.coroutines.user.MethodState;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.IntStream;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
@@ -58,6 +68,7 @@ import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
@@ -66,11 +77,13 @@ import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerTy
 import static com.offbynull.coroutines.instrumenter.generators.DebugGenerators.debugMarker;
 import static com.offbynull.coroutines.instrumenter.SynchronizationGenerators.createMonitorContainer;
 import static com.offbynull.coroutines.instrumenter.PackStateGenerators.packStorageArrays;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.packOperandStackSuffixStorageArrays;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.lineNumber;
 import static com.offbynull.coroutines.instrumenter.OperandStackStateGenerators.loadOperandStack;
 import static com.offbynull.coroutines.instrumenter.OperandStackStateGenerators.saveOperandStack;
 import static com.offbynull.coroutines.instrumenter.PackStateGenerators.unpackLocalsStorageArrays;
 import static com.offbynull.coroutines.instrumenter.PackStateGenerators.unpackOperandStackStorageArrays;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.unpackOperandStackSuffixStorageArrays;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.pop;
 
 final class ContinuationGenerators {
@@ -79,6 +92,8 @@ final class ContinuationGenerators {
             = MethodUtils.getAccessibleMethod(Continuation.class, "getMode");
     private static final Method CONTINUATION_SETMODE_METHOD
             = MethodUtils.getAccessibleMethod(Continuation.class, "setMode", Integer.TYPE);
+    private static final Method CONTINUATION_CHECKCANCELLED_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "checkCancelled");
 
     // Need a primer on how to handle method states with the Continuation class? There are comments in the Continuation class that describe
     // how things should work.
@@ -92,7 +107,10 @@ final class ContinuationGenerators {
             = MethodUtils.getAccessibleMethod(Continuation.class, "pushNewMethodState", MethodState.class);
 
     private static final Constructor<MethodState> METHODSTATE_INIT_METHOD
-            = ConstructorUtils.getAccessibleConstructor(MethodState.class, Integer.TYPE, Object[].class, LockState.class);
+            = ConstructorUtils.getAccessibleConstructor(MethodState.class, Integer.TYPE, Integer.TYPE, Object[].class,
+                    LockState.class);
+    private static final Method METHODSTATE_CHECKFINGERPRINT_METHOD
+            = MethodUtils.getAccessibleMethod(MethodState.class, "checkFingerprint", Integer.TYPE);
     private static final Method METHODSTATE_GETCONTINUATIONPOINT_METHOD
             = MethodUtils.getAccessibleMethod(MethodState.class, "getContinuationPoint");
     private static final Method METHODSTATE_GETDATA_METHOD
@@ -117,6 +135,7 @@ final class ContinuationGenerators {
         int numOfContinuationPoints = attrs.getContinuationPoints().size();
 
         MarkerType markerType = attrs.getSettings().getMarkerType();
+        boolean outlineMode = attrs.getSettings().isOutlineMode();
         String dbgSig = getLogPrefix(attrs);
         
         LabelNode startOfMethodLabelNode = new LabelNode();
@@ -138,6 +157,7 @@ final class ContinuationGenerators {
                                         debugMarker(markerType, "Creating monitors container"),
                                         createMonitorContainer(markerType, lockVars),
                                 }),
+                                recordInvocation(attrs),
                                 debugMarker(markerType, dbgSig + "Jump to start of method point"),
                                 jumpTo(startOfMethodLabelNode)
                         ),
@@ -147,9 +167,12 @@ final class ContinuationGenerators {
                         ),
                         merge(
                                 debugMarker(markerType, dbgSig + "Case 2 -- Loading state"),
+                                recordRestoreStart(attrs),
                                 debugMarker(markerType, dbgSig + "Loading method state"),
                                 call(CONTINUATION_LOADNEXTMETHODSTATE_METHOD, loadVar(contArg)),
                                 saveVar(methodStateVar),
+                                debugMarker(markerType, dbgSig + "Checking method state fingerprint"),
+                                call(METHODSTATE_CHECKFINGERPRINT_METHOD, loadVar(methodStateVar), loadIntConst(attrs.getFingerprint())),
                                 debugMarker(markerType, dbgSig + "Getting method state data"),
                                 call(METHODSTATE_GETDATA_METHOD, loadVar(methodStateVar)),
                                 saveVar(storageContainerVar),
@@ -159,20 +182,26 @@ final class ContinuationGenerators {
                                         call(METHODSTATE_GETLOCKSTATE_METHOD, loadVar(methodStateVar)),
                                         saveVar(lockStateVar)
                                 }),
-                                tableSwitch(
-                                        merge(
-                                                debugMarker(markerType, dbgSig + "Getting continuation id for switch"),
-                                                call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar))
-                                        ),
-                                        merge(
-                                                debugMarker(markerType, dbgSig + "Unrecognized continuation id"),
-                                                throwRuntimeException("Unrecognized continuation id")
-                                        ),
-                                        0,
-                                        IntStream.range(0, numOfContinuationPoints)
-                                                .mapToObj(idx -> restoreState(attrs, idx))
-                                                .toArray((x) -> new InsnList[x])
-                                )
+                                mergeIf(!outlineMode, () -> new Object[] {
+                                    tableSwitch(
+                                            merge(
+                                                    debugMarker(markerType, dbgSig + "Getting continuation id for switch"),
+                                                    call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar))
+                                            ),
+                                            merge(
+                                                    debugMarker(markerType, dbgSig + "Unrecognized continuation id"),
+                                                    throwRuntimeException("Unrecognized continuation id")
+                                            ),
+                                            0,
+                                            IntStream.range(0, numOfContinuationPoints)
+                                                    .mapToObj(idx -> restoreState(attrs, idx))
+                                                    .toArray((x) -> new InsnList[x])
+                                    )
+                                }),
+                                // if outlining, suspend points with the same frame shape share restore code
+                                mergeIf(outlineMode, () -> new Object[] {
+                                    restoreStateShared(attrs)
+                                })
                                 // jump to not required here, switch above either throws exception or jumps to restore point
                         )
                 ),
@@ -194,6 +223,8 @@ final class ContinuationGenerators {
             restoreInsnList = restoreStateFromSuspend(attrs, idx);
         } else if (continuationPoint instanceof NormalInvokeContinuationPoint) {
             restoreInsnList = restoreStateFromNormalInvocation(attrs, idx);
+        } else if (continuationPoint instanceof TailInvokeContinuationPoint) {
+            restoreInsnList = restoreStateFromTailInvocation(attrs, idx);
         } else if (continuationPoint instanceof TryCatchInvokeContinuationPoint) {
             restoreInsnList = restoreStateFromInvocationWithinTryCatch(attrs, idx);
         } else {
@@ -261,11 +292,129 @@ final class ContinuationGenerators {
                 // We've successfully completed our restore and we're continuing the invocation, so we need "discard" this method state
                 debugMarker(markerType, dbgSig + "Discarding saved method state"),
                 call(CONTINUATION_UNLOADCURRENTMETHODSTATE_METHOD, loadVar(contArg)),
+                recordRestore(attrs, idx),
                 debugMarker(markerType, dbgSig + "Restore complete. Jumping to post-invocation point"),
                 jumpTo(continueExecLabelNode)
         );
     }
     
+    // Same as the tableswitch that entryPointLoader() generates when not outlining, except that suspend points with the same frame shape
+    // jump to a single shared copy of the restore code rather than each having their own copy. With many suspend points, the restore code
+    // would otherwise be the bulk of the instrumented method.
+    private static InsnList restoreStateShared(MethodAttributes attrs) {
+        Validate.notNull(attrs);
+        
+        Variable methodStateVar = attrs.getCoreVariables().getMethodStateVar();
+        List<ContinuationPoint> continuationPoints = attrs.getContinuationPoints();
+        
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        String dbgSig = getLogPrefix(attrs);
+        
+        LabelNode defaultLabelNode = new LabelNode();
+        LabelNode[] caseLabelNodes = new LabelNode[continuationPoints.size()];
+        InsnList casesInsnList = new InsnList();
+        Map<String, List<Integer>> sharedIdxes = new LinkedHashMap<>();
+        for (int i = 0; i < continuationPoints.size(); i++) {
+            ContinuationPoint cp = continuationPoints.get(i);
+            if (cp instanceof SuspendContinuationPoint) {
+                sharedIdxes.computeIfAbsent(getFrameShape(cp.getFrame()), x -> new ArrayList<>()).add(i);
+            } else {
+                caseLabelNodes[i] = new LabelNode();
+                casesInsnList.add(caseLabelNodes[i]);
+                casesInsnList.add(restoreState(attrs, i));
+            }
+        }
+        for (List<Integer> idxes : sharedIdxes.values()) {
+            LabelNode sharedLabelNode = new LabelNode();
+            idxes.forEach(i -> caseLabelNodes[i] = sharedLabelNode);
+            casesInsnList.add(sharedLabelNode);
+            casesInsnList.add(restoreStateFromSuspends(attrs, idxes));
+        }
+        
+        return merge(
+                debugMarker(markerType, dbgSig + "Getting continuation id for switch"),
+                call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar)),
+                new TableSwitchInsnNode(0, continuationPoints.size() - 1, defaultLabelNode, caseLabelNodes),
+                casesInsnList,
+                defaultLabelNode,
+                debugMarker(markerType, dbgSig + "Unrecognized continuation id"),
+                throwRuntimeException("Unrecognized continuation id")
+        );
+    }
+    
+    // Restore code for suspend points that all have the same frame shape. Identical to restoreStateFromSuspend() other than it jumps to the
+    // post-invocation point of whichever suspend point is being restored, and it doesn't set a line number (saveStateFromSuspend() sets it
+    // after the jump).
+    private static InsnList restoreStateFromSuspends(MethodAttributes attrs, List<Integer> idxes) {
+        Validate.notNull(attrs);
+        Validate.notNull(idxes);
+        Validate.isTrue(!idxes.isEmpty());
+        SuspendContinuationPoint firstCp = validateAndGetContinuationPoint(attrs, idxes.get(0), SuspendContinuationPoint.class);
+        
+        Variable contArg = attrs.getCoreVariables().getContinuationArgVar();
+        Variable methodStateVar = attrs.getCoreVariables().getMethodStateVar();
+        StorageVariables savedLocalsVars = attrs.getLocalsStorageVariables();
+        StorageVariables savedStackVars = attrs.getStackStorageVariables();
+        
+        Variable storageContainerVar = attrs.getStorageContainerVariables().getContainerVar();
+        
+        LockVariables lockVars = attrs.getLockVariables();
+        Variable lockStateVar = lockVars.getLockStateVar();
+        
+        Frame<BasicValue> frame = firstCp.getFrame();
+        
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        String dbgSig = getLogPrefix(attrs);
+        
+        // If there's only a single suspend point with this frame shape, jump straight to it. Otherwise, switch on the continuation point id
+        // to pick which one to jump to.
+        InsnList jumpInsnList;
+        if (idxes.size() == 1) {
+            jumpInsnList = jumpTo(firstCp.getContinueExecutionLabel());
+        } else {
+            int numOfContinuationPoints = attrs.getContinuationPoints().size();
+            LabelNode defaultLabelNode = new LabelNode();
+            LabelNode[] caseLabelNodes = new LabelNode[numOfContinuationPoints];
+            Arrays.fill(caseLabelNodes, defaultLabelNode);
+            for (int idx : idxes) {
+                SuspendContinuationPoint cp = validateAndGetContinuationPoint(attrs, idx, SuspendContinuationPoint.class);
+                caseLabelNodes[idx] = cp.getContinueExecutionLabel();
+            }
+            jumpInsnList = merge(
+                    call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar)),
+                    new TableSwitchInsnNode(0, numOfContinuationPoints - 1, defaultLabelNode, caseLabelNodes),
+                    defaultLabelNode,
+                    throwRuntimeException("Unrecognized continuation id")
+            );
+        }
+        
+        return merge(
+                debugMarker(markerType, dbgSig + "Restoring SUSPEND " + idxes),
+                debugMarker(markerType, dbgSig + "Unpacking operand stack storage variables"),
+                unpackOperandStackStorageArrays(markerType, frame, storageContainerVar, savedStackVars),
+                debugMarker(markerType, dbgSig + "Unpacking locals storage variables"),
+                unpackLocalsStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars),
+                debugMarker(markerType, dbgSig + "Restoring operand stack"),
+                loadOperandStack(markerType, savedStackVars, frame),
+                debugMarker(markerType, dbgSig + "Restoring locals"),
+                loadLocals(markerType, savedLocalsVars, frame),
+                // attempt to enter monitors only if method has monitorenter/exit in it (var != null if this were the case)
+                mergeIf(lockStateVar != null, () -> new Object[]{
+                        debugMarker(markerType, dbgSig + "Entering monitors"),
+                        enterStoredMonitors(markerType, lockVars),
+                }),
+                debugMarker(markerType, dbgSig + "Popping off continuation object from operand stack"),
+                pop(), // see restoreStateFromSuspend()
+                debugMarker(markerType, dbgSig + "Setting mode to normal"),
+                call(CONTINUATION_SETMODE_METHOD, loadVar(contArg), loadIntConst(MODE_NORMAL)),
+                debugMarker(markerType, dbgSig + "Discarding saved method state"),
+                call(CONTINUATION_UNLOADCURRENTMETHODSTATE_METHOD, loadVar(contArg)),
+                recordRestore(attrs, call(METHODSTATE_GETCONTINUATIONPOINT_METHOD, loadVar(methodStateVar))),
+                debugMarker(markerType, dbgSig + "Restore complete. Jumping to post-invocation point"),
+                jumpInsnList
+        );
+    }
+    
     private static InsnList restoreStateFromNormalInvocation(MethodAttributes attrs, int idx) {
         Validate.notNull(attrs);
         Validate.isTrue(idx >= 0);
@@ -343,6 +492,7 @@ final class ContinuationGenerators {
                     // the local vars will all show up (REMEMBER: they'll show up only if debugMode is set).
                     lineNumber(lineNumber)
                 }),
+                recordRestore(attrs, idx),
                 debugMarker(markerType, dbgSig + "Invoking"),
                 cloneInvokeNode(invokeNode), // invoke method  (ADDED MULTIPLE TIMES -- MUST BE CLONED)
                 ifIntegersEqual(// if we're saving after invoke, return dummy value
@@ -383,6 +533,72 @@ final class ContinuationGenerators {
         );
     }
     
+    private static InsnList restoreStateFromTailInvocation(MethodAttributes attrs, int idx) {
+        Validate.notNull(attrs);
+        Validate.isTrue(idx >= 0);
+        TailInvokeContinuationPoint cp = validateAndGetContinuationPoint(attrs, idx, TailInvokeContinuationPoint.class);
+        
+        Integer lineNumber = cp.getLineNumber();
+        
+        Variable contArg = attrs.getCoreVariables().getContinuationArgVar();
+        StorageVariables savedStackVars = attrs.getStackStorageVariables();
+        
+        Variable storageContainerVar = attrs.getStorageContainerVariables().getContainerVar();
+        
+        Type returnType = attrs.getSignature().getReturnType();
+        
+        Frame<BasicValue> frame = cp.getFrame();
+        MethodInsnNode invokeNode = cp.getInvokeInstruction();
+        
+        Type invokeReturnType = getReturnTypeOfInvocation(invokeNode);
+        int invokeArgCount = getArgumentCountRequiredForInvocation(invokeNode);
+        
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        String dbgSig = getLogPrefix(attrs);
+        
+        //          restoreStackSuffix(stack, <number of items required for method invocation below>);
+        //          <method invocation>
+        //          if (continuation.getMode() == MODE_SAVING) {
+        //              return <dummy>;
+        //          }
+        //             // At this point the invocation happened successfully. The only thing that happened after the original invocation was
+        //             // a return of its result, so return the result as-is -- there's no need to restore the rest of this method's state.
+        //          continuation.unloadCurrentMethodState();
+        //          return <method invocation>'s return value; // plain return if void
+        return merge(
+                debugMarker(markerType, dbgSig + "Restoring TAIL INVOKE " + idx),
+                debugMarker(markerType, dbgSig + "Unpacking operand stack storage variables (args for invoke only)"),
+                unpackOperandStackSuffixStorageArrays(markerType, frame, storageContainerVar, savedStackVars, invokeArgCount),
+                debugMarker(markerType, dbgSig + "Restoring top " + invokeArgCount + " items of operand stack (just enough to invoke)"),
+                loadOperandStack(markerType, savedStackVars, frame,
+                        frame.getStackSize() - invokeArgCount,
+                        frame.getStackSize() - invokeArgCount,
+                        invokeArgCount),
+                mergeIf(lineNumber != null, () -> new Object[]{
+                    lineNumber(lineNumber)
+                }),
+                recordRestore(attrs, idx),
+                debugMarker(markerType, dbgSig + "Invoking"),
+                cloneInvokeNode(invokeNode), // invoke method  (ADDED MULTIPLE TIMES -- MUST BE CLONED)
+                ifIntegersEqual(// if we're saving after invoke, return dummy value
+                        call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
+                        loadIntConst(MODE_SAVING),
+                        merge(
+                                debugMarker(markerType, dbgSig + "Mode set to save on return"),
+                                debugMarker(markerType, dbgSig + "Popping dummy return value off stack"),
+                                popMethodResult(invokeNode),
+                                debugMarker(markerType, dbgSig + "Returning (dummy return value if not void)"),
+                                returnDummy(returnType)
+                        )
+                ),
+                // We've successfully completed our restore and we're continuing the invocation, so we need "discard" this method state
+                debugMarker(markerType, dbgSig + "Discarding saved method state"),
+                call(CONTINUATION_UNLOADCURRENTMETHODSTATE_METHOD, loadVar(contArg)),
+                debugMarker(markerType, dbgSig + "Restore complete. Returning invocation return value (tail invocation)"),
+                new InsnNode(invokeReturnType.getOpcode(Opcodes.IRETURN))
+        );
+    }
+    
     private static InsnList restoreStateFromInvocationWithinTryCatch(MethodAttributes attrs, int idx) {
         Validate.notNull(attrs);
         Validate.isTrue(idx >= 0);
@@ -475,6 +691,7 @@ final class ContinuationGenerators {
                     // the local vars will all show up (REMEMBER: they'll show up only if debugMode is set).
                     lineNumber(lineNumber)
                 }),
+                recordRestore(attrs, idx),
                 tryCatchBlock(newTryCatchBlockNode,
                         null,
                         merge(// try
@@ -550,7 +767,7 @@ final class ContinuationGenerators {
     
     
     
-    public static InsnList saveState(MethodAttributes attrs, int idx) {
+    public static InsnList saveState(MethodAttributes attrs, int idx, InsnList saveHelperCall) {
         Validate.notNull(attrs);
         Validate.isTrue(idx >= 0);
         ContinuationPoint continuationPoint = validateAndGetContinuationPoint(attrs, idx, ContinuationPoint.class);
@@ -559,11 +776,13 @@ final class ContinuationGenerators {
                 
         InsnList saveInsnList;
         if (continuationPoint instanceof SuspendContinuationPoint) {
-            saveInsnList = saveStateFromSuspend(attrs, idx);
+            saveInsnList = saveStateFromSuspend(attrs, idx, saveHelperCall);
         } else if (continuationPoint instanceof NormalInvokeContinuationPoint) {
-            saveInsnList = saveStateFromNormalInvocation(attrs, idx);
+            saveInsnList = saveStateFromNormalInvocation(attrs, idx, saveHelperCall);
+        } else if (continuationPoint instanceof TailInvokeContinuationPoint) {
+            saveInsnList = saveStateFromTailInvocation(attrs, idx);
         } else if (continuationPoint instanceof TryCatchInvokeContinuationPoint) {
-            saveInsnList = saveStateFromInvocationWithinTryCatch(attrs, idx);
+            saveInsnList = saveStateFromInvocationWithinTryCatch(attrs, idx, saveHelperCall);
         } else {
             throw new IllegalArgumentException(); // should never happen
         }
@@ -571,7 +790,7 @@ final class ContinuationGenerators {
         return saveInsnList;
     }
     
-    private static InsnList saveStateFromSuspend(MethodAttributes attrs, int idx) {
+    private static InsnList saveStateFromSuspend(MethodAttributes attrs, int idx, InsnList saveHelperCall) {
         Validate.notNull(attrs);
         Validate.isTrue(idx >= 0);
         SuspendContinuationPoint cp = validateAndGetContinuationPoint(attrs, idx, SuspendContinuationPoint.class);
@@ -592,8 +811,10 @@ final class ContinuationGenerators {
         LabelNode continueExecLabelNode = cp.getContinueExecutionLabel();
         
         MarkerType markerType = attrs.getSettings().getMarkerType();
+        boolean outlineMode = attrs.getSettings().isOutlineMode();
         String dbgSig = getLogPrefix(attrs);
         
+        //          continuation.checkCancelled(); // throws if cancelled
         //          Object[] stack = saveOperandStack();
         //          Object[] locals = saveLocals();
         //          continuation.addPending(new MethodState(<number>, stack, locals, lockState);
@@ -603,34 +824,50 @@ final class ContinuationGenerators {
         //
         //
         //          restorePoint_<number>_continue: // at this label: empty exec stack / uninit exec var table
+        //          continuation.checkCancelled(); // throws if cancelled
         return merge(
                 mergeIf(lineNumber != null, () -> new Object[]{
                     lineNumber(lineNumber)
                 }),
+                // If the coroutine has been cancelled, throw instead of suspending. We're still inside of the original try/catch blocks
+                // at this point, so the coroutine unwinds just as if the exception were thrown by the call to suspend().
+                debugMarker(markerType, dbgSig + "Checking for cancellation"),
+                call(CONTINUATION_CHECKCANCELLED_METHOD, loadVar(contArg)),
                 debugMarker(markerType, dbgSig + "Saving SUSPEND " + idx),
                 debugMarker(markerType, dbgSig + "Saving operand stack"),
                 saveOperandStack(markerType, savedStackVars, frame), // REMEMBER: STACK IS TOTALLY EMPTY AFTER THIS. ALSO, DON'T FORGET THAT
                                                                      // Continuation OBJECT WILL BE TOP ITEM, NEEDS TO BE DISCARDED ON LOAD
-                debugMarker(markerType, dbgSig + "Saving locals"),
-                saveLocals(markerType, savedLocalsVars, frame),
-                debugMarker(markerType, dbgSig + "Packing locals and operand stack in to container"),
-                packStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars),
-                debugMarker(markerType, dbgSig + "Creating and pushing method state"),
-                call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contArg),
-                        construct(METHODSTATE_INIT_METHOD,
-                                loadIntConst(idx),
-                                loadVar(storageContainerVar),
-                                // load lockstate for last arg if method actually has monitorenter/exit in it
-                                // (var != null if this were the case), otherwise load null for that arg
-                                mergeIf(lockStateVar != null, () -> new Object[] {
-                                    loadVar(lockStateVar)
-                                }).mergeIf(lockStateVar == null, () -> new Object[] {
-                                    loadNull()
-                                }).generate()
-                        )
-                ),
-                debugMarker(markerType, dbgSig + "Setting mode to save"),
-                call(CONTINUATION_SETMODE_METHOD, loadVar(contArg), loadIntConst(MODE_SAVING)),
+                mergeIf(saveHelperCall == null, () -> new Object[] {
+                    debugMarker(markerType, dbgSig + "Saving locals"),
+                    saveLocals(markerType, savedLocalsVars, frame),
+                    debugMarker(markerType, dbgSig + "Packing locals and operand stack in to container"),
+                    packStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars),
+                    debugMarker(markerType, dbgSig + "Creating and pushing method state"),
+                    call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contArg),
+                            recordSave(attrs,
+                                    construct(METHODSTATE_INIT_METHOD,
+                                            loadIntConst(attrs.getFingerprint()),
+                                            loadIntConst(idx),
+                                            loadVar(storageContainerVar),
+                                            // load lockstate for last arg if method actually has monitorenter/exit in it
+                                            // (var != null if this were the case), otherwise load null for that arg
+                                            mergeIf(lockStateVar != null, () -> new Object[] {
+                                                loadVar(lockStateVar)
+                                            }).mergeIf(lockStateVar == null, () -> new Object[] {
+                                                loadNull()
+                                            }).generate()
+                                    )
+                            )
+                    ),
+                    debugMarker(markerType, dbgSig + "Setting mode to save"),
+                    call(CONTINUATION_SETMODE_METHOD, loadVar(contArg), loadIntConst(MODE_SAVING)),
+                }),
+                // if the save code was outlined, a helper method saves and packs locals, pushes the method state, and sets the mode to
+                // save (see SaveHelperGenerators)
+                mergeIf(saveHelperCall != null, () -> new Object[] {
+                    debugMarker(markerType, dbgSig + "Saving locals and pushing method state (save helper)"),
+                    saveHelperCall,
+                }),
                 // attempt to exit monitors only if method has monitorenter/exit in it (var != null if this were the case)
                 mergeIf(lockStateVar != null, () -> new Object[]{
                     debugMarker(markerType, dbgSig + "Exiting monitors"),
@@ -642,11 +879,20 @@ final class ContinuationGenerators {
                 
                 
                 addLabel(continueExecLabelNode),
+                // In outline mode the restore code is shared with other suspend points (see restoreStateFromSuspends()), so the line number
+                // that the restore code would have set gets set here instead
+                mergeIf(outlineMode && lineNumber != null, () -> new Object[]{
+                    lineNumber(lineNumber)
+                }),
+                // Only reachable when restoring. The restore logic has already re-entered monitors and discarded this method's state, so
+                // throwing here unwinds the coroutine through its original catch/finally blocks (releasing monitors as it goes).
+                debugMarker(markerType, dbgSig + "Checking for cancellation"),
+                call(CONTINUATION_CHECKCANCELLED_METHOD, loadVar(contArg)),
                 debugMarker(markerType, dbgSig + "Continuing execution...")
         );
     }
     
-    private static InsnList saveStateFromNormalInvocation(MethodAttributes attrs, int idx) {
+    private static InsnList saveStateFromNormalInvocation(MethodAttributes attrs, int idx, InsnList saveHelperCall) {
         Validate.notNull(attrs);
         Validate.isTrue(idx >= 0);
         NormalInvokeContinuationPoint cp = validateAndGetContinuationPoint(attrs, idx, NormalInvokeContinuationPoint.class);
@@ -718,34 +964,134 @@ final class ContinuationGenerators {
                                         invokeArgCount),
                                 debugMarker(markerType, dbgSig + "Saving operand stack"),
                                 saveOperandStack(markerType, savedStackVars, frame), // REMEMBER: STACK IS TOTALLY EMPTY AFTER THIS
-                                debugMarker(markerType, dbgSig + "Saving locals"),
-                                saveLocals(markerType, savedLocalsVars, frame),
-                                debugMarker(markerType, dbgSig + "Packing locals and operand stack in to container"),
-                                packStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars),
+                                mergeIf(saveHelperCall == null, () -> new Object[] {
+                                    debugMarker(markerType, dbgSig + "Saving locals"),
+                                    saveLocals(markerType, savedLocalsVars, frame),
+                                    debugMarker(markerType, dbgSig + "Packing locals and operand stack in to container"),
+                                    packStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars),
+                                }),
+                                // if the save code was outlined, a helper method saves and packs locals and then pushes the method state
+                                // (see SaveHelperGenerators) -- that the method state gets pushed before monitors are exited doesn't matter
+                                mergeIf(saveHelperCall != null, () -> new Object[] {
+                                    debugMarker(markerType, dbgSig + "Saving locals and pushing method state (save helper)"),
+                                    saveHelperCall,
+                                }),
                                 // attempt to exit monitors only if method has monitorenter/exit in it (var != null if this were the case)
                                 mergeIf(lockStateVar != null, () -> new Object[]{
                                     debugMarker(markerType, dbgSig + "Exiting monitors"),
                                     exitStoredMonitors(markerType, lockVars),
                                 }),
+                                mergeIf(saveHelperCall == null, () -> new Object[] {
+                                    debugMarker(markerType, dbgSig + "Creating and pushing method state"),
+                                    call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contArg),
+                                            recordSave(attrs,
+                                                    construct(METHODSTATE_INIT_METHOD,
+                                                            loadIntConst(attrs.getFingerprint()),
+                                                            loadIntConst(idx),
+                                                            loadVar(storageContainerVar),
+                                                            // load lockstate for last arg if method actually has monitorenter/exit in
+                                                            // it (var != null if this were the case), otherwise load null for that arg
+                                                            mergeIf(lockStateVar != null, () -> new Object[] {
+                                                                loadVar(lockStateVar)
+                                                            }).mergeIf(lockStateVar == null, () -> new Object[] {
+                                                                loadNull()
+                                                            }).generate()
+                                                    )
+                                            )
+                                    ),
+                                }),
+                                debugMarker(markerType, dbgSig + "Returning (dummy return value if not void)"),
+                                returnDummy(returnType)
+                        )
+                ),      
+
+                
+                
+                
+                addLabel(continueExecLabelNode),
+                debugMarker(markerType, dbgSig + "Continuing execution...")
+        );
+    }
+    
+    private static InsnList saveStateFromTailInvocation(MethodAttributes attrs, int idx) {
+        Validate.notNull(attrs);
+        Validate.isTrue(idx >= 0);
+        TailInvokeContinuationPoint cp = validateAndGetContinuationPoint(attrs, idx, TailInvokeContinuationPoint.class);
+        
+        Integer lineNumber = cp.getLineNumber();
+
+        Variable contArg = attrs.getCoreVariables().getContinuationArgVar();
+        StorageVariables savedLocalsVars = attrs.getLocalsStorageVariables();
+        StorageVariables savedStackVars = attrs.getStackStorageVariables();
+        Variable storageContainerVar = attrs.getStorageContainerVariables().getContainerVar();
+        
+        // Tail invocations are never used in methods that have synchronization points (see MethodAnalyzer), so there are no monitors to
+        // exit or lockstate to save
+        Validate.validState(attrs.getLockVariables().getLockStateVar() == null);
+
+        Type returnType = attrs.getSignature().getReturnType();
+        
+        Frame<BasicValue> frame = cp.getFrame();
+        MethodInsnNode invokeNode = cp.getInvokeInstruction();
+        LabelNode continueExecLabelNode = cp.getContinueExecutionLabel();
+        
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        String dbgSig = getLogPrefix(attrs);
+        
+        //          Object[] duplicatedArgs = saveOperandStack(<method param count>);
+        //          <method invocation>
+        //          if (continuation.getMode() == MODE_SAVING) {
+        //              continuation.addPending(new MethodState(<number>, duplicatedArgs, null, null);
+        //              return <dummy>;
+        //          }
+        //
+        //
+        //          restorePoint_<number>_continue:
+        //
+        // The invocation is immediately followed by a return of its result, so nothing else in this method (locals or the rest of the
+        // operand stack) is needed after it returns. The only thing that needs to be saved are the args to the invocation, so that when
+        // we load we can call in to the method again.
+        
+        int invokeArgCount = getArgumentCountRequiredForInvocation(invokeNode);
+        return merge(
+                mergeIf(lineNumber != null, () -> new Object[]{
+                    lineNumber(lineNumber)
+                }),
+                debugMarker(markerType, dbgSig + "Saving TAIL INVOKE " + idx),
+                debugMarker(markerType, dbgSig + "Saving top " + invokeArgCount + " items of operand stack (args for invoke)"),
+                saveOperandStack(markerType, savedStackVars, frame, invokeArgCount),
+                debugMarker(markerType, dbgSig + "Reloading invoke arguments back on to the stack (for invoke)"),
+                loadOperandStack(markerType, savedStackVars, frame,
+                        frame.getStackSize() - invokeArgCount,
+                        frame.getStackSize() - invokeArgCount,
+                        invokeArgCount),
+                debugMarker(markerType, dbgSig + "Invoking"),
+                cloneInvokeNode(invokeNode), // invoke method  (ADDED MULTIPLE TIMES -- MUST BE CLONED)
+                ifIntegersEqual(// if we're saving after invoke
+                        call(CONTINUATION_GETMODE_METHOD, loadVar(contArg)),
+                        loadIntConst(MODE_SAVING),
+                        merge(
+                                debugMarker(markerType, dbgSig + "Mode set to save on return"),
+                                debugMarker(markerType, dbgSig + "Popping dummy return value off stack"),
+                                popMethodResult(invokeNode),
+                                debugMarker(markerType, dbgSig + "Packing invoke arguments in to container"),
+                                packOperandStackSuffixStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars,
+                                        invokeArgCount),
                                 debugMarker(markerType, dbgSig + "Creating and pushing method state"),
                                 call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contArg),
-                                        construct(METHODSTATE_INIT_METHOD,
-                                                loadIntConst(idx),
-                                                loadVar(storageContainerVar),
-                                                // load lockstate for last arg if method actually has monitorenter/exit in it
-                                                // (var != null if this were the case), otherwise load null for that arg
-                                                mergeIf(lockStateVar != null, () -> new Object[] {
-                                                    loadVar(lockStateVar)
-                                                }).mergeIf(lockStateVar == null, () -> new Object[] {
-                                                    loadNull()
-                                                }).generate()
+                                        recordSave(attrs,
+                                                construct(METHODSTATE_INIT_METHOD,
+                                                        loadIntConst(attrs.getFingerprint()),
+                                                        loadIntConst(idx),
+                                                        loadVar(storageContainerVar),
+                                                        loadNull()
+                                                )
                                         )
                                 ),
                                 debugMarker(markerType, dbgSig + "Returning (dummy return value if not void)"),
                                 returnDummy(returnType)
                         )
-                ),      
-
+                ),
                 
                 
                 
@@ -754,7 +1100,7 @@ final class ContinuationGenerators {
         );
     }
     
-    private static InsnList saveStateFromInvocationWithinTryCatch(MethodAttributes attrs, int idx) {
+    private static InsnList saveStateFromInvocationWithinTryCatch(MethodAttributes attrs, int idx, InsnList saveHelperCall) {
         Validate.notNull(attrs);
         Validate.isTrue(idx >= 0);
         TryCatchInvokeContinuationPoint cp = validateAndGetContinuationPoint(attrs, idx, TryCatchInvokeContinuationPoint.class);
@@ -809,29 +1155,42 @@ final class ContinuationGenerators {
                                         invokeArgCount),
                                 debugMarker(markerType, dbgSig + "Saving operand stack"),
                                 saveOperandStack(markerType, savedStackVars, frame), // REMEMBER: STACK IS TOTALLY EMPTY AFTER THIS
-                                debugMarker(markerType, dbgSig + "Saving locals"),
-                                saveLocals(markerType, savedLocalsVars, frame),
-                                debugMarker(markerType, dbgSig + "Packing locals and operand stack in to container"),
-                                packStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars),
+                                mergeIf(saveHelperCall == null, () -> new Object[] {
+                                    debugMarker(markerType, dbgSig + "Saving locals"),
+                                    saveLocals(markerType, savedLocalsVars, frame),
+                                    debugMarker(markerType, dbgSig + "Packing locals and operand stack in to container"),
+                                    packStorageArrays(markerType, frame, storageContainerVar, savedLocalsVars, savedStackVars),
+                                }),
+                                // if the save code was outlined, a helper method saves and packs locals and then pushes the method state
+                                // (see SaveHelperGenerators) -- that the method state gets pushed before monitors are exited doesn't matter
+                                mergeIf(saveHelperCall != null, () -> new Object[] {
+                                    debugMarker(markerType, dbgSig + "Saving locals and pushing method state (save helper)"),
+                                    saveHelperCall,
+                                }),
                                 // attempt to exit monitors only if method has monitorenter/exit in it (var != null if this were the case)
                                 mergeIf(lockStateVar != null, () -> new Object[]{
                                     debugMarker(markerType, dbgSig + "Exiting monitors"),
                                     exitStoredMonitors(markerType, lockVars),
                                 }),
-                                debugMarker(markerType, dbgSig + "Creating and pushing method state"),
-                                call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contArg),
-                                        construct(METHODSTATE_INIT_METHOD,
-                                                loadIntConst(idx),
-                                                loadVar(storageContainerVar),
-                                                // load lockstate for last arg if method actually has monitorenter/exit in it
-                                                // (var != null if this were the case), otherwise load null for that arg
-                                                mergeIf(lockStateVar != null, () -> new Object[] {
-                                                    loadVar(lockStateVar)
-                                                }).mergeIf(lockStateVar == null, () -> new Object[] {
-                                                    loadNull()
-                                                }).generate()
-                                        )
-                                ),
+                                mergeIf(saveHelperCall == null, () -> new Object[] {
+                                    debugMarker(markerType, dbgSig + "Creating and pushing method state"),
+                                    call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contArg),
+                                            recordSave(attrs,
+                                                    construct(METHODSTATE_INIT_METHOD,
+                                                            loadIntConst(attrs.getFingerprint()),
+                                                            loadIntConst(idx),
+                                                            loadVar(storageContainerVar),
+                                                            // load lockstate for last arg if method actually has monitorenter/exit in
+                                                            // it (var != null if this were the case), otherwise load null for that arg
+                                                            mergeIf(lockStateVar != null, () -> new Object[] {
+                                                                loadVar(lockStateVar)
+                                                            }).mergeIf(lockStateVar == null, () -> new Object[] {
+                                                                loadNull()
+                                                            }).generate()
+                                                    )
+                                            )
+                                    ),
+                                }),
                                 debugMarker(markerType, dbgSig + "Returning (dummy return value if not void)"),
                                 returnDummy(returnType)
                         )
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Result of {@link Instrumenter#instrumentAndReport(byte[], InstrumentationSettings) }.
+ * @author Kasra Faghihi
+ */
+public final class InstrumentationResult {
+    private final byte[] instrumentedClass;
+    private final List<MethodReport> methodReports;
+
+    InstrumentationResult(byte[] instrumentedClass, List<MethodReport> methodReports) {
+        Validate.notNull(instrumentedClass);
+        Validate.notNull(methodReports);
+        Validate.noNullElements(methodReports);
+        this.instrumentedClass = instrumentedClass.clone();
+        this.methodReports = Collections.unmodifiableList(new ArrayList<>(methodReports));
+    }
+
+    /**
+     * Get the instrumented class.
+     * @return instrumented class file contents
+     */
+    public byte[] getInstrumentedClass() {
+        return instrumentedClass.clone();
+    }
+
+    /**
+     * Get a report for each method that was instrumented. If the class didn't need to be instrumented, this will be empty.
+     * @return method reports
+     */
+    public List<MethodReport> getMethodReports() {
+        return methodReports;
+    }
+}
@@ -17,6 +17,9 @@
 package com.offbynull.coroutines.instrumenter;
 
 import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import org.apache.commons.lang3.Validate;
 
 /**
@@ -26,17 +29,46 @@ import org.apache.commons.lang3.Validate;
 public final class InstrumentationSettings {
     private final MarkerType markerType;
     private final boolean debugMode;
+    private final boolean metricsMode;
+    private final boolean outlineMode;
+    private final boolean packedStorageMode;
+    private final boolean preemptionMode;
+    private final Set<String> nonSuspendingMethods;
 
     /**
-     * Constructs a {@link InstrumentationSettings} object.
+     * Constructs a {@link InstrumentationSettings} object. Equivalent to calling
+     * {@code InstrumentationSettings(markerType, debugMode, false, false, false, false, Collections.emptySet())}.
      * @param markerType marker type
      * @param debugMode debug mode
      * @throws NullPointerException if any argument is {@code null}
      */
     public InstrumentationSettings(MarkerType markerType, boolean debugMode) {
+        this(markerType, debugMode, false, false, false, false, Collections.emptySet());
+    }
+
+    /**
+     * Constructs a {@link InstrumentationSettings} object.
+     * @param markerType marker type
+     * @param debugMode debug mode
+     * @param metricsMode metrics mode
+     * @param outlineMode outline mode
+     * @param packedStorageMode packed storage mode
+     * @param preemptionMode preemption mode
+     * @param nonSuspendingMethods methods that can never suspend (see {@link SuspendAnalyzer})
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     */
+    public InstrumentationSettings(MarkerType markerType, boolean debugMode, boolean metricsMode, boolean outlineMode,
+            boolean packedStorageMode, boolean preemptionMode, Set<String> nonSuspendingMethods) {
         Validate.notNull(markerType);
+        Validate.notNull(nonSuspendingMethods);
+        Validate.noNullElements(nonSuspendingMethods);
         this.markerType = markerType;
         this.debugMode = debugMode;
+        this.metricsMode = metricsMode;
+        this.outlineMode = outlineMode;
+        this.packedStorageMode = packedStorageMode;
+        this.preemptionMode = preemptionMode;
+        this.nonSuspendingMethods = Collections.unmodifiableSet(new HashSet<>(nonSuspendingMethods));
     }
 
     /**
@@ -56,4 +88,59 @@ public final class InstrumentationSettings {
     public boolean isDebugMode() {
         return debugMode;
     }
+
+    /**
+     * Get metrics mode. Metrics mode adds extra instrumentation code to the class that counts invocations, saves, and restores at each
+     * continuation point (along with bytes saved and restore times). The counts are available through
+     * {@link com.offbynull.coroutines.user.CoroutineMetrics}. Restores are timed with {@link System#nanoTime() }, so classes instrumented
+     * with metrics mode need Java 5 or later to run.
+     * @return metrics mode
+     */
+    public boolean isMetricsMode() {
+        return metricsMode;
+    }
+
+    /**
+     * Get outline mode. Outline mode moves the code that saves a method's state at each continuation point out in to a synthetic helper
+     * method, keeping the instrumented method small. This is useful if instrumented methods have many continuation points and/or
+     * local variables: by default, HotSpot won't JIT compile methods over 8000 bytes of bytecode ({@code HugeMethodLimit}) and won't inline
+     * hot methods over 325 bytes of bytecode ({@code FreqInlineSize}).
+     * @return outline mode
+     */
+    public boolean isOutlineMode() {
+        return outlineMode;
+    }
+
+    /**
+     * Get packed storage mode. Packed storage mode saves all primitives (ints, floats, longs, and doubles) in the local variables table and
+     * operand stack in to a single {@code long[]} (floats and doubles get converted to their raw bits) rather than having a separate array
+     * for each primitive type. This means less arrays get allocated when a method's state is saved.
+     * @return packed storage mode
+     */
+    public boolean isPackedStorageMode() {
+        return packedStorageMode;
+    }
+
+    /**
+     * Get preemption mode. Preemption mode adds a check to each loop in methods that take in a
+     * {@link com.offbynull.coroutines.user.Continuation} that forces the coroutine to suspend once it's gone around loops too many
+     * times (see {@link com.offbynull.coroutines.user.CoroutineRunner#setPreemptionBudget(int)}). This stops long running loops from
+     * monopolizing the thread executing the coroutine.
+     * <p>
+     * If you're using {@link SuspendAnalyzer} along with this mode, make sure to tell it that loops may suspend.
+     * @return preemption mode
+     */
+    public boolean isPreemptionMode() {
+        return preemptionMode;
+    }
+
+    /**
+     * Get methods that can never suspend. Invocations of these methods aren't treated as continuation points -- they're left as normal
+     * invocations that don't save or restore the invoking method's state. Each entry is in the format {@code owner.name+descriptor}, where
+     * {@code owner} is the internal name of the class. Use {@link SuspendAnalyzer} to find these methods.
+     * @return methods that can never suspend (unmodifiable)
+     */
+    public Set<String> getNonSuspendingMethods() {
+        return nonSuspendingMethods;
+    }
 }
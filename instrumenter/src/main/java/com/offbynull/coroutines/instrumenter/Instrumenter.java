@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.List;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.reflect.FieldUtils;
@@ -35,6 +36,7 @@ import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
@@ -109,7 +111,29 @@ public final class Instrumenter {
         Validate.notNull(input);
         Validate.notNull(settings);
         Validate.isTrue(input.length > 0);
-        
+
+        return instrument(input, settings, null);
+    }
+
+    /**
+     * Instruments a class and reports on the cost of instrumenting each method in it.
+     * @param input class file contents
+     * @param settings instrumentation settings
+     * @return instrumented class along with a report for each method that was instrumented
+     * @throws IllegalArgumentException if the class could not be instrumented for some reason
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public InstrumentationResult instrumentAndReport(byte[] input, InstrumentationSettings settings) {
+        Validate.notNull(input);
+        Validate.notNull(settings);
+        Validate.isTrue(input.length > 0);
+
+        List<MethodReport> methodReports = new ArrayList<>();
+        byte[] output = instrument(input, settings, methodReports);
+        return new InstrumentationResult(output, methodReports);
+    }
+
+    private byte[] instrument(byte[] input, InstrumentationSettings settings, List<MethodReport> methodReports) {
         // Read class as tree model -- because we're using SimpleClassNode, JSR blocks get inlined
         ClassReader cr = new ClassReader(input);
         ClassNode classNode = new SimpleClassNode();
@@ -152,14 +176,23 @@ public final class Instrumenter {
         classNode.fields.add(instrumentedMarkerField);
 
         // Instrument each method that needs to be instrumented
+        MethodPreprocessor preprocessor = new MethodPreprocessor();
         MethodAnalyzer analyzer = new MethodAnalyzer(classRepo);
         MethodInstrumenter instrumenter = new MethodInstrumenter();
         for (MethodNode methodNode : methodNodesToInstrument) {
+            int originalSize = methodReports != null ? getCodeSize(methodNode) : -1;
+
+            preprocessor.preprocess(methodNode, settings);
             MethodAttributes methodAttrs = analyzer.analyze(classNode, methodNode, settings);
             
             // If methodProps is null, it means that the analyzer determined that the method doesn't need to be instrumented.
             if (methodAttrs != null) {
-                instrumenter.instrument(methodNode, methodAttrs);
+                instrumenter.instrument(classNode, methodNode, methodAttrs);
+                
+                if (methodReports != null) {
+                    int instrumentedSize = getCodeSize(methodNode);
+                    methodReports.add(MethodReport.create(classNode.name, methodAttrs, originalSize, instrumentedSize));
+                }
             }
         }
 
@@ -174,6 +207,11 @@ public final class Instrumenter {
         return cw.toByteArray();
     }
 
+    private static int getCodeSize(MethodNode methodNode) {
+        CodeSizeEvaluator codeSizeEvaluator = new CodeSizeEvaluator(null);
+        methodNode.accept(codeSizeEvaluator);
+        return codeSizeEvaluator.getMaxSize();
+    }
 
     private void verifyClassIntegrity(ClassNode classNode) {
         // Do not COMPUTE_FRAMES. If you COMPUTE_FRAMES and you pop too many items off the stack or do other weird things that mess up the
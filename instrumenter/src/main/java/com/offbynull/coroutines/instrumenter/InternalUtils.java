@@ -16,10 +16,27 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import com.offbynull.coroutines.user.Continuation;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
 
 final class InternalUtils {
+    private static final Type CONTINUATION_CLASS_TYPE = Type.getType(Continuation.class);
+
     private InternalUtils() {
         // do nothing
     }
@@ -39,4 +56,85 @@ final class InternalUtils {
         
         return (T) continuationPoint;
     }
+    
+    // Describes the types in the locals table and operand stack of a frame. Continuation points whose frames have the same shape get saved
+    // and restored by the exact same instructions, which is what lets outline mode share that code between them.
+    static String getFrameShape(Frame<BasicValue> frame) {
+        Validate.notNull(frame);
+        
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            Type type = frame.getLocal(i).getType();
+            sb.append(type == null ? "." : type.getDescriptor()).append(',');
+        }
+        sb.append('|');
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            Type type = frame.getStack(i).getType();
+            sb.append(type == null ? "." : type.getDescriptor()).append(',');
+        }
+        return sb.toString();
+    }
+    
+    // Finds the Continuation parameter of a method. Returns its position in the method's parameter list, or -1 if the method doesn't have
+    // exactly one Continuation parameter.
+    static int findContinuationParameter(MethodNode methodNode) {
+        Validate.notNull(methodNode);
+        
+        Type[] argumentTypes = Type.getArgumentTypes(methodNode.desc);
+        int ret = -1;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (argumentTypes[i].equals(CONTINUATION_CLASS_TYPE)) {
+                if (ret != -1) {
+                    return -1;
+                }
+                ret = i;
+            }
+        }
+        return ret;
+    }
+    
+    // Gets the index in the local variables table of a parameter. If the method is NOT static, the first index in the local variables
+    // table is always the "this" pointer, followed by the arguments passed in to the method. Longs and doubles take up 2 slots.
+    static int getLocalVariableIndexOfParameter(MethodNode methodNode, int paramIdx) {
+        Validate.notNull(methodNode);
+        
+        Type[] argumentTypes = Type.getArgumentTypes(methodNode.desc);
+        Validate.isTrue(paramIdx >= 0 && paramIdx < argumentTypes.length);
+        
+        int ret = (methodNode.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC ? 0 : 1;
+        for (int i = 0; i < paramIdx; i++) {
+            ret += argumentTypes[i].getSize();
+        }
+        return ret;
+    }
+    
+    // Finds the start of each loop in an instruction list. The start of a loop is any label that gets jumped back to (a jump to a label
+    // that comes before or at the jump instruction).
+    static Set<LabelNode> findLoopStarts(InsnList insnList) {
+        Validate.notNull(insnList);
+        
+        Set<LabelNode> ret = new LinkedHashSet<>();
+        for (AbstractInsnNode insnNode : insnList.toArray()) {
+            for (LabelNode labelNode : getJumpTargets(insnNode)) {
+                if (insnList.indexOf(labelNode) <= insnList.indexOf(insnNode)) {
+                    ret.add(labelNode);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static List<LabelNode> getJumpTargets(AbstractInsnNode insnNode) {
+        List<LabelNode> ret = new ArrayList<>();
+        if (insnNode instanceof JumpInsnNode) {
+            ret.add(((JumpInsnNode) insnNode).label);
+        } else if (insnNode instanceof TableSwitchInsnNode) {
+            ret.add(((TableSwitchInsnNode) insnNode).dflt);
+            ret.addAll(((TableSwitchInsnNode) insnNode).labels);
+        } else if (insnNode instanceof LookupSwitchInsnNode) {
+            ret.add(((LookupSwitchInsnNode) insnNode).dflt);
+            ret.addAll(((LookupSwitchInsnNode) insnNode).labels);
+        }
+        return ret;
+    }
 }
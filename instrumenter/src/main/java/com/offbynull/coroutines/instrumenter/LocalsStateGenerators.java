@@ -21,6 +21,9 @@ import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerTy
 import static com.offbynull.coroutines.instrumenter.generators.DebugGenerators.debugMarker;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.merge;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.mergeIf;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.isPrimitive;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.packPrimitive;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.unpackPrimitive;
 import org.apache.commons.lang3.Validate;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -95,6 +98,18 @@ final class LocalsStateGenerators {
                 continue;
             }
 
+            // If packed, all primitives are loaded from the longs storage array
+            if (storageVars.isPacked() && isPrimitive(type)) {
+                ret.add(debugMarker(markerType, "Loading packed primitive to LVT index " + i + " from storage index " + longsCounter));
+                ret.add(new VarInsnNode(Opcodes.ALOAD, longsVar.getIndex()));   // [long[]]
+                ret.add(new LdcInsnNode(longsCounter));                         // [long[], idx]
+                ret.add(new InsnNode(Opcodes.LALOAD));                          // [val_PART1, val_PART2]
+                ret.add(unpackPrimitive(type));                                 // [val]
+                ret.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), i));    // []
+                longsCounter++;
+                continue;
+            }
+
             // Load the locals
             switch (type.getSort()) {
                 case Type.BOOLEAN:
@@ -180,7 +195,7 @@ final class LocalsStateGenerators {
         int doublesCounter = 0;
         int objectsCounter = 0;
 
-        StorageSizes storageSizes = computeSizes(frame);
+        StorageSizes storageSizes = computeSizes(frame, storageVars.isPacked());
         
 
         InsnList ret = new InsnList();
@@ -241,6 +256,18 @@ final class LocalsStateGenerators {
                 continue;
             }
 
+            // If packed, all primitives are placed in to the longs storage array
+            if (storageVars.isPacked() && isPrimitive(type)) {
+                ret.add(debugMarker(markerType, "Inserting packed primitive at LVT index " + i + " to storage index " + longsCounter));
+                ret.add(new VarInsnNode(Opcodes.ALOAD, longsVar.getIndex()));  // [long[]]
+                ret.add(new LdcInsnNode(longsCounter));                        // [long[], idx]
+                ret.add(new VarInsnNode(type.getOpcode(Opcodes.ILOAD), i));    // [long[], idx, val]
+                ret.add(packPrimitive(type));                                  // [long[], idx, val_PART1, val_PART2]
+                ret.add(new InsnNode(Opcodes.LASTORE));                        // []
+                longsCounter++;
+                continue;
+            }
+
             // Place item in to appropriate storage array
             switch (type.getSort()) {
                 case Type.BOOLEAN:
@@ -301,10 +328,11 @@ final class LocalsStateGenerators {
     /**
      * Compute sizes required for the storage arrays that will contain the local variables table at this frame.
      * @param frame frame to compute for
+     * @param packed if {@code true}, all primitives are counted towards the longs storage array (see {@link StorageVariables#isPacked()})
      * @return size required by each storage array
      * @throws NullPointerException if any argument is {@code null}
      */
-    public static StorageSizes computeSizes(Frame<BasicValue> frame) {
+    public static StorageSizes computeSizes(Frame<BasicValue> frame, boolean packed) {
         Validate.notNull(frame);
 
         // Count size required for each storage array
@@ -359,6 +387,7 @@ final class LocalsStateGenerators {
             }
         }
         
-        return new StorageSizes(intsSize, longsSize, floatsSize, doublesSize, objectsSize);
+        StorageSizes ret = new StorageSizes(intsSize, longsSize, floatsSize, doublesSize, objectsSize);
+        return packed ? ret.toPacked() : ret;
     }
 }
@@ -16,6 +16,7 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import static com.offbynull.coroutines.instrumenter.InternalUtils.findContinuationParameter;
 import com.offbynull.coroutines.instrumenter.asm.ClassInformationRepository;
 import static com.offbynull.coroutines.instrumenter.asm.MethodInvokeUtils.getReturnTypeOfInvocation;
 import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsOf;
@@ -30,8 +31,10 @@ import com.offbynull.coroutines.user.Continuation;
 import com.offbynull.coroutines.user.LockState;
 import com.offbynull.coroutines.user.MethodState;
 import java.lang.reflect.Method;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import static org.apache.commons.collections4.CollectionUtils.union;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.reflect.MethodUtils;
@@ -41,6 +44,7 @@ import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LineNumberNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
@@ -94,6 +98,11 @@ final class MethodAnalyzer {
         List<AbstractInsnNode> contInvocationInsnNodes
                 = findInvocationsWithParameter(methodNode.instructions, CONTINUATION_CLASS_TYPE);
 
+        // Remove invocations of methods that were proven to never suspend -- they can be left as normal invocations.
+        Set<String> nonSuspendingMethods = settings.getNonSuspendingMethods();
+        contInvocationInsnNodes.removeIf(x -> x instanceof MethodInsnNode
+                && nonSuspendingMethods.contains(((MethodInsnNode) x).owner + "." + ((MethodInsnNode) x).name + ((MethodInsnNode) x).desc));
+
         // If there are no continuation points, we don't need to instrument this method. It'll be like any other normal method
         // invocation because it won't have the potential to pause or call in to another method that may potentially pause.
         if (suspendInvocationInsnNodes.isEmpty() && contInvocationInsnNodes.isEmpty()) {
@@ -145,7 +154,13 @@ final class MethodAnalyzer {
             continuationPoints.add(suspendPoint);
         }
 
-        // Create NormalInvokeContinuationPoint / TryCatchInvokeContinuationPoint objects for suspend points
+        // Create NormalInvokeContinuationPoint / TryCatchInvokeContinuationPoint / TailInvokeContinuationPoint objects for suspend points
+        //
+        // An invocation is treated as a tail invocation if all that follows it is a return of its result. Nothing in the method is used
+        // after the invocation returns, so there's no need to save/restore the locals or the rest of the operand stack. Tail invocations
+        // aren't used if the method has synchronization points (monitors would have to be released before returning) or if debug mode is
+        // set (the locals wouldn't show up in the debugger).
+        boolean tailInvocationsAllowed = monitorInsnNodes.isEmpty() && !settings.isDebugMode();
         for (AbstractInsnNode contInvocationInsnNode : contInvocationInsnNodes) {
             int instructionIndex = methodNode.instructions.indexOf(contInvocationInsnNode);
             boolean withinTryCatch = findTryCatchBlockNodesEncompassingInstruction(
@@ -161,6 +176,9 @@ final class MethodAnalyzer {
             if (withinTryCatch) {
                 continuationPoint = new TryCatchInvokeContinuationPoint(
                         lineNumber, (MethodInsnNode) contInvocationInsnNode, frame);
+            } else if (tailInvocationsAllowed && isFollowedByReturn(contInvocationInsnNode)) {
+                continuationPoint = new TailInvokeContinuationPoint(
+                        lineNumber, (MethodInsnNode) contInvocationInsnNode, frame);
             } else {
                 continuationPoint = new NormalInvokeContinuationPoint(
                         lineNumber, (MethodInsnNode) contInvocationInsnNode, frame);
@@ -281,8 +299,12 @@ final class MethodAnalyzer {
         // DETERMINE WHICH INDEX IN LOCAL VARIABLE TABLE CONTAINS CONTINUATION OBJECT
         ///////////////////////////////////////////////////////////////////////////////////////////
         
-        // Find index of continuation object
-        int contArgIdx = getLocalVariableIndexOfContinuationParameter(methodNode);
+        // Find index of continuation object. If it is NOT static, the first argument in the variable table is always the "this" pointer,
+        // followed by the arguments passed in to the method.
+        int contParamIdx = findContinuationParameter(methodNode);
+        Validate.isTrue(contParamIdx != -1, "Exactly one Continuation argument expected in method %s", methodNode.name);
+        boolean isStatic = (methodNode.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC;
+        int contArgIdx = isStatic ? contParamIdx : contParamIdx + 1;
 
 
 
@@ -301,10 +323,10 @@ final class MethodAnalyzer {
                 methodStateVar);
         
         // Create variables for storing/loading locals -- only create ones we need
-        StorageVariables localsStorageVars = allocateStorageVariableSlots(varTable, localsTypes);
+        StorageVariables localsStorageVars = allocateStorageVariableSlots(varTable, localsTypes, settings.isPackedStorageMode());
 
         // Create variables for storing/loading operand stack -- only create ones we need
-        StorageVariables stackStorageVars = allocateStorageVariableSlots(varTable, operandStackTypes);
+        StorageVariables stackStorageVars = allocateStorageVariableSlots(varTable, operandStackTypes, settings.isPackedStorageMode());
         
         // Create variables to locals and operand stack storage containers -- these must exist
         StorageContainerVariables storageContainerVars = allocateStorageContainerVariableSlots(varTable);
@@ -338,29 +360,6 @@ final class MethodAnalyzer {
                 lockVars);
     }
     
-    private int getLocalVariableIndexOfContinuationParameter(MethodNode methodNode) {
-        // If it is NOT static, the first index in the local variables table is always the "this" pointer, followed by the arguments passed
-        // in to the method.
-        // If it is static, the local variables table doesn't contain the "this" pointer, just the arguments passed in to the method.
-        boolean isStatic = (methodNode.access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC;
-        Type[] argumentTypes = Type.getMethodType(methodNode.desc).getArgumentTypes();
-
-        int idx = -1;
-        for (int i = 0; i < argumentTypes.length; i++) {
-            Type type = argumentTypes[i];
-            if (type.equals(CONTINUATION_CLASS_TYPE)) {
-                if (idx == -1) {
-                    idx = i;
-                } else {
-                    // should never really happen because we should be checking before calling this method
-                    throw new IllegalArgumentException("Multiple Continuation arguments found in method " + methodNode.name);
-                }
-            }
-        }
-
-        return isStatic ? idx : idx + 1;
-    }
-    
     private CacheVariables allocateCacheVariableSlots(
             VariableTable varTable,
             TypeTracker invocationReturnTypes,
@@ -401,12 +400,24 @@ final class MethodAnalyzer {
     
     private StorageVariables allocateStorageVariableSlots(
             VariableTable varTable,
-            TypeTracker storageTypes) {
+            TypeTracker storageTypes,
+            boolean packed) {
         Variable intStorageVar = null;
         Variable longStorageVar = null;
         Variable floatStorageVar = null;
         Variable doubleStorageVar = null;
         Variable objectStorageVar = null;
+        if (packed) {
+            // All primitives get packed in to a single long[]
+            if (storageTypes.intFound || storageTypes.longFound || storageTypes.floatFound || storageTypes.doubleFound) {
+                longStorageVar = varTable.acquireExtra(long[].class);
+            }
+            if (storageTypes.objectFound) {
+                objectStorageVar = varTable.acquireExtra(Object[].class);
+            }
+            return new StorageVariables(null, longStorageVar, null, null, objectStorageVar, true);
+        }
+        
         if (storageTypes.intFound) {
             intStorageVar = varTable.acquireExtra(int[].class);
         }
@@ -428,7 +439,8 @@ final class MethodAnalyzer {
                 longStorageVar,
                 floatStorageVar,
                 doubleStorageVar,
-                objectStorageVar);
+                objectStorageVar,
+                false);
     }
 
     private StorageContainerVariables allocateStorageContainerVariableSlots(
@@ -457,6 +469,25 @@ final class MethodAnalyzer {
                 lockArrayLenVar);
     }
     
+    private boolean isFollowedByReturn(AbstractInsnNode invokeInsnNode) {
+        int expectedReturnOpcode = getReturnTypeOfInvocation(invokeInsnNode).getOpcode(Opcodes.IRETURN);
+
+        // Skip over pseudo-instructions (labels/line numbers/frames) and follow unconditional jumps, until we hit a real instruction
+        Set<AbstractInsnNode> visited = new HashSet<>();
+        AbstractInsnNode insnNode = invokeInsnNode.getNext();
+        while (insnNode != null && visited.add(insnNode)) {
+            if (insnNode.getOpcode() == Opcodes.GOTO) {
+                insnNode = ((JumpInsnNode) insnNode).label;
+            } else if (insnNode.getOpcode() == -1) {
+                insnNode = insnNode.getNext();
+            } else {
+                return insnNode.getOpcode() == expectedReturnOpcode;
+            }
+        }
+        
+        return false;
+    }
+    
     private void validateNoInvokeDynamic(List<AbstractInsnNode> insnNodes) {
         // Why is invokedynamic not allowed? because apparently invokedynamic can map to anything... which means that we can't reliably
         // determine if what is being called by invokedynamic is going to be a method we expect to be instrumented to handle Continuations.
@@ -520,10 +551,16 @@ final class MethodAnalyzer {
         // explicitly take in a Continuation as a parameter. Using lambdas like this is essentially like creating an implementation of
         // Consumer as a class and setting the Continuation object as a field in that class. Cases like that cannot be reliably
         // identified for instrumentation.
+        //
+        // Lambdas that take in the Continuation through their functional interface method rather than capturing it never make it this
+        // far. The invokedynamic that creates such a lambda doesn't take in a Continuation, so it isn't a continuation point. The
+        // lambda's body is a synthetic method that takes in a Continuation, so it gets instrumented like any other method, and
+        // invocations of the functional interface method take in a Continuation, so they're continuation points like any other.
 
         for (AbstractInsnNode insnNode : insnNodes) {
             if (insnNode instanceof InvokeDynamicInsnNode) {
-                throw new IllegalArgumentException("INVOKEDYNAMIC instructions are not allowed");
+                throw new IllegalArgumentException("INVOKEDYNAMIC instructions are not allowed -- lambdas must take in the Continuation as"
+                        + " a parameter of their functional interface method rather than capture it");
             }
         }
     }
@@ -16,13 +16,21 @@
  */
 package com.offbynull.coroutines.instrumenter;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import org.apache.commons.collections4.list.UnmodifiableList;
 import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
 
 final class MethodAttributes {
     private final MethodSignature signature;
+    private final int fingerprint;
     private final InstrumentationSettings settings;
 
     private final UnmodifiableList<ContinuationPoint> continuationPoints;
@@ -71,12 +79,57 @@ final class MethodAttributes {
         this.localsStorageVars = localsStorageVars;
         this.stackStorageVars = stackStorageVars;
         this.lockVars = lockVars;
+        this.fingerprint = computeFingerprint(signature, settings, continuationPoints, !synchPoints.isEmpty());
+    }
+
+    // Fingerprint is a hash of the method signature, the layout of each continuation point (kind of continuation point, method being
+    // invoked, and the types in the locals/operand stack at that point), and the settings that change how those locals/operand stack get
+    // laid out in the storage containers (packed storage mode). If any of these change between instrumentations of a method, the
+    // MethodStates saved by one version can't be restored by the other.
+    private static int computeFingerprint(MethodSignature signature, InstrumentationSettings settings,
+            List<ContinuationPoint> continuationPoints, boolean hasSynchPoints) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(signature.getClassName()).append('.').append(signature.getMethodName())
+                .append(signature.getMethodDescriptor().getDescriptor());
+        sb.append(hasSynchPoints ? " synchronized" : "");
+        sb.append(settings.isPackedStorageMode() ? " packed" : "").append('\n');
+        for (ContinuationPoint continuationPoint : continuationPoints) {
+            MethodInsnNode invokeInsnNode = continuationPoint.getInvokeInstruction();
+            sb.append(continuationPoint.getClass().getSimpleName()).append(' ')
+                    .append(invokeInsnNode.owner).append('.').append(invokeInsnNode.name).append(invokeInsnNode.desc).append(" L");
+
+            Frame<BasicValue> frame = continuationPoint.getFrame();
+            for (int i = 0; i < frame.getLocals(); i++) {
+                sb.append(' ').append(toFingerprintType(frame.getLocal(i)));
+            }
+            sb.append(" S");
+            for (int i = 0; i < frame.getStackSize(); i++) {
+                sb.append(' ').append(toFingerprintType(frame.getStack(i)));
+            }
+            sb.append('\n');
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae); // should never happen, MD5 is required to be supported by every JVM
+        }
+    }
+
+    private static String toFingerprintType(BasicValue value) {
+        Type type = value.getType();
+        return type == null ? "-" : type.getDescriptor();
     }
 
     public MethodSignature getSignature() {
         return signature;
     }
 
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
     public InstrumentationSettings getSettings() {
         return settings;
     }
@@ -18,11 +18,17 @@ package com.offbynull.coroutines.instrumenter;
 
 import static com.offbynull.coroutines.instrumenter.ContinuationGenerators.entryPointLoader;
 import static com.offbynull.coroutines.instrumenter.ContinuationGenerators.saveState;
+import static com.offbynull.coroutines.instrumenter.InternalUtils.getFrameShape;
+import static com.offbynull.coroutines.instrumenter.SaveHelperGenerators.callSaveHelper;
+import static com.offbynull.coroutines.instrumenter.SaveHelperGenerators.createSaveHelper;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.MethodNode;
 import static com.offbynull.coroutines.instrumenter.SynchronizationGenerators.enterMonitorAndStore;
 import static com.offbynull.coroutines.instrumenter.SynchronizationGenerators.exitMonitorAndDelete;
@@ -31,7 +37,8 @@ import org.apache.commons.lang3.Validate;
 
 final class MethodInstrumenter {
 
-    public void instrument(MethodNode methodNode, MethodAttributes attrs) {
+    public void instrument(ClassNode classNode, MethodNode methodNode, MethodAttributes attrs) {
+        Validate.notNull(classNode);
         Validate.notNull(methodNode);
         Validate.notNull(attrs);
 
@@ -55,13 +62,30 @@ final class MethodInstrumenter {
         InsnList entryPoint = entryPointLoader(attrs);
         methodNode.instructions.insert(entryPoint);
         
-        // Add continuation save points
+        // Add continuation save points -- if outlining, the bulk of the save code for each continuation point goes in to a helper method,
+        // which gets shared between continuation points of the same type that have the same frame shape
         List<ContinuationPoint> continuationPoints = attrs.getContinuationPoints();
+        boolean outlineMode = attrs.getSettings().isOutlineMode();
+        Map<String, MethodNode> saveHelperNodes = new HashMap<>();
         for (int i = 0; i < continuationPoints.size(); i++) {
             ContinuationPoint cp = continuationPoints.get(i);
 
+            InsnList saveHelperCall = null;
+            if (outlineMode && !(cp instanceof TailInvokeContinuationPoint)) { // tail invocations don't save locals
+                // suspend helpers also set the mode to saving, invoke helpers don't
+                String saveHelperKey = (cp instanceof SuspendContinuationPoint ? "suspend " : "invoke ") + getFrameShape(cp.getFrame());
+                MethodNode saveHelperNode = saveHelperNodes.get(saveHelperKey);
+                if (saveHelperNode == null) {
+                    saveHelperNode = createSaveHelper(classNode, attrs, i);
+                    saveHelperNodes.put(saveHelperKey, saveHelperNode);
+                }
+                if (saveHelperNode != null) {
+                    saveHelperCall = callSaveHelper(classNode, attrs, i, saveHelperNode);
+                }
+            }
+
             AbstractInsnNode nodeToReplace = cp.getInvokeInstruction();
-            InsnList insnsToReplaceWith = saveState(attrs, i);
+            InsnList insnsToReplaceWith = saveState(attrs, i, saveHelperCall);
             
             methodNode.instructions.insertBefore(nodeToReplace, insnsToReplaceWith);
             methodNode.instructions.remove(nodeToReplace);
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.InternalUtils.findContinuationParameter;
+import static com.offbynull.coroutines.instrumenter.InternalUtils.findLoopStarts;
+import static com.offbynull.coroutines.instrumenter.InternalUtils.getLocalVariableIndexOfParameter;
+import static com.offbynull.coroutines.instrumenter.asm.SearchUtils.findInvocationsOf;
+import com.offbynull.coroutines.user.Continuation;
+import java.lang.reflect.Method;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+// Rewrites parts of a method before it gets analyzed, such that the analyzer/instrumenter only ever have to deal with plain suspend
+// invocations and normal invocations.
+final class MethodPreprocessor {
+
+    private static final Method CONTINUATION_SUSPEND_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "suspend");
+    private static final Method CONTINUATION_YIELDINT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "yieldInt", Integer.TYPE);
+    private static final Method CONTINUATION_YIELDLONG_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "yieldLong", Long.TYPE);
+    private static final Method CONTINUATION_YIELDOBJECT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "yieldObject", Object.class);
+    private static final Method CONTINUATION_OFFERINT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "offerInt", Integer.TYPE);
+    private static final Method CONTINUATION_OFFERLONG_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "offerLong", Long.TYPE);
+    private static final Method CONTINUATION_OFFEROBJECT_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "offerObject", Object.class);
+    private static final Method CONTINUATION_CHECKPREEMPTION_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "checkPreemption");
+
+    public void preprocess(MethodNode methodNode, InstrumentationSettings settings) {
+        Validate.notNull(methodNode);
+        Validate.notNull(settings);
+
+        // Expand yields. Continuation.yieldX(value) gets turned in to Continuation.offerX(value).suspend(). The offer call stashes the
+        // value in the continuation (no boxing) and leaves the continuation on the stack, so the suspend that follows is a normal suspend
+        // point.
+        expandYields(methodNode.instructions, CONTINUATION_YIELDINT_METHOD, CONTINUATION_OFFERINT_METHOD);
+        expandYields(methodNode.instructions, CONTINUATION_YIELDLONG_METHOD, CONTINUATION_OFFERLONG_METHOD);
+        expandYields(methodNode.instructions, CONTINUATION_YIELDOBJECT_METHOD, CONTINUATION_OFFEROBJECT_METHOD);
+
+        // Add preemption checks. The start of each loop gets a check that suspends if the continuation's preemption budget has run out.
+        // The suspend is a plain suspend invocation, so it becomes a normal suspend point.
+        if (settings.isPreemptionMode()) {
+            insertPreemptionChecks(methodNode);
+        }
+    }
+
+    private static void insertPreemptionChecks(MethodNode methodNode) {
+        int contParamIdx = findContinuationParameter(methodNode);
+        if (contParamIdx == -1) {
+            return; // no Continuation parameter or multiple Continuation parameters -- leave it up to the analyzer to deal with
+        }
+        int contVarIdx = getLocalVariableIndexOfParameter(methodNode, contParamIdx);
+
+        InsnList insnList = methodNode.instructions;
+        for (LabelNode loopStartLabelNode : findLoopStarts(insnList)) {
+            LabelNode skipLabelNode = new LabelNode();
+
+            InsnList checkInsnList = new InsnList();
+            checkInsnList.add(new VarInsnNode(Opcodes.ALOAD, contVarIdx));
+            checkInsnList.add(invokeVirtual(CONTINUATION_CHECKPREEMPTION_METHOD));
+            checkInsnList.add(new JumpInsnNode(Opcodes.IFEQ, skipLabelNode));
+            checkInsnList.add(new VarInsnNode(Opcodes.ALOAD, contVarIdx));
+            checkInsnList.add(invokeVirtual(CONTINUATION_SUSPEND_METHOD));
+            checkInsnList.add(skipLabelNode);
+
+            insnList.insert(loopStartLabelNode, checkInsnList);
+        }
+    }
+
+    private static void expandYields(InsnList insnList, Method yieldMethod, Method offerMethod) {
+        for (AbstractInsnNode yieldInsnNode : findInvocationsOf(insnList, yieldMethod)) {
+            InsnList insnsToReplaceWith = new InsnList();
+            insnsToReplaceWith.add(invokeVirtual(offerMethod));
+            insnsToReplaceWith.add(invokeVirtual(CONTINUATION_SUSPEND_METHOD));
+
+            insnList.insertBefore(yieldInsnNode, insnsToReplaceWith);
+            insnList.remove(yieldInsnNode);
+        }
+    }
+
+    private static MethodInsnNode invokeVirtual(Method method) {
+        return new MethodInsnNode(Opcodes.INVOKEVIRTUAL,
+                Type.getInternalName(method.getDeclaringClass()),
+                method.getName(),
+                Type.getMethodDescriptor(method),
+                false);
+    }
+}
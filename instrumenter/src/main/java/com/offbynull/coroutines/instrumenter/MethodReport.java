@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.asm.MethodInvokeUtils.getArgumentCountRequiredForInvocation;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Instrumentation cost of a single method (see {@link Instrumenter#instrumentAndReport(byte[], InstrumentationSettings) }).
+ * <p>
+ * The saved local variable and operand stack counts are for the continuation point that saves the most of that type. Each count is the
+ * number of array elements used to hold items of that type when the method's state is saved (if packed storage mode is set, all
+ * primitives are counted as longs -- see {@link InstrumentationSettings#isPackedStorageMode() }).
+ * @author Kasra Faghihi
+ */
+public final class MethodReport {
+
+    // HotSpot won't JIT compile methods over this many bytes of bytecode (HugeMethodLimit), and won't inline hot methods over this many
+    // bytes of bytecode (FreqInlineSize)
+    private static final int HUGE_METHOD_LIMIT = 8000;
+    private static final int FREQ_INLINE_SIZE = 325;
+
+    private static final String CSV_HEADER = "class,method,descriptor,continuationPoints,"
+            + "localInts,localFloats,localLongs,localDoubles,localObjects,"
+            + "stackInts,stackFloats,stackLongs,stackDoubles,stackObjects,"
+            + "originalSize,instrumentedSize,lockTracking,crossedHugeMethodLimit,crossedFreqInlineSize";
+
+    private final String className;
+    private final String methodName;
+    private final String methodDescriptor;
+    private final int continuationPointCount;
+    private final int[] savedLocals;
+    private final int[] savedStack;
+    private final int originalSize;
+    private final int instrumentedSize;
+    private final boolean lockTracking;
+
+    private MethodReport(String className, String methodName, String methodDescriptor, int continuationPointCount, int[] savedLocals,
+            int[] savedStack, int originalSize, int instrumentedSize, boolean lockTracking) {
+        this.className = className;
+        this.methodName = methodName;
+        this.methodDescriptor = methodDescriptor;
+        this.continuationPointCount = continuationPointCount;
+        this.savedLocals = savedLocals;
+        this.savedStack = savedStack;
+        this.originalSize = originalSize;
+        this.instrumentedSize = instrumentedSize;
+        this.lockTracking = lockTracking;
+    }
+
+    static MethodReport create(String className, MethodAttributes attrs, int originalSize, int instrumentedSize) {
+        Validate.notNull(className);
+        Validate.notNull(attrs);
+        Validate.isTrue(originalSize >= 0);
+        Validate.isTrue(instrumentedSize >= 0);
+
+        boolean packed = attrs.getSettings().isPackedStorageMode();
+
+        // Same sizes as what PackStateGenerators uses when it packs the storage arrays in to the container
+        int[] savedLocals = new int[5];
+        int[] savedStack = new int[5];
+        for (ContinuationPoint cp : attrs.getContinuationPoints()) {
+            Frame<BasicValue> frame = cp.getFrame();
+            if (cp instanceof TailInvokeContinuationPoint) {
+                int count = getArgumentCountRequiredForInvocation(cp.getInvokeInstruction());
+                if (count > 0) {
+                    trackMax(savedStack, OperandStackStateGenerators.computeSizes(frame, frame.getStackSize() - count, count, packed));
+                }
+            } else {
+                trackMax(savedLocals, LocalsStateGenerators.computeSizes(frame, packed));
+                trackMax(savedStack, OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize(), packed));
+            }
+        }
+
+        return new MethodReport(
+                className,
+                attrs.getSignature().getMethodName(),
+                attrs.getSignature().getMethodDescriptor().getDescriptor(),
+                attrs.getContinuationPoints().size(),
+                savedLocals,
+                savedStack,
+                originalSize,
+                instrumentedSize,
+                attrs.getLockVariables().getLockStateVar() != null);
+    }
+
+    private static void trackMax(int[] max, StorageSizes sizes) {
+        max[0] = Math.max(max[0], sizes.getIntsSize());
+        max[1] = Math.max(max[1], sizes.getFloatsSize());
+        max[2] = Math.max(max[2], sizes.getLongsSize());
+        max[3] = Math.max(max[3], sizes.getDoublesSize());
+        max[4] = Math.max(max[4], sizes.getObjectsSize());
+    }
+
+    /**
+     * Get the header row for {@link #toCsvRow() }.
+     * @return CSV header row
+     */
+    public static String getCsvHeader() {
+        return CSV_HEADER;
+    }
+
+    /**
+     * Get this report as a CSV row (columns are listed in {@link #getCsvHeader() }).
+     * @return CSV row
+     */
+    public String toCsvRow() {
+        return className + ',' + methodName + ',' + methodDescriptor + ',' + continuationPointCount + ','
+                + savedLocals[0] + ',' + savedLocals[1] + ',' + savedLocals[2] + ',' + savedLocals[3] + ',' + savedLocals[4] + ','
+                + savedStack[0] + ',' + savedStack[1] + ',' + savedStack[2] + ',' + savedStack[3] + ',' + savedStack[4] + ','
+                + originalSize + ',' + instrumentedSize + ',' + lockTracking + ',' + isCrossedHugeMethodLimit() + ','
+                + isCrossedFreqInlineSize();
+    }
+
+    /**
+     * Get the internal name of the class the method belongs to.
+     * @return class name
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Get the method name.
+     * @return method name
+     */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * Get the method descriptor.
+     * @return method descriptor
+     */
+    public String getMethodDescriptor() {
+        return methodDescriptor;
+    }
+
+    /**
+     * Get the number of continuation points (suspends and invocations of methods that take in a continuation) in the method.
+     * @return number of continuation points
+     */
+    public int getContinuationPointCount() {
+        return continuationPointCount;
+    }
+
+    /**
+     * Get the number of ints saved from the local variables table.
+     * @return number of local variable ints saved
+     */
+    public int getSavedLocalInts() {
+        return savedLocals[0];
+    }
+
+    /**
+     * Get the number of floats saved from the local variables table.
+     * @return number of local variable floats saved
+     */
+    public int getSavedLocalFloats() {
+        return savedLocals[1];
+    }
+
+    /**
+     * Get the number of longs saved from the local variables table.
+     * @return number of local variable longs saved
+     */
+    public int getSavedLocalLongs() {
+        return savedLocals[2];
+    }
+
+    /**
+     * Get the number of doubles saved from the local variables table.
+     * @return number of local variable doubles saved
+     */
+    public int getSavedLocalDoubles() {
+        return savedLocals[3];
+    }
+
+    /**
+     * Get the number of objects saved from the local variables table.
+     * @return number of local variable objects saved
+     */
+    public int getSavedLocalObjects() {
+        return savedLocals[4];
+    }
+
+    /**
+     * Get the number of ints saved from the operand stack.
+     * @return number of operand stack ints saved
+     */
+    public int getSavedStackInts() {
+        return savedStack[0];
+    }
+
+    /**
+     * Get the number of floats saved from the operand stack.
+     * @return number of operand stack floats saved
+     */
+    public int getSavedStackFloats() {
+        return savedStack[1];
+    }
+
+    /**
+     * Get the number of longs saved from the operand stack.
+     * @return number of operand stack longs saved
+     */
+    public int getSavedStackLongs() {
+        return savedStack[2];
+    }
+
+    /**
+     * Get the number of doubles saved from the operand stack.
+     * @return number of operand stack doubles saved
+     */
+    public int getSavedStackDoubles() {
+        return savedStack[3];
+    }
+
+    /**
+     * Get the number of objects saved from the operand stack.
+     * @return number of operand stack objects saved
+     */
+    public int getSavedStackObjects() {
+        return savedStack[4];
+    }
+
+    /**
+     * Get the size of the method's bytecode before instrumentation.
+     * @return original size in bytes
+     */
+    public int getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * Get the size of the method's bytecode after instrumentation (not including any save helper methods generated for it -- see
+     * {@link InstrumentationSettings#isOutlineMode() }).
+     * @return instrumented size in bytes
+     */
+    public int getInstrumentedSize() {
+        return instrumentedSize;
+    }
+
+    /**
+     * Get whether code to track monitors (synchronized blocks) was added to the method.
+     * @return {@code true} if lock tracking was added, {@code false} otherwise
+     */
+    public boolean isLockTracking() {
+        return lockTracking;
+    }
+
+    /**
+     * Get whether instrumentation pushed the method over HotSpot's default {@code HugeMethodLimit} (8000 bytes). Methods over this
+     * limit don't get JIT compiled.
+     * @return {@code true} if the method was under the limit before instrumentation but is over it after, {@code false} otherwise
+     */
+    public boolean isCrossedHugeMethodLimit() {
+        return originalSize <= HUGE_METHOD_LIMIT && instrumentedSize > HUGE_METHOD_LIMIT;
+    }
+
+    /**
+     * Get whether instrumentation pushed the method over HotSpot's default {@code FreqInlineSize} (325 bytes). Hot methods over this
+     * limit don't get inlined.
+     * @return {@code true} if the method was under the limit before instrumentation but is over it after, {@code false} otherwise
+     */
+    public boolean isCrossedFreqInlineSize() {
+        return originalSize <= FREQ_INLINE_SIZE && instrumentedSize > FREQ_INLINE_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "MethodReport{" + toCsvRow() + '}';
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.generators.DebugGenerators.debugMarker;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.call;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.empty;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.loadIntConst;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.loadStringConst;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.loadVar;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.merge;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
+import com.offbynull.coroutines.user.Continuation;
+import com.offbynull.coroutines.user.CoroutineMetrics;
+import com.offbynull.coroutines.user.MethodState;
+import java.lang.reflect.Method;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.tree.InsnList;
+
+// Generates calls in to CoroutineMetrics. All of these generate empty instruction lists if metrics mode isn't turned on.
+final class MetricsGenerators {
+
+    private static final Method COROUTINEMETRICS_RECORDINVOCATION_METHOD
+            = MethodUtils.getAccessibleMethod(CoroutineMetrics.class, "recordInvocation", String.class, Integer.TYPE);
+    private static final Method COROUTINEMETRICS_RECORDSAVE_METHOD
+            = MethodUtils.getAccessibleMethod(CoroutineMetrics.class, "recordSave", MethodState.class, String.class, Integer.TYPE);
+    private static final Method COROUTINEMETRICS_RECORDRESTORESTART_METHOD
+            = MethodUtils.getAccessibleMethod(CoroutineMetrics.class, "recordRestoreStart", Continuation.class, Long.TYPE);
+    private static final Method COROUTINEMETRICS_RECORDRESTORE_METHOD
+            = MethodUtils.getAccessibleMethod(CoroutineMetrics.class, "recordRestore", Continuation.class, String.class, Integer.TYPE,
+                    Integer.TYPE, Long.TYPE);
+    private static final Method SYSTEM_NANOTIME_METHOD
+            = MethodUtils.getAccessibleMethod(System.class, "nanoTime");
+
+    private MetricsGenerators() {
+        // do nothing
+    }
+
+    /**
+     * Generates instructions that count a fresh invocation of the method.
+     * @param attrs method attributes
+     * @return instructions to count a fresh invocation (empty if metrics mode is off)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static InsnList recordInvocation(MethodAttributes attrs) {
+        Validate.notNull(attrs);
+        if (!attrs.getSettings().isMetricsMode()) {
+            return empty();
+        }
+
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        return merge(
+                debugMarker(markerType, "Recording invocation metrics"),
+                call(COROUTINEMETRICS_RECORDINVOCATION_METHOD,
+                        loadStringConst(getMethodId(attrs)),
+                        loadIntConst(attrs.getContinuationPoints().size()))
+        );
+    }
+
+    /**
+     * Generates instructions that count a save at a continuation point. The {@link MethodState} being saved gets passed through, meaning
+     * that the generated instructions leave it on the stack.
+     * @param attrs method attributes
+     * @param methodState instructions that put the {@link MethodState} being saved on to the stack
+     * @return instructions to count a save (just {@code methodState} if metrics mode is off)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static InsnList recordSave(MethodAttributes attrs, InsnList methodState) {
+        Validate.notNull(attrs);
+        Validate.notNull(methodState);
+        if (!attrs.getSettings().isMetricsMode()) {
+            return methodState;
+        }
+
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        return merge(
+                debugMarker(markerType, "Recording save metrics"),
+                call(COROUTINEMETRICS_RECORDSAVE_METHOD,
+                        methodState,
+                        loadStringConst(getMethodId(attrs)),
+                        loadIntConst(attrs.getContinuationPoints().size()))
+        );
+    }
+
+    /**
+     * Generates instructions that mark the start of a restore.
+     * @param attrs method attributes
+     * @return instructions to mark the start of a restore (empty if metrics mode is off)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static InsnList recordRestoreStart(MethodAttributes attrs) {
+        Validate.notNull(attrs);
+        if (!attrs.getSettings().isMetricsMode()) {
+            return empty();
+        }
+
+        Variable contArg = attrs.getCoreVariables().getContinuationArgVar();
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        return merge(
+                debugMarker(markerType, "Recording restore start time"),
+                call(COROUTINEMETRICS_RECORDRESTORESTART_METHOD, loadVar(contArg), call(SYSTEM_NANOTIME_METHOD))
+        );
+    }
+
+    /**
+     * Generates instructions that count a restore at a continuation point, timed from the point marked by
+     * {@link #recordRestoreStart(com.offbynull.coroutines.instrumenter.MethodAttributes) }.
+     * @param attrs method attributes
+     * @param idx continuation point id
+     * @return instructions to count a restore (empty if metrics mode is off)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code idx} is out of bounds
+     */
+    public static InsnList recordRestore(MethodAttributes attrs, int idx) {
+        Validate.notNull(attrs);
+        Validate.isTrue(idx >= 0 && idx < attrs.getContinuationPoints().size());
+        return recordRestore(attrs, loadIntConst(idx));
+    }
+
+    /**
+     * Generates instructions that count a restore at a continuation point, timed from the point marked by
+     * {@link #recordRestoreStart(com.offbynull.coroutines.instrumenter.MethodAttributes) }. Same as
+     * {@link #recordRestore(com.offbynull.coroutines.instrumenter.MethodAttributes, int) }, but for restore code that's shared between
+     * continuation points.
+     * @param attrs method attributes
+     * @param idx instructions that put the continuation point id on to the stack
+     * @return instructions to count a restore (empty if metrics mode is off)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static InsnList recordRestore(MethodAttributes attrs, InsnList idx) {
+        Validate.notNull(attrs);
+        Validate.notNull(idx);
+        if (!attrs.getSettings().isMetricsMode()) {
+            return empty();
+        }
+
+        Variable contArg = attrs.getCoreVariables().getContinuationArgVar();
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        return merge(
+                debugMarker(markerType, "Recording restore metrics"),
+                call(COROUTINEMETRICS_RECORDRESTORE_METHOD,
+                        loadVar(contArg),
+                        loadStringConst(getMethodId(attrs)),
+                        loadIntConst(attrs.getContinuationPoints().size()),
+                        idx,
+                        call(SYSTEM_NANOTIME_METHOD))
+        );
+    }
+
+    private static String getMethodId(MethodAttributes attrs) {
+        MethodSignature signature = attrs.getSignature();
+        return signature.getClassName() + "." + signature.getMethodName() + signature.getMethodDescriptor().getDescriptor();
+    }
+}
@@ -21,6 +21,9 @@ import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerTy
 import static com.offbynull.coroutines.instrumenter.generators.DebugGenerators.debugMarker;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.merge;
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.mergeIf;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.isPrimitive;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.packPrimitive;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.unpackPrimitive;
 import org.apache.commons.lang3.Validate;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
@@ -155,6 +158,12 @@ final class OperandStackStateGenerators {
                 continue; // skip
             }
             
+            // If packed, all primitives are in the longs storage array
+            if (storageVars.isPacked() && isPrimitive(type)) {
+                longsCounter++;
+                continue;
+            }
+            
             switch (type.getSort()) {
                 case Type.BOOLEAN:
                 case Type.BYTE:
@@ -203,6 +212,17 @@ final class OperandStackStateGenerators {
             // Load item from stack storage array
             ret.add(debugMarker(markerType, "Loading from container at" + i));
 
+            // If packed, all primitives are loaded from the longs storage array
+            if (storageVars.isPacked() && isPrimitive(type)) {
+                ret.add(debugMarker(markerType, "Loading packed primitive at " + i + " from storage index " + longsCounter));
+                ret.add(new VarInsnNode(Opcodes.ALOAD, longsVar.getIndex()));  // [long[]]
+                ret.add(new LdcInsnNode(longsCounter));                        // [long[], idx]
+                ret.add(new InsnNode(Opcodes.LALOAD));                         // [val_PART1, val_PART2]
+                ret.add(unpackPrimitive(type));                                // [val]
+                longsCounter++;
+                continue;
+            }
+
             // Convert the item to an object (if not already an object) and stores it in local vars table. Item removed from stack.
             switch (type.getSort()) {
                 case Type.BOOLEAN:
@@ -308,7 +328,7 @@ final class OperandStackStateGenerators {
         Variable doublesVar = storageVars.getDoubleStorageVar();
         Variable objectsVar = storageVars.getObjectStorageVar();
 
-        StorageSizes storageSizes = computeSizes(frame, frame.getStackSize() - count, count);
+        StorageSizes storageSizes = computeSizes(frame, frame.getStackSize() - count, count, storageVars.isPacked());
 
         int intsCounter = storageSizes.getIntsSize() - 1;
         int floatsCounter = storageSizes.getFloatsSize() - 1;
@@ -371,6 +391,19 @@ final class OperandStackStateGenerators {
                 continue;
             }
 
+            // If packed, all primitives are popped/stored in to the longs storage array
+            if (storageVars.isPacked() && isPrimitive(type)) {
+                ret.add(debugMarker(markerType, "Popping/storing packed primitive at " + i + " to storage index " + longsCounter));
+                ret.add(packPrimitive(type));                                  // [val_PART1, val_PART2]
+                ret.add(new VarInsnNode(Opcodes.ALOAD, longsVar.getIndex()));  // [val_PART1, val_PART2, long[]]
+                ret.add(new LdcInsnNode(longsCounter));                        // [val_PART1, val_PART2, long[], idx]
+                ret.add(new InsnNode(Opcodes.DUP2_X2));                        // [long[], idx, val_PART1, val_PART2, long[], idx]
+                ret.add(new InsnNode(Opcodes.POP2));                           // [long[], idx, val_PART1, val_PART2]
+                ret.add(new InsnNode(Opcodes.LASTORE));                        // []
+                longsCounter--;
+                continue;
+            }
+
             // Convert the item to an object (if not already an object) and stores it in local vars table. Item removed from stack.
             switch (type.getSort()) {
                 case Type.BOOLEAN:
@@ -450,12 +483,13 @@ final class OperandStackStateGenerators {
      * @param frame frame to compute for
      * @param offset the position within the operand stack to start calculating
      * @param length the number of stack items to include in calculation
+     * @param packed if {@code true}, all primitives are counted towards the longs storage array (see {@link StorageVariables#isPacked()})
      * @return size required by each storage array
      * @throws NullPointerException if any argument is {@code null}
      * @throws IllegalArgumentException if any numeric argument is negative, or if {@code offset + length} is larger than the size of the
      * operand stack
      */
-    public static StorageSizes computeSizes(Frame<BasicValue> frame, int offset, int length) {
+    public static StorageSizes computeSizes(Frame<BasicValue> frame, int offset, int length, boolean packed) {
         Validate.notNull(frame);
         Validate.isTrue(offset >= 0);
         Validate.isTrue(length >= 0);
@@ -508,6 +542,7 @@ final class OperandStackStateGenerators {
             }
         }
         
-        return new StorageSizes(intsSize, longsSize, floatsSize, doublesSize, objectsSize);
+        StorageSizes ret = new StorageSizes(intsSize, longsSize, floatsSize, doublesSize, objectsSize);
+        return packed ? ret.toPacked() : ret;
     }
 }
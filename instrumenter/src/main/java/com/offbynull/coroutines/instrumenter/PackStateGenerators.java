@@ -23,9 +23,11 @@ import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators
 import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.mergeIf;
 import org.apache.commons.lang3.Validate;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.InsnList;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.TypeInsnNode;
 import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.BasicValue;
@@ -52,6 +54,17 @@ final class PackStateGenerators {
     // exploit this micro-optimization for the time being.
     //
     // See ObjectArrayVsHolderBenchmark class to see the benchmark used to determine this.
+    //
+    //
+    // Normally, the Object[] has 10 slots: 0-4 are for the locals storage arrays (int[], float[], long[], double[], Object[]) and 5-9 are
+    // for the operand stack storage arrays (same order). If the storage variables are packed (see
+    // InstrumentationSettings.isPackedStorageMode()), every primitive gets stored in the long[] and the Object[] only has 4 slots: 0-1 are
+    // for the locals storage arrays (long[], Object[]) and 2-3 are for the operand stack storage arrays (same order). Which arrays get
+    // created and which slots they go in to have to be consistent, but the code that reads the Object[] back in (MethodState /
+    // SnapshotCodec / OffHeapFrameStorage) looks at the type of array in each slot rather than the position of the slot, so either layout
+    // works there.
+    private static final int CONTAINER_SIZE = 10;
+    private static final int PACKED_CONTAINER_SIZE = 4;
     
     public static InsnList packStorageArrays(MarkerType markerType, Frame<BasicValue> frame, Variable containerVar,
             StorageVariables localsStorageVars, StorageVariables operandStackStorageVars) {
@@ -61,6 +74,35 @@ final class PackStateGenerators {
         Validate.notNull(localsStorageVars);
         Validate.notNull(operandStackStorageVars);
         
+        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize(),
+                operandStackStorageVars.isPacked());
+        StorageSizes localsSizes = LocalsStateGenerators.computeSizes(frame, localsStorageVars.isPacked());
+        
+        return packStorageArrays(markerType, containerVar, localsStorageVars, operandStackStorageVars, localsSizes, stackSizes);
+    }
+    
+    public static InsnList packOperandStackSuffixStorageArrays(MarkerType markerType, Frame<BasicValue> frame, Variable containerVar,
+            StorageVariables localsStorageVars, StorageVariables operandStackStorageVars, int count) {
+        Validate.notNull(markerType);
+        Validate.notNull(frame);
+        Validate.notNull(containerVar);
+        Validate.notNull(localsStorageVars);
+        Validate.notNull(operandStackStorageVars);
+        Validate.isTrue(count > 0);
+        Validate.isTrue(count <= frame.getStackSize());
+        
+        // Only the top count items of the operand stack were saved (see OperandStackStateGenerators.saveOperandStack()) -- nothing from
+        // the locals
+        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, frame.getStackSize() - count, count,
+                operandStackStorageVars.isPacked());
+        StorageSizes localsSizes = new StorageSizes(0, 0, 0, 0, 0);
+        
+        return packStorageArrays(markerType, containerVar, localsStorageVars, operandStackStorageVars, localsSizes, stackSizes);
+    }
+    
+    private static InsnList packStorageArrays(MarkerType markerType, Variable containerVar,
+            StorageVariables localsStorageVars, StorageVariables operandStackStorageVars,
+            StorageSizes localsSizes, StorageSizes stackSizes) {
         Variable localsIntsVar = localsStorageVars.getIntStorageVar();
         Variable localsFloatsVar = localsStorageVars.getFloatStorageVar();
         Variable localsLongsVar = localsStorageVars.getLongStorageVar();
@@ -72,8 +114,12 @@ final class PackStateGenerators {
         Variable stackDoublesVar = operandStackStorageVars.getDoubleStorageVar();
         Variable stackObjectsVar = operandStackStorageVars.getObjectStorageVar();
         
-        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize());
-        StorageSizes localsSizes = LocalsStateGenerators.computeSizes(frame);
+        boolean packed = localsStorageVars.isPacked();
+        Validate.isTrue(packed == operandStackStorageVars.isPacked());
+        int localsLongsSlot = packed ? 0 : 2;
+        int localsObjectsSlot = packed ? 1 : 4;
+        int stackLongsSlot = packed ? 2 : 7;
+        int stackObjectsSlot = packed ? 3 : 9;
         
         // Why are we using size > 0 vs checking to see if var != null?
         //
@@ -106,7 +152,7 @@ final class PackStateGenerators {
         // Storage arrays in to locals container
         return merge(
                 debugMarker(markerType, "Packing storage arrays for locals and operand stack in to an Object[]"),
-                new LdcInsnNode(10),
+                new LdcInsnNode(packed ? PACKED_CONTAINER_SIZE : CONTAINER_SIZE),
                 new TypeInsnNode(Opcodes.ANEWARRAY, "java/lang/Object"),
                 new VarInsnNode(Opcodes.ASTORE, containerVar.getIndex()),
                 mergeIf(localsSizes.getIntsSize() > 0, () -> new Object[] {
@@ -126,8 +172,8 @@ final class PackStateGenerators {
                 mergeIf(localsSizes.getLongsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Putting locals longs in to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),       // [Object[]]
-                    new LdcInsnNode(2),                                            // [Object[], 2]
-                    new VarInsnNode(Opcodes.ALOAD, localsLongsVar.getIndex()),     // [Object[], 2, val]
+                    new LdcInsnNode(localsLongsSlot),                              // [Object[], idx]
+                    new VarInsnNode(Opcodes.ALOAD, localsLongsVar.getIndex()),     // [Object[], idx, val]
                     new InsnNode(Opcodes.AASTORE),                                 // []
                 }),
                 mergeIf(localsSizes.getDoublesSize() > 0, () -> new Object[] {
@@ -140,8 +186,8 @@ final class PackStateGenerators {
                 mergeIf(localsSizes.getObjectsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Putting locals objects in to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),       // [Object[]]
-                    new LdcInsnNode(4),                                            // [Object[], 4]
-                    new VarInsnNode(Opcodes.ALOAD, localsObjectsVar.getIndex()),   // [Object[], 4, val]
+                    new LdcInsnNode(localsObjectsSlot),                            // [Object[], idx]
+                    new VarInsnNode(Opcodes.ALOAD, localsObjectsVar.getIndex()),   // [Object[], idx, val]
                     new InsnNode(Opcodes.AASTORE),                                 // []
                 }),
                 mergeIf(stackSizes.getIntsSize() > 0, () -> new Object[] {
@@ -161,8 +207,8 @@ final class PackStateGenerators {
                 mergeIf(stackSizes.getLongsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Putting stack longs in to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),       // [Object[]]
-                    new LdcInsnNode(7),                                            // [Object[], 7]
-                    new VarInsnNode(Opcodes.ALOAD, stackLongsVar.getIndex()),      // [Object[], 7, val]
+                    new LdcInsnNode(stackLongsSlot),                               // [Object[], idx]
+                    new VarInsnNode(Opcodes.ALOAD, stackLongsVar.getIndex()),      // [Object[], idx, val]
                     new InsnNode(Opcodes.AASTORE),                                 // []
                 }),
                 mergeIf(stackSizes.getDoublesSize() > 0, () -> new Object[] {
@@ -175,8 +221,8 @@ final class PackStateGenerators {
                 mergeIf(stackSizes.getObjectsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Putting stack objects in to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),       // [Object[]]
-                    new LdcInsnNode(9),                                            // [Object[], 9]
-                    new VarInsnNode(Opcodes.ALOAD, stackObjectsVar.getIndex()),    // [Object[], 9, val]
+                    new LdcInsnNode(stackObjectsSlot),                             // [Object[], idx]
+                    new VarInsnNode(Opcodes.ALOAD, stackObjectsVar.getIndex()),    // [Object[], idx, val]
                     new InsnNode(Opcodes.AASTORE),                                 // []
                 })
         );
@@ -194,7 +240,11 @@ final class PackStateGenerators {
         Variable localsDoublesVar = localsStorageVars.getDoubleStorageVar();
         Variable localsObjectsVar = localsStorageVars.getObjectStorageVar();
         
-        StorageSizes localsSizes = LocalsStateGenerators.computeSizes(frame);
+        StorageSizes localsSizes = LocalsStateGenerators.computeSizes(frame, localsStorageVars.isPacked());
+        
+        boolean packed = localsStorageVars.isPacked();
+        int localsLongsSlot = packed ? 0 : 2;
+        int localsObjectsSlot = packed ? 1 : 4;
         
         // Why are we using size > 0 vs checking to see if var != null?
         //
@@ -245,7 +295,7 @@ final class PackStateGenerators {
                 mergeIf(localsSizes.getLongsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Getting locals longs from to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),                           // [Object[]]
-                    new LdcInsnNode(2),                                                                // [Object[], 2]
+                    new LdcInsnNode(localsLongsSlot),                                                  // [Object[], idx]
                     new InsnNode(Opcodes.AALOAD),                                                      // [val]
                     new TypeInsnNode(Opcodes.CHECKCAST, localsLongsVar.getType().getInternalName()),   // [val] REQ BY JVM SO TYPE IS KNOWN
                     new VarInsnNode(Opcodes.ASTORE, localsLongsVar.getIndex()),                        // []
@@ -261,7 +311,7 @@ final class PackStateGenerators {
                 mergeIf(localsSizes.getObjectsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Getting locals objects from to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),                           // [Object[]]
-                    new LdcInsnNode(4),                                                                // [Object[], 4]
+                    new LdcInsnNode(localsObjectsSlot),                                                // [Object[], idx]
                     new InsnNode(Opcodes.AALOAD),                                                      // [val]
                     new TypeInsnNode(Opcodes.CHECKCAST, localsObjectsVar.getType().getInternalName()), // [val] REQ BY JVM SO TYPE IS KNOWN
                     new VarInsnNode(Opcodes.ASTORE, localsObjectsVar.getIndex()),                      // []
@@ -275,13 +325,38 @@ final class PackStateGenerators {
         Validate.notNull(containerVar);
         Validate.notNull(operandStackStorageVars);
         
+        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize(),
+                operandStackStorageVars.isPacked());
+        
+        return unpackOperandStackStorageArrays(markerType, containerVar, operandStackStorageVars, stackSizes);
+    }
+    
+    public static InsnList unpackOperandStackSuffixStorageArrays(MarkerType markerType, Frame<BasicValue> frame, Variable containerVar,
+            StorageVariables operandStackStorageVars, int count) {
+        Validate.notNull(markerType);
+        Validate.notNull(frame);
+        Validate.notNull(containerVar);
+        Validate.notNull(operandStackStorageVars);
+        Validate.isTrue(count > 0);
+        Validate.isTrue(count <= frame.getStackSize());
+        
+        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, frame.getStackSize() - count, count,
+                operandStackStorageVars.isPacked());
+        
+        return unpackOperandStackStorageArrays(markerType, containerVar, operandStackStorageVars, stackSizes);
+    }
+    
+    private static InsnList unpackOperandStackStorageArrays(MarkerType markerType, Variable containerVar,
+            StorageVariables operandStackStorageVars, StorageSizes stackSizes) {
         Variable stackIntsVar = operandStackStorageVars.getIntStorageVar();
         Variable stackFloatsVar = operandStackStorageVars.getFloatStorageVar();
         Variable stackLongsVar = operandStackStorageVars.getLongStorageVar();
         Variable stackDoublesVar = operandStackStorageVars.getDoubleStorageVar();
         Variable stackObjectsVar = operandStackStorageVars.getObjectStorageVar();
         
-        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize());
+        boolean packed = operandStackStorageVars.isPacked();
+        int stackLongsSlot = packed ? 2 : 7;
+        int stackObjectsSlot = packed ? 3 : 9;
         
         // Why are we using size > 0 vs checking to see if var != null?
         //
@@ -332,7 +407,7 @@ final class PackStateGenerators {
                 mergeIf(stackSizes.getLongsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Getting stack longs from to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),                           // [Object[]]
-                    new LdcInsnNode(7),                                                                // [Object[], 7]
+                    new LdcInsnNode(stackLongsSlot),                                                   // [Object[], idx]
                     new InsnNode(Opcodes.AALOAD),                                                      // [val]
                     new TypeInsnNode(Opcodes.CHECKCAST, stackLongsVar.getType().getInternalName()),    // [val] REQ BY JVM SO TYPE IS KNOWN
                     new VarInsnNode(Opcodes.ASTORE, stackLongsVar.getIndex()),                         // []
@@ -348,11 +423,77 @@ final class PackStateGenerators {
                 mergeIf(stackSizes.getObjectsSize() > 0, () -> new Object[] {
                     debugMarker(markerType, "Getting stack objects from to container"),
                     new VarInsnNode(Opcodes.ALOAD, containerVar.getIndex()),                           // [Object[]]
-                    new LdcInsnNode(9),                                                                // [Object[], 9]
+                    new LdcInsnNode(stackObjectsSlot),                                                 // [Object[], idx]
                     new InsnNode(Opcodes.AALOAD),                                                      // [val]
                     new TypeInsnNode(Opcodes.CHECKCAST, stackObjectsVar.getType().getInternalName()),  // [val] REQ BY JVM SO TYPE IS KNOWN
                     new VarInsnNode(Opcodes.ASTORE, stackObjectsVar.getIndex()),                       // []
                 })
         );
     }
+    
+    // If the storage variables are packed, every primitive gets stored in the long[]. Ints (and booleans/bytes/shorts/chars) are widened to
+    // longs, floats and doubles are converted to their raw bits. These conversions are lossless, so the original value can always be
+    // recovered.
+    public static InsnList packPrimitive(Type type) {
+        Validate.notNull(type);
+        
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                return merge(
+                        new InsnNode(Opcodes.I2L)
+                );
+            case Type.FLOAT:
+                return merge(
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false),
+                        new InsnNode(Opcodes.I2L)
+                );
+            case Type.LONG:
+                return new InsnList();
+            case Type.DOUBLE:
+                return merge(
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false)
+                );
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+    
+    public static InsnList unpackPrimitive(Type type) {
+        Validate.notNull(type);
+        
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                return merge(
+                        new InsnNode(Opcodes.L2I)
+                );
+            case Type.FLOAT:
+                return merge(
+                        new InsnNode(Opcodes.L2I),
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Float", "intBitsToFloat", "(I)F", false)
+                );
+            case Type.LONG:
+                return new InsnList();
+            case Type.DOUBLE:
+                return merge(
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D", false)
+                );
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+    
+    public static boolean isPrimitive(Type type) {
+        Validate.notNull(type);
+        
+        int sort = type.getSort();
+        return sort != Type.OBJECT && sort != Type.ARRAY && sort != Type.METHOD && sort != Type.VOID;
+    }
 }
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2016, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.LocalsStateGenerators.saveLocals;
+import static com.offbynull.coroutines.instrumenter.MetricsGenerators.recordSave;
+import static com.offbynull.coroutines.instrumenter.PackStateGenerators.packStorageArrays;
+import static com.offbynull.coroutines.instrumenter.generators.DebugGenerators.debugMarker;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.call;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.construct;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.loadIntConst;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.loadNull;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.loadVar;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.merge;
+import static com.offbynull.coroutines.instrumenter.generators.GenericGenerators.mergeIf;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable;
+import com.offbynull.coroutines.instrumenter.asm.VariableTable.Variable;
+import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
+import com.offbynull.coroutines.user.Continuation;
+import static com.offbynull.coroutines.user.Continuation.MODE_SAVING;
+import com.offbynull.coroutines.user.LockState;
+import com.offbynull.coroutines.user.MethodState;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+/**
+ * Utility class to generate synthetic helper methods that save the local variables table, pack it (along with the already saved operand
+ * stack) in to a storage container, and push the method state for that storage container on to the continuation. Moving this code out of
+ * the instrumented method keeps the instrumented method small -- each local gets saved with a single load instruction (it's passed in as an
+ * argument to the helper) rather than the 4 instructions it takes to put it in to a storage array, and the code to create the storage
+ * arrays, the storage container, and the method state moves out entirely.
+ * <p>
+ * The helper's arguments are laid out such that each local ends up in the same slot it was in within the instrumented method (slots that
+ * don't hold anything get a {@code null} passed in), followed by the operand stack storage arrays, the continuation, the continuation point
+ * id, and the lock state (only if the method has synchronization points). That means the same
+ * {@link LocalsStateGenerators}/{@link PackStateGenerators} logic used by the instrumented method also generates the body of the helper,
+ * so the storage container is laid out exactly the same either way. Since the continuation point id is passed in rather than baked in,
+ * continuation points with the same frame shape can call the same helper.
+ * <p>
+ * The restore side can't be moved out the same way -- a method can't write to its caller's local variables table. Instead, suspend points
+ * with the same frame shape share a single copy of the restore code within the instrumented method (see {@link ContinuationGenerators}).
+ * @author Kasra Faghihi
+ */
+final class SaveHelperGenerators {
+    private static final String HELPER_NAME_PREFIX = "coroutines$save$";
+    private static final int MAX_ARGUMENT_SLOTS = 255; // JVM limit on the number of argument slots for a static method
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+    private static final Type CONTINUATION_TYPE = Type.getType(Continuation.class);
+    private static final Type LOCKSTATE_TYPE = Type.getType(LockState.class);
+    private static final Type[] STACK_STORAGE_TYPES = new Type[] {
+        Type.getType(int[].class),
+        Type.getType(float[].class),
+        Type.getType(long[].class),
+        Type.getType(double[].class),
+        Type.getType(Object[].class)
+    };
+
+
+    private static final Method CONTINUATION_SETMODE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "setMode", Integer.TYPE);
+    private static final Method CONTINUATION_PUSHNEWMETHODSTATE_METHOD
+            = MethodUtils.getAccessibleMethod(Continuation.class, "pushNewMethodState", MethodState.class);
+    private static final Constructor<MethodState> METHODSTATE_INIT_METHOD
+            = ConstructorUtils.getAccessibleConstructor(MethodState.class, Integer.TYPE, Integer.TYPE, Object[].class,
+                    LockState.class);
+
+    private SaveHelperGenerators() {
+        // do nothing
+    }
+
+    /**
+     * Generates a synthetic helper method that saves the local variables table at some continuation point, packs it in to a storage
+     * container, and pushes a method state for that container on to the continuation (also setting the continuation to saving mode if the
+     * continuation point is a suspend), then adds it to {@code classNode}. The helper generated for one continuation point can be called
+     * from any other continuation point of the same type whose frame has the same shape (see {@link InternalUtils#getFrameShape}).
+     * @param classNode class containing the method being instrumented
+     * @param attrs attributes of the method being instrumented
+     * @param idx continuation point id
+     * @return helper method that was added to {@code classNode}, or {@code null} if the locals at this continuation point can't fit in to
+     * the arguments of a method
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code idx} is out of bounds
+     */
+    public static MethodNode createSaveHelper(ClassNode classNode, MethodAttributes attrs, int idx) {
+        Validate.notNull(classNode);
+        Validate.notNull(attrs);
+        Validate.isTrue(idx >= 0 && idx < attrs.getContinuationPoints().size());
+
+        ContinuationPoint cp = attrs.getContinuationPoints().get(idx);
+        Frame<BasicValue> frame = cp.getFrame();
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        boolean suspend = cp instanceof SuspendContinuationPoint;
+        boolean hasLockState = attrs.getLockVariables().getLockStateVar() != null;
+
+        // Work out the arguments
+        List<Type> argTypes = getLocalsArgumentTypes(frame);
+        int localsSlots = getSlotCount(argTypes);
+        
+        boolean packed = attrs.getSettings().isPackedStorageMode();
+        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize(), packed);
+        boolean[] stackStorageUsed = getStackStorageUsed(stackSizes);
+        for (int i = 0; i < STACK_STORAGE_TYPES.length; i++) {
+            if (stackStorageUsed[i]) {
+                argTypes.add(STACK_STORAGE_TYPES[i]);
+            }
+        }
+        int contArgSlot = getSlotCount(argTypes);
+        argTypes.add(CONTINUATION_TYPE);
+        argTypes.add(Type.INT_TYPE);
+        if (hasLockState) {
+            argTypes.add(LOCKSTATE_TYPE);
+        }
+        
+        if (getSlotCount(argTypes) > MAX_ARGUMENT_SLOTS) {
+            return null;
+        }
+
+        MethodNode helperNode = new MethodNode(
+                Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                getUniqueName(classNode),
+                Type.getMethodDescriptor(Type.VOID_TYPE, argTypes.toArray(new Type[argTypes.size()])),
+                null,
+                null);
+        helperNode.maxLocals = getSlotCount(argTypes);
+        classNode.methods.add(helperNode);
+        
+        // Set up variables -- the operand stack storage arrays and the arguments after them get copied out in to their own variables
+        VariableTable varTable = new VariableTable(classNode, helperNode);
+        StorageSizes localsSizes = LocalsStateGenerators.computeSizes(frame, packed);
+        StorageVariables localsStorageVars = new StorageVariables(
+                localsSizes.getIntsSize() > 0 ? varTable.acquireExtra(int[].class) : null,
+                localsSizes.getLongsSize() > 0 ? varTable.acquireExtra(long[].class) : null,
+                localsSizes.getFloatsSize() > 0 ? varTable.acquireExtra(float[].class) : null,
+                localsSizes.getDoublesSize() > 0 ? varTable.acquireExtra(double[].class) : null,
+                localsSizes.getObjectsSize() > 0 ? varTable.acquireExtra(Object[].class) : null,
+                packed);
+        Variable[] stackStorageVars = new Variable[STACK_STORAGE_TYPES.length];
+        InsnList copyStackStorageInsnList = new InsnList();
+        int argSlot = localsSlots;
+        for (int i = 0; i < STACK_STORAGE_TYPES.length; i++) {
+            if (stackStorageUsed[i]) {
+                stackStorageVars[i] = varTable.acquireExtra(STACK_STORAGE_TYPES[i]);
+                copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ALOAD, argSlot));
+                copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ASTORE, stackStorageVars[i].getIndex()));
+                argSlot++;
+            }
+        }
+        StorageVariables stackStorageVarsObj = new StorageVariables(
+                stackStorageVars[0], stackStorageVars[2], stackStorageVars[1], stackStorageVars[3], stackStorageVars[4], packed);
+        Variable containerVar = varTable.acquireExtra(Object[].class);
+        Variable contVar = varTable.acquireExtra(Continuation.class);
+        Variable idxVar = varTable.acquireExtra(Type.INT_TYPE);
+        Variable lockStateVar = hasLockState ? varTable.acquireExtra(LockState.class) : null;
+        copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ALOAD, contArgSlot));
+        copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ASTORE, contVar.getIndex()));
+        copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ILOAD, contArgSlot + 1));
+        copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ISTORE, idxVar.getIndex()));
+        if (hasLockState) {
+            copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ALOAD, contArgSlot + 2));
+            copyStackStorageInsnList.add(new VarInsnNode(Opcodes.ASTORE, lockStateVar.getIndex()));
+        }
+
+        // Generate body
+        InsnList insnList = helperNode.instructions;
+        insnList.add(merge(
+                debugMarker(markerType, "Copying arguments after locals"),
+                copyStackStorageInsnList,
+                saveLocals(markerType, localsStorageVars, frame),
+                packStorageArrays(markerType, frame, containerVar, localsStorageVars, stackStorageVarsObj),
+                debugMarker(markerType, "Creating and pushing method state"),
+                call(CONTINUATION_PUSHNEWMETHODSTATE_METHOD, loadVar(contVar),
+                        recordSave(attrs,
+                                construct(METHODSTATE_INIT_METHOD,
+                                        loadIntConst(attrs.getFingerprint()),
+                                        loadVar(idxVar),
+                                        loadVar(containerVar),
+                                        hasLockState ? loadVar(lockStateVar) : loadNull()
+                                )
+                        )
+                ),
+                mergeIf(suspend, () -> new Object[] {
+                    debugMarker(markerType, "Setting mode to save"),
+                    call(CONTINUATION_SETMODE_METHOD, loadVar(contVar), loadIntConst(MODE_SAVING))
+                }),
+                new InsnNode(Opcodes.RETURN)
+        ));
+
+        return helperNode;
+    }
+
+    /**
+     * Generates instructions that call a helper method generated by
+     * {@link #createSaveHelper(org.objectweb.asm.tree.ClassNode, com.offbynull.coroutines.instrumenter.MethodAttributes, int) }. The
+     * operand stack must have already been saved in to the operand stack storage variables.
+     * @param classNode class containing the method being instrumented
+     * @param attrs attributes of the method being instrumented
+     * @param idx continuation point id
+     * @param helperNode helper method for continuation point (may have been generated for a different continuation point, so long as it's
+     * of the same type and its frame has the same shape)
+     * @return instructions to save the local variables table, pack storage arrays in to a storage container, and push a method state for
+     * that storage container
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code idx} is out of bounds
+     */
+    public static InsnList callSaveHelper(ClassNode classNode, MethodAttributes attrs, int idx, MethodNode helperNode) {
+        Validate.notNull(classNode);
+        Validate.notNull(attrs);
+        Validate.notNull(helperNode);
+        Validate.isTrue(idx >= 0 && idx < attrs.getContinuationPoints().size());
+
+        Frame<BasicValue> frame = attrs.getContinuationPoints().get(idx).getFrame();
+        MarkerType markerType = attrs.getSettings().getMarkerType();
+        StorageVariables savedStackVars = attrs.getStackStorageVariables();
+        Variable contArg = attrs.getCoreVariables().getContinuationArgVar();
+        Variable lockStateVar = attrs.getLockVariables().getLockStateVar();
+
+        InsnList ret = new InsnList();
+        ret.add(debugMarker(markerType, "Passing locals to save helper " + helperNode.name));
+        List<Type> localsArgTypes = getLocalsArgumentTypes(frame);
+        int slot = 0;
+        for (Type argType : localsArgTypes) {
+            BasicValue basicValue = frame.getLocal(slot);
+            if (basicValue.getType() == null) {
+                ret.add(new InsnNode(Opcodes.ACONST_NULL)); // nothing in this slot, pass in null as a placeholder
+            } else {
+                ret.add(new VarInsnNode(argType.getOpcode(Opcodes.ILOAD), slot));
+            }
+            slot += argType.getSize();
+        }
+
+        StorageSizes stackSizes = OperandStackStateGenerators.computeSizes(frame, 0, frame.getStackSize(), savedStackVars.isPacked());
+        boolean[] stackStorageUsed = getStackStorageUsed(stackSizes);
+        Variable[] stackStorageVars = new Variable[] {
+            savedStackVars.getIntStorageVar(),
+            savedStackVars.getFloatStorageVar(),
+            savedStackVars.getLongStorageVar(),
+            savedStackVars.getDoubleStorageVar(),
+            savedStackVars.getObjectStorageVar()
+        };
+        for (int i = 0; i < STACK_STORAGE_TYPES.length; i++) {
+            if (stackStorageUsed[i]) {
+                ret.add(new VarInsnNode(Opcodes.ALOAD, stackStorageVars[i].getIndex()));
+            }
+        }
+
+        ret.add(loadVar(contArg));
+        ret.add(loadIntConst(idx));
+        if (lockStateVar != null) {
+            ret.add(loadVar(lockStateVar));
+        }
+
+        ret.add(new MethodInsnNode(Opcodes.INVOKESTATIC, classNode.name, helperNode.name, helperNode.desc, false));
+        return ret;
+    }
+
+    // Each local slot up to the last one that holds something becomes an argument. Slots that hold nothing become Object arguments (a null
+    // gets passed in). Objects are passed in as Object rather than their actual type, they only ever get put in to an Object[].
+    private static List<Type> getLocalsArgumentTypes(Frame<BasicValue> frame) {
+        int end = frame.getLocals();
+        while (end > 0 && frame.getLocal(end - 1).getType() == null) {
+            end--;
+        }
+
+        List<Type> ret = new ArrayList<>();
+        int slot = 0;
+        while (slot < end) {
+            Type type = frame.getLocal(slot).getType();
+            Type argType;
+            if (type == null) {
+                argType = OBJECT_TYPE;
+            } else {
+                switch (type.getSort()) {
+                    case Type.BOOLEAN:
+                    case Type.BYTE:
+                    case Type.SHORT:
+                    case Type.CHAR:
+                    case Type.INT:
+                        argType = Type.INT_TYPE;
+                        break;
+                    case Type.FLOAT:
+                        argType = Type.FLOAT_TYPE;
+                        break;
+                    case Type.LONG:
+                        argType = Type.LONG_TYPE;
+                        break;
+                    case Type.DOUBLE:
+                        argType = Type.DOUBLE_TYPE;
+                        break;
+                    case Type.ARRAY:
+                    case Type.OBJECT:
+                        argType = OBJECT_TYPE;
+                        break;
+                    case Type.METHOD:
+                    case Type.VOID:
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+            ret.add(argType);
+            slot += argType.getSize();
+        }
+        return ret;
+    }
+
+    private static boolean[] getStackStorageUsed(StorageSizes stackSizes) {
+        return new boolean[] {
+            stackSizes.getIntsSize() > 0,
+            stackSizes.getFloatsSize() > 0,
+            stackSizes.getLongsSize() > 0,
+            stackSizes.getDoublesSize() > 0,
+            stackSizes.getObjectsSize() > 0
+        };
+    }
+
+    private static int getSlotCount(List<Type> types) {
+        int ret = 0;
+        for (Type type : types) {
+            ret += type.getSize();
+        }
+        return ret;
+    }
+
+    private static String getUniqueName(ClassNode classNode) {
+        int counter = 0;
+        while (true) {
+            String name = HELPER_NAME_PREFIX + counter;
+            boolean taken = false;
+            for (MethodNode methodNode : classNode.methods) {
+                if (methodNode.name.equals(name)) {
+                    taken = true;
+                    break;
+                }
+            }
+            if (!taken) {
+                return name;
+            }
+            counter++;
+        }
+    }
+}
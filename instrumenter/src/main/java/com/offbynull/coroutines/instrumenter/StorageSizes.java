@@ -51,5 +51,10 @@ final class StorageSizes {
     public int getObjectsSize() {
         return objectsSize;
     }
+
+    public StorageSizes toPacked() {
+        // if packed, all primitives go in to the longs storage array
+        return new StorageSizes(0, intsSize + longsSize + floatsSize + doublesSize, 0, 0, objectsSize);
+    }
     
 }
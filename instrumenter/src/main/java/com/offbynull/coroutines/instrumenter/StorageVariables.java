@@ -26,25 +26,30 @@ final class StorageVariables {
     private final Variable floatStorageVar;
     private final Variable doubleStorageVar;
     private final Variable objectStorageVar;
+    private final boolean packed;
     
     StorageVariables(
             Variable intStorageVar,
             Variable longStorageVar,
             Variable floatStorageVar,
             Variable doubleStorageVar,
-            Variable objectStorageVar) {
+            Variable objectStorageVar,
+            boolean packed) {
         // storage vars CAN BE NULL -- if they weren't created it means it was determined that it wasn't required
         Validate.isTrue(intStorageVar == null || intStorageVar.getType().equals(Type.getType(int[].class)));
         Validate.isTrue(longStorageVar == null || longStorageVar.getType().equals(Type.getType(long[].class)));
         Validate.isTrue(floatStorageVar == null || floatStorageVar.getType().equals(Type.getType(float[].class)));
         Validate.isTrue(doubleStorageVar == null || doubleStorageVar.getType().equals(Type.getType(double[].class)));
         Validate.isTrue(objectStorageVar == null || objectStorageVar.getType().equals(Type.getType(Object[].class)));
+        // if packed, all primitives go in to the long storage var
+        Validate.isTrue(!packed || (intStorageVar == null && floatStorageVar == null && doubleStorageVar == null));
         
         this.intStorageVar = intStorageVar;
         this.longStorageVar = longStorageVar;
         this.floatStorageVar = floatStorageVar;
         this.doubleStorageVar = doubleStorageVar;
         this.objectStorageVar = objectStorageVar;
+        this.packed = packed;
     }
 
     public Variable getIntStorageVar() {
@@ -66,4 +71,8 @@ final class StorageVariables {
     public Variable getObjectStorageVar() {
         return objectStorageVar;
     }
+
+    public boolean isPacked() {
+        return packed;
+    }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.instrumenter;
+
+import static com.offbynull.coroutines.instrumenter.InternalUtils.findLoopStarts;
+import com.offbynull.coroutines.user.Continuation;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang3.Validate;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Whole-program analysis that proves which methods that take in a {@link Continuation} can never suspend. Invocations of these methods
+ * don't need to be treated as continuation points, so they can be left as plain invocations (no state saving/restoring). Pass the result
+ * of this analysis in to {@link InstrumentationSettings}.
+ * <p>
+ * The analysis is conservative. An invocation is only reported as non-suspending if the method being invoked resolves to a concrete
+ * method in the set of classes analyzed, that method and all of its overrides in the set of classes analyzed never reach
+ * {@link Continuation#suspend()} (directly or transitively), and the method can't be overridden at all (it's private, static, final, or in
+ * a final class). Package-private methods are treated the same as public/protected methods: the set of classes analyzed may only be a
+ * piece of the package (e.g. the build plugins analyze {@code target/classes} and {@code target/test-classes} separately), so an override
+ * may exist in some class that wasn't analyzed. Invocations of abstract/interface/native methods and invokedynamic call sites are always
+ * treated as possibly suspending.
+ * @author Kasra Faghihi
+ */
+public final class SuspendAnalyzer {
+
+    private static final String CONTINUATION_INTERNAL_NAME = Type.getInternalName(Continuation.class);
+    private static final Type CONTINUATION_CLASS_TYPE = Type.getType(Continuation.class);
+    private static final Set<String> CONTINUATION_SUSPEND_METHOD_NAMES = new HashSet<>(
+            Arrays.asList("suspend", "yieldInt", "yieldLong", "yieldObject"));
+
+    private SuspendAnalyzer() {
+        // do nothing
+    }
+
+    /**
+     * Finds invocations of methods that take in a {@link Continuation} but can never suspend. Equivalent to calling
+     * {@code findNonSuspendingMethods(classes, false)}.
+     * @param classes class file contents of all the classes being instrumented
+     * @return invocations that can never suspend
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any of the classes could not be parsed
+     */
+    public static Set<String> findNonSuspendingMethods(Collection<byte[]> classes) {
+        return findNonSuspendingMethods(classes, false);
+    }
+
+    /**
+     * Finds invocations of methods that take in a {@link Continuation} but can never suspend. Each entry in the returned set is in the
+     * format {@code owner.name+descriptor} as they appear at the call site, where {@code owner} is the internal name of the class (e.g.
+     * {@code com/example/Parser.peek(Lcom/offbynull/coroutines/user/Continuation;)I}).
+     * @param classes class file contents of all the classes being instrumented
+     * @param loopsMaySuspend if {@code true}, methods that take in a {@link Continuation} and contain a loop are treated as suspending
+     * (set this if the classes are being instrumented with {@link InstrumentationSettings#isPreemptionMode()} turned on)
+     * @return invocations that can never suspend
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     * @throws IllegalArgumentException if any of the classes could not be parsed
+     */
+    public static Set<String> findNonSuspendingMethods(Collection<byte[]> classes, boolean loopsMaySuspend) {
+        Validate.notNull(classes);
+        Validate.noNullElements(classes);
+
+        Map<String, ClassNode> classNodes = new HashMap<>();
+        for (byte[] input : classes) {
+            ClassReader cr = new ClassReader(input);
+            ClassNode classNode = new ClassNode();
+            cr.accept(classNode, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+            classNodes.put(classNode.name, classNode);
+        }
+
+        // Collect every invocation of a method that takes in a Continuation. These are the call sites that the instrumenter would turn in
+        // to continuation points.
+        Set<MethodKey> invocations = new HashSet<>();
+        for (ClassNode classNode : classNodes.values()) {
+            for (MethodNode methodNode : classNode.methods) {
+                for (AbstractInsnNode insnNode : methodNode.instructions.toArray()) {
+                    if (insnNode instanceof MethodInsnNode) {
+                        MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+                        if (hasContinuationParameter(methodInsnNode.desc)) {
+                            invocations.add(new MethodKey(methodInsnNode.owner, methodInsnNode.name, methodInsnNode.desc));
+                        }
+                    }
+                }
+            }
+        }
+
+        // Mark methods that may suspend. Start with methods that directly suspend and keep propagating to methods that invoke them until
+        // nothing changes.
+        Set<MethodKey> maySuspend = new HashSet<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (ClassNode classNode : classNodes.values()) {
+                for (MethodNode methodNode : classNode.methods) {
+                    MethodKey key = new MethodKey(classNode.name, methodNode.name, methodNode.desc);
+                    if (!maySuspend.contains(key) && bodyMaySuspend(classNodes, maySuspend, methodNode, loopsMaySuspend)) {
+                        maySuspend.add(key);
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        Set<String> ret = new HashSet<>();
+        for (MethodKey invocation : invocations) {
+            if (!invocationMaySuspend(classNodes, maySuspend, invocation)) {
+                ret.add(invocation.toString());
+            }
+        }
+        return Collections.unmodifiableSet(ret);
+    }
+
+    private static boolean bodyMaySuspend(Map<String, ClassNode> classNodes, Set<MethodKey> maySuspend, MethodNode methodNode,
+            boolean loopsMaySuspend) {
+        // If preemption checks are being added, they get added to the start of each loop in methods that take in a Continuation
+        if (loopsMaySuspend && hasContinuationParameter(methodNode.desc) && !findLoopStarts(methodNode.instructions).isEmpty()) {
+            return true;
+        }
+        
+        for (AbstractInsnNode insnNode : methodNode.instructions.toArray()) {
+            if (insnNode instanceof MethodInsnNode) {
+                MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+                if (CONTINUATION_INTERNAL_NAME.equals(methodInsnNode.owner)
+                        && CONTINUATION_SUSPEND_METHOD_NAMES.contains(methodInsnNode.name)) {
+                    return true;
+                }
+                if (hasContinuationParameter(methodInsnNode.desc)
+                        && invocationMaySuspend(classNodes, maySuspend,
+                                new MethodKey(methodInsnNode.owner, methodInsnNode.name, methodInsnNode.desc))) {
+                    return true;
+                }
+            } else if (insnNode instanceof InvokeDynamicInsnNode) {
+                InvokeDynamicInsnNode invokeDynamicInsnNode = (InvokeDynamicInsnNode) insnNode;
+                if (hasContinuationParameter(invokeDynamicInsnNode.desc)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean invocationMaySuspend(Map<String, ClassNode> classNodes, Set<MethodKey> maySuspend, MethodKey invocation) {
+        // Resolve the method by walking up the class hierarchy, just like the JVM would. If we walk out of the set of classes being
+        // analyzed, we know nothing about the method being invoked.
+        ClassNode declaringClassNode = null;
+        MethodNode declaredMethodNode = null;
+        String className = invocation.owner;
+        while (declaredMethodNode == null) {
+            ClassNode classNode = classNodes.get(className);
+            if (classNode == null) {
+                return true;
+            }
+            declaringClassNode = classNode;
+            declaredMethodNode = findMethod(classNode, invocation.name, invocation.desc);
+            className = classNode.superName;
+        }
+
+        if ((declaringClassNode.access & Opcodes.ACC_INTERFACE) != 0
+                || (declaredMethodNode.access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+            return true;
+        }
+
+        if (maySuspend.contains(new MethodKey(declaringClassNode.name, declaredMethodNode.name, declaredMethodNode.desc))) {
+            return true;
+        }
+
+        // Anything that can be overridden may be overridden by a class that wasn't analyzed. This includes package-private methods, because
+        // the classes analyzed may not cover the entire package.
+        boolean overridable = (declaredMethodNode.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) == 0
+                && (declaringClassNode.access & Opcodes.ACC_FINAL) == 0;
+        return overridable;
+    }
+
+    private static MethodNode findMethod(ClassNode classNode, String name, String desc) {
+        for (MethodNode methodNode : classNode.methods) {
+            if (methodNode.name.equals(name) && methodNode.desc.equals(desc)) {
+                return methodNode;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasContinuationParameter(String desc) {
+        return Arrays.asList(Type.getArgumentTypes(desc)).contains(CONTINUATION_CLASS_TYPE);
+    }
+
+    private static final class MethodKey {
+        private final String owner;
+        private final String name;
+        private final String desc;
+
+        MethodKey(String owner, String name, String desc) {
+            this.owner = owner;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 29 * hash + owner.hashCode();
+            hash = 29 * hash + name.hashCode();
+            hash = 29 * hash + desc.hashCode();
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            MethodKey other = (MethodKey) obj;
+            return owner.equals(other.owner) && name.equals(other.name) && desc.equals(other.desc);
+        }
+
+        @Override
+        public String toString() {
+            return owner + "." + name + desc;
+        }
+    }
+}
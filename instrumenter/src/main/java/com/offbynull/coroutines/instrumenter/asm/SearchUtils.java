@@ -105,7 +105,7 @@ public final class SearchUtils {
                 MethodInsnNode methodInsnNode = (MethodInsnNode) instructionNode;
                 methodDesc = Type.getType(methodInsnNode.desc);
                 methodOwner = Type.getObjectType(methodInsnNode.owner);
-                methodName = expectedMethod.getName();
+                methodName = methodInsnNode.name;
             } else {
                 continue;
             }
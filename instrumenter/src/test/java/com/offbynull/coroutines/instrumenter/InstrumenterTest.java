@@ -18,24 +18,52 @@ package com.offbynull.coroutines.instrumenter;
 
 import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
 import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.getClasspath;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResource;
 import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResourceAndInstrument;
 import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
 import com.offbynull.coroutines.user.Continuation;
 import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineBatch;
+import com.offbynull.coroutines.user.CoroutineException;
+import com.offbynull.coroutines.user.CoroutineMetrics;
 import com.offbynull.coroutines.user.CoroutineRunner;
+import com.offbynull.coroutines.user.DefaultObjectSlotSerializer;
+import com.offbynull.coroutines.user.Generator;
+import com.offbynull.coroutines.user.IntGenerator;
+import com.offbynull.coroutines.user.LongGenerator;
+import com.offbynull.coroutines.user.MethodMetrics;
 import com.offbynull.coroutines.user.MethodState;
+import com.offbynull.coroutines.user.ObjectHandleResolver;
+import com.offbynull.coroutines.user.ObjectSlotSerializer;
+import com.offbynull.coroutines.user.SnapshotCodec;
+import com.offbynull.coroutines.user.SnapshotStore;
+import com.offbynull.coroutines.user.StateSize;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import org.apache.commons.lang3.reflect.ConstructorUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.apache.commons.lang3.reflect.MethodUtils;
@@ -43,6 +71,7 @@ import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 public final class InstrumenterTest {
 
@@ -57,6 +86,8 @@ public final class InstrumenterTest {
     private static final String LONG_RETURN_INVOKE_TEST = "LongReturnInvokeTest";
     private static final String DOUBLE_RETURN_INVOKE_TEST = "DoubleReturnInvokeTest";
     private static final String LAMBDA_INVOKE_TEST = "LambdaInvokeTest";
+    private static final String LAMBDA_SAM_INVOKE_TEST = "LambdaSamInvokeTest";
+    private static final String LAMBDA_SAM_CAPTURE_INVOKE_TEST = "LambdaSamCaptureInvokeTest";
     private static final String CONSTRUCTOR_INVOKE_TEST = "ConstructorInvokeTest";
     private static final String EXCEPTION_SUSPEND_TEST = "ExceptionSuspendTest";
     private static final String JSR_EXCEPTION_SUSPEND_TEST = "JsrExceptionSuspendTest";
@@ -71,10 +102,23 @@ public final class InstrumenterTest {
     private static final String EXCEPTION_THEN_CONTINUE_INVOKE_TEST = "ExceptionThenContinueInvokeTest";
     private static final String EMPTY_CONTINUATION_POINT_INVOKE_TEST = "EmptyContinuationPointInvokeTest";
     private static final String COMPLEX_TEST = "ComplexTest";
+    private static final String CANCELLATION_TEST = "CancellationTest";
+    private static final String GENERATOR_TEST = "GeneratorTest";
+    private static final String DELTA_CHECKPOINT_TEST = "DeltaCheckpointTest";
+    private static final String OFF_HEAP_TEST = "OffHeapTest";
+    private static final String FORK_TEST = "ForkTest";
+    private static final String SUSPEND_ANALYSIS_TEST = "SuspendAnalysisTest";
+    private static final String TAIL_INVOKE_TEST = "TailInvokeTest";
+    private static final String HANDLE_TEST = "HandleTest";
+    private static final String PREEMPTION_TEST = "PreemptionTest";
+    private static final String MANY_CONTINUATION_POINTS_TEST = "ManyContinuationPointsTest";
 
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Test
     public void mustProperlyExecuteSanityTest() throws Exception {
         StringBuilder builder = new StringBuilder();
@@ -180,6 +224,290 @@ public final class InstrumenterTest {
     public void mustProperlySuspendInNonTrivialCoroutineWhenDebugModeSet() throws Exception {
         performCountTest(COMPLEX_TEST, new InstrumentationSettings(MarkerType.CONSTANT, true));
     }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenOutlineModeSet() throws Exception {
+        performCountTest(COMPLEX_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, false, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackWhenOutlineModeSet() throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, false, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustProperlySuspendWithNullTypeInLocalVariableTableWhenOutlineModeSet() throws Exception {
+        performCountTest(NULL_TYPE_IN_LOCAL_VARIABLE_TABLE_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, false, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustProperlySuspendWithMethodsThatOperateOnLongsAndDoublesWhenOutlineModeSet() throws Exception {
+        performCountTest(LONG_RETURN_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, false, false, Collections.emptySet()));
+        performDoubleCountTest(DOUBLE_RETURN_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, false, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustProperlySuspendWithManyContinuationPointsWhenOutlineModeSet() throws Exception {
+        performCountTest(MANY_CONTINUATION_POINTS_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, false, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustKeepMethodWithManyContinuationPointsUnderHugeMethodLimitWhenOutlineModeSet() throws Exception {
+        byte[] input = readZipFromResource(MANY_CONTINUATION_POINTS_TEST + ".zip").get(MANY_CONTINUATION_POINTS_TEST + ".class");
+        Instrumenter instrumenter = new Instrumenter(getClasspath());
+
+        InstrumentationSettings inlineSettings =
+                new InstrumentationSettings(MarkerType.NONE, false, false, false, false, false, Collections.emptySet());
+        MethodReport inlineReport = instrumenter.instrumentAndReport(input, inlineSettings).getMethodReports().get(0);
+        Assert.assertTrue(inlineReport.isCrossedHugeMethodLimit());
+
+        InstrumentationSettings outlineSettings =
+                new InstrumentationSettings(MarkerType.NONE, false, false, true, false, false, Collections.emptySet());
+        MethodReport outlineReport = instrumenter.instrumentAndReport(input, outlineSettings).getMethodReports().get(0);
+        Assert.assertEquals(40, outlineReport.getContinuationPointCount());
+        Assert.assertTrue(outlineReport.getInstrumentedSize() < 8000);
+        Assert.assertFalse(outlineReport.isCrossedHugeMethodLimit());
+    }
+
+    @Test
+    public void mustMoveSaveCodeInToSyntheticHelpersWhenOutlineModeSet() throws Exception {
+        InstrumentationSettings settings =
+                new InstrumentationSettings(MarkerType.NONE, false, false, true, false, false, Collections.emptySet());
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(COMPLEX_TEST + ".zip", settings)) {
+            Class<?> cls = classLoader.loadClass(COMPLEX_TEST);
+
+            int helperCount = 0;
+            for (Method method : cls.getDeclaredMethods()) {
+                if (method.getName().startsWith("coroutines$save$")) {
+                    Assert.assertTrue(method.isSynthetic());
+                    Assert.assertTrue(Modifier.isPrivate(method.getModifiers()));
+                    Assert.assertTrue(Modifier.isStatic(method.getModifiers()));
+                    helperCount++;
+                }
+            }
+            Assert.assertTrue(helperCount > 0);
+        }
+    }
+    
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenPackedStorageModeSet() throws Exception {
+        performCountTest(COMPLEX_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, true, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustProperlySuspendWithBasicTypesInLocalVariableTableAndOperandStackWhenPackedStorageModeSet() throws Exception {
+        performCountTest(BASIC_TYPE_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, true, false, Collections.emptySet()));
+        performCountTest(BASIC_TYPE_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, true, true, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustProperlySuspendWithMethodsThatOperateOnLongsAndDoublesWhenPackedStorageModeSet() throws Exception {
+        performCountTest(LONG_RETURN_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, true, false, Collections.emptySet()));
+        performDoubleCountTest(DOUBLE_RETURN_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, true, false, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustPackAllPrimitivesInToLongsWhenPackedStorageModeSet() throws Exception {
+        // debug mode is used so that each frame saves all of its locals (see mustOnlySaveInvocationArgumentsForTailInvocations)
+        StateSize[] stateSizes = new StateSize[2];
+        boolean[] packedStorageModes = new boolean[] { false, true };
+        for (int i = 0; i < packedStorageModes.length; i++) {
+            InstrumentationSettings settings = new InstrumentationSettings(MarkerType.NONE, true, false, false, packedStorageModes[i],
+                    false, Collections.emptySet());
+            try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(TAIL_INVOKE_TEST + ".zip", settings)) {
+                Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(TAIL_INVOKE_TEST);
+                Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, new StringBuilder());
+
+                CoroutineRunner runner = new CoroutineRunner(coroutine);
+                for (int j = 0; j < 10; j++) {
+                    Assert.assertTrue(runner.execute());
+                }
+                stateSizes[i] = runner.getStateSize();
+            }
+        }
+        StateSize unpackedSize = stateSizes[0];
+        StateSize packedSize = stateSizes[1];
+
+        Assert.assertEquals(unpackedSize.getFrameCount(), packedSize.getFrameCount());
+        Assert.assertEquals(unpackedSize.getObjectCount(), packedSize.getObjectCount());
+        Assert.assertEquals(0, packedSize.getIntCount());
+        Assert.assertEquals(0, packedSize.getFloatCount());
+        Assert.assertEquals(0, packedSize.getDoubleCount());
+        Assert.assertEquals(
+                unpackedSize.getIntCount() + unpackedSize.getFloatCount() + unpackedSize.getLongCount() + unpackedSize.getDoubleCount(),
+                packedSize.getLongCount());
+    }
+    
+    @Test
+    public void mustPreemptLoopsWhenPreemptionModeSet() throws Exception {
+        InstrumentationSettings settings = new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, false, true,
+                Collections.emptySet());
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(PREEMPTION_TEST + ".zip", settings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(PREEMPTION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls);
+
+            // 2 loops of 500 iterations each, suspending every 100 iterations
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            runner.setPreemptionBudget(100);
+            Assert.assertTrue(runner.execute());
+            Assert.assertEquals(100, MethodUtils.invokeMethod(coroutine, "getCounter"));
+            Assert.assertTrue(runner.execute());
+            Assert.assertEquals(200, MethodUtils.invokeMethod(coroutine, "getCounter"));
+            for (int i = 2; i < 10; i++) {
+                Assert.assertTrue(runner.execute());
+            }
+            Assert.assertFalse(runner.execute());
+            Assert.assertEquals(1000, MethodUtils.invokeMethod(coroutine, "getCounter"));
+            Assert.assertEquals(249500L, MethodUtils.invokeMethod(coroutine, "getResult"));
+        }
+    }
+
+    @Test
+    public void mustNotPreemptLoopsWhenPreemptionBudgetNotSet() throws Exception {
+        InstrumentationSettings settings = new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, false, true,
+                Collections.emptySet());
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(PREEMPTION_TEST + ".zip", settings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(PREEMPTION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Assert.assertFalse(runner.execute());
+            Assert.assertEquals(1000, MethodUtils.invokeMethod(coroutine, "getCounter"));
+            Assert.assertEquals(249500L, MethodUtils.invokeMethod(coroutine, "getResult"));
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendInNonTrivialCoroutineWhenPreemptionModeSet() throws Exception {
+        performCountTest(COMPLEX_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, false, true, Collections.emptySet()));
+    }
+
+    @Test
+    public void mustTreatMethodsWithLoopsAsSuspendingWhenSuspendAnalysisRunForPreemptionMode() throws Exception {
+        List<byte[]> classes = new ArrayList<>();
+        readZipFromResource(PREEMPTION_TEST + ".zip").forEach((name, data) -> {
+            if (name.endsWith(".class")) {
+                classes.add(data);
+            }
+        });
+
+        String busyMethod = PREEMPTION_TEST + ".busy(Lcom/offbynull/coroutines/user/Continuation;I)J";
+        Assert.assertTrue(SuspendAnalyzer.findNonSuspendingMethods(classes, false).contains(busyMethod));
+        Assert.assertFalse(SuspendAnalyzer.findNonSuspendingMethods(classes, true).contains(busyMethod));
+    }
+
+    @Test
+    public void mustReportCostOfEachInstrumentedMethod() throws Exception {
+        byte[] input = readZipFromResource(MONITOR_INVOKE_TEST + ".zip").get(MONITOR_INVOKE_TEST + ".class");
+        Instrumenter instrumenter = new Instrumenter(getClasspath());
+        InstrumentationSettings settings = new InstrumentationSettings(MarkerType.NONE, false);
+        
+        InstrumentationResult result = instrumenter.instrumentAndReport(input, settings);
+        Assert.assertArrayEquals(instrumenter.instrument(input, settings), result.getInstrumentedClass());
+        
+        List<MethodReport> methodReports = result.getMethodReports();
+        Assert.assertEquals(2, methodReports.size());
+
+        MethodReport runReport = methodReports.stream().filter(x -> x.getMethodName().equals("run")).findAny().get();
+        Assert.assertEquals(MONITOR_INVOKE_TEST, runReport.getClassName());
+        Assert.assertEquals("(Lcom/offbynull/coroutines/user/Continuation;)V", runReport.getMethodDescriptor());
+        Assert.assertEquals(2, runReport.getContinuationPointCount());
+        Assert.assertTrue(runReport.getSavedLocalObjects() > 0);
+        Assert.assertTrue(runReport.getInstrumentedSize() > runReport.getOriginalSize());
+        Assert.assertTrue(runReport.isLockTracking());
+        Assert.assertTrue(runReport.isCrossedFreqInlineSize());
+        Assert.assertFalse(runReport.isCrossedHugeMethodLimit());
+
+        MethodReport innerLocksReport = methodReports.stream().filter(x -> x.getMethodName().equals("innerLocks")).findAny().get();
+        Assert.assertEquals(4, innerLocksReport.getContinuationPointCount());
+
+        String[] header = MethodReport.getCsvHeader().split(",");
+        String[] row = runReport.toCsvRow().split(",");
+        Assert.assertEquals(header.length, row.length);
+        Assert.assertEquals("run", row[Arrays.asList(header).indexOf("method")]);
+        Assert.assertEquals("true", row[Arrays.asList(header).indexOf("lockTracking")]);
+    }
+
+    @Test
+    public void mustNotReportAnythingWhenClassAlreadyInstrumented() throws Exception {
+        byte[] input = readZipFromResource(SANITY_TEST + ".zip").get(SANITY_TEST + ".class");
+        Instrumenter instrumenter = new Instrumenter(getClasspath());
+        InstrumentationSettings settings = new InstrumentationSettings(MarkerType.NONE, false);
+        
+        InstrumentationResult result = instrumenter.instrumentAndReport(input, settings);
+        Assert.assertEquals(1, result.getMethodReports().size());
+
+        result = instrumenter.instrumentAndReport(result.getInstrumentedClass(), settings);
+        Assert.assertTrue(result.getMethodReports().isEmpty());
+    }
+
+    @Test
+    public void mustLeaveInvocationsOfMethodsThatNeverSuspendUninstrumentedWhenSuspendAnalysisRun() throws Exception {
+        List<byte[]> classes = new ArrayList<>();
+        readZipFromResource(SUSPEND_ANALYSIS_TEST + ".zip").forEach((name, data) -> {
+            if (name.endsWith(".class")) {
+                classes.add(data);
+            }
+        });
+        Set<String> nonSuspendingMethods = SuspendAnalyzer.findNonSuspendingMethods(classes);
+        
+        // overridable() and packagePrivate() never suspend, but they could be overridden by a class that wasn't analyzed
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                SUSPEND_ANALYSIS_TEST + ".identity(Lcom/offbynull/coroutines/user/Continuation;I)I",
+                SUSPEND_ANALYSIS_TEST + ".twice(Lcom/offbynull/coroutines/user/Continuation;I)I")),
+                nonSuspendingMethods);
+        
+        performCountTest(SUSPEND_ANALYSIS_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, false, false, nonSuspendingMethods));
+    }
+    
+    @Test
+    public void mustProperlySuspendWithTailInvocations() throws Exception {
+        performCountTest(TAIL_INVOKE_TEST, new InstrumentationSettings(MarkerType.CONSTANT, false));
+    }
+
+    @Test
+    public void mustOnlySaveInvocationArgumentsForTailInvocations() throws Exception {
+        // debug mode turns off tail invocations, because the locals need to be restored for them to show up in the debugger
+        StateSize[] stateSizes = new StateSize[2];
+        boolean[] debugModes = new boolean[] { false, true };
+        for (int i = 0; i < debugModes.length; i++) {
+            InstrumentationSettings settings = new InstrumentationSettings(MarkerType.NONE, debugModes[i]);
+            try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(TAIL_INVOKE_TEST + ".zip", settings)) {
+                Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(TAIL_INVOKE_TEST);
+                Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, new StringBuilder());
+
+                CoroutineRunner runner = new CoroutineRunner(coroutine);
+                for (int j = 0; j < 10; j++) {
+                    Assert.assertTrue(runner.execute());
+                }
+                stateSizes[i] = runner.getStateSize();
+            }
+        }
+        StateSize tailSize = stateSizes[0];
+        StateSize fullSize = stateSizes[1];
+
+        // run() + 10 countFrom() frames
+        Assert.assertEquals(11, tailSize.getFrameCount());
+        Assert.assertEquals(11, fullSize.getFrameCount());
+        
+        // the double local in countFrom() is dead at the tail invocation, so only the frame that called suspend() saves it
+        Assert.assertEquals(1, tailSize.getDoubleCount());
+        Assert.assertEquals(10, fullSize.getDoubleCount());
+        Assert.assertTrue(tailSize.getHeapBytes() < fullSize.getHeapBytes());
+    }
     
     @Test
     public void mustProperlyContinueWhenExceptionOccursButIsCaughtBeforeReachingRunner() throws Exception {
@@ -286,6 +614,625 @@ public final class InstrumenterTest {
         }
     }
     
+    @Test
+    public void mustProperlySuspendWithSnapshotCodec() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SERIALIZABLE_INVOKE_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SERIALIZABLE_INVOKE_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, new StringBuilder());
+
+            // Create and run original for a few cycles
+            CoroutineRunner originalRunner = new CoroutineRunner(coroutine);
+            originalRunner.setContext("ctx");
+            for (int i = 0; i < 6; i++) {
+                Assert.assertTrue(originalRunner.execute());
+            }
+
+            // Snapshot and restore
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+            byte[] snapshot = codec.toByteArray(originalRunner);
+            CoroutineRunner restoredRunner = codec.fromByteArray(snapshot);
+            Assert.assertEquals("ctx", restoredRunner.getContext());
+
+            // Snapshot should be smaller than what default Java serialization generates
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                oos.writeObject(originalRunner);
+            }
+            Assert.assertTrue(snapshot.length < baos.size());
+
+            // Continue running restored
+            for (int i = 0; i < 4; i++) {
+                Assert.assertTrue(restoredRunner.execute());
+            }
+            Assert.assertFalse(restoredRunner.execute()); // coroutine finished executing here
+            Assert.assertTrue(restoredRunner.execute());
+
+            // Assert everything continued fine with restored version, and that the original was left untouched
+            Object restoredCoroutine = restoredRunner.getCoroutine();
+            StringBuilder restoredBuilder = (StringBuilder) FieldUtils.readField(restoredCoroutine, "builder", true);
+            StringBuilder originalBuilder = (StringBuilder) FieldUtils.readField(coroutine, "builder", true);
+
+            Assert.assertEquals("started\n0\n1\n2\n3\n4\n5\n6\n7\n8\n9\nstarted\n0\n", restoredBuilder.toString());
+            Assert.assertEquals("started\n0\n1\n2\n3\n4\n5\n", originalBuilder.toString());
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendWithDeltaCheckpoints() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(DELTA_CHECKPOINT_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            // Run original, taking a full snapshot after the first suspend and deltas after every suspend after that
+            CoroutineRunner originalRunner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(originalRunner.execute());
+            byte[] snapshot = codec.toByteArray(originalRunner);
+            List<byte[]> deltas = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(originalRunner.execute());
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                codec.writeDelta(originalRunner, new DataOutputStream(baos));
+                deltas.add(baos.toByteArray());
+            }
+            Assert.assertFalse(originalRunner.execute());
+
+            // Restore from snapshot + deltas and finish running
+            CoroutineRunner restoredRunner = codec.fromByteArray(snapshot);
+            for (byte[] delta : deltas) {
+                codec.applyDelta(restoredRunner, new DataInputStream(new ByteArrayInputStream(delta)));
+            }
+            Assert.assertFalse(restoredRunner.execute());
+
+            List<String> originalResult = (List<String>) MethodUtils.invokeMethod(originalRunner.getCoroutine(), "getResult");
+            List<String> restoredResult = (List<String>) MethodUtils.invokeMethod(restoredRunner.getCoroutine(), "getResult");
+            Assert.assertEquals(
+                    Arrays.asList("run", "100:0.0:0", "100:0.0:1", "101:0.5:0", "101:0.5:1", "102:1.0:0", "102:1.0:1"),
+                    originalResult);
+            Assert.assertEquals(originalResult, restoredResult);
+        }
+    }
+
+    @Test
+    public void mustWriteObjectsAsHandlesWithSnapshotCodec() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(HANDLE_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(HANDLE_TEST);
+
+            StringWriter originalWriter = new StringWriter();
+            CoroutineRunner originalRunner = new CoroutineRunner(cls.newInstance());
+            originalRunner.setContext(originalWriter);
+            Assert.assertTrue(originalRunner.execute());
+            Assert.assertEquals("step0\n", originalWriter.toString());
+
+            // Writers aren't serializable, so they must be written as handles
+            StringWriter restoredWriter = new StringWriter();
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader), new ObjectHandleResolver() {
+                @Override
+                public int toHandle(Object obj) {
+                    return obj instanceof StringWriter ? 0 : -1;
+                }
+
+                @Override
+                public Object fromHandle(int handle) throws IOException {
+                    if (handle != 0) {
+                        throw new IOException();
+                    }
+                    return restoredWriter;
+                }
+            });
+            CoroutineRunner restoredRunner = codec.fromByteArray(codec.toByteArray(originalRunner));
+            Assert.assertSame(restoredWriter, restoredRunner.getContext());
+            Assert.assertTrue(restoredRunner.execute());
+            Assert.assertEquals("step0\n", originalWriter.toString());
+            Assert.assertEquals("step1\n", restoredWriter.toString());
+
+            thrown.expect(NotSerializableException.class);
+            new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader)).toByteArray(originalRunner);
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendWithLazilyReadSnapshot() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(DELTA_CHECKPOINT_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner originalRunner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(originalRunner.execute());
+            Assert.assertTrue(originalRunner.execute());
+            byte[] snapshot = codec.toByteArray(originalRunner);
+
+            // Frames shouldn't be read until the runner gets executed
+            ByteArrayInputStream bais = new ByteArrayInputStream(snapshot);
+            CoroutineRunner restoredRunner = codec.readLazily(new DataInputStream(bais));
+            Assert.assertTrue(bais.available() > 0);
+
+            // Frames that haven't been read yet should be sized by their encoded length, without being read
+            StateSize unreadSize = restoredRunner.getStateSize();
+            Assert.assertEquals(originalRunner.getStateSize().getFrameCount(), unreadSize.getFrameCount());
+            Assert.assertEquals(bais.available(), unreadSize.getUnreadBytes());
+            Assert.assertEquals(bais.available(), unreadSize.getTotalBytes());
+            Assert.assertTrue(restoredRunner.execute());
+            Assert.assertEquals(0, bais.available());
+
+            while (originalRunner.execute()) {
+                // keep going until finished
+            }
+            while (restoredRunner.execute()) {
+                // keep going until finished
+            }
+            List<String> originalResult = (List<String>) MethodUtils.invokeMethod(originalRunner.getCoroutine(), "getResult");
+            List<String> restoredResult = (List<String>) MethodUtils.invokeMethod(restoredRunner.getCoroutine(), "getResult");
+            Assert.assertEquals(originalResult, restoredResult);
+
+            // Frames that can't be read should fail the execution that needed them
+            CoroutineRunner truncatedRunner = codec.readLazily(
+                    new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(snapshot, snapshot.length - 1))));
+            try {
+                truncatedRunner.execute();
+                Assert.fail();
+            } catch (CoroutineException ce) {
+                Assert.assertTrue(ce.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void mustRejectDeltaCheckpointAppliedOutOfOrder() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(DELTA_CHECKPOINT_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner originalRunner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(originalRunner.execute());
+            byte[] snapshot = codec.toByteArray(originalRunner);
+            Assert.assertTrue(originalRunner.execute());
+            codec.writeDelta(originalRunner, new DataOutputStream(new ByteArrayOutputStream())); // delta that never gets applied
+            Assert.assertTrue(originalRunner.execute());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            codec.writeDelta(originalRunner, new DataOutputStream(baos));
+
+            CoroutineRunner restoredRunner = codec.fromByteArray(snapshot);
+            thrown.expect(IOException.class);
+            codec.applyDelta(restoredRunner, new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        }
+    }
+
+    @Test
+    public void mustWriteMethodFingerprintsInSnapshotHeader() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(DELTA_CHECKPOINT_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner runner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(runner.execute());
+            byte[] snapshot = codec.toByteArray(runner);
+
+            int[] fingerprints = codec.readFingerprints(new DataInputStream(new ByteArrayInputStream(snapshot)));
+            CoroutineRunner restoredRunner = codec.fromByteArray(snapshot);
+            Continuation continuation = (Continuation) FieldUtils.readField(restoredRunner, "continuation", true);
+            Assert.assertTrue(fingerprints.length > 1);
+            Assert.assertEquals(fingerprints.length, continuation.getSize());
+            for (int i = 0; i < fingerprints.length; i++) {
+                Assert.assertEquals(fingerprints[i], continuation.getSaved(i).getFingerprint());
+            }
+            Assert.assertNotEquals(fingerprints[0], fingerprints[1]); // different methods
+        }
+    }
+
+    @Test
+    public void mustRejectRestoringMethodStateWithMismatchedFingerprint() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(DELTA_CHECKPOINT_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner runner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(runner.execute());
+            byte[] snapshot = codec.toByteArray(runner);
+
+            // Simulate the method having changed since the snapshot was taken by corrupting the first frame's fingerprint
+            int fingerprint = codec.readFingerprints(new DataInputStream(new ByteArrayInputStream(snapshot)))[0];
+            ByteBuffer snapshotBuffer = ByteBuffer.wrap(snapshot);
+            int offset = 0;
+            while (snapshotBuffer.getInt(offset) != fingerprint) {
+                offset++;
+            }
+            snapshot[offset] = (byte) ~snapshot[offset];
+
+            CoroutineRunner restoredRunner = codec.fromByteArray(snapshot);
+            try {
+                restoredRunner.execute();
+                Assert.fail();
+            } catch (CoroutineException ce) {
+                Assert.assertTrue(ce.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void mustRejectRestoringMethodStateSavedWithDifferentStorageMode() throws Exception {
+        // Packed and unpacked storage lay out the locals/operand stack differently, so state saved by one can't be restored by the other
+        InstrumentationSettings unpackedSettings = new InstrumentationSettings(MarkerType.NONE, false);
+        InstrumentationSettings packedSettings = new InstrumentationSettings(MarkerType.NONE, false, false, false, true, false,
+                Collections.emptySet());
+        byte[] snapshot;
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip", unpackedSettings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(DELTA_CHECKPOINT_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner runner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(runner.execute());
+            snapshot = codec.toByteArray(runner);
+        }
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(DELTA_CHECKPOINT_TEST + ".zip", packedSettings)) {
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner restoredRunner = codec.fromByteArray(snapshot);
+            try {
+                restoredRunner.execute();
+                Assert.fail();
+            } catch (CoroutineException ce) {
+                Assert.assertTrue(ce.getCause() instanceof IllegalStateException);
+                Assert.assertTrue(ce.getCause().getMessage().contains("fingerprint"));
+            }
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendWithSnapshotStore() throws Exception {
+        File directory = tempFolder.newFolder();
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SERIALIZABLE_INVOKE_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SERIALIZABLE_INVOKE_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            // Small segments so that overwrites/removes roll over to new segments and trigger compaction
+            SnapshotStore store = new SnapshotStore(directory, codec, 2048);
+            for (long id = 0L; id < 20L; id++) {
+                CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, new StringBuilder()));
+                runner.execute();
+                store.put(id, runner);
+            }
+            for (int i = 0; i < 5; i++) {
+                for (long id = 0L; id < 20L; id++) {
+                    CoroutineRunner runner = store.get(id);
+                    Assert.assertTrue(runner.execute());
+                    store.put(id, runner);
+                }
+            }
+            for (long id = 10L; id < 20L; id++) {
+                Assert.assertTrue(store.remove(id));
+            }
+            Assert.assertFalse(store.remove(10L));
+            Assert.assertEquals(10, store.size());
+            Assert.assertEquals(directory.listFiles().length, store.getSegmentCount());
+            Assert.assertTrue(store.getSegmentCount() < 10); // would be over 15 without compaction
+            store.close();
+
+            // Reopen and make sure we get back exactly what we left behind
+            store = new SnapshotStore(directory, codec, 2048);
+            Assert.assertEquals(10, store.size());
+            for (long id = 0L; id < 20L; id++) {
+                CoroutineRunner runner = store.get(id);
+                if (id >= 10L) {
+                    Assert.assertNull(runner);
+                    continue;
+                }
+                for (int i = 0; i < 4; i++) {
+                    Assert.assertTrue(runner.execute());
+                }
+                Assert.assertFalse(runner.execute()); // coroutine finished executing here
+
+                StringBuilder builder = (StringBuilder) FieldUtils.readField(runner.getCoroutine(), "builder", true);
+                Assert.assertEquals("started\n0\n1\n2\n3\n4\n5\n6\n7\n8\n9\n", builder.toString());
+            }
+            store.close();
+        }
+    }
+
+    @Test
+    public void mustNotCorruptSnapshotStoreWhenPutFails() throws Exception {
+        File directory = tempFolder.newFolder();
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SERIALIZABLE_INVOKE_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SERIALIZABLE_INVOKE_TEST);
+            DefaultObjectSlotSerializer serializer = new DefaultObjectSlotSerializer(classLoader);
+            boolean[] fail = new boolean[1];
+            SnapshotCodec codec = new SnapshotCodec(new ObjectSlotSerializer() {
+                @Override
+                public void writeObjects(Object[] objects, DataOutput out) throws IOException {
+                    if (fail[0]) {
+                        byte[] garbage = new byte[512]; // leave behind more than the next successful put writes
+                        Arrays.fill(garbage, (byte) 0x7F);
+                        out.write(garbage);
+                        throw new IOException("fake failure");
+                    }
+                    serializer.writeObjects(objects, out);
+                }
+
+                @Override
+                public Object[] readObjects(DataInput in) throws IOException {
+                    return serializer.readObjects(in);
+                }
+            });
+
+            SnapshotStore store = new SnapshotStore(directory, codec);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, new StringBuilder()));
+            runner.execute();
+            store.put(0L, runner);
+
+            fail[0] = true;
+            try {
+                store.put(1L, runner);
+                Assert.fail();
+            } catch (IOException ioe) {
+                Assert.assertEquals("fake failure", ioe.getMessage());
+            }
+            fail[0] = false;
+
+            store.put(2L, runner);
+            store.close();
+
+            // Reopen and make sure the failed put didn't leave behind anything that gets read as a corrupt record
+            store = new SnapshotStore(directory, codec);
+            Assert.assertEquals(2, store.size());
+            Assert.assertTrue(store.contains(0L));
+            Assert.assertFalse(store.contains(1L));
+            Assert.assertTrue(store.get(2L).execute());
+            store.close();
+        }
+    }
+
+    @Test
+    public void mustRoundTripObjectSlotsWithDefaultObjectSlotSerializer() throws Exception {
+        List<String> shared = new ArrayList<>();
+        Object[] objects = new Object[] { "hi", 5, -7L, 1.5f, 2.5, true, (byte) 3, (short) 4, 'x', shared, new Object[] { shared } };
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DefaultObjectSlotSerializer serializer = new DefaultObjectSlotSerializer();
+        serializer.writeObjects(objects, new DataOutputStream(baos));
+        Object[] read = serializer.readObjects(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+
+        Assert.assertArrayEquals(Arrays.copyOf(objects, 10), Arrays.copyOf(read, 10));
+        Assert.assertSame(read[9], ((Object[]) read[10])[0]); // identity retained between java serialized objects
+    }
+
+    @Test
+    public void mustProperlySuspendWithOffHeapStorage() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(OFF_HEAP_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(OFF_HEAP_TEST);
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+
+            CoroutineRunner onHeapRunner = new CoroutineRunner(cls.newInstance());
+            CoroutineRunner offHeapRunner = new CoroutineRunner(cls.newInstance());
+            offHeapRunner.setOffHeapStorageEnabled(true);
+            Assert.assertTrue(offHeapRunner.isOffHeapStorageEnabled());
+
+            CoroutineRunner restoredRunner = null;
+            for (int i = 0; i < 100; i++) {
+                Assert.assertTrue(onHeapRunner.execute());
+                Assert.assertTrue(offHeapRunner.execute());
+
+                // Only object references should be left on the heap while suspended
+                Continuation continuation = (Continuation) FieldUtils.readField(offHeapRunner, "continuation", true);
+                for (int j = 0; j < continuation.getSize(); j++) {
+                    Object[] data = (Object[]) FieldUtils.readField(continuation.getSaved(j), "data", true);
+                    for (Object slot : data) {
+                        Assert.assertTrue(slot == null || slot instanceof Object[]);
+                    }
+                }
+
+                if (i == 50) {
+                    restoredRunner = codec.fromByteArray(codec.toByteArray(offHeapRunner)); // snapshot must not disturb off-heap state
+                }
+            }
+            Assert.assertFalse(onHeapRunner.execute());
+            Assert.assertFalse(offHeapRunner.execute());
+            while (restoredRunner.execute()) {
+                // keep going until finished
+            }
+
+            String expected = (String) MethodUtils.invokeMethod(onHeapRunner.getCoroutine(), "getResult");
+            Assert.assertTrue(expected.endsWith("\n330800"));
+            Assert.assertEquals(expected, MethodUtils.invokeMethod(offHeapRunner.getCoroutine(), "getResult"));
+            Assert.assertEquals(expected, MethodUtils.invokeMethod(restoredRunner.getCoroutine(), "getResult"));
+        }
+    }
+
+    @Test
+    public void mustExecuteForkedRunnersIndependently() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(FORK_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(FORK_TEST);
+
+            CoroutineRunner runner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(runner.execute());
+            Assert.assertEquals(1L, runner.getContext());
+
+            // Go down different branches from the same point
+            CoroutineRunner forkedRunner = runner.fork();
+            Assert.assertSame(runner.getCoroutine(), forkedRunner.getCoroutine());
+            runner.setContext(0);
+            Assert.assertTrue(runner.execute());
+            forkedRunner.setContext(1);
+            Assert.assertTrue(forkedRunner.execute());
+            Assert.assertEquals(2L, runner.getContext());
+            Assert.assertEquals(3L, forkedRunner.getContext());
+
+            runner.setContext(1);
+            Assert.assertTrue(runner.execute());
+            forkedRunner.setContext(0);
+            Assert.assertTrue(forkedRunner.execute());
+            Assert.assertEquals(5L, runner.getContext());
+            Assert.assertEquals(6L, forkedRunner.getContext());
+
+            // Fork of a fork, with primitive parts of the saved state kept off-heap
+            forkedRunner.setOffHeapStorageEnabled(true);
+            CoroutineRunner secondForkedRunner = forkedRunner.fork();
+            Assert.assertTrue(secondForkedRunner.isOffHeapStorageEnabled());
+            secondForkedRunner.setContext(1);
+            Assert.assertTrue(secondForkedRunner.execute());
+            forkedRunner.setContext(0);
+            Assert.assertTrue(forkedRunner.execute());
+            Assert.assertEquals(13L, secondForkedRunner.getContext());
+            Assert.assertEquals(12L, forkedRunner.getContext());
+        }
+    }
+
+    @Test
+    public void mustCollectMetricsWhenMetricsModeEnabled() throws Exception {
+        CoroutineMetrics.reset();
+        InstrumentationSettings settings =
+                new InstrumentationSettings(MarkerType.NONE, false, true, false, false, false, Collections.emptySet());
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(OFF_HEAP_TEST + ".zip", settings)) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(OFF_HEAP_TEST);
+
+            CoroutineRunner runner = new CoroutineRunner(cls.newInstance());
+            Assert.assertTrue(runner.execute());
+
+            MethodMetrics runMetrics = CoroutineMetrics.getMethodMetrics(
+                    OFF_HEAP_TEST + ".run(Lcom/offbynull/coroutines/user/Continuation;)V");
+            MethodMetrics stepMetrics = CoroutineMetrics.getMethodMetrics(
+                    OFF_HEAP_TEST + ".step(Lcom/offbynull/coroutines/user/Continuation;IF)J");
+
+            // bytes counted for the first save of each frame must line up with the size reported for the suspended coroutine
+            Assert.assertEquals(runner.getStateSize().getTotalBytes(), runMetrics.getSavedBytes(0) + stepMetrics.getSavedBytes(0));
+
+            for (int i = 1; i < 100; i++) {
+                Assert.assertTrue(runner.execute());
+            }
+            Assert.assertFalse(runner.execute());
+            Assert.assertEquals(2, CoroutineMetrics.getMethodMetrics().length);
+
+            Assert.assertEquals(1, runMetrics.getContinuationPointCount());
+            Assert.assertEquals(1L, runMetrics.getInvocationCount());
+            Assert.assertEquals(100L, runMetrics.getSaveCount(0));
+            Assert.assertEquals(100L, runMetrics.getRestoreCount(0));
+
+            Assert.assertEquals(1, stepMetrics.getContinuationPointCount());
+            Assert.assertEquals(100L, stepMetrics.getInvocationCount());
+            Assert.assertEquals(100L, stepMetrics.getSaveCount(0));
+            Assert.assertEquals(100L, stepMetrics.getRestoreCount(0));
+            Assert.assertTrue(stepMetrics.getSavedBytes(0) > 0L);
+
+            long histogramTotal = 0L;
+            for (long count : stepMetrics.getRestoreLatencyHistogram(0)) {
+                histogramTotal += count;
+            }
+            Assert.assertEquals(100L, histogramTotal);
+        } finally {
+            CoroutineMetrics.reset();
+        }
+    }
+
+    @Test
+    public void mustGrowMetricsWhenMethodReloadedWithMoreContinuationPoints() throws Exception {
+        CoroutineMetrics.reset();
+        try {
+            String methodId = "ReloadedTest.run(Lcom/offbynull/coroutines/user/Continuation;)V";
+            Continuation continuation = (Continuation) FieldUtils.readField(new CoroutineRunner(c -> { }), "continuation", true);
+
+            // What instrumented code records for the original version of the method (1 continuation point)
+            CoroutineMetrics.recordInvocation(methodId, 1);
+            CoroutineMetrics.recordSave(new MethodState(0, 0, new Object[0], null), methodId, 1);
+            MethodMetrics methodMetrics = CoroutineMetrics.getMethodMetrics(methodId);
+            Assert.assertEquals(1, methodMetrics.getContinuationPointCount());
+
+            // What instrumented code records for a changed and reloaded version of the method (3 continuation points)
+            CoroutineMetrics.recordInvocation(methodId, 3);
+            CoroutineMetrics.recordSave(new MethodState(1, 2, new Object[0], null), methodId, 3);
+            CoroutineMetrics.recordRestoreStart(continuation, 0L);
+            CoroutineMetrics.recordRestore(continuation, methodId, 3, 2, 5L);
+
+            Assert.assertSame(methodMetrics, CoroutineMetrics.getMethodMetrics(methodId));
+            Assert.assertEquals(3, methodMetrics.getContinuationPointCount());
+            Assert.assertEquals(2L, methodMetrics.getInvocationCount());
+            Assert.assertEquals(1L, methodMetrics.getSaveCount(0));
+            Assert.assertEquals(0L, methodMetrics.getSaveCount(1));
+            Assert.assertEquals(1L, methodMetrics.getSaveCount(2));
+            Assert.assertEquals(1L, methodMetrics.getRestoreCount(2));
+            Assert.assertEquals(5L, methodMetrics.getRestoreNanos(2));
+        } finally {
+            CoroutineMetrics.reset();
+        }
+    }
+
+    @Test
+    public void mustReportStateSizeOfSuspendedCoroutine() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(OFF_HEAP_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(OFF_HEAP_TEST);
+
+            CoroutineRunner onHeapRunner = new CoroutineRunner(cls.newInstance());
+            CoroutineRunner offHeapRunner = new CoroutineRunner(cls.newInstance());
+            offHeapRunner.setOffHeapStorageEnabled(true);
+
+            Assert.assertEquals(0, onHeapRunner.getStateSize().getFrameCount());
+            Assert.assertEquals(0L, onHeapRunner.getStateSize().getTotalBytes());
+
+            Assert.assertTrue(onHeapRunner.execute());
+            Assert.assertTrue(offHeapRunner.execute());
+
+            StateSize onHeapSize = onHeapRunner.getStateSize();
+            StateSize offHeapSize = offHeapRunner.getStateSize();
+
+            // run() and step() are both on the stack
+            Assert.assertEquals(2, onHeapSize.getFrameCount());
+            Assert.assertTrue(onHeapSize.getIntCount() >= 2);
+            Assert.assertTrue(onHeapSize.getFloatCount() >= 1);
+            Assert.assertTrue(onHeapSize.getLongCount() >= 2);
+            Assert.assertTrue(onHeapSize.getDoubleCount() >= 1);
+            Assert.assertTrue(onHeapSize.getObjectCount() >= 2);
+            Assert.assertEquals(0, onHeapSize.getMonitorCount());
+            Assert.assertTrue(onHeapSize.getHeapBytes() > 0L);
+            Assert.assertEquals(0L, onHeapSize.getOffHeapBytes());
+
+            // Same values saved, but the primitive parts are counted as off-heap
+            Assert.assertEquals(onHeapSize.getFrameCount(), offHeapSize.getFrameCount());
+            Assert.assertEquals(onHeapSize.getIntCount(), offHeapSize.getIntCount());
+            Assert.assertEquals(onHeapSize.getFloatCount(), offHeapSize.getFloatCount());
+            Assert.assertEquals(onHeapSize.getLongCount(), offHeapSize.getLongCount());
+            Assert.assertEquals(onHeapSize.getDoubleCount(), offHeapSize.getDoubleCount());
+            Assert.assertEquals(onHeapSize.getObjectCount(), offHeapSize.getObjectCount());
+            Assert.assertTrue(offHeapSize.getOffHeapBytes() > 0L);
+            Assert.assertTrue(offHeapSize.getHeapBytes() < onHeapSize.getHeapBytes());
+
+            while (onHeapRunner.execute()) {
+                // keep going until finished
+            }
+            Assert.assertEquals(0, onHeapRunner.getStateSize().getFrameCount());
+        }
+    }
+
+    @Test
+    public void mustIncludeShallowSizeOfReferencedArraysInStateSize() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(MANY_CONTINUATION_POINTS_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(MANY_CONTINUATION_POINTS_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, new StringBuilder());
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Assert.assertTrue(runner.execute());
+            StateSize smallArraySize = runner.getStateSize();
+
+            // Swap the int[4] local saved by run() for an int[1000] -- everything else stays the same
+            Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
+            Object[] data = continuation.getSaved(0).getData();
+            int swapped = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] instanceof Object[]) {
+                    Object[] objects = (Object[]) data[i];
+                    for (int j = 0; j < objects.length; j++) {
+                        if (objects[j] instanceof int[] && ((int[]) objects[j]).length == 4) {
+                            objects[j] = new int[1000];
+                            swapped++;
+                        }
+                    }
+                }
+            }
+            Assert.assertEquals(1, swapped);
+            StateSize bigArraySize = runner.getStateSize();
+
+            Assert.assertEquals(smallArraySize.getObjectCount(), bigArraySize.getObjectCount());
+            Assert.assertEquals((16L + 1000L * 4L) - (16L + 4L * 4L), bigArraySize.getHeapBytes() - smallArraySize.getHeapBytes());
+        }
+    }
+
     @Test
     public void mustProperlySuspendWithUninitializedLocalVariables() throws Exception {
         StringBuilder builder = new StringBuilder();
@@ -325,6 +1272,33 @@ public final class InstrumenterTest {
         performCountTest(LAMBDA_INVOKE_TEST, new InstrumentationSettings(MarkerType.CONSTANT, false));
     }
 
+    @Test
+    public void mustProperlySuspendInLambdaThatTakesInContinuationThroughFunctionalInterface() throws Exception {
+        performCountTest(LAMBDA_SAM_INVOKE_TEST, new InstrumentationSettings(MarkerType.CONSTANT, false));
+    }
+
+    @Test
+    public void mustRejectLambdasThatTakeInContinuationThroughFunctionalInterfaceButAlsoCaptureIt() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("INVOKEDYNAMIC instructions are not allowed");
+        
+        performCountTest(LAMBDA_SAM_CAPTURE_INVOKE_TEST, new InstrumentationSettings(MarkerType.CONSTANT, false));
+    }
+
+    @Test
+    public void mustProperlySuspendInLambdaThatTakesInContinuationThroughFunctionalInterfaceWhenSuspendAnalysisRun() throws Exception {
+        List<byte[]> classes = new ArrayList<>();
+        readZipFromResource(LAMBDA_SAM_INVOKE_TEST + ".zip").forEach((name, data) -> {
+            if (name.endsWith(".class")) {
+                classes.add(data);
+            }
+        });
+        Set<String> nonSuspendingMethods = SuspendAnalyzer.findNonSuspendingMethods(classes);
+
+        performCountTest(LAMBDA_SAM_INVOKE_TEST,
+                new InstrumentationSettings(MarkerType.CONSTANT, false, false, false, false, false, nonSuspendingMethods));
+    }
+
     @Test
     public void mustProperlyReportExceptions() throws Exception {
         thrown.expect(RuntimeException.class);
@@ -333,6 +1307,404 @@ public final class InstrumenterTest {
         performCountTest(EXCEPTION_THROW_TEST, new InstrumentationSettings(MarkerType.CONSTANT, false));
     }
 
+    @Test
+    public void mustProperlyExecuteBatchOfRunners() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SANITY_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SANITY_TEST);
+            CoroutineRunner runner1 = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+            CoroutineRunner runner2 = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+            CoroutineRunner runner3 = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+            CoroutineRunner[] runners = new CoroutineRunner[] { runner1, runner2, runner3 };
+
+            CoroutineBatch batch = new CoroutineBatch(0);
+
+            // wrap around the end of the array
+            Assert.assertEquals(2, batch.execute(runners, 2, 2));
+            Assert.assertEquals(2, batch.getSuspendedCount());
+            Assert.assertSame(runner3, batch.getSuspended()[0]);
+            Assert.assertSame(runner1, batch.getSuspended()[1]);
+            Assert.assertEquals(0, batch.getFinishedCount());
+            Assert.assertEquals(0, batch.getFailedCount());
+
+            Assert.assertEquals(1, batch.execute(runners));
+            Assert.assertSame(runner2, batch.getSuspended()[0]);
+            Assert.assertEquals(2, batch.getFinishedCount());
+            Assert.assertSame(runner1, batch.getFinished()[0]);
+            Assert.assertSame(runner3, batch.getFinished()[1]);
+
+            Assert.assertEquals("aabab", builder.toString());
+        }
+    }
+
+    @Test
+    public void mustFailBatchWithoutExecutingAnythingIfRunnerIsNull() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(SANITY_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SANITY_TEST);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+            CoroutineRunner[] runners = new CoroutineRunner[] { runner, null };
+
+            CoroutineBatch batch = new CoroutineBatch(2);
+            try {
+                batch.execute(runners);
+                Assert.fail();
+            } catch (NullPointerException npe) {
+                // expected
+            }
+            Assert.assertEquals("", builder.toString());
+            Assert.assertEquals(0, batch.getFailedCount());
+        }
+    }
+
+    @Test
+    public void mustPassThroughOriginalExceptionWhenExecutingBatchOfRunners() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(EXCEPTION_THROW_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(EXCEPTION_THROW_TEST);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+            CoroutineRunner[] runners = new CoroutineRunner[] { runner };
+
+            CoroutineBatch batch = new CoroutineBatch(1);
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(1, batch.execute(runners));
+            }
+
+            Assert.assertEquals(0, batch.execute(runners));
+            Assert.assertEquals(1, batch.getFailedCount());
+            Assert.assertSame(runner, batch.getFailed()[0]);
+            Assert.assertEquals(RuntimeException.class, batch.getFailures()[0].getClass());
+            Assert.assertEquals("Hit 5!", batch.getFailures()[0].getMessage());
+        }
+    }
+
+    @Test
+    public void mustReturnResultCodesAndOriginalExceptionFromTryExecute() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(EXCEPTION_THROW_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(EXCEPTION_THROW_TEST);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(CoroutineRunner.RESULT_SUSPENDED, runner.tryExecute());
+                Assert.assertNull(runner.getFailure());
+            }
+
+            Assert.assertEquals(CoroutineRunner.RESULT_FAILED, runner.tryExecute());
+            Assert.assertEquals(RuntimeException.class, runner.getFailure().getClass());
+            Assert.assertEquals("Hit 5!", runner.getFailure().getMessage());
+        }
+    }
+
+    @Test
+    public void mustThrowStacklessExceptionWhenFailureStackTraceDisabled() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(EXCEPTION_THROW_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(EXCEPTION_THROW_TEST);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder));
+            runner.setFailureStackTraceEnabled(false);
+
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(runner.execute());
+            }
+
+            try {
+                runner.execute();
+                Assert.fail();
+            } catch (CoroutineException ce) {
+                Assert.assertEquals(0, ce.getStackTrace().length);
+                Assert.assertEquals("Hit 5!", ce.getCause().getMessage());
+                Assert.assertTrue(ce.getCause().getStackTrace().length > 0);
+            }
+        }
+    }
+
+    @Test
+    public void mustUnwindThroughFinallyBlocksAndReleaseMonitorsWhenCancelledWhileSuspended() throws Exception {
+        List<String> tracker = new ArrayList<>();
+        Object mon = new Object();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(CANCELLATION_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(CANCELLATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Continuation continuation = (Continuation) FieldUtils.readField(runner, "continuation", true);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            Assert.assertEquals(Arrays.asList("start", "resumed"), tracker);
+            Assert.assertArrayEquals(new Object[] { mon }, continuation.getSaved(0).getLockState().toArray());
+
+            runner.cancel();
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally"), tracker);
+            Assert.assertFalse(Thread.holdsLock(mon));
+            Assert.assertEquals(0, continuation.getSize());
+            Assert.assertFalse(continuation.isCancelled());
+
+            // runner should be reset -- executing again restarts the coroutine
+            Assert.assertTrue(runner.execute());
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally", "start"), tracker);
+        }
+    }
+
+    @Test
+    public void mustUnwindOnNextSuspendWhenCancelledWhileNotSuspended() throws Exception {
+        List<String> tracker = new ArrayList<>();
+        Object mon = new Object();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(CANCELLATION_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(CANCELLATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+
+            runner.cancel();
+            Assert.assertTrue(tracker.isEmpty());
+
+            Assert.assertFalse(runner.execute());
+            Assert.assertEquals(Arrays.asList("start", "inner finally", "outer finally"), tracker);
+            Assert.assertFalse(Thread.holdsLock(mon));
+        }
+    }
+
+    @Test
+    public void mustOnlyFlagWhenCancelledFromAnotherThreadWhileSuspended() throws Exception {
+        List<String> tracker = new ArrayList<>();
+        Object mon = new Object();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(CANCELLATION_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(CANCELLATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Assert.assertTrue(runner.execute());
+
+            Thread cancelThread = new Thread(() -> runner.cancel());
+            cancelThread.start();
+            cancelThread.join();
+            Assert.assertEquals(Arrays.asList("start"), tracker); // coroutine wasn't resumed by the cancelling thread
+
+            // unwinds on the executing thread from where it was suspended
+            Assert.assertFalse(runner.execute());
+            Assert.assertEquals(Arrays.asList("start", "inner finally", "outer finally"), tracker);
+            Assert.assertFalse(Thread.holdsLock(mon));
+        }
+    }
+
+    @Test
+    public void mustUnwindOnExecutingThreadWhenCancelledFromAnotherThreadWhileExecuting() throws Exception {
+        CountDownLatch resumedLatch = new CountDownLatch(1);
+        CountDownLatch cancelledLatch = new CountDownLatch(1);
+        List<String> tracker = new ArrayList<String>() {
+            @Override
+            public boolean add(String e) {
+                super.add(e);
+                if (e.equals("resumed")) {
+                    // block the coroutine mid-execution until the other thread has cancelled it
+                    resumedLatch.countDown();
+                    try {
+                        cancelledLatch.await();
+                    } catch (InterruptedException ie) {
+                        throw new IllegalStateException(ie);
+                    }
+                }
+                return true;
+            }
+        };
+        Object mon = new Object();
+
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(CANCELLATION_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(CANCELLATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine);
+            Assert.assertTrue(runner.execute());
+
+            List<String> trackerOnCancel = new ArrayList<>();
+            Thread cancelThread = new Thread(() -> {
+                try {
+                    resumedLatch.await();
+                } catch (InterruptedException ie) {
+                    throw new IllegalStateException(ie);
+                }
+                runner.cancel(); // must return right away -- coroutine is executing on the other thread
+                trackerOnCancel.addAll(tracker); // safe, coroutine is blocked until cancelledLatch is released
+                cancelledLatch.countDown();
+            });
+            cancelThread.start();
+
+            Assert.assertFalse(runner.execute());
+            cancelThread.join();
+
+            Assert.assertEquals(Arrays.asList("start", "resumed"), trackerOnCancel);
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally"), tracker);
+            Assert.assertFalse(Thread.holdsLock(mon));
+        }
+    }
+
+    @Test
+    public void mustProperlySuspendUninstrumentedCoroutineInThreadExecutionMode() throws Exception {
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResource(SANITY_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SANITY_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, builder);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine, CoroutineRunner.EXECUTION_MODE_THREAD);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertFalse(runner.execute());
+            Assert.assertTrue(runner.execute()); // coroutine finished executing here
+            Assert.assertFalse(runner.execute());
+
+            Assert.assertEquals("abab", builder.toString());
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void mustNotStallWhenMoreRunnersSuspendedThanCarrierThreadsInThreadExecutionMode() throws Exception {
+        // On Java 21+, coroutines in thread execution mode run on virtual threads. If parked coroutines pinned their carrier threads, this
+        // would stall once the number of suspended runners went past the number of carrier threads (at most 256 by default).
+        int count = Math.max(512, Runtime.getRuntime().availableProcessors() * 4);
+        StringBuilder builder = new StringBuilder();
+
+        try (URLClassLoader classLoader = loadClassesInZipResource(SANITY_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(SANITY_TEST);
+
+            CoroutineRunner[] runners = new CoroutineRunner[count];
+            for (int i = 0; i < count; i++) {
+                runners[i] = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, builder), CoroutineRunner.EXECUTION_MODE_THREAD);
+                Assert.assertTrue(runners[i].execute());
+            }
+            for (int i = 0; i < count; i++) {
+                Assert.assertFalse(runners[i].execute());
+            }
+
+            Assert.assertEquals(count * 2, builder.length());
+        }
+    }
+
+    @Test
+    public void mustUnwindWhenCancelledInThreadExecutionMode() throws Exception {
+        List<String> tracker = new ArrayList<>();
+        Object mon = new Object();
+
+        try (URLClassLoader classLoader = loadClassesInZipResource(CANCELLATION_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(CANCELLATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine, CoroutineRunner.EXECUTION_MODE_THREAD);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+            runner.cancel();
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally"), tracker);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally", "start"), tracker);
+        }
+    }
+
+    @Test(timeout = 60000L)
+    public void mustReleaseThreadWhenClosedWhileSuspendedInThreadExecutionMode() throws Exception {
+        List<String> tracker = new ArrayList<>();
+        Object mon = new Object();
+
+        try (URLClassLoader classLoader = loadClassesInZipResource(CANCELLATION_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(CANCELLATION_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, tracker, mon);
+
+            CoroutineRunner runner = new CoroutineRunner(coroutine, CoroutineRunner.EXECUTION_MODE_THREAD);
+
+            Assert.assertTrue(runner.execute());
+            Assert.assertTrue(runner.execute());
+
+            Object threadBackedExecution = FieldUtils.readField(runner, "threadBackedExecution", true);
+            Thread coroutineThread = (Thread) FieldUtils.readField(threadBackedExecution, "thread", true);
+            Assert.assertTrue(coroutineThread.isAlive());
+
+            // close from a thread other than the one that executed the runner
+            Thread closingThread = new Thread(runner::close);
+            closingThread.start();
+            closingThread.join();
+
+            coroutineThread.join(); // hangs (and times out) if the coroutine's thread was left parked
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally"), tracker);
+
+            runner.close(); // not suspended -- does nothing
+            Assert.assertEquals(Arrays.asList("start", "resumed", "inner finally", "outer finally"), tracker);
+        }
+    }
+
+    @Test
+    public void mustYieldPrimitivesThroughGenerators() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(GENERATOR_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(GENERATOR_TEST);
+
+            IntGenerator intGenerator = new IntGenerator(ConstructorUtils.invokeConstructor(cls, "int"));
+            for (int expected : new int[] { 0, 1, 3, 6, 10 }) {
+                Assert.assertTrue(intGenerator.hasNext());
+                Assert.assertEquals(expected, intGenerator.nextInt());
+            }
+            Assert.assertFalse(intGenerator.hasNext());
+
+            LongGenerator longGenerator = new LongGenerator(ConstructorUtils.invokeConstructor(cls, "long"));
+            for (long expected = Long.MAX_VALUE - 5L; expected < Long.MAX_VALUE; expected++) {
+                Assert.assertEquals(expected, longGenerator.nextLong());
+            }
+            Assert.assertFalse(longGenerator.hasNext());
+            
+            thrown.expect(NoSuchElementException.class);
+            longGenerator.nextLong();
+        }
+    }
+
+    @Test
+    public void mustYieldObjectsThroughGenerator() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(GENERATOR_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(GENERATOR_TEST);
+
+            Generator generator = new Generator(ConstructorUtils.invokeConstructor(cls, "object"));
+            List<Object> values = new ArrayList<>();
+            generator.forEachRemaining(values::add);
+
+            Assert.assertEquals(Arrays.asList("a", null, "abc", null, "abcde"), values);
+        }
+    }
+
+    @Test
+    public void mustFailWhenGeneratorGetsWrongYieldType() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(GENERATOR_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(GENERATOR_TEST);
+
+            IntGenerator generator = new IntGenerator(ConstructorUtils.invokeConstructor(cls, "mixed"));
+            Assert.assertEquals(1, generator.nextInt());
+
+            thrown.expect(IllegalStateException.class);
+            generator.hasNext();
+        }
+    }
+
+    @Test
+    public void mustYieldThroughGeneratorInThreadExecutionMode() throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResource(GENERATOR_TEST + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(GENERATOR_TEST);
+            Coroutine coroutine = ConstructorUtils.invokeConstructor(cls, "int");
+
+            IntGenerator generator = new IntGenerator(new CoroutineRunner(coroutine, CoroutineRunner.EXECUTION_MODE_THREAD));
+            for (int expected : new int[] { 0, 1, 3, 6, 10 }) {
+                Assert.assertEquals(expected, generator.nextInt());
+            }
+            Assert.assertFalse(generator.hasNext());
+        }
+    }
+
     @Test
     public void mustHaveResetLoadingStateOnException() throws Exception {
         StringBuilder builder = new StringBuilder();
@@ -0,0 +1,72 @@
+package com.offbynull.coroutines.instrumenter.benchmarks;
+
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResourceAndInstrument;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.net.URLClassLoader;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+
+// Compares CoroutineRunner.fork() against forking a suspended CoroutineRunner by serializing and deserializing it. Reports the number of
+// forks per second.
+public final class ForkBenchmark {
+    private static final String COROUTINE = "SerializableInvokeTest";
+    private static final int FORKS = 100_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(COROUTINE + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(COROUTINE);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, new StringBuilder()));
+            for (int i = 0; i < 5; i++) {
+                runner.execute();
+            }
+
+            for (int i = 0; i < ROUNDS; i++) {
+                System.out.println("Round " + i);
+
+                long startTime = System.nanoTime();
+                for (int j = 0; j < FORKS; j++) {
+                    runner.fork();
+                }
+                long endTime = System.nanoTime();
+                System.out.println("  fork(): " + FORKS * 1_000_000_000L / (endTime - startTime) + "/sec");
+
+                startTime = System.nanoTime();
+                for (int j = 0; j < FORKS; j++) {
+                    javaDeserialize(javaSerialize(runner), classLoader);
+                }
+                endTime = System.nanoTime();
+                System.out.println("  Java serialization: " + FORKS * 1_000_000_000L / (endTime - startTime) + "/sec");
+            }
+        }
+    }
+
+    private static byte[] javaSerialize(CoroutineRunner runner) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(runner);
+        }
+        return baos.toByteArray();
+    }
+
+    private static CoroutineRunner javaDeserialize(byte[] data, ClassLoader classLoader) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return super.resolveClass(desc);
+                } catch (ClassNotFoundException cnfe) {
+                    return classLoader.loadClass(desc.getName());
+                }
+            }
+        }) {
+            return (CoroutineRunner) ois.readObject();
+        }
+    }
+}
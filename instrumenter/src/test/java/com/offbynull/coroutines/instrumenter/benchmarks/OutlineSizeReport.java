@@ -0,0 +1,89 @@
+package com.offbynull.coroutines.instrumenter.benchmarks;
+
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.getClasspath;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.readZipFromResource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+// Reports the bytecode size of each method before instrumentation, after instrumentation, and after instrumentation with outline mode
+// turned on (size of the method itself, and the total size of the save helpers moved out of it). Methods over HotSpot's HugeMethodLimit
+// (8000 bytes) don't get JIT compiled.
+public final class OutlineSizeReport {
+    private static final String[] COROUTINES = {"ManyContinuationPointsTest", "ComplexTest", "BasicTypeInvokeTest"};
+    private static final String HELPER_NAME_PREFIX = "coroutines$save$";
+    private static final int HUGE_METHOD_LIMIT = 8000;
+
+    public static void main(String[] args) throws Exception {
+        Instrumenter instrumenter = new Instrumenter(getClasspath());
+        InstrumentationSettings inlineSettings =
+                new InstrumentationSettings(MarkerType.NONE, false, false, false, false, false, Collections.emptySet());
+        InstrumentationSettings outlineSettings =
+                new InstrumentationSettings(MarkerType.NONE, false, false, true, false, false, Collections.emptySet());
+
+        System.out.println(String.format("%-70s %10s %12s %12s %12s", "method", "original", "instrumented", "outlined", "helpers"));
+        for (String coroutine : COROUTINES) {
+            for (Entry<String, byte[]> entry : readZipFromResource(coroutine + ".zip").entrySet()) {
+                if (!entry.getKey().endsWith(".class")) {
+                    continue;
+                }
+
+                byte[] original = entry.getValue();
+                Map<String, Integer> originalSizes = getMethodSizes(original);
+                Map<String, Integer> inlineSizes = getMethodSizes(instrumenter.instrument(original, inlineSettings));
+                Map<String, Integer> outlineSizes = getMethodSizes(instrumenter.instrument(original, outlineSettings));
+
+                int helpersSize = 0;
+                for (Entry<String, Integer> outlineEntry : outlineSizes.entrySet()) {
+                    if (outlineEntry.getKey().startsWith(HELPER_NAME_PREFIX)) {
+                        helpersSize += outlineEntry.getValue();
+                    }
+                }
+
+                String className = entry.getKey().substring(0, entry.getKey().length() - ".class".length());
+                for (Entry<String, Integer> originalEntry : originalSizes.entrySet()) {
+                    String method = originalEntry.getKey();
+                    int originalSize = originalEntry.getValue();
+                    int inlineSize = inlineSizes.get(method);
+                    int outlineSize = outlineSizes.get(method);
+                    if (originalSize == inlineSize) {
+                        continue; // not instrumented
+                    }
+                    System.out.println(String.format("%-70s %10d %11d%s %11d%s %12s",
+                            className + "." + method,
+                            originalSize,
+                            inlineSize, inlineSize > HUGE_METHOD_LIMIT ? "*" : " ",
+                            outlineSize, outlineSize > HUGE_METHOD_LIMIT ? "*" : " ",
+                            ""));
+                }
+                if (helpersSize > 0) {
+                    System.out.println(String.format("%-70s %10s %12s %12s %12d",
+                            className + " (all save helpers)", "", "", "", helpersSize));
+                }
+            }
+        }
+        System.out.println("* = over HugeMethodLimit (" + HUGE_METHOD_LIMIT + " bytes), won't be JIT compiled");
+    }
+
+    private static Map<String, Integer> getMethodSizes(byte[] classData) {
+        ClassReader cr = new ClassReader(classData);
+        ClassNode classNode = new ClassNode();
+        cr.accept(classNode, 0);
+
+        Map<String, Integer> ret = new LinkedHashMap<>();
+        for (MethodNode methodNode : classNode.methods) {
+            CodeSizeEvaluator codeSizeEvaluator = new CodeSizeEvaluator(null);
+            methodNode.accept(codeSizeEvaluator);
+            ret.put(methodNode.name + methodNode.desc, codeSizeEvaluator.getMaxSize());
+        }
+        return ret;
+    }
+}
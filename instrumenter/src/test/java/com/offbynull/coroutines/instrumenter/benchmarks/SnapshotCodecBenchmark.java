@@ -0,0 +1,82 @@
+package com.offbynull.coroutines.instrumenter.benchmarks;
+
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResourceAndInstrument;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import com.offbynull.coroutines.user.DefaultObjectSlotSerializer;
+import com.offbynull.coroutines.user.SnapshotCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.net.URLClassLoader;
+import org.apache.commons.lang3.reflect.ConstructorUtils;
+
+// Compares SnapshotCodec against default Java serialization of a suspended CoroutineRunner. Reports the size of a single snapshot and the
+// number of write+read round trips per second.
+public final class SnapshotCodecBenchmark {
+    private static final String COROUTINE = "SerializableInvokeTest";
+    private static final int ROUND_TRIPS = 100_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        try (URLClassLoader classLoader = loadClassesInZipResourceAndInstrument(COROUTINE + ".zip")) {
+            Class<Coroutine> cls = (Class<Coroutine>) classLoader.loadClass(COROUTINE);
+            CoroutineRunner runner = new CoroutineRunner(ConstructorUtils.invokeConstructor(cls, new StringBuilder()));
+            for (int i = 0; i < 5; i++) {
+                runner.execute();
+            }
+
+            SnapshotCodec codec = new SnapshotCodec(new DefaultObjectSlotSerializer(classLoader));
+            for (int i = 0; i < ROUNDS; i++) {
+                System.out.println("Round " + i);
+
+                int size = 0;
+                long startTime = System.nanoTime();
+                for (int j = 0; j < ROUND_TRIPS; j++) {
+                    byte[] data = codec.toByteArray(runner);
+                    codec.fromByteArray(data);
+                    size = data.length;
+                }
+                long endTime = System.nanoTime();
+                System.out.println("  SnapshotCodec: size=" + size + " bytes, round trips="
+                        + ROUND_TRIPS * 1_000_000_000L / (endTime - startTime) + "/sec");
+
+                startTime = System.nanoTime();
+                for (int j = 0; j < ROUND_TRIPS; j++) {
+                    byte[] data = javaSerialize(runner);
+                    javaDeserialize(data, classLoader);
+                    size = data.length;
+                }
+                endTime = System.nanoTime();
+                System.out.println("  Java serialization: size=" + size + " bytes, round trips="
+                        + ROUND_TRIPS * 1_000_000_000L / (endTime - startTime) + "/sec");
+            }
+        }
+    }
+
+    private static byte[] javaSerialize(CoroutineRunner runner) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(runner);
+        }
+        return baos.toByteArray();
+    }
+
+    private static CoroutineRunner javaDeserialize(byte[] data, ClassLoader classLoader) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return super.resolveClass(desc);
+                } catch (ClassNotFoundException cnfe) {
+                    return classLoader.loadClass(desc.getName());
+                }
+            }
+        }) {
+            return (CoroutineRunner) ois.readObject();
+        }
+    }
+}
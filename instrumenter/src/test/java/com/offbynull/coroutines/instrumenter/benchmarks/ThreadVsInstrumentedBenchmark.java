@@ -0,0 +1,91 @@
+package com.offbynull.coroutines.instrumenter.benchmarks;
+
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResource;
+import static com.offbynull.coroutines.instrumenter.testhelpers.TestUtils.loadClassesInZipResourceAndInstrument;
+import com.offbynull.coroutines.user.Coroutine;
+import com.offbynull.coroutines.user.CoroutineRunner;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compares CoroutineRunner.EXECUTION_MODE_INSTRUMENTED against CoroutineRunner.EXECUTION_MODE_THREAD. The same coroutine is used for both
+// (instrumented in one case, left as-is in the other). Run with a Java 21+ JVM to have thread mode use virtual threads.
+//
+// Reports...
+//   throughput: resumes per second when stepping a single coroutine in a tight loop
+//   latency: median / 99th percentile time taken by a single call to execute()
+//   memory: approximate heap retained per suspended coroutine (thread stacks of platform threads are not on the heap, so for platform
+//           threads this number is a lower bound)
+public final class ThreadVsInstrumentedBenchmark {
+    private static final String COROUTINE = "BenchmarkCoroutine";
+    private static final int THROUGHPUT_RESUMES = 1_000_000;
+    private static final int LATENCY_SAMPLES = 100_000;
+    private static final int MEMORY_COROUTINES = 100_000;
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Java version: " + System.getProperty("java.version"));
+        try (URLClassLoader instrumentedLoader = loadClassesInZipResourceAndInstrument(COROUTINE + ".zip");
+                URLClassLoader plainLoader = loadClassesInZipResource(COROUTINE + ".zip")) {
+            Class<Coroutine> instrumentedCls = (Class<Coroutine>) instrumentedLoader.loadClass(COROUTINE);
+            Class<Coroutine> plainCls = (Class<Coroutine>) plainLoader.loadClass(COROUTINE);
+
+            for (int i = 0; i < ROUNDS; i++) {
+                System.out.println("Round " + i);
+                report("Instrumented", instrumentedCls, CoroutineRunner.EXECUTION_MODE_INSTRUMENTED);
+                report("Thread", plainCls, CoroutineRunner.EXECUTION_MODE_THREAD);
+            }
+        }
+    }
+
+    private static void report(String name, Class<Coroutine> cls, int mode) throws Exception {
+        // throughput
+        CoroutineRunner runner = new CoroutineRunner(cls.newInstance(), mode);
+        int resumes = mode == CoroutineRunner.EXECUTION_MODE_THREAD ? THROUGHPUT_RESUMES / 10 : THROUGHPUT_RESUMES;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < resumes; i++) {
+            runner.execute();
+        }
+        long endTime = System.nanoTime();
+        long throughput = resumes * 1_000_000_000L / Math.max(1L, endTime - startTime);
+
+        // latency
+        long[] samples = new long[LATENCY_SAMPLES];
+        for (int i = 0; i < samples.length; i++) {
+            long sampleStartTime = System.nanoTime();
+            runner.execute();
+            samples[i] = System.nanoTime() - sampleStartTime;
+        }
+        runner.cancel();
+        Arrays.sort(samples);
+        long median = samples[samples.length / 2];
+        long p99 = samples[samples.length * 99 / 100];
+
+        // memory
+        int count = mode == CoroutineRunner.EXECUTION_MODE_THREAD ? MEMORY_COROUTINES / 100 : MEMORY_COROUTINES;
+        List<CoroutineRunner> runners = new ArrayList<>(count);
+        long usedBefore = usedMemory();
+        for (int i = 0; i < count; i++) {
+            CoroutineRunner memRunner = new CoroutineRunner(cls.newInstance(), mode);
+            memRunner.execute();
+            runners.add(memRunner);
+        }
+        long usedAfter = usedMemory();
+        long bytesPerCoroutine = (usedAfter - usedBefore) / count;
+        for (CoroutineRunner memRunner : runners) {
+            memRunner.cancel();
+        }
+
+        System.out.println("  " + name + ": throughput=" + throughput + " resumes/sec, latency median=" + median + "ns p99=" + p99
+                + "ns, memory=" + bytesPerCoroutine + " bytes/suspended coroutine");
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
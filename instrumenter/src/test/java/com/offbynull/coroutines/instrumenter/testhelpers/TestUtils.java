@@ -60,6 +60,24 @@ public final class TestUtils {
         // do nothing
     }
     
+    /**
+     * Opens up a ZIP resource and returns a {@link URLClassLoader} object with access to the classes within (as-is, not instrumented).
+     * @param path path of zip resource
+     * @return class loader able to access classes
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if an IO error occurs
+     */
+    public static URLClassLoader loadClassesInZipResource(String path) throws IOException {
+        Validate.notNull(path);
+
+        Map<String, byte[]> classContents = readZipFromResource(path);
+        List<JarEntry> jarEntries = new ArrayList<>(classContents.size());
+        for (Entry<String, byte[]> entry : classContents.entrySet()) {
+            jarEntries.add(new JarEntry(entry.getKey(), entry.getValue()));
+        }
+        return createJarAndLoad(jarEntries.toArray(new JarEntry[0]));
+    }
+
     /**
      * Equivalent to calling {@code loadClassesInZipResourceAndInstrument(path, new InstrumentationSettings(MarkerType.CONSTANT, false))}.
      * @param path path of zip resource
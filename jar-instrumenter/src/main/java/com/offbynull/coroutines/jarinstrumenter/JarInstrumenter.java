@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2017, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.jarinstrumenter;
+
+import com.offbynull.coroutines.instrumenter.InstrumentationResult;
+import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
+import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.MethodReport;
+import com.offbynull.coroutines.instrumenter.SuspendAnalyzer;
+import com.offbynull.coroutines.instrumenter.asm.FileSystemClassInformationRepository;
+import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Instruments the classes in a JAR and writes the result out as a new JAR. Classes are instrumented in parallel. Entries that aren't
+ * classes, and classes that didn't need to be instrumented, are copied over as-is without being decompressed/recompressed.
+ * <p>
+ * If any class gets instrumented and the JAR is signed, the signature is stripped from the output JAR (the signature files in
+ * {@code META-INF} are removed along with the per-entry digests in the manifest). The instrumented classes no longer match the digests,
+ * so leaving the signature in would cause the JAR to fail verification when it's loaded.
+ * <p>
+ * Can be run from the command-line (see {@link #main(java.lang.String[]) }).
+ * @author Kasra Faghihi
+ */
+public final class JarInstrumenter {
+
+    private static final String USAGE = "Usage: [options] inputJar outputJar\n"
+            + "Options:\n"
+            + "  --classpath <paths>       classpath needed to resolve classes referenced by the input JAR (separated by "
+            + File.pathSeparator + ")\n"
+            + "  --jdkLibsDirectory <dir>  JDK libs directory (defaults to java.home/lib)\n"
+            + "  --markerType <type>       one of " + Arrays.toString(MarkerType.values()) + " (defaults to NONE)\n"
+            + "  --threads <count>         number of classes to instrument at once (defaults to number of processors)\n"
+            + "  --reportFile <file>       CSV file to write the instrumentation cost of each instrumented method to\n"
+            + "  --debugMode\n"
+            + "  --metricsMode\n"
+            + "  --outlineMode\n"
+            + "  --packedStorageMode\n"
+            + "  --preemptionMode\n"
+            + "  --suspendAnalysisMode";
+
+    private MarkerType markerType = MarkerType.NONE;
+
+    private boolean debugMode = false;
+
+    private boolean metricsMode = false;
+
+    private boolean outlineMode = false;
+
+    private boolean packedStorageMode = false;
+
+    private boolean preemptionMode = false;
+
+    private boolean suspendAnalysisMode = false;
+
+    private List<File> classpath = Collections.emptyList();
+
+    private File jdkLibsDirectory;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private File reportFile;
+
+    /**
+     * Constructs a {@link JarInstrumenter} object.
+     */
+    public JarInstrumenter() {
+        String jdkHome = (String) System.getProperties().get("java.home");
+        if (jdkHome != null) {
+            jdkLibsDirectory = new File(jdkHome + "/lib");
+        }
+    }
+
+    /**
+     * Command-line entry point. Expected arguments are {@code [options] inputJar outputJar} (run with no arguments to see options).
+     * @param args command-line arguments
+     * @throws IOException if an IO error occurs
+     * @throws IllegalArgumentException if the arguments are not in the expected format, or if a class could not be instrumented
+     */
+    public static void main(String[] args) throws IOException {
+        JarInstrumenter jarInstrumenter = new JarInstrumenter();
+        List<String> positionalArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--classpath":
+                    jarInstrumenter.setClasspath(Arrays.stream(getOptionValue(args, ++i).split(File.pathSeparator))
+                            .map(x -> x.trim())
+                            .filter(x -> !x.isEmpty())
+                            .map(x -> new File(x))
+                            .collect(Collectors.toList()));
+                    break;
+                case "--jdkLibsDirectory":
+                    jarInstrumenter.setJdkLibsDirectory(new File(getOptionValue(args, ++i)));
+                    break;
+                case "--markerType":
+                    try {
+                        jarInstrumenter.setMarkerType(MarkerType.valueOf(getOptionValue(args, ++i)));
+                    } catch (IllegalArgumentException iae) {
+                        throw new IllegalArgumentException("Unable to parse marker type -- must be one of the following: "
+                                + Arrays.toString(MarkerType.values()), iae);
+                    }
+                    break;
+                case "--threads":
+                    try {
+                        jarInstrumenter.setThreads(Integer.parseInt(getOptionValue(args, ++i)));
+                    } catch (NumberFormatException nfe) {
+                        throw new IllegalArgumentException("Unable to parse thread count", nfe);
+                    }
+                    break;
+                case "--reportFile":
+                    jarInstrumenter.setReportFile(new File(getOptionValue(args, ++i)));
+                    break;
+                case "--debugMode":
+                    jarInstrumenter.setDebugMode(true);
+                    break;
+                case "--metricsMode":
+                    jarInstrumenter.setMetricsMode(true);
+                    break;
+                case "--outlineMode":
+                    jarInstrumenter.setOutlineMode(true);
+                    break;
+                case "--packedStorageMode":
+                    jarInstrumenter.setPackedStorageMode(true);
+                    break;
+                case "--preemptionMode":
+                    jarInstrumenter.setPreemptionMode(true);
+                    break;
+                case "--suspendAnalysisMode":
+                    jarInstrumenter.setSuspendAnalysisMode(true);
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unrecognized option: " + args[i] + "\n" + USAGE);
+                    }
+                    positionalArgs.add(args[i]);
+                    break;
+            }
+        }
+
+        if (positionalArgs.size() != 2) {
+            throw new IllegalArgumentException(USAGE);
+        }
+
+        File inputJar = new File(positionalArgs.get(0));
+        File outputJar = new File(positionalArgs.get(1));
+        jarInstrumenter.instrument(inputJar, outputJar);
+    }
+
+    private static String getOptionValue(String[] args, int idx) {
+        if (idx >= args.length) {
+            throw new IllegalArgumentException("Missing value for option " + args[idx - 1] + "\n" + USAGE);
+        }
+        return args[idx];
+    }
+
+    /**
+     * Sets the marker type. Defaults to {@link MarkerType#NONE}.
+     * @param markerType debug marker type
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void setMarkerType(MarkerType markerType) {
+        Validate.notNull(markerType);
+        this.markerType = markerType;
+    }
+
+    /**
+     * Sets the debug mode. Defaults to {@code false}.
+     * @param debugMode debug mode
+     */
+    public void setDebugMode(boolean debugMode) {
+        this.debugMode = debugMode;
+    }
+
+    /**
+     * Sets the metrics mode. Defaults to {@code false}.
+     * @param metricsMode metrics mode
+     */
+    public void setMetricsMode(boolean metricsMode) {
+        this.metricsMode = metricsMode;
+    }
+
+    /**
+     * Sets the outline mode. Defaults to {@code false}.
+     * @param outlineMode outline mode
+     */
+    public void setOutlineMode(boolean outlineMode) {
+        this.outlineMode = outlineMode;
+    }
+
+    /**
+     * Sets the packed storage mode. Defaults to {@code false}.
+     * @param packedStorageMode packed storage mode
+     */
+    public void setPackedStorageMode(boolean packedStorageMode) {
+        this.packedStorageMode = packedStorageMode;
+    }
+
+    /**
+     * Sets the preemption mode. Defaults to {@code false}.
+     * @param preemptionMode preemption mode
+     */
+    public void setPreemptionMode(boolean preemptionMode) {
+        this.preemptionMode = preemptionMode;
+    }
+
+    /**
+     * Sets the suspend analysis mode. Defaults to {@code false}. If enabled, the classes in the input JAR are analyzed to find methods
+     * that never suspend, and invocations of those methods are left uninstrumented. Only enable this if the input JAR contains all
+     * classes that may extend/implement the classes in it.
+     * @param suspendAnalysisMode suspend analysis mode
+     */
+    public void setSuspendAnalysisMode(boolean suspendAnalysisMode) {
+        this.suspendAnalysisMode = suspendAnalysisMode;
+    }
+
+    /**
+     * Sets the classpath needed to resolve classes referenced by the input JAR. The input JAR itself and the JARs in the JDK libs
+     * directory don't need to be included. Defaults to an empty classpath.
+     * @param classpath classpath JARs and folders
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     */
+    public void setClasspath(List<File> classpath) {
+        Validate.notNull(classpath);
+        Validate.noNullElements(classpath);
+        this.classpath = new ArrayList<>(classpath);
+    }
+
+    /**
+     * Sets the JDK libs directory. Defaults to the lib directory of the JDK this is running on.
+     * @param jdkLibsDirectory JDK libs directory
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void setJdkLibsDirectory(File jdkLibsDirectory) {
+        Validate.notNull(jdkLibsDirectory);
+        this.jdkLibsDirectory = jdkLibsDirectory;
+    }
+
+    /**
+     * Sets the number of classes to instrument at once. Defaults to the number of available processors.
+     * @param threads number of threads
+     * @throws IllegalArgumentException if {@code threads < 1}
+     */
+    public void setThreads(int threads) {
+        Validate.isTrue(threads >= 1, "Thread count must be at least 1");
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the file to write a CSV report of the instrumentation cost of each instrumented method to (see {@link MethodReport}). Defaults
+     * to {@code null}, meaning that no report is written.
+     * @param reportFile report file (overwritten if it already exists), or {@code null} for no report
+     */
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    /**
+     * Instruments a JAR.
+     * @param inputJar JAR to instrument
+     * @param outputJar JAR to write out to (overwritten if it already exists)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code inputJar} is the same file as {@code outputJar}, if the JDK libs directory isn't a
+     * directory, or if a class could not be instrumented
+     * @throws IOException if an IO error occurs
+     */
+    public void instrument(File inputJar, File outputJar) throws IOException {
+        Validate.notNull(inputJar);
+        Validate.notNull(outputJar);
+        Validate.isTrue(!inputJar.getCanonicalFile().equals(outputJar.getCanonicalFile()), "Input JAR and output JAR must be different");
+        Validate.isTrue(jdkLibsDirectory != null && jdkLibsDirectory.isDirectory(), "JDK libs directory is not a directory");
+
+        List<File> combinedClasspath = new ArrayList<>();
+        combinedClasspath.add(inputJar);
+        combinedClasspath.addAll(classpath);
+        combinedClasspath.addAll(FileUtils.listFiles(jdkLibsDirectory, new String[]{"jar"}, true));
+
+        Instrumenter instrumenter = new Instrumenter(FileSystemClassInformationRepository.create(combinedClasspath));
+
+        try (ZipFile zipFile = new ZipFile(inputJar)) {
+            List<ZipArchiveEntry> entries = Collections.list(zipFile.getEntriesInPhysicalOrder());
+
+            Map<ZipArchiveEntry, byte[]> classes = new LinkedHashMap<>();
+            for (ZipArchiveEntry entry : entries) {
+                if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    classes.put(entry, IOUtils.toByteArray(is));
+                }
+            }
+
+            Set<String> nonSuspendingMethods = Collections.emptySet();
+            if (suspendAnalysisMode) {
+                nonSuspendingMethods = SuspendAnalyzer.findNonSuspendingMethods(classes.values(), preemptionMode);
+            }
+
+            InstrumentationSettings settings = new InstrumentationSettings(markerType, debugMode, metricsMode, outlineMode,
+                    packedStorageMode, preemptionMode, nonSuspendingMethods);
+            List<MethodReport> methodReports = new ArrayList<>();
+            Map<ZipArchiveEntry, byte[]> instrumentedClasses = instrumentClasses(instrumenter, settings, classes, methodReports);
+
+            // If nothing got instrumented, the signature (if any) is still valid and gets copied over as-is
+            boolean stripSignature = !instrumentedClasses.isEmpty();
+
+            try (ZipArchiveOutputStream zaos = new ZipArchiveOutputStream(outputJar)) {
+                for (ZipArchiveEntry entry : entries) {
+                    byte[] instrumentedClass = instrumentedClasses.get(entry);
+                    if (stripSignature && isSignatureFile(entry.getName())) {
+                        continue;
+                    } else if (stripSignature && entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                        byte[] manifest;
+                        try (InputStream is = zipFile.getInputStream(entry)) {
+                            manifest = stripDigests(IOUtils.toByteArray(is));
+                        }
+                        ZipArchiveEntry manifestEntry = new ZipArchiveEntry(entry.getName());
+                        manifestEntry.setTime(entry.getTime());
+                        zaos.putArchiveEntry(manifestEntry);
+                        zaos.write(manifest);
+                        zaos.closeArchiveEntry();
+                    } else if (instrumentedClass == null) {
+                        // Not a class or not changed by instrumentation, so copy the compressed data as-is
+                        try (InputStream is = zipFile.getRawInputStream(entry)) {
+                            zaos.addRawArchiveEntry(entry, is);
+                        }
+                    } else {
+                        ZipArchiveEntry instrumentedEntry = new ZipArchiveEntry(entry.getName());
+                        instrumentedEntry.setTime(entry.getTime());
+                        zaos.putArchiveEntry(instrumentedEntry);
+                        zaos.write(instrumentedClass);
+                        zaos.closeArchiveEntry();
+                    }
+                }
+            }
+
+            if (reportFile != null) {
+                writeReport(methodReports);
+            }
+        }
+    }
+
+    private static boolean isSignatureFile(String name) {
+        // Signature files are the .SF/.RSA/.DSA/.EC/SIG-* files directly inside of META-INF (see the JAR file specification)
+        String upperName = name.toUpperCase(Locale.ENGLISH);
+        if (!upperName.startsWith("META-INF/")) {
+            return false;
+        }
+        String fileName = upperName.substring("META-INF/".length());
+        return !fileName.contains("/")
+                && (fileName.endsWith(".SF") || fileName.endsWith(".RSA") || fileName.endsWith(".DSA") || fileName.endsWith(".EC")
+                || fileName.startsWith("SIG-"));
+    }
+
+    private static byte[] stripDigests(byte[] data) throws IOException {
+        // Remove the digest attributes from each per-entry section, and drop sections that have nothing left in them
+        Manifest manifest = new Manifest(new ByteArrayInputStream(data));
+        for (Attributes attributes : manifest.getEntries().values()) {
+            attributes.keySet().removeIf(x -> x.toString().toUpperCase(Locale.ENGLISH).endsWith("-DIGEST"));
+        }
+        manifest.getEntries().values().removeIf(x -> x.isEmpty());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        manifest.write(baos);
+        return baos.toByteArray();
+    }
+
+    private void writeReport(List<MethodReport> methodReports) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(MethodReport.getCsvHeader());
+        for (MethodReport methodReport : methodReports) {
+            lines.add(methodReport.toCsvRow());
+        }
+        FileUtils.writeLines(reportFile, StandardCharsets.UTF_8.name(), lines);
+    }
+
+    private Map<ZipArchiveEntry, byte[]> instrumentClasses(Instrumenter instrumenter, InstrumentationSettings settings,
+            Map<ZipArchiveEntry, byte[]> classes, List<MethodReport> methodReports) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<ZipArchiveEntry, Future<InstrumentationResult>> futures = new LinkedHashMap<>();
+            for (Entry<ZipArchiveEntry, byte[]> entry : classes.entrySet()) {
+                byte[] input = entry.getValue();
+                futures.put(entry.getKey(), executor.submit(() -> instrumenter.instrumentAndReport(input, settings)));
+            }
+
+            // Only keep classes that actually changed -- the rest get copied over as-is
+            Map<ZipArchiveEntry, byte[]> ret = new LinkedHashMap<>();
+            for (Entry<ZipArchiveEntry, Future<InstrumentationResult>> entry : futures.entrySet()) {
+                byte[] input = classes.get(entry.getKey());
+                InstrumentationResult result;
+                try {
+                    result = entry.getValue().get();
+                } catch (ExecutionException ee) {
+                    throw new IllegalArgumentException("Failed to instrument " + entry.getKey().getName(), ee.getCause());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while instrumenting", ie);
+                }
+
+                methodReports.addAll(result.getMethodReports());
+
+                byte[] output = result.getInstrumentedClass();
+                if (!Arrays.equals(input, output)) {
+                    ret.put(entry.getKey(), output);
+                }
+            }
+            return ret;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
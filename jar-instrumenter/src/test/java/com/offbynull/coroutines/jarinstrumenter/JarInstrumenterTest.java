@@ -0,0 +1,230 @@
+package com.offbynull.coroutines.jarinstrumenter;
+
+import com.offbynull.coroutines.instrumenter.MethodReport;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.Validate;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public final class JarInstrumenterTest {
+
+    private static final List<String> SIGNATURE_FILES = Arrays.asList("META-INF/TEST.SF", "META-INF/TEST.RSA", "META-INF/TEST.DSA",
+            "META-INF/TEST.EC");
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void mustInstrumentClassesAndCopyEverythingElseAsIs() throws Exception {
+        File inputJar = copyResourceToTempDir("NormalInvokeTest.zip");
+        File outputJar = new File(tempDir, "output.jar");
+
+        JarInstrumenter fixture = new JarInstrumenter();
+        fixture.setThreads(2);
+        fixture.instrument(inputJar, outputJar);
+
+        try (ZipFile inputZipFile = new ZipFile(inputJar);
+                ZipFile outputZipFile = new ZipFile(outputJar)) {
+            // class got instrumented
+            byte[] inputClass = readEntry(inputZipFile, "NormalInvokeTest.class", false);
+            byte[] outputClass = readEntry(outputZipFile, "NormalInvokeTest.class", false);
+            Assert.assertTrue(outputClass.length > inputClass.length);
+
+            // non-class got copied over without being decompressed/recompressed
+            ZipArchiveEntry inputEntry = inputZipFile.getEntry("NormalInvokeTest.java");
+            ZipArchiveEntry outputEntry = outputZipFile.getEntry("NormalInvokeTest.java");
+            Assert.assertEquals(inputEntry.getMethod(), outputEntry.getMethod());
+            Assert.assertEquals(inputEntry.getCrc(), outputEntry.getCrc());
+            Assert.assertArrayEquals(readEntry(inputZipFile, "NormalInvokeTest.java", true),
+                    readEntry(outputZipFile, "NormalInvokeTest.java", true));
+        }
+    }
+
+    @Test
+    public void mustStripSignatureWhenClassesInSignedJarGetInstrumented() throws Exception {
+        File inputJar = createSignedJar(Arrays.asList("NormalInvokeTest.class", "NormalInvokeTest.java"));
+        File outputJar = new File(tempDir, "output.jar");
+
+        JarInstrumenter fixture = new JarInstrumenter();
+        fixture.instrument(inputJar, outputJar);
+
+        try (ZipFile outputZipFile = new ZipFile(outputJar)) {
+            for (String name : SIGNATURE_FILES) {
+                Assert.assertNull(outputZipFile.getEntry(name));
+            }
+            Assert.assertNotNull(outputZipFile.getEntry("META-INF/maven/pom.xml")); // not a signature file, just in META-INF
+        }
+
+        try (JarFile outputJarFile = new JarFile(outputJar, true)) {
+            Manifest manifest = outputJarFile.getManifest();
+            Assert.assertEquals("test", manifest.getMainAttributes().getValue("Created-By"));
+            Assert.assertNull(manifest.getAttributes("NormalInvokeTest.class"));
+            Assert.assertNull(manifest.getAttributes("NormalInvokeTest.java").getValue("SHA-256-Digest"));
+            Assert.assertEquals("text/plain", manifest.getAttributes("NormalInvokeTest.java").getValue("Content-Type"));
+
+            // reading every entry fully is what triggers verification -- it must not fail and nothing should come out signed
+            for (JarEntry entry : Collections.list(outputJarFile.entries())) {
+                try (InputStream is = outputJarFile.getInputStream(entry)) {
+                    IOUtils.toByteArray(is);
+                }
+                Assert.assertNull(entry.getCodeSigners());
+            }
+        }
+    }
+
+    @Test
+    public void mustKeepSignatureWhenNothingInSignedJarGetsInstrumented() throws Exception {
+        File inputJar = createSignedJar(Arrays.asList("NormalInvokeTest.java"));
+        File outputJar = new File(tempDir, "output.jar");
+
+        JarInstrumenter fixture = new JarInstrumenter();
+        fixture.instrument(inputJar, outputJar);
+
+        try (ZipFile inputZipFile = new ZipFile(inputJar);
+                ZipFile outputZipFile = new ZipFile(outputJar)) {
+            for (String name : SIGNATURE_FILES) {
+                Assert.assertArrayEquals(readEntry(inputZipFile, name, true), readEntry(outputZipFile, name, true));
+            }
+            Assert.assertArrayEquals(readEntry(inputZipFile, JarFile.MANIFEST_NAME, true),
+                    readEntry(outputZipFile, JarFile.MANIFEST_NAME, true));
+        }
+    }
+
+    @Test
+    public void mustInstrumentFromCommandLine() throws Exception {
+        File inputJar = copyResourceToTempDir("NormalInvokeTest.zip");
+        File outputJar = new File(tempDir, "output.jar");
+
+        JarInstrumenter.main(new String[] {"--markerType", "STDOUT", "--debugMode", "--threads", "1", inputJar.getAbsolutePath(),
+            outputJar.getAbsolutePath()});
+
+        try (ZipFile inputZipFile = new ZipFile(inputJar);
+                ZipFile outputZipFile = new ZipFile(outputJar)) {
+            byte[] inputClass = readEntry(inputZipFile, "NormalInvokeTest.class", false);
+            byte[] outputClass = readEntry(outputZipFile, "NormalInvokeTest.class", false);
+            Assert.assertTrue(outputClass.length > inputClass.length);
+        }
+    }
+
+    @Test
+    public void mustWriteReportFromCommandLine() throws Exception {
+        File inputJar = copyResourceToTempDir("NormalInvokeTest.zip");
+        File outputJar = new File(tempDir, "output.jar");
+        File reportFile = new File(tempDir, "report.csv");
+
+        JarInstrumenter.main(new String[] {"--reportFile", reportFile.getAbsolutePath(), inputJar.getAbsolutePath(),
+            outputJar.getAbsolutePath()});
+
+        List<String> lines = FileUtils.readLines(reportFile, StandardCharsets.UTF_8);
+        Assert.assertEquals(MethodReport.getCsvHeader(), lines.get(0));
+        Assert.assertTrue(lines.size() > 1);
+        Assert.assertTrue(lines.stream().skip(1).allMatch(x -> x.startsWith("NormalInvokeTest,")));
+    }
+
+    @Test
+    public void mustFailIfOutputJarMissingFromCommandLine() throws Exception {
+        File inputJar = copyResourceToTempDir("NormalInvokeTest.zip");
+
+        expectedException.expect(IllegalArgumentException.class);
+        JarInstrumenter.main(new String[] {inputJar.getAbsolutePath()});
+    }
+
+    @Test
+    public void mustFailIfUnrecognizedOptionFromCommandLine() throws Exception {
+        File inputJar = copyResourceToTempDir("NormalInvokeTest.zip");
+        File outputJar = new File(tempDir, "output.jar");
+
+        expectedException.expect(IllegalArgumentException.class);
+        JarInstrumenter.main(new String[] {"--fakeMode", inputJar.getAbsolutePath(), outputJar.getAbsolutePath()});
+    }
+
+    private File createSignedJar(List<String> names) throws Exception {
+        // Signature files don't need to be valid, they only need to be named like signature files and be listed in the manifest
+        File inputZip = copyResourceToTempDir("NormalInvokeTest.zip");
+        File signedJar = new File(tempDir, "signed.jar");
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Created-By", "test");
+        for (String name : names) {
+            Attributes attributes = new Attributes();
+            attributes.putValue("SHA-256-Digest", "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=");
+            if (name.endsWith(".java")) {
+                attributes.putValue("Content-Type", "text/plain");
+            }
+            manifest.getEntries().put(name, attributes);
+        }
+
+        try (ZipFile inputZipFile = new ZipFile(inputZip);
+                ZipArchiveOutputStream zaos = new ZipArchiveOutputStream(signedJar)) {
+            zaos.putArchiveEntry(new ZipArchiveEntry(JarFile.MANIFEST_NAME));
+            manifest.write(zaos);
+            zaos.closeArchiveEntry();
+            for (String name : SIGNATURE_FILES) {
+                zaos.putArchiveEntry(new ZipArchiveEntry(name));
+                zaos.write(name.getBytes(StandardCharsets.UTF_8));
+                zaos.closeArchiveEntry();
+            }
+            zaos.putArchiveEntry(new ZipArchiveEntry("META-INF/maven/pom.xml"));
+            zaos.write("<project/>".getBytes(StandardCharsets.UTF_8));
+            zaos.closeArchiveEntry();
+            for (String name : names) {
+                zaos.putArchiveEntry(new ZipArchiveEntry(name));
+                zaos.write(readEntry(inputZipFile, name, false));
+                zaos.closeArchiveEntry();
+            }
+        }
+
+        return signedJar;
+    }
+
+    private File copyResourceToTempDir(String path) throws Exception {
+        ClassLoader cl = ClassLoader.getSystemClassLoader();
+        URL url = cl.getResource(path);
+        Validate.isTrue(url != null);
+
+        File file = new File(tempDir, path);
+        FileUtils.copyURLToFile(url, file);
+        return file;
+    }
+
+    private byte[] readEntry(ZipFile zipFile, String name, boolean raw) throws Exception {
+        ZipArchiveEntry entry = zipFile.getEntry(name);
+        Validate.isTrue(entry != null);
+        try (InputStream is = raw ? zipFile.getRawInputStream(entry) : zipFile.getInputStream(entry)) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+}
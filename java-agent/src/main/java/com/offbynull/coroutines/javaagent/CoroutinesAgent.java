@@ -25,6 +25,7 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.Arrays;
+import java.util.Collections;
 
 /**
  * Java Agent that instruments coroutines.
@@ -41,8 +42,10 @@ public final class CoroutinesAgent {
      * @param agentArgs args passed in to agent
      * @param inst instrumentation for agent
      * @throws NullPointerException if {@code inst} is {@code null}
-     * @throws IllegalArgumentException if {@code agentArgs} is present but not in the format {@code markerType,debugMode}, or if the passed
-     * in arguments were not parseable (debugMode must be a boolean and markerType must be a member of {@link MarkerType})
+     * @throws IllegalArgumentException if {@code agentArgs} is present but not in the format
+     * {@code markerType,debugMode[,metricsMode[,outlineMode[,packedStorageMode[,preemptionMode]]]]}, or if the passed in arguments were
+     * not parseable (debugMode/metricsMode/outlineMode/packedStorageMode/preemptionMode must be booleans and markerType must be a member
+     * of {@link MarkerType})
      */
     public static void premain(String agentArgs, Instrumentation inst) {
         // How do agent args work? http://stackoverflow.com/questions/23287228/how-do-i-pass-arguments-to-a-java-instrumentation-agent
@@ -50,10 +53,15 @@ public final class CoroutinesAgent {
         
         MarkerType markerType = MarkerType.NONE;
         boolean debugMode = false;
+        boolean metricsMode = false;
+        boolean outlineMode = false;
+        boolean packedStorageMode = false;
+        boolean preemptionMode = false;
         if (agentArgs != null && !agentArgs.isEmpty()) {
             String[] splitArgs = agentArgs.split(",");
-            if (splitArgs.length != 2) {
-                throw new IllegalArgumentException("Expected argument format is: markerType,debugMode");
+            if (splitArgs.length < 2 || splitArgs.length > 6) {
+                throw new IllegalArgumentException("Expected argument format is: "
+                        + "markerType,debugMode[,metricsMode[,outlineMode[,packedStorageMode[,preemptionMode]]]]");
             }
             
             try {
@@ -63,30 +71,47 @@ public final class CoroutinesAgent {
                         + Arrays.toString(MarkerType.values()), iae);
             }
             
-            if (splitArgs[1].equalsIgnoreCase("true")) {
-                debugMode = true;
-            } else if (splitArgs[1].equalsIgnoreCase("false")) {
-                debugMode = false;
-            } else {
-                throw new IllegalArgumentException("Unable to parse debug mode -- must be true or false");
+            debugMode = parseMode(splitArgs[1], "debug mode");
+            if (splitArgs.length > 2) {
+                metricsMode = parseMode(splitArgs[2], "metrics mode");
+            }
+            if (splitArgs.length > 3) {
+                outlineMode = parseMode(splitArgs[3], "outline mode");
+            }
+            if (splitArgs.length > 4) {
+                packedStorageMode = parseMode(splitArgs[4], "packed storage mode");
+            }
+            if (splitArgs.length > 5) {
+                preemptionMode = parseMode(splitArgs[5], "preemption mode");
             }
-            
         }
         
-        inst.addTransformer(new CoroutinesClassFileTransformer(markerType, debugMode));
+        // Classes are handed to the agent one at a time as they're loaded, so there's no way to run a whole-program analysis to find
+        // methods that never suspend (see SuspendAnalyzer). Every invocation of a method that takes in a Continuation is instrumented.
+        InstrumentationSettings settings = new InstrumentationSettings(markerType, debugMode, metricsMode, outlineMode,
+                packedStorageMode, preemptionMode, Collections.emptySet());
+        inst.addTransformer(new CoroutinesClassFileTransformer(settings));
+    }
+
+    private static boolean parseMode(String value, String name) {
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        } else if (value.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("Unable to parse " + name + " -- must be true or false");
+        }
     }
     
     private static final class CoroutinesClassFileTransformer implements ClassFileTransformer {
-        private final MarkerType markerType;
-        private final boolean debugMode;
+        private final InstrumentationSettings settings;
 
-        CoroutinesClassFileTransformer(MarkerType markerType, boolean debugMode) {
-            if (markerType == null) {
+        CoroutinesClassFileTransformer(InstrumentationSettings settings) {
+            if (settings == null) {
                 throw new NullPointerException();
             }
 
-            this.markerType = markerType;
-            this.debugMode = debugMode;
+            this.settings = settings;
         }
 
         @Override
@@ -112,9 +137,7 @@ public final class CoroutinesAgent {
             
             try {
                 Instrumenter instrumenter = new Instrumenter(new ClassResourceClassInformationRepository(loader));
-                byte[] moddedClassfileBuffer = instrumenter.instrument(
-                        classfileBuffer,
-                        new InstrumentationSettings(markerType, debugMode));
+                byte[] moddedClassfileBuffer = instrumenter.instrument(classfileBuffer, settings);
                 return moddedClassfileBuffer;
             } catch (Throwable e) {
                 System.err.println("FAILED TO INSTRUMENT: " + e);
@@ -18,9 +18,14 @@ package com.offbynull.coroutines.mavenplugin;
 
 import com.offbynull.coroutines.instrumenter.InstrumentationSettings;
 import com.offbynull.coroutines.instrumenter.Instrumenter;
+import com.offbynull.coroutines.instrumenter.SuspendAnalyzer;
 import com.offbynull.coroutines.instrumenter.generators.DebugGenerators.MarkerType;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.plugin.AbstractMojo;
@@ -47,6 +52,21 @@ public abstract class AbstractInstrumentMojo extends AbstractMojo {
     @Parameter(property = "coroutines.debugMode", defaultValue = "false")
     private boolean debugMode;
 
+    @Parameter(property = "coroutines.metricsMode", defaultValue = "false")
+    private boolean metricsMode;
+
+    @Parameter(property = "coroutines.outlineMode", defaultValue = "false")
+    private boolean outlineMode;
+
+    @Parameter(property = "coroutines.packedStorageMode", defaultValue = "false")
+    private boolean packedStorageMode;
+
+    @Parameter(property = "coroutines.preemptionMode", defaultValue = "false")
+    private boolean preemptionMode;
+
+    @Parameter(property = "coroutines.suspendAnalysisMode", defaultValue = "false")
+    private boolean suspendAnalysisMode;
+
     /**
      * Instruments all classes in a path recursively.
      * @param log maven logger
@@ -58,9 +78,23 @@ public abstract class AbstractInstrumentMojo extends AbstractMojo {
             throws MojoExecutionException {
         try {
             Instrumenter instrumenter = getInstrumenter(log, classpath);
-            InstrumentationSettings settings = new InstrumentationSettings(markerType, debugMode);
+            Collection<File> classFiles = FileUtils.listFiles(path, new String[]{"class"}, true);
+
+            Set<String> nonSuspendingMethods = Collections.emptySet();
+            if (suspendAnalysisMode) {
+                log.info("Analyzing classes for methods that never suspend...");
+                List<byte[]> classes = new ArrayList<>();
+                for (File classFile : classFiles) {
+                    classes.add(FileUtils.readFileToByteArray(classFile));
+                }
+                nonSuspendingMethods = SuspendAnalyzer.findNonSuspendingMethods(classes, preemptionMode);
+                log.debug("Methods that never suspend: " + nonSuspendingMethods);
+            }
 
-            for (File classFile : FileUtils.listFiles(path, new String[]{"class"}, true)) {
+            InstrumentationSettings settings = new InstrumentationSettings(markerType, debugMode, metricsMode, outlineMode,
+                    packedStorageMode, preemptionMode, nonSuspendingMethods);
+
+            for (File classFile : classFiles) {
                 log.info("Instrumenting " + classFile);
                 byte[] input = FileUtils.readFileToByteArray(classFile);
                 byte[] output = instrumenter.instrument(input, settings);
@@ -126,4 +160,44 @@ public abstract class AbstractInstrumentMojo extends AbstractMojo {
         return debugMode;
     }
 
+    /**
+     * Get metrics mode.
+     * @return metrics mode
+     */
+    protected final boolean isMetricsMode() {
+        return metricsMode;
+    }
+
+    /**
+     * Get outline mode.
+     * @return outline mode
+     */
+    protected final boolean isOutlineMode() {
+        return outlineMode;
+    }
+
+    /**
+     * Get packed storage mode.
+     * @return packed storage mode
+     */
+    protected final boolean isPackedStorageMode() {
+        return packedStorageMode;
+    }
+
+    /**
+     * Get preemption mode.
+     * @return preemption mode
+     */
+    protected final boolean isPreemptionMode() {
+        return preemptionMode;
+    }
+
+    /**
+     * Get suspend analysis mode.
+     * @return suspend analysis mode
+     */
+    protected final boolean isSuspendAnalysisMode() {
+        return suspendAnalysisMode;
+    }
+
 }
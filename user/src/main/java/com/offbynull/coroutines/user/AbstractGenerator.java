@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.util.NoSuchElementException;
+
+// Iteration logic shared by Generator, IntGenerator, and LongGenerator. Each subclass only differs in which type of yield it accepts and
+// which slot in the Continuation it pulls yielded values out of.
+abstract class AbstractGenerator {
+    private final CoroutineRunner runner;
+    private final Continuation continuation;
+    private final int yieldType;
+    private boolean ready;
+    private boolean finished;
+
+    AbstractGenerator(CoroutineRunner runner, int yieldType) {
+        if (runner == null) {
+            throw new NullPointerException();
+        }
+        this.runner = runner;
+        this.continuation = runner.getContinuation();
+        this.yieldType = yieldType;
+    }
+
+    /**
+     * Check if the coroutine has another value. Resumes the coroutine if no value is pending.
+     * @return {@code true} if the coroutine yielded another value, {@code false} if the coroutine has finished
+     * @throws CoroutineException if the coroutine threw an exception
+     * @throws IllegalStateException if the coroutine yielded a value of the wrong type
+     */
+    public final boolean hasNext() {
+        if (ready || finished) {
+            return ready;
+        }
+
+        while (runner.execute()) {
+            int type = continuation.takeYieldType();
+            if (type == yieldType) {
+                ready = true;
+                return true;
+            } else if (type != Continuation.YIELD_NONE) {
+                throw new IllegalStateException("Coroutine yielded a value of the wrong type");
+            }
+        }
+
+        finished = true;
+        return false;
+    }
+
+    /**
+     * Cancels the coroutine (see {@link CoroutineRunner#cancel() }). Once cancelled, {@link #hasNext() } returns {@code false}.
+     * @throws CoroutineException if the coroutine threw an exception other than {@link CoroutineCancelledException} while unwinding
+     */
+    public final void cancel() {
+        finished = true;
+        ready = false;
+        runner.cancel();
+    }
+
+    // Called by subclasses before pulling the next value out of the continuation
+    final Continuation takeNext() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        return continuation;
+    }
+}
@@ -22,13 +22,16 @@ import java.io.Serializable;
  * This class is used to store and restore the execution state. Any method that takes in this type as a parameter will be instrumented to
  * have its state saved/restored.
  * <p>
- * Calls to {@link #suspend() } will suspend/yield the execution of the coroutine. Calls to {@link #setContext(java.lang.Object) } /
- * {@link #getContext() } can be used to pass data back and forth between the coroutine and its caller. <b>All other methods are for
- * internal use by the instrumentation logic and should not be used directly.</b>.
+ * Calls to {@link #suspend() } will suspend/yield the execution of the coroutine. Calls to {@link #yieldInt(int) },
+ * {@link #yieldLong(long) }, and {@link #yieldObject(java.lang.Object) } will do the same, but will also hand a value to the
+ * {@link IntGenerator}/{@link LongGenerator}/{@link Generator} running the coroutine. Calls to {@link #setContext(java.lang.Object) } /
+ * {@link #getContext() } can be used to pass data back and forth between the coroutine and its caller. Calls to {@link #isCancelled() } can
+ * be used to poll for cancellation. <b>All other methods are for internal use by the instrumentation logic and should not be used
+ * directly.</b>.
  * @author Kasra Faghihi
  */
 public final class Continuation implements Serializable {
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
     
     /**
      * Do not use -- for internal use only.
@@ -52,6 +55,41 @@ public final class Continuation implements Serializable {
     
     private int mode = MODE_NORMAL;
     private Object context;
+    private volatile boolean cancelled;
+
+    // Checkpoint tracking (used by SnapshotCodec for delta checkpoints). savedSize is the number of saved method states. cleanSize is the
+    // number of saved method states at the bottom of the list that haven't been replaced since the last checkpoint was taken.
+    private int savedSize;
+    private int cleanSize;
+    private long checkpointSequence;
+    private transient ThreadBackedExecution threadBackedExecution; // non-null if coroutine being run via thread instead of instrumentation
+    private transient OffHeapFrameStorage offHeapStorage; // non-null if primitive parts of saved method states get moved off-heap
+
+    // Non-null if saved method states are still being read in (see SnapshotCodec.readLazily()). Method states read so far are in the list
+    // starting from firstPointer, the last of them being lastReadPointer.
+    private transient FrameSource frameSource;
+    private transient MethodState lastReadPointer;
+
+    // Slots for values yielded via yieldInt()/yieldLong()/yieldObject(). These are reused between yields, so yielding doesn't allocate.
+    private transient int yieldType = YIELD_NONE;
+    private transient int yieldedInt;
+    private transient long yieldedLong;
+    private transient Object yieldedObject;
+    static final int YIELD_NONE = 0;
+    static final int YIELD_INT = 1;
+    static final int YIELD_LONG = 2;
+    static final int YIELD_OBJECT = 3;
+
+    // Time at which the method currently being restored started loading its state (see CoroutineMetrics). Only set if the code was
+    // instrumented with metrics mode turned on.
+    private transient long restoreStartTime;
+
+    // Number of loop iterations the coroutine gets per execution cycle before it's forced to suspend (0 means never). Only applies to code
+    // instrumented with preemption mode turned on. preemptionRemaining is what's left of the budget for the current execution cycle.
+    // preempted is set when the budget runs out -- the loop iteration that was cut off gets charged to the next execution cycle.
+    private int preemptionBudget;
+    private int preemptionRemaining;
+    private boolean preempted;
 
     // How should method states be handled? Imagine that we started off restoring the following call chain...
     // runA() <-- firstPointer[0]
@@ -153,17 +191,30 @@ public final class Continuation implements Serializable {
 
 
 
+    long getRestoreStartTime() {
+        return restoreStartTime;
+    }
+
+    void setRestoreStartTime(long restoreStartTime) {
+        this.restoreStartTime = restoreStartTime;
+    }
+
     /**
      * Do not use -- for internal use only.
      * @return n/a
      */
     public MethodState loadNextMethodState() {
+        // If method states are being read lazily, we may have loaded all the method states read so far
+        if (nextLoadPointer == null) {
+            nextLoadPointer = readNextMethodState();
+        }
+
         MethodState ret = nextLoadPointer;
         nextLoadPointer = nextLoadPointer.getNext();
         
         // We've reached the end of load list, so set up the 'unload' list that gets called when a method continues execution from the point
         // where it's paused it.
-        if (nextLoadPointer == null) {
+        if (nextLoadPointer == null && frameSource == null) {
             nextUnloadPointer = ret;
         }
         
@@ -207,11 +258,21 @@ public final class Continuation implements Serializable {
      * Do not use -- for internal use only.
      */
     public void reset() {
+        frameSource = null;
+        lastReadPointer = null;
         firstPointer = null;
         nextLoadPointer = null;
         nextUnloadPointer = null;
         firstCutpointPointer = null;
         mode = MODE_NORMAL;
+        cancelled = false;
+        savedSize = 0;
+        cleanSize = 0;
+        preemptionRemaining = preemptionBudget;
+        preempted = false;
+        if (offHeapStorage != null) {
+            offHeapStorage.clear();
+        }
     }
 
     /**
@@ -220,15 +281,30 @@ public final class Continuation implements Serializable {
     public void successExecutionCycle() {
         // FOR A PRIMER ON WHAT WE'RE DOING HERE, SEE LARGE BLOCK OF COMMENT AT BEGINNING OF CLASS
 
+        // Method states up to and including nextUnloadPointer were kept as-is, everything after it is new. Number the new ones so that we
+        // can figure out how many are kept as-is next time around without having to walk the list.
+        int retainedSize;
         if (nextUnloadPointer != null) {
             nextUnloadPointer.setNext(firstCutpointPointer);
+            retainedSize = nextUnloadPointer.getIndex() + 1;
         } else {
             firstPointer = firstCutpointPointer;
+            retainedSize = 0;
+        }
+        savedSize = retainedSize;
+        for (MethodState ms = firstCutpointPointer; ms != null; ms = ms.getNext()) {
+            ms.setIndex(savedSize);
+            savedSize++;
+        }
+        if (retainedSize < cleanSize) {
+            cleanSize = retainedSize;
         }
         
         nextLoadPointer = firstPointer;     // reset next load pointer so we load from the beginning
         nextUnloadPointer = null;           // reset unload pointer
         firstCutpointPointer = null;        // reset cutpoint list
+        preemptionRemaining = preempted ? preemptionBudget - 1 : preemptionBudget; // iteration that got cut off runs on next cycle
+        preempted = false;
     }
 
     /**
@@ -240,6 +316,8 @@ public final class Continuation implements Serializable {
         nextLoadPointer = firstPointer;     // reset next load pointer so we load from the beginning
         nextUnloadPointer = null;           // reset unload pointer
         firstCutpointPointer = null;        // reset cutpoint list
+        preemptionRemaining = preemptionBudget;
+        preempted = false;
     }
 
     
@@ -250,10 +328,322 @@ public final class Continuation implements Serializable {
     
     /**
      * Call to suspend/yield execution.
-     * @throws UnsupportedOperationException if the caller has not been instrumented
+     * @throws UnsupportedOperationException if the caller has not been instrumented (and the coroutine isn't being run in
+     * {@link CoroutineRunner#EXECUTION_MODE_THREAD} mode)
+     * @throws CoroutineCancelledException if the coroutine has been cancelled (only thrown from here when the coroutine is being run in
+     * {@link CoroutineRunner#EXECUTION_MODE_THREAD} mode -- instrumented code checks for cancellation itself)
      */
     public void suspend() {
-        throw new UnsupportedOperationException("Caller not instrumented");
+        if (threadBackedExecution == null) {
+            throw new UnsupportedOperationException("Caller not instrumented");
+        }
+        threadBackedExecution.suspend();
+    }
+
+    /**
+     * Call to suspend/yield execution while handing an {@code int} to the {@link IntGenerator} running this coroutine. No boxing or
+     * allocation takes place.
+     * <p>
+     * The instrumenter turns calls to this method in to a call to {@link #offerInt(int) } followed by {@link #suspend() }.
+     * @param value value to yield
+     * @throws UnsupportedOperationException if the caller has not been instrumented (see {@link #suspend() })
+     */
+    public void yieldInt(int value) {
+        offerInt(value).suspend();
+    }
+
+    /**
+     * Call to suspend/yield execution while handing a {@code long} to the {@link LongGenerator} running this coroutine. No boxing or
+     * allocation takes place.
+     * <p>
+     * The instrumenter turns calls to this method in to a call to {@link #offerLong(long) } followed by {@link #suspend() }.
+     * @param value value to yield
+     * @throws UnsupportedOperationException if the caller has not been instrumented (see {@link #suspend() })
+     */
+    public void yieldLong(long value) {
+        offerLong(value).suspend();
+    }
+
+    /**
+     * Call to suspend/yield execution while handing an object to the {@link Generator} running this coroutine.
+     * <p>
+     * The instrumenter turns calls to this method in to a call to {@link #offerObject(java.lang.Object) } followed by {@link #suspend() }.
+     * @param value value to yield
+     * @throws UnsupportedOperationException if the caller has not been instrumented (see {@link #suspend() })
+     */
+    public void yieldObject(Object value) {
+        offerObject(value).suspend();
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param value n/a
+     * @return n/a
+     */
+    public Continuation offerInt(int value) {
+        yieldType = YIELD_INT;
+        yieldedInt = value;
+        return this;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param value n/a
+     * @return n/a
+     */
+    public Continuation offerLong(long value) {
+        yieldType = YIELD_LONG;
+        yieldedLong = value;
+        return this;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param value n/a
+     * @return n/a
+     */
+    public Continuation offerObject(Object value) {
+        yieldType = YIELD_OBJECT;
+        yieldedObject = value;
+        return this;
+    }
+
+    // Returns the type of value yielded since the last call to this method (YIELD_NONE if coroutine suspended without yielding a value).
+    int takeYieldType() {
+        int ret = yieldType;
+        yieldType = YIELD_NONE;
+        return ret;
+    }
+
+    int getYieldedInt() {
+        return yieldedInt;
+    }
+
+    long getYieldedLong() {
+        return yieldedLong;
+    }
+
+    Object takeYieldedObject() {
+        Object ret = yieldedObject;
+        yieldedObject = null; // don't hold on to the object once it's been handed off
+        return ret;
+    }
+
+    /**
+     * Check if the coroutine has been cancelled (see {@link CoroutineRunner#cancel() }). Cancellation is detected automatically at
+     * suspension points, but long-running stretches of code that don't suspend can use this method to check for cancellation themselves.
+     * @return {@code true} if the coroutine has been cancelled, {@code false} otherwise
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * <p>
+     * Called by instrumented code at suspension points (both when suspending and when resuming).
+     * @throws CoroutineCancelledException if the coroutine has been cancelled
+     */
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CoroutineCancelledException();
+        }
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * <p>
+     * Called by instrumented code on loop back-edges (only if the code was instrumented with preemption mode turned on). Each call uses
+     * up one unit of the preemption budget (see {@link CoroutineRunner#setPreemptionBudget(int) }).
+     * @return {@code true} if the preemption budget has run out and the caller should suspend, {@code false} otherwise
+     */
+    public boolean checkPreemption() {
+        if (preemptionBudget == 0) {
+            return false;
+        }
+        if (preemptionRemaining > 0) {
+            preemptionRemaining--;
+            return false;
+        }
+        preempted = true;
+        return true;
+    }
+
+    int getPreemptionBudget() {
+        return preemptionBudget;
+    }
+
+    void setPreemptionBudget(int preemptionBudget) {
+        this.preemptionBudget = preemptionBudget;
+        this.preemptionRemaining = preemptionBudget;
+        this.preempted = false;
+    }
+
+    void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    // Used by SnapshotCodec to walk the saved method states
+    MethodState getFirstSaved() {
+        readRemainingMethodStates();
+        return firstPointer;
+    }
+
+    // Used by SnapshotCodec to restore saved method states in to a continuation -- restored method states count as being clean
+    void restoreSaved(MethodState first, int mode, long checkpointSequence) {
+        frameSource = null;
+        lastReadPointer = null;
+        firstPointer = first;
+        nextLoadPointer = first;
+        nextUnloadPointer = null;
+        firstCutpointPointer = null;
+        this.mode = mode;
+        this.checkpointSequence = checkpointSequence;
+
+        savedSize = 0;
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            ms.setIndex(savedSize);
+            savedSize++;
+        }
+        cleanSize = savedSize;
+    }
+
+    // Used by SnapshotCodec to restore saved method states in to a continuation lazily -- method states are read from the source as
+    // they're needed. Restored method states count as being clean.
+    void restoreSaved(FrameSource frameSource, int mode, long checkpointSequence) {
+        restoreSaved((MethodState) null, mode, checkpointSequence);
+        if (frameSource.remaining() > 0) {
+            this.frameSource = frameSource;
+            savedSize = frameSource.remaining();
+            cleanSize = savedSize;
+        }
+    }
+
+    private MethodState readNextMethodState() {
+        MethodState ms = frameSource.next();
+        if (lastReadPointer == null) {
+            ms.setIndex(0);
+            firstPointer = ms;
+        } else {
+            ms.setIndex(lastReadPointer.getIndex() + 1);
+            lastReadPointer.setNext(ms);
+        }
+        lastReadPointer = ms;
+
+        if (frameSource.remaining() == 0) {
+            frameSource = null;
+            lastReadPointer = null;
+        }
+        return ms;
+    }
+
+    private void readRemainingMethodStates() {
+        while (frameSource != null) {
+            readNextMethodState();
+        }
+    }
+
+    // Used by SnapshotCodec -- number of saved method states
+    int getSavedSize() {
+        return savedSize;
+    }
+
+    // Used by SnapshotCodec -- number of saved method states (starting from the first) that haven't changed since the last checkpoint
+    int getCleanSize() {
+        return cleanSize;
+    }
+
+    // Used by SnapshotCodec -- id of the last checkpoint taken
+    long getCheckpointSequence() {
+        return checkpointSequence;
+    }
+
+    // Used by SnapshotCodec -- marks all saved method states as clean and moves on to the next checkpoint id
+    void markCheckpoint() {
+        cleanSize = savedSize;
+        checkpointSequence++;
+    }
+
+    // Used by CoroutineRunner -- copies this continuation (must not be in the middle of an execution cycle). Saved method states are copied
+    // such that the copy can be executed independently of this one, see MethodState.fork().
+    Continuation fork() {
+        readRemainingMethodStates();
+
+        Continuation ret = new Continuation();
+        MethodState last = null;
+        for (MethodState ms = firstPointer; ms != null; ms = ms.getNext()) {
+            MethodState copy = ms.fork(this, ret);
+            if (last == null) {
+                ret.firstPointer = copy;
+            } else {
+                last.setNext(copy);
+            }
+            last = copy;
+        }
+        ret.nextLoadPointer = ret.firstPointer;
+
+        ret.mode = mode;
+        ret.context = context;
+        ret.cancelled = cancelled;
+        ret.savedSize = savedSize;
+        ret.cleanSize = cleanSize; // same frames as this continuation, so deltas from either are relative to the same last checkpoint
+        ret.checkpointSequence = checkpointSequence;
+        ret.preemptionBudget = preemptionBudget;
+        ret.preemptionRemaining = preemptionRemaining;
+        ret.preempted = preempted;
+
+        if (offHeapStorage != null) {
+            ret.offHeapStorage = new OffHeapFrameStorage(OffHeapFrameStorage.DEFAULT_INITIAL_CAPACITY);
+            ret.offHeapStorage.moveOffHeap(ret.firstPointer);
+        }
+
+        return ret;
+    }
+
+    // Used by CoroutineRunner -- null to keep saved method states entirely on the heap
+    void setOffHeapStorage(OffHeapFrameStorage offHeapStorage) {
+        readRemainingMethodStates();
+        if (this.offHeapStorage != null) {
+            this.offHeapStorage.moveOnHeap(firstPointer);
+        }
+        this.offHeapStorage = offHeapStorage;
+    }
+
+    OffHeapFrameStorage getOffHeapStorage() {
+        return offHeapStorage;
+    }
+
+    // Used by CoroutineRunner once the coroutine suspends -- moves the primitive parts of saved method states that are on the heap (new
+    // method states and method states that were moved back on to the heap when they were loaded) off-heap
+    void moveSavedOffHeap() {
+        if (offHeapStorage != null) {
+            offHeapStorage.moveOffHeap(firstPointer);
+        }
+    }
+
+    void setThreadBackedExecution(ThreadBackedExecution threadBackedExecution) {
+        this.threadBackedExecution = threadBackedExecution;
+    }
+
+    /**
+     * Get the approximate size of the state saved by this coroutine at its last suspension (see {@link StateSize}). The cost of this method
+     * is proportional to the number of saved method frames. Frames that haven't been read in yet from a lazily read snapshot stay unread
+     * (see {@link SnapshotCodec#readLazily(java.io.DataInput) }).
+     * @return approximate size of saved state (all zeros if the coroutine isn't suspended, or if the coroutine is being run in
+     * {@link CoroutineRunner#EXECUTION_MODE_THREAD} mode)
+     */
+    public StateSize getStateSize() {
+        StateSize size = new StateSize();
+        for (MethodState ms = firstPointer; ms != null; ms = ms.getNext()) {
+            ms.addStateSize(size);
+        }
+        if (frameSource != null) {
+            size.addUnreadFrames(frameSource.remaining(), frameSource.remainingBytes());
+        }
+        if (size.getFrameCount() > 0 && context != null) {
+            size.addObjects(1);
+        }
+        return size;
     }
 
     /**
@@ -289,6 +679,7 @@ public final class Continuation implements Serializable {
             throw new IllegalArgumentException();
         }
 
+        readRemainingMethodStates();
         MethodState state = firstPointer;
         for (int i = 0; i < idx; i++) {
             state = state.getNext();
@@ -304,6 +695,7 @@ public final class Continuation implements Serializable {
      * @return n/a
      */
     public int getSize() {
+        readRemainingMethodStates();
         int ret = 0;
         MethodState state = firstPointer;
         while (state != null) {
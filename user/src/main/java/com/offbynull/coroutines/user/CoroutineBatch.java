@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+/**
+ * Executes a group of {@link CoroutineRunner}s in a single pass, sorting each runner in to a finished, suspended, or failed bucket.
+ * Intended for schedulers that step a large number of coroutines per tick.
+ * <p>
+ * The output buffers held by this class are reused between calls to {@link #execute(CoroutineRunner[], int, int) } (they only grow if a
+ * batch is larger than any batch that came before it), so no per-runner allocations are made by this class. Exceptions thrown by a
+ * coroutine are recorded as-is in to the failed bucket rather than being wrapped in a {@link CoroutineException}.
+ * <p>
+ * The contents of the output buffers are only valid up until the next call to {@link #execute(CoroutineRunner[], int, int) }. Slots past
+ * the count of each bucket may hold stale references from previous batches, use {@link #clear() } if that's a problem.
+ * <p>
+ * This class is not thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class CoroutineBatch {
+    private CoroutineRunner[] finished;
+    private int finishedCount;
+    private CoroutineRunner[] suspended;
+    private int suspendedCount;
+    private CoroutineRunner[] failed;
+    private Exception[] failures;
+    private int failedCount;
+
+    /**
+     * Constructs a {@link CoroutineBatch} object.
+     * @param initialCapacity initial capacity of each output buffer
+     * @throws IllegalArgumentException if {@code initialCapacity} is negative
+     */
+    public CoroutineBatch(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException();
+        }
+        finished = new CoroutineRunner[initialCapacity];
+        suspended = new CoroutineRunner[initialCapacity];
+        failed = new CoroutineRunner[initialCapacity];
+        failures = new Exception[initialCapacity];
+    }
+
+    /**
+     * Executes all runners in an array. Equivalent to calling {@code execute(runners, 0, runners.length)}.
+     * @param runners runners to execute
+     * @return number of runners that suspended
+     * @throws NullPointerException if any argument is {@code null} or contains {@code null}
+     */
+    public int execute(CoroutineRunner[] runners) {
+        return execute(runners, 0, runners.length);
+    }
+
+    /**
+     * Executes a range of runners in an array. The array is treated as a ring buffer, meaning that if {@code offset + length} goes past the
+     * end of the array, execution wraps around to the beginning of the array.
+     * <p>
+     * Each runner has {@link CoroutineRunner#execute() } invoked on it exactly once. Once this method returns, runners that suspended are
+     * available via {@link #getSuspended() }, runners that finished are available via {@link #getFinished() }, and runners that threw an
+     * exception are available via {@link #getFailed() } (the exception thrown by each failed runner is at the same index in
+     * {@link #getFailures() }).
+     * @param runners runners to execute
+     * @param offset index of first runner in {@code runners} to execute
+     * @param length number of runners to execute
+     * @return number of runners that suspended
+     * @throws NullPointerException if any argument is {@code null} or any of the runners being executed are {@code null} (checked before
+     * any runner gets executed)
+     * @throws IllegalArgumentException if {@code offset} is not a valid index in to {@code runners} (ignored if {@code length} is 0), or if
+     * {@code length} is negative or larger than {@code runners.length}
+     */
+    public int execute(CoroutineRunner[] runners, int offset, int length) {
+        if (runners == null) {
+            throw new NullPointerException();
+        }
+        if (length < 0 || length > runners.length || (length > 0 && (offset < 0 || offset >= runners.length))) {
+            throw new IllegalArgumentException();
+        }
+
+        // Check for nulls up front -- a null runner would otherwise throw inside the loop below and get recorded as a failure
+        int idx = offset;
+        for (int i = 0; i < length; i++) {
+            if (runners[idx] == null) {
+                throw new NullPointerException();
+            }
+
+            idx++;
+            if (idx == runners.length) {
+                idx = 0;
+            }
+        }
+
+        ensureCapacity(length);
+
+        finishedCount = 0;
+        suspendedCount = 0;
+        failedCount = 0;
+
+        idx = offset;
+        for (int i = 0; i < length; i++) {
+            CoroutineRunner runner = runners[idx];
+            try {
+                if (runner.executeUnwrapped()) {
+                    suspended[suspendedCount++] = runner;
+                } else {
+                    finished[finishedCount++] = runner;
+                }
+            } catch (Exception e) {
+                failed[failedCount] = runner;
+                failures[failedCount] = e;
+                failedCount++;
+            }
+
+            idx++;
+            if (idx == runners.length) {
+                idx = 0;
+            }
+        }
+
+        return suspendedCount;
+    }
+
+    /**
+     * Clears out references held by the output buffers and resets the counts to 0.
+     */
+    public void clear() {
+        for (int i = 0; i < finished.length; i++) {
+            finished[i] = null;
+            suspended[i] = null;
+            failed[i] = null;
+            failures[i] = null;
+        }
+        finishedCount = 0;
+        suspendedCount = 0;
+        failedCount = 0;
+    }
+
+    /**
+     * Get the runners that finished executing during the last batch. Only the first {@link #getFinishedCount() } elements are valid.
+     * @return finished runners (the internal buffer, not a copy)
+     */
+    public CoroutineRunner[] getFinished() {
+        return finished;
+    }
+
+    /**
+     * Get the number of runners that finished executing during the last batch.
+     * @return number of finished runners
+     */
+    public int getFinishedCount() {
+        return finishedCount;
+    }
+
+    /**
+     * Get the runners that suspended during the last batch. Only the first {@link #getSuspendedCount() } elements are valid.
+     * @return suspended runners (the internal buffer, not a copy)
+     */
+    public CoroutineRunner[] getSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Get the number of runners that suspended during the last batch.
+     * @return number of suspended runners
+     */
+    public int getSuspendedCount() {
+        return suspendedCount;
+    }
+
+    /**
+     * Get the runners that threw an exception during the last batch. Only the first {@link #getFailedCount() } elements are valid. Like
+     * with {@link CoroutineRunner#execute() }, the saved execution stack and object state of a failed runner may be out of sync.
+     * @return failed runners (the internal buffer, not a copy)
+     */
+    public CoroutineRunner[] getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the exceptions thrown by the runners that failed during the last batch. The exception at each index corresponds to the runner at
+     * the same index in {@link #getFailed() }. Only the first {@link #getFailedCount() } elements are valid.
+     * @return exceptions thrown by failed runners (the internal buffer, not a copy)
+     */
+    public Exception[] getFailures() {
+        return failures;
+    }
+
+    /**
+     * Get the number of runners that threw an exception during the last batch.
+     * @return number of failed runners
+     */
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (finished.length >= capacity) {
+            return;
+        }
+
+        finished = new CoroutineRunner[capacity];
+        suspended = new CoroutineRunner[capacity];
+        failed = new CoroutineRunner[capacity];
+        failures = new Exception[capacity];
+    }
+}
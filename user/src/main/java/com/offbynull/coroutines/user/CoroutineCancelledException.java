@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+/**
+ * Thrown from the suspension points of a coroutine that has been cancelled via {@link CoroutineRunner#cancel() }. The purpose of this
+ * exception is to unwind the coroutine through its {@code catch}/{@code finally} blocks, it should not be swallowed by the coroutine.
+ * <p>
+ * This exception is used for control flow, so it doesn't have a stack trace.
+ * @author Kasra Faghihi
+ */
+public final class CoroutineCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 4L;
+
+    CoroutineCancelledException() {
+        super("Coroutine cancelled");
+    }
+
+    /**
+     * Does nothing. Stack traces aren't captured for this exception type.
+     * @return this exception
+     */
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -21,7 +21,7 @@ package com.offbynull.coroutines.user;
  * @author Kasra Faghihi
  */
 public class CoroutineException extends RuntimeException {
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
     
     CoroutineException(String message, Throwable cause) {
         super(message, cause);
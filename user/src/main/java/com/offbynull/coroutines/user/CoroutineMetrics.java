@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Registry for the counters collected by code that's been instrumented with metrics mode turned on. Each instrumented method gets its own
+ * {@link MethodMetrics} (keyed by {@code <class name>.<method name><method descriptor>}), which counts how many times the method was
+ * freshly invoked, and how many times state was saved/restored at each of its continuation points (along with the number of bytes saved
+ * and how long each restore took).
+ * <p>
+ * Counters are updated without any global locking, so keeping metrics mode on in production is reasonable. Methods show up in this registry
+ * the first time they're invoked. Recording never throws -- if a method's class gets reloaded with more continuation points, its
+ * {@link MethodMetrics} grows to cover them.
+ * @author Kasra Faghihi
+ */
+public final class CoroutineMetrics {
+    private static final Object WRITE_LOCK = new Object();
+    // Copy-on-write (never modified once assigned), so lookups don't need to lock
+    private static volatile HashMap methodMetricsMap = new HashMap();
+
+    private CoroutineMetrics() {
+        // do nothing
+    }
+
+    /**
+     * Get the metrics for all instrumented methods that have been invoked so far, sorted by method id.
+     * @return metrics for invoked methods
+     */
+    public static MethodMetrics[] getMethodMetrics() {
+        TreeMap sorted = new TreeMap(methodMetricsMap);
+        return (MethodMetrics[]) sorted.values().toArray(new MethodMetrics[sorted.size()]);
+    }
+
+    /**
+     * Get the metrics for an instrumented method.
+     * @param methodId id of method ({@code <class name>.<method name><method descriptor>}, where the class name is in internal form --
+     * e.g. {@code com/mycompany/MyCoroutine.run(Lcom/offbynull/coroutines/user/Continuation;)V})
+     * @return metrics for method, or {@code null} if the method hasn't been invoked (or wasn't instrumented with metrics mode turned on)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static MethodMetrics getMethodMetrics(String methodId) {
+        if (methodId == null) {
+            throw new NullPointerException();
+        }
+        return (MethodMetrics) methodMetricsMap.get(methodId);
+    }
+
+    /**
+     * Discard all collected metrics.
+     */
+    public static void reset() {
+        synchronized (WRITE_LOCK) {
+            methodMetricsMap = new HashMap();
+        }
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param methodId n/a
+     * @param continuationPointCount n/a
+     */
+    public static void recordInvocation(String methodId, int continuationPointCount) {
+        lookup(methodId, continuationPointCount).recordInvocation();
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param methodState n/a
+     * @param methodId n/a
+     * @param continuationPointCount n/a
+     * @return n/a
+     */
+    public static MethodState recordSave(MethodState methodState, String methodId, int continuationPointCount) {
+        lookup(methodId, continuationPointCount).recordSave(methodState.getContinuationPoint(), methodState.getTotalBytes());
+        return methodState;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param continuation n/a
+     * @param nanoTime n/a
+     */
+    public static void recordRestoreStart(Continuation continuation, long nanoTime) {
+        continuation.setRestoreStartTime(nanoTime);
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * @param continuation n/a
+     * @param methodId n/a
+     * @param continuationPointCount n/a
+     * @param continuationPoint n/a
+     * @param nanoTime n/a
+     */
+    public static void recordRestore(Continuation continuation, String methodId, int continuationPointCount, int continuationPoint,
+            long nanoTime) {
+        long duration = nanoTime - continuation.getRestoreStartTime();
+        lookup(methodId, continuationPointCount).recordRestore(continuationPoint, duration < 0L ? 0L : duration);
+    }
+
+    private static MethodMetrics lookup(String methodId, int continuationPointCount) {
+        MethodMetrics methodMetrics = (MethodMetrics) methodMetricsMap.get(methodId);
+        if (methodMetrics != null) {
+            if (methodMetrics.getContinuationPointCount() < continuationPointCount) {
+                methodMetrics.ensureContinuationPointCount(continuationPointCount); // e.g. class reloaded after being changed
+            }
+            return methodMetrics;
+        }
+
+        synchronized (WRITE_LOCK) {
+            methodMetrics = (MethodMetrics) methodMetricsMap.get(methodId);
+            if (methodMetrics == null) {
+                methodMetrics = new MethodMetrics(methodId, continuationPointCount);
+                HashMap newMethodMetricsMap = new HashMap(methodMetricsMap);
+                newMethodMetricsMap.put(methodId, methodMetrics);
+                methodMetricsMap = newMethodMetricsMap;
+            }
+            return methodMetrics;
+        }
+    }
+}
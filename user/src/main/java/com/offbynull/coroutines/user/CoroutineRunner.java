@@ -16,6 +16,9 @@
  */
 package com.offbynull.coroutines.user;
 
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -23,10 +26,47 @@ import java.io.Serializable;
  * @author Kasra Faghihi
  */
 public final class CoroutineRunner implements Serializable {
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
     
+    /**
+     * Execution mode where the coroutine is run on the calling thread and suspended/resumed via bytecode instrumentation. This is the
+     * default execution mode.
+     */
+    public static final int EXECUTION_MODE_INSTRUMENTED = 0;
+    /**
+     * Execution mode where the coroutine is run on a thread of its own, and calls to {@link Continuation#suspend() } park that thread and
+     * hand control back to the thread that called {@link #execute() }. Only one of the two threads runs at any given time. The coroutine
+     * runs on a virtual thread if the JVM supports them (Java 21+), otherwise it runs on a platform daemon thread.
+     * <p>
+     * This mode is intended as a fallback for code that can't be instrumented (e.g. code that suspends from within a lambda) and as a
+     * baseline to compare instrumentation against. The coroutine's classes must NOT be instrumented when running in this mode. A runner in
+     * this mode can't be serialized.
+     * <p>
+     * While the coroutine is suspended, its thread stays parked. A runner in this mode must either be executed until the coroutine finishes
+     * or be closed (see {@link #close() } -- once the coroutine unwinds, its thread exits). A runner that gets dropped while suspended
+     * without being closed keeps its thread parked forever.
+     */
+    public static final int EXECUTION_MODE_THREAD = 1;
+
+    /**
+     * Result code returned by {@link #tryExecute() } when the coroutine finished executing.
+     */
+    public static final int RESULT_FINISHED = 0;
+    /**
+     * Result code returned by {@link #tryExecute() } when the coroutine suspended.
+     */
+    public static final int RESULT_SUSPENDED = 1;
+    /**
+     * Result code returned by {@link #tryExecute() } when the coroutine threw an exception.
+     */
+    public static final int RESULT_FAILED = 2;
+
     private Coroutine coroutine;
     private Continuation continuation = new Continuation();
+    private boolean failureStackTraceEnabled = true;
+    private transient Exception failure;
+    private transient ThreadBackedExecution threadBackedExecution; // non-null if in EXECUTION_MODE_THREAD
+    private transient volatile Thread ownerThread; // thread that last executed this runner -- see cancel()
 
     /**
      * Constructs a {@link CoroutineRunner} object.
@@ -34,10 +74,41 @@ public final class CoroutineRunner implements Serializable {
      * @throws NullPointerException if any argument is {@code null}
      */
     public CoroutineRunner(Coroutine coroutine) {
+        this(coroutine, EXECUTION_MODE_INSTRUMENTED);
+    }
+
+    /**
+     * Constructs a {@link CoroutineRunner} object.
+     * @param coroutine coroutine to run
+     * @param executionMode either {@link #EXECUTION_MODE_INSTRUMENTED} or {@link #EXECUTION_MODE_THREAD}
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code executionMode} isn't recognized
+     */
+    public CoroutineRunner(Coroutine coroutine, int executionMode) {
         if (coroutine == null) {
             throw new NullPointerException();
         }
         this.coroutine = coroutine;
+
+        switch (executionMode) {
+            case EXECUTION_MODE_INSTRUMENTED:
+                break;
+            case EXECUTION_MODE_THREAD:
+                threadBackedExecution = new ThreadBackedExecution(coroutine, continuation);
+                continuation.setThreadBackedExecution(threadBackedExecution);
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    // Used by SnapshotCodec to create a runner around a restored continuation
+    CoroutineRunner(Coroutine coroutine, Continuation continuation) {
+        if (coroutine == null || continuation == null) {
+            throw new NullPointerException();
+        }
+        this.coroutine = coroutine;
+        this.continuation = continuation;
     }
 
     /**
@@ -53,23 +124,297 @@ public final class CoroutineRunner implements Serializable {
      */
     public boolean execute() {
         try {
+            return executeUnwrapped();
+        } catch (Exception e) {
+            if (failureStackTraceEnabled) {
+                throw new CoroutineException("Exception thrown during execution", e);
+            } else {
+                throw new StacklessCoroutineException("Exception thrown during execution", e);
+            }
+        }
+    }
+
+    /**
+     * Starts/resumes execution of this coroutine, returning a result code instead of throwing. Behaves the same as {@link #execute() },
+     * except that if the coroutine throws an exception, that exception isn't wrapped in a {@link CoroutineException} and thrown. Instead,
+     * {@link #RESULT_FAILED} is returned and the original exception is made available via {@link #getFailure() }.
+     * <p>
+     * This is the cheapest way to execute coroutines that routinely end by throwing an exception, because no wrapper exception (and no
+     * wrapper stack trace) gets created.
+     * @return {@link #RESULT_SUSPENDED} if execution was suspended, {@link #RESULT_FINISHED} if execution has completed, or
+     * {@link #RESULT_FAILED} if an exception occurred during execution of this coroutine (the saved execution stack and object state may be
+     * out of sync at this point, see {@link #execute() })
+     */
+    public int tryExecute() {
+        failure = null;
+        try {
+            return executeUnwrapped() ? RESULT_SUSPENDED : RESULT_FINISHED;
+        } catch (Exception e) {
+            failure = e;
+            return RESULT_FAILED;
+        }
+    }
+
+    /**
+     * Get the exception thrown by the coroutine during the last invocation of {@link #tryExecute() }.
+     * @return exception thrown by the coroutine, or {@code null} if the last invocation of {@link #tryExecute() } didn't return
+     * {@link #RESULT_FAILED}
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Set whether or not the {@link CoroutineException}s thrown by {@link #execute() } have their stack traces filled in. Filling in the
+     * stack trace of the wrapper exception is expensive and usually redundant (the exception thrown by the coroutine is available as the
+     * cause, with its own stack trace intact). Defaults to {@code true}.
+     * @param failureStackTraceEnabled {@code false} to throw {@link CoroutineException}s without stack traces
+     */
+    public void setFailureStackTraceEnabled(boolean failureStackTraceEnabled) {
+        this.failureStackTraceEnabled = failureStackTraceEnabled;
+    }
+
+    /**
+     * Get whether or not the {@link CoroutineException}s thrown by {@link #execute() } have their stack traces filled in.
+     * @return {@code true} if stack traces are filled in, {@code false} otherwise
+     * @see #setFailureStackTraceEnabled(boolean)
+     */
+    public boolean isFailureStackTraceEnabled() {
+        return failureStackTraceEnabled;
+    }
+
+    // Same as execute(), but exceptions thrown by the coroutine are passed through as-is instead of being wrapped in a CoroutineException.
+    // Used by tryExecute() and CoroutineBatch so that the per-runner overhead is as close as possible to calling the coroutine directly.
+    boolean executeUnwrapped() throws Exception {
+        Thread currentThread = Thread.currentThread();
+        if (ownerThread != currentThread) { // only write when it changes, volatile writes aren't free
+            ownerThread = currentThread;
+        }
+
+        try {
+            if (threadBackedExecution != null) {
+                if (threadBackedExecution.execute()) {
+                    return true;
+                }
+                continuation.reset();
+                return false;
+            }
+
             coroutine.run(continuation);
             continuation.successExecutionCycle();
         } catch (Exception e) {
+            // if the coroutine was cancelled and the cancellation exception made it all the way out, the coroutine is done
+            if (e instanceof CoroutineCancelledException && continuation.isCancelled()) {
+                continuation.reset();
+                return false;
+            }
             continuation.failedExecutionCycle();
-            throw new CoroutineException("Exception thrown during execution", e);
+            throw e;
         }
-        
+
         // if mode was not set to SAVING after return, it means the method finished executing
         if (continuation.getMode() != Continuation.MODE_SAVING) {
             continuation.reset(); // clear methodstates + set to normal
             return false;
         } else {
             continuation.setMode(Continuation.MODE_LOADING); // set to loading for next invokation
+            continuation.moveSavedOffHeap();
             return true;
         }
     }
 
+    /**
+     * Cancels this coroutine. Once cancelled, a coroutine can't make it past a suspension point: a {@link CoroutineCancelledException} gets
+     * thrown from that point instead, unwinding the coroutine through its {@code catch}/{@code finally} blocks and releasing any monitors
+     * it holds along the way.
+     * <p>
+     * Unlike the other methods of this class, this method can be called from any thread (e.g. a timer thread enforcing a timeout), even
+     * while the coroutine is executing. What happens depends on the thread it's called from:
+     * <ul>
+     * <li>If called from the thread that last executed this runner while the coroutine is suspended, this method resumes the coroutine so
+     * that it unwinds immediately on the calling thread.</li>
+     * <li>Otherwise, this method only flags the coroutine as cancelled and returns -- it never executes the coroutine. If the coroutine is
+     * suspended, it unwinds the next time it's executed (from the point at which it was suspended, {@link #execute() } returns
+     * {@code false}). If the coroutine is executing, it unwinds once it tries to suspend.</li>
+     * </ul>
+     * Either way, once the {@link CoroutineCancelledException} makes its way out of the coroutine, the coroutine is treated as having
+     * finished (its saved state is discarded and calling {@link #execute() } again restarts it).
+     * <p>
+     * Code within the coroutine can check for cancellation via {@link Continuation#isCancelled() }.
+     * @throws CoroutineException if the coroutine was resumed by this method and an exception other than the
+     * {@link CoroutineCancelledException} was thrown while it was unwinding
+     */
+    public void cancel() {
+        continuation.setCancelled(true);
+        if (ownerThread != Thread.currentThread()) {
+            return; // not the executing thread -- gets unwound by the executing thread on its next execute() / attempt to suspend
+        }
+        if (!isSuspended()) {
+            return; // not suspended -- gets unwound on next attempt to suspend
+        }
+
+        try {
+            execute(); // will finish, CoroutineCancelledException is thrown from the point at which the coroutine was suspended
+        } finally {
+            continuation.reset(); // just in case the coroutine caught and swallowed the exception and kept on going
+        }
+    }
+
+    /**
+     * Closes this runner. If the coroutine is suspended, it gets cancelled and resumed on the calling thread so that it unwinds right away
+     * (see {@link #cancel() }). Otherwise, this method does nothing.
+     * <p>
+     * Runners in {@link #EXECUTION_MODE_THREAD} must be closed if they're going to be dropped while their coroutine is suspended: the
+     * coroutine's thread stays parked until the coroutine is resumed, so unless it's closed, that thread never exits. Closing runners in
+     * {@link #EXECUTION_MODE_INSTRUMENTED} isn't required, but it still runs the coroutine's {@code catch}/{@code finally} blocks.
+     * <p>
+     * Unlike {@link #cancel() }, this method can be called from a thread other than the one that executed this runner. This runner must not
+     * be executing when this method is called. Calling {@link #execute() } after this method restarts the coroutine.
+     * @throws CoroutineException if an exception other than the {@link CoroutineCancelledException} was thrown while the coroutine was
+     * unwinding
+     */
+    public void close() {
+        if (!isSuspended()) {
+            return;
+        }
+
+        continuation.setCancelled(true);
+        try {
+            execute(); // will finish, CoroutineCancelledException is thrown from the point at which the coroutine was suspended
+        } finally {
+            continuation.reset(); // just in case the coroutine caught and swallowed the exception and kept on going
+        }
+    }
+
+    /**
+     * Forks this runner. The runner returned picks up from the same point as this runner, but the two can then be executed independently
+     * of each other (e.g. to explore different branches in a search from the same starting point). This is a structural copy of the saved
+     * execution stack, far cheaper than serializing and deserializing the runner.
+     * <p>
+     * Only the saved execution stack is copied -- the two runners share no saved frame state. The locals and operand stack values that
+     * don't change (the storage arrays) are shared until a runner moves on from that frame, at which point the frame gets replaced rather
+     * than modified. Objects referenced by the saved execution stack (including the coroutine itself and the context) are NOT copied: both
+     * runners refer to the same instances. Coroutines that need to fork should keep their mutable state in locals, or copy the objects
+     * they share themselves.
+     * <p>
+     * This runner must not be executing when this method is called. The runner returned has the same settings as this runner.
+     * @return forked runner
+     * @throws IllegalStateException if this runner is in {@link #EXECUTION_MODE_THREAD}
+     */
+    public CoroutineRunner fork() {
+        if (threadBackedExecution != null) {
+            throw new IllegalStateException("Runners in thread execution mode can't be forked");
+        }
+        CoroutineRunner ret = new CoroutineRunner(coroutine, continuation.fork());
+        ret.failureStackTraceEnabled = failureStackTraceEnabled;
+        return ret;
+    }
+
+    /**
+     * Set whether or not the primitive parts of this coroutine's saved state are kept off-heap while it's suspended. When enabled, the
+     * {@code int}/{@code float}/{@code long}/{@code double} locals and operand stack items of each suspended method get moved in to a block
+     * of native memory owned by this runner, and only object references stay on the heap. The block grows (and gets compacted) as needed.
+     * Defaults to {@code false}.
+     * <p>
+     * This is intended for programs that keep large numbers of suspended coroutines around with mostly numeric state (e.g. simulations):
+     * the heap stays small, so garbage collection has less to go through. Moving state off-heap and back costs a copy per suspend/resume.
+     * <p>
+     * Off-heap storage isn't serialized. Serializing a runner moves its saved state back on to the heap, and a deserialized runner has
+     * off-heap storage disabled.
+     * @param offHeapStorageEnabled {@code true} to keep primitive parts of saved state off-heap
+     */
+    public void setOffHeapStorageEnabled(boolean offHeapStorageEnabled) {
+        if (offHeapStorageEnabled == isOffHeapStorageEnabled()) {
+            return;
+        }
+        if (offHeapStorageEnabled) {
+            continuation.setOffHeapStorage(new OffHeapFrameStorage(OffHeapFrameStorage.DEFAULT_INITIAL_CAPACITY));
+            if (isSuspended()) {
+                continuation.moveSavedOffHeap();
+            }
+        } else {
+            continuation.setOffHeapStorage(null);
+        }
+    }
+
+    /**
+     * Get whether or not the primitive parts of this coroutine's saved state are kept off-heap while it's suspended.
+     * @return {@code true} if primitive parts of saved state are kept off-heap, {@code false} otherwise
+     * @see #setOffHeapStorageEnabled(boolean)
+     */
+    public boolean isOffHeapStorageEnabled() {
+        return continuation.getOffHeapStorage() != null;
+    }
+
+    /**
+     * Set the number of loop iterations this coroutine gets each time it's executed before it's forced to suspend. Only applies to
+     * coroutines instrumented with preemption mode turned on: each time a loop in a method that takes in a {@link Continuation} goes back
+     * around, one unit of the budget is used up. Once the budget runs out, the coroutine suspends as if it called
+     * {@link Continuation#suspend() } at the start of that loop iteration. The budget is refilled each time the coroutine suspends.
+     * Defaults to {@code 0}.
+     * <p>
+     * This stops coroutines that loop for long stretches without suspending from monopolizing the thread executing them.
+     * @param preemptionBudget number of loop iterations before being forced to suspend, or {@code 0} to never force a suspend
+     * @throws IllegalArgumentException if {@code preemptionBudget} is negative
+     */
+    public void setPreemptionBudget(int preemptionBudget) {
+        if (preemptionBudget < 0) {
+            throw new IllegalArgumentException("Negative preemption budget");
+        }
+        continuation.setPreemptionBudget(preemptionBudget);
+    }
+
+    /**
+     * Get the number of loop iterations this coroutine gets each time it's executed before it's forced to suspend.
+     * @return number of loop iterations before being forced to suspend, or {@code 0} if never forced to suspend
+     * @see #setPreemptionBudget(int)
+     */
+    public int getPreemptionBudget() {
+        return continuation.getPreemptionBudget();
+    }
+
+    /**
+     * Get the execution mode of this runner.
+     * @return either {@link #EXECUTION_MODE_INSTRUMENTED} or {@link #EXECUTION_MODE_THREAD}
+     */
+    public int getExecutionMode() {
+        return threadBackedExecution == null ? EXECUTION_MODE_INSTRUMENTED : EXECUTION_MODE_THREAD;
+    }
+
+    // Used by SnapshotCodec when applying a delta checkpoint
+    void setCoroutine(Coroutine coroutine) {
+        this.coroutine = coroutine;
+    }
+
+    Continuation getContinuation() {
+        return continuation;
+    }
+
+    private boolean isSuspended() {
+        if (threadBackedExecution != null) {
+            return threadBackedExecution.isSuspended();
+        }
+        return continuation.getMode() == Continuation.MODE_LOADING;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (threadBackedExecution != null) {
+            throw new NotSerializableException("Runners in thread execution mode can't be serialized");
+        }
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Get the approximate size of the state saved by this coroutine (see {@link StateSize}). Cheap enough to call after every
+     * {@link #execute() }, e.g. to enforce memory budgets or to decide which suspended coroutines to page out. The cost of this method is
+     * proportional to the number of saved method frames. This runner must not be executing when this method is called.
+     * @return approximate size of saved state (all zeros if the coroutine isn't suspended, or if this runner is in
+     * {@link #EXECUTION_MODE_THREAD})
+     */
+    public StateSize getStateSize() {
+        return continuation.getStateSize();
+    }
+
     /**
      * Get the context. Accessible via the {@link Continuation} object that gets used by this coroutine.
      * @return context context
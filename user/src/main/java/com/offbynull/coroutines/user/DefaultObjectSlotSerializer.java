@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+
+/**
+ * Default {@link ObjectSlotSerializer}. {@link String}s and boxed primitives (the bulk of what ends up in a typical method frame) are
+ * written out directly in a compact form. Everything else falls back to Java serialization -- all such objects are written to a single
+ * {@link ObjectOutputStream} so that class descriptors only get written once per snapshot and references between the objects are
+ * retained.
+ * @author Kasra Faghihi
+ */
+public final class DefaultObjectSlotSerializer implements ObjectSlotSerializer {
+    private static final int TAG_SERIALIZED = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_FLOAT = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_BOOLEAN = 6;
+    private static final int TAG_BYTE = 7;
+    private static final int TAG_SHORT = 8;
+    private static final int TAG_CHARACTER = 9;
+    
+    private final ClassLoader classLoader;
+
+    /**
+     * Constructs a {@link DefaultObjectSlotSerializer} object. Objects that fall back to Java serialization will be resolved using the
+     * default mechanism provided by {@link ObjectInputStream}.
+     */
+    public DefaultObjectSlotSerializer() {
+        this.classLoader = null;
+    }
+
+    /**
+     * Constructs a {@link DefaultObjectSlotSerializer} object.
+     * @param classLoader class loader to resolve classes of objects that fall back to Java serialization (tried after the default
+     * mechanism provided by {@link ObjectInputStream} fails)
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public DefaultObjectSlotSerializer(ClassLoader classLoader) {
+        if (classLoader == null) {
+            throw new NullPointerException();
+        }
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void writeObjects(Object[] objects, DataOutput out) throws IOException {
+        if (objects == null || out == null) {
+            throw new NullPointerException();
+        }
+
+        VarInts.writeUnsignedInt(out, objects.length);
+
+        ByteArrayOutputStream serializedBytes = null;
+        ObjectOutputStream serializedOut = null;
+        for (int i = 0; i < objects.length; i++) {
+            Object obj = objects[i];
+            if (obj instanceof String) {
+                out.writeByte(TAG_STRING);
+                byte[] data = ((String) obj).getBytes("UTF-8");
+                VarInts.writeUnsignedInt(out, data.length);
+                out.write(data);
+            } else if (obj instanceof Integer) {
+                out.writeByte(TAG_INTEGER);
+                VarInts.writeSignedInt(out, ((Integer) obj).intValue());
+            } else if (obj instanceof Long) {
+                out.writeByte(TAG_LONG);
+                VarInts.writeSignedLong(out, ((Long) obj).longValue());
+            } else if (obj instanceof Float) {
+                out.writeByte(TAG_FLOAT);
+                out.writeFloat(((Float) obj).floatValue());
+            } else if (obj instanceof Double) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble(((Double) obj).doubleValue());
+            } else if (obj instanceof Boolean) {
+                out.writeByte(TAG_BOOLEAN);
+                out.writeBoolean(((Boolean) obj).booleanValue());
+            } else if (obj instanceof Byte) {
+                out.writeByte(TAG_BYTE);
+                out.writeByte(((Byte) obj).byteValue());
+            } else if (obj instanceof Short) {
+                out.writeByte(TAG_SHORT);
+                out.writeShort(((Short) obj).shortValue());
+            } else if (obj instanceof Character) {
+                out.writeByte(TAG_CHARACTER);
+                out.writeChar(((Character) obj).charValue());
+            } else {
+                if (obj == null) {
+                    throw new NullPointerException();
+                }
+                out.writeByte(TAG_SERIALIZED);
+                if (serializedOut == null) {
+                    serializedBytes = new ByteArrayOutputStream();
+                    serializedOut = new ObjectOutputStream(serializedBytes);
+                }
+                serializedOut.writeObject(obj);
+            }
+        }
+
+        if (serializedOut == null) {
+            VarInts.writeUnsignedInt(out, 0);
+        } else {
+            serializedOut.close();
+            byte[] data = serializedBytes.toByteArray();
+            VarInts.writeUnsignedInt(out, data.length);
+            out.write(data);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object[] readObjects(DataInput in) throws IOException {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+
+        Object[] objects = new Object[VarInts.readLength(in)];
+        ArrayList serializedIndexes = new ArrayList();
+        for (int i = 0; i < objects.length; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case TAG_SERIALIZED: {
+                    serializedIndexes.add(new Integer(i));
+                    break;
+                }
+                case TAG_STRING: {
+                    byte[] data = new byte[VarInts.readLength(in)];
+                    in.readFully(data);
+                    objects[i] = new String(data, "UTF-8");
+                    break;
+                }
+                case TAG_INTEGER:
+                    objects[i] = new Integer(VarInts.readSignedInt(in));
+                    break;
+                case TAG_LONG:
+                    objects[i] = new Long(VarInts.readSignedLong(in));
+                    break;
+                case TAG_FLOAT:
+                    objects[i] = new Float(in.readFloat());
+                    break;
+                case TAG_DOUBLE:
+                    objects[i] = new Double(in.readDouble());
+                    break;
+                case TAG_BOOLEAN:
+                    objects[i] = in.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+                    break;
+                case TAG_BYTE:
+                    objects[i] = new Byte(in.readByte());
+                    break;
+                case TAG_SHORT:
+                    objects[i] = new Short(in.readShort());
+                    break;
+                case TAG_CHARACTER:
+                    objects[i] = new Character(in.readChar());
+                    break;
+                default:
+                    throw new IOException("Unrecognized object tag: " + tag);
+            }
+        }
+
+        byte[] data = new byte[VarInts.readLength(in)];
+        in.readFully(data);
+        if (!serializedIndexes.isEmpty()) {
+            ObjectInputStream serializedIn = new ClassLoaderObjectInputStream(new ByteArrayInputStream(data), classLoader);
+            try {
+                for (int i = 0; i < serializedIndexes.size(); i++) {
+                    int idx = ((Integer) serializedIndexes.get(i)).intValue();
+                    objects[idx] = serializedIn.readObject();
+                }
+            } catch (ClassNotFoundException cnfe) {
+                IOException ioe = new IOException("Unable to deserialize object");
+                ioe.initCause(cnfe);
+                throw ioe;
+            } finally {
+                serializedIn.close();
+            }
+        }
+
+        return objects;
+    }
+
+    private static final class ClassLoaderObjectInputStream extends ObjectInputStream {
+        private final ClassLoader classLoader;
+
+        ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        protected Class resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return super.resolveClass(desc);
+            } catch (ClassNotFoundException cnfe) {
+                if (classLoader == null) {
+                    throw cnfe;
+                }
+                return Class.forName(desc.getName(), false, classLoader);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+// Source of saved method states that haven't been read in to a continuation yet (see SnapshotCodec.readLazily()). The continuation pulls
+// method states from here one at a time, as they get loaded.
+interface FrameSource {
+    // Number of method states left
+    int remaining();
+
+    // Encoded size of the method states left, in bytes
+    long remainingBytes();
+
+    // Read the next method state -- throws IllegalStateException if it couldn't be read
+    MethodState next();
+}
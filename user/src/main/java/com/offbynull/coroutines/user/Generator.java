@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Pulls objects out of a coroutine, one at a time. Values are handed over by the coroutine via
+ * {@link Continuation#yieldObject(java.lang.Object) }, which suspends the coroutine. Each call to {@link #hasNext() } resumes the coroutine
+ * until it either yields its next value or finishes. Suspensions that don't yield a value (plain calls to
+ * {@link Continuation#suspend() }) are skipped over.
+ * <p>
+ * Values are passed through a slot in the {@link Continuation} that's reused between yields, so no boxing or other allocations take place
+ * per element.
+ * <p>
+ * Exceptions thrown by the coroutine are wrapped in a {@link CoroutineException} and thrown from {@link #hasNext() }. This class is not
+ * thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class Generator extends AbstractGenerator implements Iterator {
+    /**
+     * Constructs a {@link Generator} object.
+     * @param coroutine coroutine to pull values out of
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public Generator(Coroutine coroutine) {
+        this(new CoroutineRunner(coroutine));
+    }
+
+    /**
+     * Constructs a {@link Generator} object. Use this constructor if the runner needs to be configured in some way (e.g. to use a
+     * different execution mode). The runner must not have been started.
+     * @param runner runner of the coroutine to pull values out of
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public Generator(CoroutineRunner runner) {
+        super(runner, Continuation.YIELD_OBJECT);
+    }
+
+    /**
+     * Get the next value yielded by the coroutine.
+     * @return next value
+     * @throws NoSuchElementException if the coroutine has finished
+     * @throws CoroutineException if the coroutine threw an exception
+     * @throws IllegalStateException if the coroutine yielded a value of the wrong type
+     */
+    public Object next() {
+        return takeNext().takeYieldedObject();
+    }
+
+    /**
+     * Not supported.
+     * @throws UnsupportedOperationException always
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -27,7 +27,7 @@ import java.util.ListIterator;
  * @author Kasra Faghihi
  */
 public final class LockState implements Serializable {
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
 
     // We use a linkedlist to make sure that we retain the order of monitors as they come in. Otherwise we're going to deal with deadlock
     // issues if we have code structured with double locks. For example, imagine the following scenario...
@@ -93,6 +93,18 @@ public final class LockState implements Serializable {
         throw new IllegalArgumentException(); // not found
     }
     
+    // Used when computing state size -- number of monitors tracked
+    int size() {
+        return monitors.size();
+    }
+
+    // Used when forking -- copy tracks the same monitors (in the same order) but can be entered/exited independently of this one
+    LockState copy() {
+        LockState ret = new LockState();
+        ret.monitors.addAll(monitors);
+        return ret;
+    }
+
     /**
      * Dumps monitors out as an array. Order is retained.
      * @return monitors
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+/**
+ * Counters for an instrumented method (see {@link CoroutineMetrics}). Counters are live -- they continue to update as the method gets
+ * invoked/saved/restored.
+ * <p>
+ * Each counter is striped across slots (twice as many as there are processors, up to 64) so that threads running
+ * coroutines concurrently rarely contend on the same lock. Reading a counter sums up its stripes, so reads are more expensive than
+ * updates.
+ * <p>
+ * If the method shows up with more continuation points than it had before (e.g. its class was changed and reloaded), counters get added
+ * for the new continuation points. Counters for continuation points that were already there are kept, so they may include counts from
+ * both versions of the method.
+ * @author Kasra Faghihi
+ */
+public final class MethodMetrics {
+    /**
+     * Number of buckets in restore latency histograms (see {@link #getRestoreLatencyHistogram(int) }).
+     */
+    public static final int LATENCY_BUCKET_COUNT = 32;
+
+    private static final int MAX_STRIPE_COUNT = 64;
+
+    private static final int STRIPE_COUNT = computeStripeCount(Runtime.getRuntime().availableProcessors()); // always a power of 2
+
+    // Layout of each stripe: invocation count, followed by a block of counters for each continuation point
+    private static final int INVOCATIONS_IDX = 0;
+    private static final int SAVES_OFFSET = 0;
+    private static final int SAVED_BYTES_OFFSET = 1;
+    private static final int RESTORES_OFFSET = 2;
+    private static final int RESTORE_NANOS_OFFSET = 3;
+    private static final int LATENCY_BUCKETS_OFFSET = 4;
+    private static final int CONTINUATION_POINT_BLOCK_SIZE = LATENCY_BUCKETS_OFFSET + LATENCY_BUCKET_COUNT;
+
+    private final String methodId;
+    private volatile int continuationPointCount; // only ever grows, see ensureContinuationPointCount()
+    private final Object[] stripeLocks;
+    private final long[][] stripes; // each stripe is guarded by its lock, and gets replaced by a bigger copy if it needs to grow
+
+    MethodMetrics(String methodId, int continuationPointCount) {
+        if (methodId == null) {
+            throw new NullPointerException();
+        }
+        if (continuationPointCount < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.methodId = methodId;
+        this.continuationPointCount = continuationPointCount;
+        this.stripeLocks = new Object[STRIPE_COUNT];
+        this.stripes = new long[STRIPE_COUNT][1 + continuationPointCount * CONTINUATION_POINT_BLOCK_SIZE];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripeLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Get the id of the method these counters are for ({@code <class name>.<method name><method descriptor>}).
+     * @return method id
+     */
+    public String getMethodId() {
+        return methodId;
+    }
+
+    /**
+     * Get the number of continuation points in the method.
+     * @return number of continuation points
+     */
+    public int getContinuationPointCount() {
+        return continuationPointCount;
+    }
+
+    /**
+     * Get the number of times the method was freshly invoked (restores aren't included).
+     * @return number of fresh invocations
+     */
+    public long getInvocationCount() {
+        return sum(INVOCATIONS_IDX);
+    }
+
+    /**
+     * Get the number of times the method's state was saved at a continuation point. Method states that get kept as-is when a restored
+     * coroutine suspends again aren't counted.
+     * @param continuationPoint continuation point id
+     * @return number of saves
+     * @throws IllegalArgumentException if {@code continuationPoint} is out of bounds
+     */
+    public long getSaveCount(int continuationPoint) {
+        return sum(index(continuationPoint, SAVES_OFFSET));
+    }
+
+    /**
+     * Get the approximate number of bytes saved at a continuation point, across all saves (see {@link StateSize#getTotalBytes() }).
+     * @param continuationPoint continuation point id
+     * @return approximate number of bytes saved
+     * @throws IllegalArgumentException if {@code continuationPoint} is out of bounds
+     */
+    public long getSavedBytes(int continuationPoint) {
+        return sum(index(continuationPoint, SAVED_BYTES_OFFSET));
+    }
+
+    /**
+     * Get the number of times the method's state was restored at a continuation point.
+     * @param continuationPoint continuation point id
+     * @return number of restores
+     * @throws IllegalArgumentException if {@code continuationPoint} is out of bounds
+     */
+    public long getRestoreCount(int continuationPoint) {
+        return sum(index(continuationPoint, RESTORES_OFFSET));
+    }
+
+    /**
+     * Get the total time spent restoring the method's state at a continuation point, in nanoseconds. A restore is timed from the point
+     * where the method starts loading its state to the point where it hands off to the original code (just before jumping back in after a
+     * suspend, or just before re-invoking the method that was being invoked).
+     * @param continuationPoint continuation point id
+     * @return total restore time in nanoseconds
+     * @throws IllegalArgumentException if {@code continuationPoint} is out of bounds
+     */
+    public long getRestoreNanos(int continuationPoint) {
+        return sum(index(continuationPoint, RESTORE_NANOS_OFFSET));
+    }
+
+    /**
+     * Get a histogram of restore times at a continuation point. Bucket 0 counts restores that took under 1 nanosecond, and bucket
+     * {@code n} counts restores that took at least {@code 2^(n-1)} but under {@code 2^n} nanoseconds. The last bucket also counts
+     * everything longer.
+     * @param continuationPoint continuation point id
+     * @return restore time histogram ({@link #LATENCY_BUCKET_COUNT} buckets)
+     * @throws IllegalArgumentException if {@code continuationPoint} is out of bounds
+     */
+    public long[] getRestoreLatencyHistogram(int continuationPoint) {
+        long[] ret = new long[LATENCY_BUCKET_COUNT];
+        int start = index(continuationPoint, LATENCY_BUCKETS_OFFSET);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            synchronized (stripeLocks[i]) {
+                long[] stripe = stripes[i];
+                if (start >= stripe.length) {
+                    continue; // stripe hasn't grown to cover this continuation point yet, so nothing recorded in it for this point
+                }
+                for (int j = 0; j < LATENCY_BUCKET_COUNT; j++) {
+                    ret[j] += stripe[start + j];
+                }
+            }
+        }
+        return ret;
+    }
+
+    // Called when the method shows up with continuationPointCount continuation points -- grows if that's more than before
+    void ensureContinuationPointCount(int continuationPointCount) {
+        synchronized (stripeLocks) {
+            if (continuationPointCount > this.continuationPointCount) {
+                this.continuationPointCount = continuationPointCount;
+            }
+        }
+    }
+
+    // The record methods are called from instrumented code, so they never throw -- stripes grow to fit whatever continuation point they're
+    // given (see ensureContinuationPointCount())
+    void recordInvocation() {
+        int stripeIdx = stripeIndex();
+        synchronized (stripeLocks[stripeIdx]) {
+            stripes[stripeIdx][INVOCATIONS_IDX]++;
+        }
+    }
+
+    void recordSave(int continuationPoint, long bytes) {
+        if (continuationPoint < 0) {
+            return; // should never happen
+        }
+
+        int start = 1 + continuationPoint * CONTINUATION_POINT_BLOCK_SIZE;
+        int stripeIdx = stripeIndex();
+        synchronized (stripeLocks[stripeIdx]) {
+            long[] stripe = growStripe(stripeIdx, start + CONTINUATION_POINT_BLOCK_SIZE);
+            stripe[start + SAVES_OFFSET]++;
+            stripe[start + SAVED_BYTES_OFFSET] += bytes;
+        }
+    }
+
+    void recordRestore(int continuationPoint, long nanos) {
+        if (continuationPoint < 0) {
+            return; // should never happen
+        }
+
+        int start = 1 + continuationPoint * CONTINUATION_POINT_BLOCK_SIZE;
+        int bucket = 0;
+        for (long remaining = nanos; remaining > 0L && bucket < LATENCY_BUCKET_COUNT - 1; remaining >>>= 1) {
+            bucket++;
+        }
+
+        int stripeIdx = stripeIndex();
+        synchronized (stripeLocks[stripeIdx]) {
+            long[] stripe = growStripe(stripeIdx, start + CONTINUATION_POINT_BLOCK_SIZE);
+            stripe[start + RESTORES_OFFSET]++;
+            stripe[start + RESTORE_NANOS_OFFSET] += nanos;
+            stripe[start + LATENCY_BUCKETS_OFFSET + bucket]++;
+        }
+    }
+
+    private static int computeStripeCount(int processors) {
+        int ret = 1;
+        while (ret < processors * 2 && ret < MAX_STRIPE_COUNT) {
+            ret <<= 1;
+        }
+        return ret;
+    }
+
+    private static int stripeIndex() {
+        return System.identityHashCode(Thread.currentThread()) & (STRIPE_COUNT - 1);
+    }
+
+    // Must be called while holding the stripe's lock
+    private long[] growStripe(int stripeIdx, int minLength) {
+        long[] stripe = stripes[stripeIdx];
+        if (stripe.length < minLength) {
+            long[] grownStripe = new long[minLength];
+            System.arraycopy(stripe, 0, grownStripe, 0, stripe.length);
+            stripes[stripeIdx] = grownStripe;
+            stripe = grownStripe;
+        }
+        return stripe;
+    }
+
+    private int index(int continuationPoint, int offset) {
+        if (continuationPoint < 0 || continuationPoint >= continuationPointCount) {
+            throw new IllegalArgumentException();
+        }
+        return 1 + continuationPoint * CONTINUATION_POINT_BLOCK_SIZE + offset;
+    }
+
+    private long sum(int idx) {
+        long ret = 0L;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            synchronized (stripeLocks[i]) {
+                long[] stripe = stripes[i];
+                if (idx < stripe.length) {
+                    ret += stripe[idx];
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get a summary of these counters.
+     * @return summary
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(methodId).append(" invocations=").append(getInvocationCount());
+        for (int i = 0; i < continuationPointCount; i++) {
+            long restores = getRestoreCount(i);
+            sb.append(" [").append(i)
+                    .append(": saves=").append(getSaveCount(i))
+                    .append(", savedBytes=").append(getSavedBytes(i))
+                    .append(", restores=").append(restores)
+                    .append(", avgRestoreNanos=").append(restores == 0L ? 0L : getRestoreNanos(i) / restores)
+                    .append(']');
+        }
+        return sb.toString();
+    }
+}
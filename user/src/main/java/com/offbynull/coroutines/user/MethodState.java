@@ -16,6 +16,8 @@
  */
 package com.offbynull.coroutines.user;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -25,36 +27,72 @@ import java.io.Serializable;
  * @author Kasra Faghihi
  */
 public final class MethodState implements Serializable {
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
     
+    private final int fingerprint;
     private final int continuationPoint;
     private final Object[] data;
     private final LockState lockState;
 
     private MethodState next;
     private MethodState previous;
+    private int index; // position in the continuation's list of saved method states, assigned once this method state gets committed
+
+    // Set if the primitive storage arrays in data have been moved off-heap (in which case those slots in data are null)
+    private transient OffHeapFrameStorage offHeapStorage;
+    private transient int offHeapOffset;
+    private transient int offHeapSize;
+    private transient int offHeapSlots;
 
     /**
      * Do not use -- for internal use only.
      * <p>
      * Constructs a {@link MethodState} object.
+     * @param fingerprint fingerprint of the method that the state was saved from (generated by the instrumenter from the method's
+     * signature and the layout of its continuation points -- changes if the method changes in a way that makes saved states incompatible)
      * @param continuationPoint point in the code at which state was saved (does not refer to offset, just an id that's generated by the
      * instrumenter to mark that point)
      * @param data locals and operand stack at the point which state was saved
      * @param lockState monitors entered at the point which state was saved (may be {@code null})
      */
-    public MethodState(int continuationPoint, Object[] data, LockState lockState) {
+    public MethodState(int fingerprint, int continuationPoint, Object[] data, LockState lockState) {
         if (continuationPoint < 0) {
             throw new IllegalArgumentException();
         }
         if (data == null) {
             throw new NullPointerException();
         }
+        this.fingerprint = fingerprint;
         this.continuationPoint = continuationPoint;
         this.data = data;
         this.lockState = lockState;
     }
 
+    /**
+     * Do not use -- for internal use only.
+     * <p>
+     * Get the fingerprint of the method that the state was saved from.
+     * @return fingerprint of the method that the state was saved from
+     */
+    public int getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * <p>
+     * Check that this state was saved from a method with some fingerprint. Called by instrumented code before restoring.
+     * @param expectedFingerprint fingerprint of the method being restored
+     * @throws IllegalStateException if the fingerprints don't match
+     */
+    public void checkFingerprint(int expectedFingerprint) {
+        if (fingerprint != expectedFingerprint) {
+            throw new IllegalStateException("Saved method state incompatible with method being restored (fingerprint is "
+                    + Integer.toHexString(fingerprint) + ", expected " + Integer.toHexString(expectedFingerprint) + ") -- method was "
+                    + "likely changed since state was saved");
+        }
+    }
+
     /**
      * Do not use -- for internal use only.
      * <p>
@@ -73,6 +111,9 @@ public final class MethodState implements Serializable {
      * @return locals and operand stack at the point which state was saved
      */
     public Object[] getData() {
+        if (offHeapStorage != null) {
+            moveOnHeap();
+        }
         return data;
     }
 
@@ -95,6 +136,191 @@ public final class MethodState implements Serializable {
     
     
     
+    // Same as getData(), but if the primitive storage arrays are off-heap they're copied in to a new array instead of being moved back on
+    // to the heap (so reading them doesn't undo moving them off-heap)
+    Object[] peekData() {
+        if (offHeapStorage == null) {
+            return data;
+        }
+        Object[] copy = (Object[]) data.clone();
+        offHeapStorage.read(copy, offHeapSlots, offHeapOffset);
+        return copy;
+    }
+
+    // Same as getData(), but any slots that have been moved off-heap are left as null -- for when only the object slots are of interest
+    Object[] getOnHeapData() {
+        return data;
+    }
+
+    boolean isOffHeap() {
+        return offHeapStorage != null;
+    }
+
+    int getOffHeapOffset() {
+        return offHeapOffset;
+    }
+
+    void setOffHeapOffset(int offHeapOffset) {
+        this.offHeapOffset = offHeapOffset;
+    }
+
+    int getOffHeapSize() {
+        return offHeapSize;
+    }
+
+    // Used by OffHeapFrameStorage -- offset is where the record for this method state has been reserved
+    void moveOffHeap(OffHeapFrameStorage storage, int offset, int size) {
+        int slots = storage.write(data, offset);
+        for (int i = 0; i < data.length; i++) {
+            if ((slots & (1 << i)) != 0) {
+                data[i] = null;
+            }
+        }
+        offHeapStorage = storage;
+        offHeapOffset = offset;
+        offHeapSize = size;
+        offHeapSlots = slots;
+    }
+
+    void moveOnHeap() {
+        offHeapStorage.read(data, offHeapSlots, offHeapOffset);
+        offHeapStorage = null;
+        offHeapOffset = 0;
+        offHeapSize = 0;
+        offHeapSlots = 0;
+    }
+
+    // Used when forking -- the storage arrays are shared between this method state and the copy, which is safe because instrumented code
+    // never writes to them once the method state has been created (SnapshotCodec copies them before rebinding object slots). The Object[]
+    // holding them and the lock state can both change, so they're copied. Object storage arrays that hold the continuation being forked
+    // (e.g. the Continuation parameter of the method) are copied with it swapped out for the forked continuation.
+    MethodState fork(Continuation continuation, Continuation forkedContinuation) {
+        Object[] forkedData = offHeapStorage == null ? (Object[]) data.clone() : peekData();
+        for (int i = 0; i < forkedData.length; i++) {
+            Object slot = forkedData[i];
+            if (slot == continuation) {
+                forkedData[i] = forkedContinuation;
+            } else if (slot != null && slot.getClass() == Object[].class) {
+                Object[] arr = (Object[]) slot;
+                for (int j = 0; j < arr.length; j++) {
+                    if (arr[j] == continuation) {
+                        if (arr == slot) { // copy on first write
+                            arr = (Object[]) arr.clone();
+                            forkedData[i] = arr;
+                        }
+                        arr[j] = forkedContinuation;
+                    }
+                }
+            }
+        }
+        LockState forkedLockState = lockState == null ? null : lockState.copy();
+        MethodState ret = new MethodState(fingerprint, continuationPoint, forkedData, forkedLockState);
+        ret.index = index;
+        return ret;
+    }
+
+    // Used by CoroutineMetrics -- same as StateSize.getTotalBytes() after addStateSize(), but doesn't allocate or count individual items
+    long getTotalBytes() {
+        long bytes = StateSize.frameBytes() + StateSize.arrayBytes(data.length, 4);
+        for (int i = 0; i < data.length; i++) {
+            Object slot = data[i];
+            if (slot instanceof int[]) {
+                bytes += StateSize.arrayBytes(((int[]) slot).length, 4);
+            } else if (slot instanceof float[]) {
+                bytes += StateSize.arrayBytes(((float[]) slot).length, 4);
+            } else if (slot instanceof long[]) {
+                bytes += StateSize.arrayBytes(((long[]) slot).length, 8);
+            } else if (slot instanceof double[]) {
+                bytes += StateSize.arrayBytes(((double[]) slot).length, 8);
+            } else if (slot instanceof Object[]) {
+                Object[] arr = (Object[]) slot;
+                bytes += StateSize.arrayBytes(arr.length, 4);
+                for (int j = 0; j < arr.length; j++) {
+                    bytes += StateSize.referencedArrayBytes(arr[j]);
+                }
+            }
+        }
+
+        if (offHeapStorage != null) {
+            bytes += offHeapSize;
+        }
+
+        if (lockState != null) {
+            bytes += StateSize.monitorBytes(lockState.size());
+        }
+        return bytes;
+    }
+
+    // Used by Continuation -- adds the approximate size of this method state to size
+    void addStateSize(StateSize size) {
+        size.addFrame();
+        size.addArray(data.length, 4);
+        for (int i = 0; i < data.length; i++) {
+            Object slot = data[i];
+            if (slot instanceof int[]) {
+                int length = ((int[]) slot).length;
+                size.addInts(length);
+                size.addArray(length, 4);
+            } else if (slot instanceof float[]) {
+                int length = ((float[]) slot).length;
+                size.addFloats(length);
+                size.addArray(length, 4);
+            } else if (slot instanceof long[]) {
+                int length = ((long[]) slot).length;
+                size.addLongs(length);
+                size.addArray(length, 8);
+            } else if (slot instanceof double[]) {
+                int length = ((double[]) slot).length;
+                size.addDoubles(length);
+                size.addArray(length, 8);
+            } else if (slot instanceof Object[]) {
+                Object[] arr = (Object[]) slot;
+                for (int j = 0; j < arr.length; j++) {
+                    if (arr[j] != null) {
+                        size.addObject(arr[j]);
+                    }
+                }
+                size.addArray(arr.length, 4);
+            }
+        }
+
+        if (offHeapStorage != null) {
+            offHeapStorage.addStateSize(offHeapSlots, offHeapOffset, size);
+            size.addOffHeapBytes(offHeapSize);
+        }
+
+        if (lockState != null) {
+            size.addMonitors(lockState.size());
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (offHeapStorage != null) {
+            moveOnHeap();
+        }
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * <p>
+     * Get the position of this method state in the list of saved method states.
+     * @return position of this method state
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Do not use -- for internal use only.
+     * <p>
+     * Set the position of this method state in the list of saved method states.
+     * @param index position of this method state
+     */
+    void setIndex(int index) {
+        this.index = index;
+    }
+
     /**
      * Do not use -- for internal use only.
      * <p>
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.io.IOException;
+
+/**
+ * Lets {@link SnapshotCodec} write objects referenced by a coroutine snapshot as handles instead of writing them out in full. Use this for
+ * objects that shouldn't (or can't) be written out along with the coroutine, such as large shared caches or connections: the snapshot
+ * only records a small id for the object, and the object is looked back up by that id when the snapshot is read.
+ * <p>
+ * Handles apply to the objects the codec writes directly: the coroutine, the context, the objects held in the locals and operand stacks of
+ * each saved method frame, and the monitors held by each saved method frame. Objects reachable through those objects are written by the
+ * {@link ObjectSlotSerializer} as usual.
+ * @author Kasra Faghihi
+ */
+public interface ObjectHandleResolver {
+    /**
+     * Get the handle for an object that's about to be written.
+     * @param obj object about to be written (never {@code null})
+     * @return handle to write in place of {@code obj} (must be {@code >= 0}), or {@code -1} if {@code obj} should be written out in full
+     */
+    int toHandle(Object obj);
+
+    /**
+     * Get the object for a handle previously returned by {@link #toHandle(java.lang.Object) }.
+     * @param handle handle read
+     * @return object for {@code handle}
+     * @throws IOException if {@code handle} can't be resolved
+     */
+    Object fromHandle(int handle) throws IOException;
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes/reads the objects referenced by a coroutine snapshot (see {@link SnapshotCodec}). This includes the coroutine itself, the context,
+ * the objects held in the locals and operand stacks of each saved method frame, and the monitors held by each saved method frame.
+ * <p>
+ * Objects are handed over as a single table. The table never contains {@code null}s or duplicates: {@link SnapshotCodec} deduplicates
+ * objects by identity before passing them in, and refers to them by their position in the table. As such, implementations only need to
+ * worry about preserving identity between the objects inside the table (e.g. two objects in the table that reference the same third
+ * object).
+ * @author Kasra Faghihi
+ */
+public interface ObjectSlotSerializer {
+    /**
+     * Write a table of objects.
+     * @param objects objects to write (never contains {@code null}s)
+     * @param out output to write to
+     * @throws IOException if an object couldn't be written or an I/O error occurred
+     */
+    void writeObjects(Object[] objects, DataOutput out) throws IOException;
+
+    /**
+     * Read a table of objects previously written by {@link #writeObjects(java.lang.Object[], java.io.DataOutput) }.
+     * @param in input to read from
+     * @return objects read, in the same order as they were written
+     * @throws IOException if an object couldn't be read or an I/O error occurred
+     */
+    Object[] readObjects(DataInput in) throws IOException;
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Off-heap memory owned by a Continuation that the primitive storage arrays (int[]/float[]/long[]/double[]) of its saved method states get
+// moved in to while the coroutine is suspended. Only the object references of a saved method state stay on the heap.
+//
+// Each method state moved off-heap gets a single contiguous record. For each primitive storage array in the method state's data, the record
+// contains a type byte, an int length, and then the elements (in native byte order). Which data slots were moved is tracked by the method
+// state itself (as a bit mask), so the record doesn't need to mention them.
+//
+// Records are bump-allocated. They aren't freed individually: a method state that gets moved back on to the heap (or discarded) simply
+// leaves a hole. Once there isn't enough room left for the records that need to be written, the records of the method states that are
+// still off-heap are copied in to a new block of memory (grown if more than half of it would be in use) and everything else is dropped.
+final class OffHeapFrameStorage {
+    static final int DEFAULT_INITIAL_CAPACITY = 4096;
+
+    private static final byte TYPE_INTS = 1;
+    private static final byte TYPE_FLOATS = 2;
+    private static final byte TYPE_LONGS = 3;
+    private static final byte TYPE_DOUBLES = 4;
+    private static final int SLOT_HEADER_SIZE = 1 + 4;
+
+    private ByteBuffer buffer;
+    private int writeOffset;
+
+    OffHeapFrameStorage(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        buffer = ByteBuffer.allocateDirect(initialCapacity).order(ByteOrder.nativeOrder());
+    }
+
+    // Moves every method state in the list that's currently on the heap off-heap
+    void moveOffHeap(MethodState first) {
+        int required = 0;
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            if (!ms.isOffHeap()) {
+                required += sizeOf(ms.getData());
+            }
+        }
+        if (required == 0) {
+            return;
+        }
+
+        if (buffer.capacity() - writeOffset < required) {
+            compact(first, required);
+        }
+
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            if (!ms.isOffHeap()) {
+                int size = sizeOf(ms.getData());
+                if (size > 0) {
+                    ms.moveOffHeap(this, writeOffset, size);
+                    writeOffset += size;
+                }
+            }
+        }
+    }
+
+    // Moves every method state in the list that's currently off-heap back on to the heap
+    void moveOnHeap(MethodState first) {
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            if (ms.isOffHeap()) {
+                ms.moveOnHeap();
+            }
+        }
+        writeOffset = 0;
+    }
+
+    // Drops all records -- only call once the method states that were moved off-heap are no longer needed
+    void clear() {
+        writeOffset = 0;
+    }
+
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    // Writes the primitive storage arrays in data out to a record at offset, returning the mask of which data slots were written.
+    int write(Object[] data, int offset) {
+        ByteBuffer view = view(offset);
+        int slots = 0;
+        for (int i = 0; i < data.length; i++) {
+            Object slot = data[i];
+            if (slot instanceof int[]) {
+                int[] arr = (int[]) slot;
+                view.put(TYPE_INTS).putInt(arr.length);
+                view.asIntBuffer().put(arr);
+                view.position(view.position() + arr.length * 4);
+            } else if (slot instanceof float[]) {
+                float[] arr = (float[]) slot;
+                view.put(TYPE_FLOATS).putInt(arr.length);
+                view.asFloatBuffer().put(arr);
+                view.position(view.position() + arr.length * 4);
+            } else if (slot instanceof long[]) {
+                long[] arr = (long[]) slot;
+                view.put(TYPE_LONGS).putInt(arr.length);
+                view.asLongBuffer().put(arr);
+                view.position(view.position() + arr.length * 8);
+            } else if (slot instanceof double[]) {
+                double[] arr = (double[]) slot;
+                view.put(TYPE_DOUBLES).putInt(arr.length);
+                view.asDoubleBuffer().put(arr);
+                view.position(view.position() + arr.length * 8);
+            } else {
+                continue;
+            }
+            slots |= 1 << i;
+        }
+        return slots;
+    }
+
+    // Reads the primitive storage arrays in the record at offset back in to the data slots marked in the mask
+    void read(Object[] data, int slots, int offset) {
+        ByteBuffer view = view(offset);
+        for (int i = 0; i < data.length; i++) {
+            if ((slots & (1 << i)) == 0) {
+                continue;
+            }
+
+            byte type = view.get();
+            int length = view.getInt();
+            switch (type) {
+                case TYPE_INTS: {
+                    int[] arr = new int[length];
+                    view.asIntBuffer().get(arr);
+                    view.position(view.position() + length * 4);
+                    data[i] = arr;
+                    break;
+                }
+                case TYPE_FLOATS: {
+                    float[] arr = new float[length];
+                    view.asFloatBuffer().get(arr);
+                    view.position(view.position() + length * 4);
+                    data[i] = arr;
+                    break;
+                }
+                case TYPE_LONGS: {
+                    long[] arr = new long[length];
+                    view.asLongBuffer().get(arr);
+                    view.position(view.position() + length * 8);
+                    data[i] = arr;
+                    break;
+                }
+                case TYPE_DOUBLES: {
+                    double[] arr = new double[length];
+                    view.asDoubleBuffer().get(arr);
+                    view.position(view.position() + length * 8);
+                    data[i] = arr;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException(); // should never happen
+            }
+        }
+    }
+
+    // Adds the counts of the primitive storage arrays in the record at offset to size (elements are skipped, only slot headers are read)
+    void addStateSize(int slots, int offset, StateSize size) {
+        int position = offset;
+        for (int i = 0; slots >>> i != 0; i++) {
+            if ((slots & (1 << i)) == 0) {
+                continue;
+            }
+
+            byte type = buffer.get(position);
+            int length = buffer.getInt(position + 1);
+            position += SLOT_HEADER_SIZE;
+            switch (type) {
+                case TYPE_INTS:
+                    size.addInts(length);
+                    position += length * 4;
+                    break;
+                case TYPE_FLOATS:
+                    size.addFloats(length);
+                    position += length * 4;
+                    break;
+                case TYPE_LONGS:
+                    size.addLongs(length);
+                    position += length * 8;
+                    break;
+                case TYPE_DOUBLES:
+                    size.addDoubles(length);
+                    position += length * 8;
+                    break;
+                default:
+                    throw new IllegalStateException(); // should never happen
+            }
+        }
+    }
+
+    // Size of the record needed to hold the primitive storage arrays in data (0 if there aren't any)
+    static int sizeOf(Object[] data) {
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            Object slot = data[i];
+            if (slot instanceof int[]) {
+                size += SLOT_HEADER_SIZE + ((int[]) slot).length * 4;
+            } else if (slot instanceof float[]) {
+                size += SLOT_HEADER_SIZE + ((float[]) slot).length * 4;
+            } else if (slot instanceof long[]) {
+                size += SLOT_HEADER_SIZE + ((long[]) slot).length * 8;
+            } else if (slot instanceof double[]) {
+                size += SLOT_HEADER_SIZE + ((double[]) slot).length * 8;
+            }
+        }
+        return size;
+    }
+
+    private void compact(MethodState first, int required) {
+        int live = 0;
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            if (ms.isOffHeap()) {
+                live += ms.getOffHeapSize();
+            }
+        }
+
+        long target = (live + (long) required) * 2L;
+        long capacity = buffer.capacity();
+        while (capacity < target) {
+            capacity *= 2L;
+        }
+        capacity = Math.min(capacity, (long) Integer.MAX_VALUE);
+        if (capacity - live < required) {
+            throw new IllegalStateException("Off-heap frame storage exhausted");
+        }
+
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect((int) capacity).order(ByteOrder.nativeOrder());
+        int newWriteOffset = 0;
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            if (ms.isOffHeap()) {
+                int offset = ms.getOffHeapOffset();
+                int size = ms.getOffHeapSize();
+                ByteBuffer src = buffer.duplicate();
+                src.limit(offset + size).position(offset);
+                newBuffer.position(newWriteOffset);
+                newBuffer.put(src);
+                ms.setOffHeapOffset(newWriteOffset);
+                newWriteOffset += size;
+            }
+        }
+
+        buffer = newBuffer;
+        writeOffset = newWriteOffset;
+    }
+
+    // duplicate() resets byte order to big-endian, so it needs to be set again
+    private ByteBuffer view(int offset) {
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.nativeOrder());
+        view.position(offset);
+        return view;
+    }
+}
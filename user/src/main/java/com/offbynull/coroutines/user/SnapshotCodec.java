@@ -0,0 +1,992 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Writes/reads snapshots of suspended {@link CoroutineRunner}s in a compact binary format. This is a faster and much smaller alternative
+ * to Java serialization of {@link CoroutineRunner}.
+ * <p>
+ * Saved method frames are written as a list of method fingerprints (see {@link #readFingerprints(java.io.DataInput) }) and encoded
+ * lengths, followed by each frame's continuation point id and storage arrays. Each storage array is written as a length-prefixed run of
+ * elements ({@code int}s and {@code long}s as variable-length integers, {@code float}s and {@code double}s as raw bits), and gets read
+ * straight back in to an array of the same size.
+ * Objects (the coroutine, the context, objects in the storage arrays, monitors) are deduplicated by identity and handed off to a pluggable
+ * {@link ObjectSlotSerializer}. Frames refer to them by index. An optional {@link ObjectHandleResolver} can have some of those objects
+ * written as small ids instead, which get resolved back to objects when read.
+ * <p>
+ * Delta checkpoints are also supported: {@link #writeDelta(com.offbynull.coroutines.user.CoroutineRunner, java.io.DataOutput) } only
+ * writes out the saved method frames that have been replaced since the last snapshot/delta was written for that runner (frames towards
+ * the bottom of the call stack that the coroutine hasn't returned to since then are skipped). Deltas get applied, in order, on top of the
+ * runner read from the snapshot they're based on via
+ * {@link #applyDelta(com.offbynull.coroutines.user.CoroutineRunner, java.io.DataInput) }.
+ * <p>
+ * Snapshots can also be read lazily via {@link #readLazily(java.io.DataInput) }, where saved method frames are only read in as the
+ * restored runner walks down its call stack.
+ * <p>
+ * Snapshots must be taken while the runner isn't executing. Runners in {@link CoroutineRunner#EXECUTION_MODE_THREAD} can't be
+ * snapshotted. This class is thread-safe so long as the {@link ObjectSlotSerializer} (and {@link ObjectHandleResolver}) it's using is
+ * thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class SnapshotCodec {
+    private static final int MAGIC = 0x434F5230; // "COR0"
+    private static final int DELTA_MAGIC = 0x434F4430; // "COD0"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int FLAG_FAILURE_STACK_TRACE_ENABLED = 1;
+    private static final int FLAG_CANCELLED = 2;
+    private static final int FLAG_SUSPENDED = 4;
+
+    private static final int SLOT_NULL = 0;
+    private static final int SLOT_INTS = 1;
+    private static final int SLOT_FLOATS = 2;
+    private static final int SLOT_LONGS = 3;
+    private static final int SLOT_DOUBLES = 4;
+    private static final int SLOT_OBJECTS = 5;
+    private static final int SLOT_OBJECT = 6;
+
+    private static final int REF_NULL = 0;
+    private static final int REF_CONTINUATION = 1;
+    private static final int REF_TABLE_OFFSET = 2;
+
+    private final ObjectSlotSerializer objectSlotSerializer;
+    private final ObjectHandleResolver objectHandleResolver;
+
+    /**
+     * Constructs a {@link SnapshotCodec} object that uses {@link DefaultObjectSlotSerializer}.
+     */
+    public SnapshotCodec() {
+        this(new DefaultObjectSlotSerializer());
+    }
+
+    /**
+     * Constructs a {@link SnapshotCodec} object.
+     * @param objectSlotSerializer serializer to use for objects
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public SnapshotCodec(ObjectSlotSerializer objectSlotSerializer) {
+        if (objectSlotSerializer == null) {
+            throw new NullPointerException();
+        }
+        this.objectSlotSerializer = objectSlotSerializer;
+        this.objectHandleResolver = null;
+    }
+
+    /**
+     * Constructs a {@link SnapshotCodec} object that writes some objects as handles.
+     * @param objectSlotSerializer serializer to use for objects
+     * @param objectHandleResolver resolver that decides which objects get written as handles, and resolves those handles when read
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public SnapshotCodec(ObjectSlotSerializer objectSlotSerializer, ObjectHandleResolver objectHandleResolver) {
+        if (objectSlotSerializer == null || objectHandleResolver == null) {
+            throw new NullPointerException();
+        }
+        this.objectSlotSerializer = objectSlotSerializer;
+        this.objectHandleResolver = objectHandleResolver;
+    }
+
+    /**
+     * Write a snapshot of a runner. The snapshot written becomes the base for the next delta checkpoint written for {@code runner}.
+     * @param runner runner to snapshot
+     * @param out output to write to
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws NotSerializableException if {@code runner} is in {@link CoroutineRunner#EXECUTION_MODE_THREAD}, or if the object
+     * serializer couldn't serialize some object
+     * @throws IOException if an I/O error occurred
+     */
+    public void write(CoroutineRunner runner, DataOutput out) throws IOException {
+        if (runner == null || out == null) {
+            throw new NullPointerException();
+        }
+        if (runner.getExecutionMode() != CoroutineRunner.EXECUTION_MODE_INSTRUMENTED) {
+            throw new NotSerializableException("Runners in thread execution mode can't be snapshotted");
+        }
+
+        Continuation continuation = runner.getContinuation();
+
+        // Collect objects
+        ObjectTable objectTable = new ObjectTable(continuation);
+        objectTable.add(runner.getCoroutine());
+        objectTable.add(continuation.getContext());
+        for (MethodState ms = continuation.getFirstSaved(); ms != null; ms = ms.getNext()) {
+            objectTable.addAll(ms);
+        }
+
+        // Frames (encoded before the header is written, because the header contains their lengths)
+        int[] frameLengths = new int[countMethodStates(continuation.getFirstSaved())];
+        byte[] frames = writeMethodStates(continuation.getFirstSaved(), objectTable, frameLengths);
+
+        // Header
+        writeHeader(MAGIC, runner, continuation.getCheckpointSequence() + 1L, continuation.getFirstSaved(), frameLengths, out);
+
+        // Objects
+        writeObjects(objectTable.toArray(), out);
+        VarInts.writeUnsignedInt(out, objectTable.ref(runner.getCoroutine()));
+        VarInts.writeUnsignedInt(out, objectTable.ref(continuation.getContext()));
+
+        // Frames
+        out.write(frames);
+
+        continuation.markCheckpoint();
+    }
+
+    /**
+     * Write a delta checkpoint of a runner. The delta contains the saved method frames that have been replaced since the last
+     * snapshot/delta was written for {@code runner}, along with the coroutine, the context, and the mutable objects referenced by the
+     * frames that haven't been replaced (objects may have been modified even if the frames referencing them haven't been). Frames that
+     * haven't been replaced only have their objects written -- their primitives and immutable objects ({@code null}s, {@link String}s,
+     * and boxed primitives) are skipped.
+     * <p>
+     * The delta written becomes the base for the next delta checkpoint written for {@code runner}.
+     * @param runner runner to write a delta checkpoint for
+     * @param out output to write to
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws NotSerializableException if {@code runner} is in {@link CoroutineRunner#EXECUTION_MODE_THREAD}, or if the object
+     * serializer couldn't serialize some object
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeDelta(CoroutineRunner runner, DataOutput out) throws IOException {
+        if (runner == null || out == null) {
+            throw new NullPointerException();
+        }
+        if (runner.getExecutionMode() != CoroutineRunner.EXECUTION_MODE_INSTRUMENTED) {
+            throw new NotSerializableException("Runners in thread execution mode can't be snapshotted");
+        }
+
+        Continuation continuation = runner.getContinuation();
+        int cleanSize = continuation.getCleanSize();
+
+        // Collect objects
+        ObjectTable objectTable = new ObjectTable(continuation);
+        objectTable.add(runner.getCoroutine());
+        objectTable.add(continuation.getContext());
+        MethodState firstDirty = continuation.getFirstSaved();
+        for (int i = 0; i < cleanSize; i++) {
+            objectTable.addMutables(firstDirty);
+            firstDirty = firstDirty.getNext();
+        }
+        for (MethodState ms = firstDirty; ms != null; ms = ms.getNext()) {
+            objectTable.addAll(ms);
+        }
+
+        // Dirty frames (encoded before the header is written, because the header contains their lengths)
+        int[] frameLengths = new int[countMethodStates(firstDirty)];
+        byte[] frames = writeMethodStates(firstDirty, objectTable, frameLengths);
+
+        // Header
+        writeHeader(DELTA_MAGIC, runner, continuation.getCheckpointSequence(), firstDirty, frameLengths, out);
+
+        // Objects
+        writeObjects(objectTable.toArray(), out);
+        VarInts.writeUnsignedInt(out, objectTable.ref(runner.getCoroutine()));
+        VarInts.writeUnsignedInt(out, objectTable.ref(continuation.getContext()));
+
+        // Clean frames (rebinding of mutable objects only)
+        VarInts.writeUnsignedInt(out, cleanSize);
+        MethodState ms = continuation.getFirstSaved();
+        for (int i = 0; i < cleanSize; i++) {
+            writeRebinds(ms, objectTable, out);
+            ms = ms.getNext();
+        }
+
+        // Dirty frames
+        out.write(frames);
+
+        continuation.markCheckpoint();
+    }
+
+    /**
+     * Read a snapshot of a runner previously written by {@link #write(com.offbynull.coroutines.user.CoroutineRunner, java.io.DataOutput) }.
+     * The classes of the coroutine being read must be the same (instrumented the same way) as the classes of the coroutine written.
+     * @param in input to read from
+     * @return runner restored from the snapshot
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if the snapshot is malformed or an I/O error occurred
+     */
+    public CoroutineRunner read(DataInput in) throws IOException {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        return readRunner(in, false);
+    }
+
+    /**
+     * Read a snapshot of a runner previously written by {@link #write(com.offbynull.coroutines.user.CoroutineRunner, java.io.DataOutput) },
+     * without reading in the saved method frames. The frames are read from {@code in} one at a time as the runner needs them (the first
+     * call to {@link CoroutineRunner#execute() } reads each frame right before restoring it), so the runner can start restoring the first
+     * frame without waiting for the rest to be read. This cuts the time it takes for a coroutine with a deep call stack to start running.
+     * <p>
+     * {@code in} must not be read from or closed by anything else until all frames have been read. That happens once the first
+     * {@link CoroutineRunner#execute() } finishes (or the runner gets forked, snapshotted, or has off-heap storage enabled). If a frame
+     * can't be read, the {@link CoroutineRunner#execute() } that needed it fails with an {@link IllegalStateException} as the cause.
+     * @param in input to read from
+     * @return runner restored from the snapshot
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if the snapshot is malformed or an I/O error occurred while reading the parts of it that get read up front
+     */
+    public CoroutineRunner readLazily(DataInput in) throws IOException {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        return readRunner(in, true);
+    }
+
+    /**
+     * Apply a delta checkpoint previously written by
+     * {@link #writeDelta(com.offbynull.coroutines.user.CoroutineRunner, java.io.DataOutput) } to a runner. The runner must be in the state
+     * that the delta is based on: either read from the snapshot/delta written right before this delta, or had that snapshot/delta
+     * applied to it.
+     * <p>
+     * The runner is updated in place. If this method throws an exception other than because the delta doesn't apply to {@code runner},
+     * {@code runner} is left in an undefined state and shouldn't be used.
+     * @param runner runner to apply the delta to
+     * @param in input to read from
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code runner} is in {@link CoroutineRunner#EXECUTION_MODE_THREAD}
+     * @throws IOException if the delta is malformed, the delta isn't based on the state {@code runner} is in, or an I/O error occurred
+     */
+    public void applyDelta(CoroutineRunner runner, DataInput in) throws IOException {
+        if (runner == null || in == null) {
+            throw new NullPointerException();
+        }
+        if (runner.getExecutionMode() != CoroutineRunner.EXECUTION_MODE_INSTRUMENTED) {
+            throw new IllegalArgumentException("Runners in thread execution mode can't be snapshotted");
+        }
+
+        Continuation continuation = runner.getContinuation();
+
+        // Header
+        Header header = readHeader(in);
+        if (header.magic != DELTA_MAGIC) {
+            throw new IOException("Not a coroutine delta checkpoint");
+        }
+        int flags = header.flags;
+        long baseCheckpointSequence = header.checkpointSequence;
+        if (baseCheckpointSequence != continuation.getCheckpointSequence()) {
+            throw new IOException("Delta is based on checkpoint " + baseCheckpointSequence + ", but runner is at checkpoint "
+                    + continuation.getCheckpointSequence());
+        }
+
+        // Objects
+        Object[] objects = readObjects(in);
+        Object coroutine = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+        Object context = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+        if (!(coroutine instanceof Coroutine)) {
+            throw new IOException("Snapshot coroutine is not a " + Coroutine.class.getName());
+        }
+
+        // Clean frames
+        int cleanSize = VarInts.readLength(in);
+        if (cleanSize > continuation.getSavedSize()) {
+            throw new IOException("Delta retains " + cleanSize + " frames, but runner only has " + continuation.getSavedSize());
+        }
+        MethodState lastClean = null;
+        MethodState ms = continuation.getFirstSaved();
+        for (int i = 0; i < cleanSize; i++) {
+            readRebinds(ms, objects, continuation, in);
+            lastClean = ms;
+            ms = ms.getNext();
+        }
+
+        // Dirty frames
+        int dirtySize = header.fingerprints.length;
+        MethodState first = lastClean == null ? null : continuation.getFirstSaved();
+        MethodState last = lastClean;
+        if (last != null) {
+            last.setNext(null);
+        }
+        for (int i = 0; i < dirtySize; i++) {
+            MethodState dirty = readMethodState(header.fingerprints[i], objects, continuation, in);
+            if (last == null) {
+                first = dirty;
+            } else {
+                last.setNext(dirty);
+            }
+            last = dirty;
+        }
+
+        continuation.restoreSaved(first, (flags & FLAG_SUSPENDED) != 0 ? Continuation.MODE_LOADING : Continuation.MODE_NORMAL,
+                baseCheckpointSequence + 1L);
+        continuation.setCancelled((flags & FLAG_CANCELLED) != 0);
+        continuation.setContext(context);
+
+        runner.setCoroutine((Coroutine) coroutine);
+        runner.setFailureStackTraceEnabled((flags & FLAG_FAILURE_STACK_TRACE_ENABLED) != 0);
+    }
+
+    /**
+     * Write a snapshot of a runner to a byte array. Equivalent to calling
+     * {@link #write(com.offbynull.coroutines.user.CoroutineRunner, java.io.DataOutput) } on a {@link DataOutputStream}.
+     * @param runner runner to snapshot
+     * @return snapshot
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws NotSerializableException if {@code runner} is in {@link CoroutineRunner#EXECUTION_MODE_THREAD}, or if the object
+     * serializer couldn't serialize some object
+     * @throws IOException if an I/O error occurred
+     */
+    public byte[] toByteArray(CoroutineRunner runner) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        write(runner, dos);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Read a snapshot of a runner from a byte array. Equivalent to calling {@link #read(java.io.DataInput) } on a {@link DataInputStream}.
+     * @param data snapshot
+     * @return runner restored from the snapshot
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if the snapshot is malformed
+     */
+    public CoroutineRunner fromByteArray(byte[] data) throws IOException {
+        if (data == null) {
+            throw new NullPointerException();
+        }
+        return read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Read the fingerprints of the saved method frames in a snapshot or delta checkpoint, without reading anything else. Each saved method
+     * frame is stamped with a fingerprint of the method it was saved from, generated by the instrumenter from that method's signature and
+     * the layout of its continuation points. If a method gets changed in a way that makes its saved frames incompatible, its fingerprint
+     * changes. Comparing these fingerprints against the fingerprints of the currently deployed code (see
+     * {@link MethodState#getFingerprint() }) is a cheap way to reject incompatible snapshots in bulk, before paying the cost of reading
+     * them in full.
+     * <p>
+     * Fingerprints are also checked when the coroutine gets resumed -- resuming a coroutine from an incompatible frame fails with an
+     * {@link IllegalStateException} (wrapped in a {@link CoroutineException}) before that frame gets restored.
+     * @param in input to read from
+     * @return fingerprints of the saved method frames in the snapshot (from the bottom of the call stack up), or the fingerprints of the
+     * replaced method frames in the delta checkpoint
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if the snapshot is malformed or an I/O error occurred
+     */
+    public int[] readFingerprints(DataInput in) throws IOException {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        return readHeader(in).fingerprints;
+    }
+
+    private CoroutineRunner readRunner(DataInput in, boolean lazily) throws IOException {
+        // Header
+        Header header = readHeader(in);
+        if (header.magic != MAGIC) {
+            throw new IOException("Not a coroutine snapshot");
+        }
+        int flags = header.flags;
+        long checkpointSequence = header.checkpointSequence;
+        int mode = (flags & FLAG_SUSPENDED) != 0 ? Continuation.MODE_LOADING : Continuation.MODE_NORMAL;
+
+        // Objects
+        Continuation continuation = new Continuation();
+        Object[] objects = readObjects(in);
+        Object coroutine = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+        Object context = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+        if (!(coroutine instanceof Coroutine)) {
+            throw new IOException("Snapshot coroutine is not a " + Coroutine.class.getName());
+        }
+
+        // Frames
+        if (lazily) {
+            continuation.restoreSaved(new LazyFrameSource(header.fingerprints, header.frameLengths, objects, continuation, in), mode,
+                    checkpointSequence);
+        } else {
+            MethodState first = null;
+            MethodState last = null;
+            for (int i = 0; i < header.fingerprints.length; i++) {
+                MethodState ms = readMethodState(header.fingerprints[i], objects, continuation, in);
+                if (last == null) {
+                    first = ms;
+                } else {
+                    last.setNext(ms);
+                }
+                last = ms;
+            }
+            continuation.restoreSaved(first, mode, checkpointSequence);
+        }
+        continuation.setCancelled((flags & FLAG_CANCELLED) != 0);
+        continuation.setContext(context);
+
+        CoroutineRunner runner = new CoroutineRunner((Coroutine) coroutine, continuation);
+        runner.setFailureStackTraceEnabled((flags & FLAG_FAILURE_STACK_TRACE_ENABLED) != 0);
+        return runner;
+    }
+
+    // Object table is written as the handles (object table index + handle) of objects that the handle resolver wants written as handles,
+    // followed by the rest of the objects as written by the object serializer.
+    private void writeObjects(Object[] objects, DataOutput out) throws IOException {
+        if (objectHandleResolver == null) {
+            VarInts.writeUnsignedInt(out, 0);
+            objectSlotSerializer.writeObjects(objects, out);
+            return;
+        }
+
+        int[] handles = new int[objects.length];
+        int handleCount = 0;
+        for (int i = 0; i < objects.length; i++) {
+            int handle = objectHandleResolver.toHandle(objects[i]);
+            if (handle < -1) {
+                throw new IOException("Bad handle for object: " + handle);
+            }
+            handles[i] = handle;
+            if (handle != -1) {
+                handleCount++;
+            }
+        }
+
+        Object[] remaining = new Object[objects.length - handleCount];
+        int remainingIdx = 0;
+        VarInts.writeUnsignedInt(out, handleCount);
+        for (int i = 0; i < objects.length; i++) {
+            if (handles[i] != -1) {
+                VarInts.writeUnsignedInt(out, i);
+                VarInts.writeUnsignedInt(out, handles[i]);
+            } else {
+                remaining[remainingIdx] = objects[i];
+                remainingIdx++;
+            }
+        }
+        objectSlotSerializer.writeObjects(remaining, out);
+    }
+
+    private Object[] readObjects(DataInput in) throws IOException {
+        int handleCount = VarInts.readLength(in);
+        if (handleCount == 0) {
+            return objectSlotSerializer.readObjects(in);
+        }
+        if (objectHandleResolver == null) {
+            throw new IOException("Snapshot contains handles, but no handle resolver was provided");
+        }
+
+        int[] handleIndexes = new int[handleCount];
+        Object[] handleObjects = new Object[handleCount];
+        for (int i = 0; i < handleCount; i++) {
+            handleIndexes[i] = VarInts.readLength(in);
+            handleObjects[i] = objectHandleResolver.fromHandle(VarInts.readLength(in));
+        }
+        Object[] remaining = objectSlotSerializer.readObjects(in);
+
+        Object[] objects = new Object[remaining.length + handleCount];
+        int handleIdx = 0;
+        int remainingIdx = 0;
+        for (int i = 0; i < objects.length; i++) {
+            if (handleIdx < handleCount && handleIndexes[handleIdx] == i) {
+                objects[i] = handleObjects[handleIdx];
+                handleIdx++;
+            } else if (remainingIdx < remaining.length) {
+                objects[i] = remaining[remainingIdx];
+                remainingIdx++;
+            } else {
+                throw new IOException("Bad handle index");
+            }
+        }
+        if (handleIdx != handleCount) {
+            throw new IOException("Bad handle index");
+        }
+        return objects;
+    }
+
+    // Header contains the fingerprints and encoded lengths of the frames written in full (all frames for snapshots, replaced frames for
+    // deltas), so that they can be checked -- and the frames that haven't been read in yet sized (see Continuation.getStateSize()) --
+    // without having to read the rest
+    private static void writeHeader(int magic, CoroutineRunner runner, long checkpointSequence, MethodState firstFullFrame,
+            int[] frameLengths, DataOutput out) throws IOException {
+        out.writeInt(magic);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(getFlags(runner));
+        VarInts.writeUnsignedLong(out, checkpointSequence);
+
+        VarInts.writeUnsignedInt(out, frameLengths.length);
+        int i = 0;
+        for (MethodState ms = firstFullFrame; ms != null; ms = ms.getNext()) {
+            out.writeInt(ms.getFingerprint());
+            VarInts.writeUnsignedInt(out, frameLengths[i]);
+            i++;
+        }
+    }
+
+    private static Header readHeader(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC && magic != DELTA_MAGIC) {
+            throw new IOException("Not a coroutine snapshot");
+        }
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        int flags = in.readUnsignedByte();
+        long checkpointSequence = VarInts.readUnsignedLong(in);
+
+        int[] fingerprints = new int[VarInts.readLength(in)];
+        int[] frameLengths = new int[fingerprints.length];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = in.readInt();
+            frameLengths[i] = VarInts.readLength(in);
+        }
+
+        return new Header(magic, flags, checkpointSequence, fingerprints, frameLengths);
+    }
+
+    private static int getFlags(CoroutineRunner runner) {
+        Continuation continuation = runner.getContinuation();
+        int flags = 0;
+        if (runner.isFailureStackTraceEnabled()) {
+            flags |= FLAG_FAILURE_STACK_TRACE_ENABLED;
+        }
+        if (continuation.isCancelled()) {
+            flags |= FLAG_CANCELLED;
+        }
+        if (continuation.getMode() == Continuation.MODE_LOADING) {
+            flags |= FLAG_SUSPENDED;
+        }
+        return flags;
+    }
+
+    // Clean frames are exactly the same as they were at the last checkpoint, but the mutable objects they point to may have been modified
+    // since. Those objects get written out again, so the frames need to be pointed to the newly read copies. Each object slot gets written
+    // out as either 0 (keep whatever is already there) or index in to the object table + 1. Monitors always get written out.
+    private static void writeRebinds(MethodState ms, ObjectTable objectTable, DataOutput out) throws IOException {
+        Object[] data = ms.getOnHeapData();
+        for (int i = 0; i < data.length; i++) {
+            Object slot = data[i];
+            if (isPrimitiveSlot(slot)) {
+                continue;
+            } else if (slot.getClass() == Object[].class) {
+                Object[] arr = (Object[]) slot;
+                for (int j = 0; j < arr.length; j++) {
+                    writeRebind(arr[j], objectTable, out);
+                }
+            } else {
+                writeRebind(slot, objectTable, out);
+            }
+        }
+
+        LockState lockState = ms.getLockState();
+        if (lockState != null) {
+            Object[] monitors = lockState.toArray();
+            VarInts.writeUnsignedInt(out, monitors.length);
+            for (int i = 0; i < monitors.length; i++) {
+                VarInts.writeUnsignedInt(out, objectTable.ref(monitors[i]));
+            }
+        }
+    }
+
+    private static void writeRebind(Object obj, ObjectTable objectTable, DataOutput out) throws IOException {
+        if (objectTable.isSkippedByDelta(obj)) {
+            VarInts.writeUnsignedInt(out, 0);
+        } else {
+            VarInts.writeUnsignedInt(out, objectTable.ref(obj) - REF_TABLE_OFFSET + 1);
+        }
+    }
+
+    private static void readRebinds(MethodState ms, Object[] objects, Continuation continuation, DataInput in) throws IOException {
+        Object[] data = ms.getOnHeapData();
+        for (int i = 0; i < data.length; i++) {
+            Object slot = data[i];
+            if (isPrimitiveSlot(slot)) {
+                continue;
+            } else if (slot.getClass() == Object[].class) {
+                Object[] arr = (Object[]) ((Object[]) slot).clone(); // copy because storage arrays may be shared with forked runners
+                for (int j = 0; j < arr.length; j++) {
+                    arr[j] = readRebind(arr[j], objects, in);
+                }
+                data[i] = arr;
+            } else {
+                data[i] = readRebind(slot, objects, in);
+            }
+        }
+
+        LockState lockState = ms.getLockState();
+        if (lockState != null) {
+            Object[] oldMonitors = lockState.toArray();
+            int monitorCount = VarInts.readLength(in);
+            if (monitorCount != oldMonitors.length) {
+                throw new IOException("Monitor count mismatch");
+            }
+            for (int i = 0; i < oldMonitors.length; i++) {
+                lockState.exit(oldMonitors[i]);
+            }
+            for (int i = 0; i < monitorCount; i++) {
+                Object monitor = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+                if (monitor == null) {
+                    throw new IOException("Null monitor in snapshot");
+                }
+                lockState.enter(monitor);
+            }
+        }
+    }
+
+    private static Object readRebind(Object existing, Object[] objects, DataInput in) throws IOException {
+        int ref = VarInts.readUnsignedInt(in);
+        if (ref == 0) {
+            return existing;
+        }
+        int idx = ref - 1;
+        if (idx >= objects.length) {
+            throw new IOException("Bad object reference: " + ref);
+        }
+        return objects[idx];
+    }
+
+    private static boolean isPrimitiveSlot(Object slot) {
+        return slot == null || slot instanceof int[] || slot instanceof float[] || slot instanceof long[] || slot instanceof double[];
+    }
+
+    private static int countMethodStates(MethodState first) {
+        int count = 0;
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    // Encodes the method states starting from first, putting the encoded length of each in to lengths
+    private static byte[] writeMethodStates(MethodState first, ObjectTable objectTable, int[] lengths) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        int i = 0;
+        for (MethodState ms = first; ms != null; ms = ms.getNext()) {
+            int start = dos.size();
+            writeMethodState(ms, objectTable, dos);
+            lengths[i] = dos.size() - start;
+            i++;
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    private static void writeMethodState(MethodState ms, ObjectTable objectTable, DataOutput out) throws IOException {
+        VarInts.writeUnsignedInt(out, ms.getContinuationPoint());
+
+        Object[] data = ms.peekData();
+        VarInts.writeUnsignedInt(out, data.length);
+        for (int i = 0; i < data.length; i++) {
+            writeSlot(data[i], objectTable, out);
+        }
+
+        LockState lockState = ms.getLockState();
+        if (lockState == null) {
+            VarInts.writeUnsignedInt(out, 0);
+        } else {
+            Object[] monitors = lockState.toArray();
+            VarInts.writeUnsignedInt(out, monitors.length + 1);
+            for (int i = 0; i < monitors.length; i++) {
+                VarInts.writeUnsignedInt(out, objectTable.ref(monitors[i]));
+            }
+        }
+    }
+
+    private static MethodState readMethodState(int fingerprint, Object[] objects, Continuation continuation, DataInput in)
+            throws IOException {
+        int continuationPoint = VarInts.readLength(in);
+
+        Object[] data = new Object[VarInts.readLength(in)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = readSlot(objects, continuation, in);
+        }
+
+        LockState lockState = null;
+        int monitorCount = VarInts.readLength(in);
+        if (monitorCount > 0) {
+            lockState = new LockState();
+            for (int i = 0; i < monitorCount - 1; i++) {
+                Object monitor = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+                if (monitor == null) {
+                    throw new IOException("Null monitor in snapshot");
+                }
+                lockState.enter(monitor);
+            }
+        }
+
+        return new MethodState(fingerprint, continuationPoint, data, lockState);
+    }
+
+    private static void writeSlot(Object slot, ObjectTable objectTable, DataOutput out) throws IOException {
+        if (slot == null) {
+            out.writeByte(SLOT_NULL);
+        } else if (slot instanceof int[]) {
+            int[] arr = (int[]) slot;
+            out.writeByte(SLOT_INTS);
+            VarInts.writeUnsignedInt(out, arr.length);
+            for (int i = 0; i < arr.length; i++) {
+                VarInts.writeSignedInt(out, arr[i]);
+            }
+        } else if (slot instanceof float[]) {
+            float[] arr = (float[]) slot;
+            out.writeByte(SLOT_FLOATS);
+            VarInts.writeUnsignedInt(out, arr.length);
+            for (int i = 0; i < arr.length; i++) {
+                out.writeFloat(arr[i]);
+            }
+        } else if (slot instanceof long[]) {
+            long[] arr = (long[]) slot;
+            out.writeByte(SLOT_LONGS);
+            VarInts.writeUnsignedInt(out, arr.length);
+            for (int i = 0; i < arr.length; i++) {
+                VarInts.writeSignedLong(out, arr[i]);
+            }
+        } else if (slot instanceof double[]) {
+            double[] arr = (double[]) slot;
+            out.writeByte(SLOT_DOUBLES);
+            VarInts.writeUnsignedInt(out, arr.length);
+            for (int i = 0; i < arr.length; i++) {
+                out.writeDouble(arr[i]);
+            }
+        } else if (slot.getClass() == Object[].class) {
+            Object[] arr = (Object[]) slot;
+            out.writeByte(SLOT_OBJECTS);
+            VarInts.writeUnsignedInt(out, arr.length);
+            for (int i = 0; i < arr.length; i++) {
+                VarInts.writeUnsignedInt(out, objectTable.ref(arr[i]));
+            }
+        } else {
+            out.writeByte(SLOT_OBJECT);
+            VarInts.writeUnsignedInt(out, objectTable.ref(slot));
+        }
+    }
+
+    private static Object readSlot(Object[] objects, Continuation continuation, DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case SLOT_NULL:
+                return null;
+            case SLOT_INTS: {
+                int[] arr = new int[VarInts.readLength(in)];
+                for (int i = 0; i < arr.length; i++) {
+                    arr[i] = VarInts.readSignedInt(in);
+                }
+                return arr;
+            }
+            case SLOT_FLOATS: {
+                float[] arr = new float[VarInts.readLength(in)];
+                for (int i = 0; i < arr.length; i++) {
+                    arr[i] = in.readFloat();
+                }
+                return arr;
+            }
+            case SLOT_LONGS: {
+                long[] arr = new long[VarInts.readLength(in)];
+                for (int i = 0; i < arr.length; i++) {
+                    arr[i] = VarInts.readSignedLong(in);
+                }
+                return arr;
+            }
+            case SLOT_DOUBLES: {
+                double[] arr = new double[VarInts.readLength(in)];
+                for (int i = 0; i < arr.length; i++) {
+                    arr[i] = in.readDouble();
+                }
+                return arr;
+            }
+            case SLOT_OBJECTS: {
+                Object[] arr = new Object[VarInts.readLength(in)];
+                for (int i = 0; i < arr.length; i++) {
+                    arr[i] = resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+                }
+                return arr;
+            }
+            case SLOT_OBJECT:
+                return resolveRef(VarInts.readUnsignedInt(in), objects, continuation);
+            default:
+                throw new IOException("Unrecognized slot type: " + type);
+        }
+    }
+
+    private static Object resolveRef(int ref, Object[] objects, Continuation continuation) throws IOException {
+        switch (ref) {
+            case REF_NULL:
+                return null;
+            case REF_CONTINUATION:
+                return continuation;
+            default: {
+                int idx = ref - REF_TABLE_OFFSET;
+                if (idx < 0 || idx >= objects.length) {
+                    throw new IOException("Bad object reference: " + ref);
+                }
+                return objects[idx];
+            }
+        }
+    }
+
+    private static final class LazyFrameSource implements FrameSource {
+        private final int[] fingerprints;
+        private final int[] frameLengths;
+        private final Object[] objects;
+        private final Continuation continuation;
+        private final DataInput in;
+        private int nextIndex;
+        private long remainingBytes;
+
+        LazyFrameSource(int[] fingerprints, int[] frameLengths, Object[] objects, Continuation continuation, DataInput in) {
+            this.fingerprints = fingerprints;
+            this.frameLengths = frameLengths;
+            this.objects = objects;
+            this.continuation = continuation;
+            this.in = in;
+            for (int i = 0; i < frameLengths.length; i++) {
+                remainingBytes += frameLengths[i];
+            }
+        }
+
+        public int remaining() {
+            return fingerprints.length - nextIndex;
+        }
+
+        public long remainingBytes() {
+            return remainingBytes;
+        }
+
+        public MethodState next() {
+            try {
+                MethodState ms = readMethodState(fingerprints[nextIndex], objects, continuation, in);
+                remainingBytes -= frameLengths[nextIndex];
+                nextIndex++;
+                return ms;
+            } catch (IOException ioe) {
+                IllegalStateException ise = new IllegalStateException("Unable to read saved method state " + nextIndex + " from snapshot");
+                ise.initCause(ioe);
+                throw ise;
+            }
+        }
+    }
+
+    private static final class Header {
+        private final int magic;
+        private final int flags;
+        private final long checkpointSequence;
+        private final int[] fingerprints;
+        private final int[] frameLengths;
+
+        Header(int magic, int flags, long checkpointSequence, int[] fingerprints, int[] frameLengths) {
+            this.magic = magic;
+            this.flags = flags;
+            this.checkpointSequence = checkpointSequence;
+            this.fingerprints = fingerprints;
+            this.frameLengths = frameLengths;
+        }
+    }
+
+    // Deduplicates objects by identity. The continuation being written is never put in the table -- references to it are written as
+    // REF_CONTINUATION and get resolved to the new continuation on read.
+    private static final class ObjectTable {
+        private final Continuation continuation;
+        private final IdentityHashMap indexes = new IdentityHashMap();
+        private final ArrayList objects = new ArrayList();
+
+        ObjectTable(Continuation continuation) {
+            this.continuation = continuation;
+        }
+
+        void add(Object obj) {
+            if (obj == null || obj == continuation || indexes.containsKey(obj)) {
+                return;
+            }
+            indexes.put(obj, new Integer(objects.size()));
+            objects.add(obj);
+        }
+
+        void addAll(MethodState ms) {
+            Object[] data = ms.getOnHeapData();
+            for (int i = 0; i < data.length; i++) {
+                Object slot = data[i];
+                if (isPrimitiveSlot(slot)) {
+                    continue;
+                } else if (slot.getClass() == Object[].class) {
+                    Object[] arr = (Object[]) slot;
+                    for (int j = 0; j < arr.length; j++) {
+                        add(arr[j]);
+                    }
+                } else {
+                    add(slot);
+                }
+            }
+
+            LockState lockState = ms.getLockState();
+            if (lockState != null) {
+                Object[] monitors = lockState.toArray();
+                for (int i = 0; i < monitors.length; i++) {
+                    add(monitors[i]);
+                }
+            }
+        }
+
+        void addMutables(MethodState ms) {
+            Object[] data = ms.getOnHeapData();
+            for (int i = 0; i < data.length; i++) {
+                Object slot = data[i];
+                if (isPrimitiveSlot(slot)) {
+                    continue;
+                } else if (slot.getClass() == Object[].class) {
+                    Object[] arr = (Object[]) slot;
+                    for (int j = 0; j < arr.length; j++) {
+                        if (!isSkippedByDelta(arr[j])) {
+                            add(arr[j]);
+                        }
+                    }
+                } else if (!isSkippedByDelta(slot)) {
+                    add(slot);
+                }
+            }
+
+            LockState lockState = ms.getLockState();
+            if (lockState != null) {
+                Object[] monitors = lockState.toArray();
+                for (int i = 0; i < monitors.length; i++) {
+                    add(monitors[i]);
+                }
+            }
+        }
+
+        // Objects that can't have changed since the last checkpoint
+        boolean isSkippedByDelta(Object obj) {
+            if (obj == null || obj == continuation) {
+                return true;
+            }
+            Class cls = obj.getClass();
+            return cls == String.class || cls == Integer.class || cls == Long.class || cls == Float.class || cls == Double.class
+                    || cls == Boolean.class || cls == Byte.class || cls == Short.class || cls == Character.class;
+        }
+
+        int ref(Object obj) {
+            if (obj == null) {
+                return REF_NULL;
+            }
+            if (obj == continuation) {
+                return REF_CONTINUATION;
+            }
+            return ((Integer) indexes.get(obj)).intValue() + REF_TABLE_OFFSET;
+        }
+
+        Object[] toArray() {
+            return objects.toArray();
+        }
+    }
+}
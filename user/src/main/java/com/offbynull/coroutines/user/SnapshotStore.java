@@ -0,0 +1,574 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * Stores snapshots of suspended {@link CoroutineRunner}s (see {@link SnapshotCodec}) on disk, in memory-mapped segment files. Useful for
+ * paging out large numbers of coroutines that sit idle for a long time.
+ * <p>
+ * Snapshots are keyed by a {@code long} id. Writes get appended to the newest segment file, and are encoded directly in to the mapped
+ * memory of that file. Reads decode directly out of the mapped memory. An in-memory index maps each id to where its latest snapshot is.
+ * Overwriting/removing a snapshot leaves garbage behind in the segment file it was in -- once less than half of a segment file is live,
+ * the live snapshots in it get moved to the newest segment file and the segment file gets deleted.
+ * <p>
+ * Segment files are named {@code segment-<number>.dat}. When a store is opened on a directory that already has segment files in it,
+ * the index gets rebuilt by scanning them. Call {@link #flush() } to make sure that writes have made it to disk. Writes that haven't
+ * been flushed may make it to disk partially and in any order (the OS decides when pages of a mapped file get written out), so segment
+ * files may not be readable after an OS crash or power loss that happens before a flush.
+ * <p>
+ * This class is thread-safe.
+ * @author Kasra Faghihi
+ */
+public final class SnapshotStore {
+    /**
+     * Default size of segment files (64 MB).
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int SEGMENT_MAGIC = 0x434F5330; // "COS0"
+    private static final int SEGMENT_HEADER_SIZE = 4;
+
+    // Record layout: int length (of everything after it, always > 0), byte type, long id, snapshot. The length is written last, so a
+    // record that failed to encode part way through looks like the end of the segment (mapped files are zero-filled, and whatever part of
+    // the failed record made it in gets zeroed back out). This ordering is only seen by this process -- it says nothing about the order
+    // that pages make it to disk (see class docs).
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private final File directory;
+    private final SnapshotCodec codec;
+    private final int segmentSize;
+
+    private final TreeMap segments = new TreeMap(); // Integer (segment number) -> Segment
+    private final HashMap index = new HashMap(); // Long (id) -> Long (location, segment number in upper 32 bits and offset in lower)
+    private Segment activeSegment;
+    private boolean closed;
+
+    /**
+     * Constructs a {@link SnapshotStore} object using {@link #DEFAULT_SEGMENT_SIZE}. Equivalent to calling
+     * {@code new SnapshotStore(directory, codec, DEFAULT_SEGMENT_SIZE)}.
+     * @param directory directory to keep segment files in
+     * @param codec codec to write/read snapshots with
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IOException if existing segment files couldn't be read or a new segment file couldn't be created
+     */
+    public SnapshotStore(File directory, SnapshotCodec codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a {@link SnapshotStore} object.
+     * @param directory directory to keep segment files in (created if it doesn't exist)
+     * @param codec codec to write/read snapshots with
+     * @param segmentSize size of each segment file (segment files holding snapshots larger than this will be sized to fit)
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalArgumentException if {@code segmentSize} is too small to hold a snapshot
+     * @throws IOException if existing segment files couldn't be read or a new segment file couldn't be created
+     */
+    public SnapshotStore(File directory, SnapshotCodec codec, int segmentSize) throws IOException {
+        if (directory == null || codec == null) {
+            throw new NullPointerException();
+        }
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        synchronized (this) {
+            recover();
+            if (activeSegment == null) {
+                activeSegment = createSegment(0, segmentSize);
+            }
+        }
+    }
+
+    /**
+     * Store a snapshot of a runner, replacing the existing snapshot with the same id (if any). The runner must not be executing.
+     * @param id id of snapshot
+     * @param runner runner to snapshot
+     * @throws NullPointerException if any argument is {@code null}
+     * @throws IllegalStateException if closed
+     * @throws IOException if the snapshot couldn't be written
+     */
+    public synchronized void put(long id, CoroutineRunner runner) throws IOException {
+        if (runner == null) {
+            throw new NullPointerException();
+        }
+        checkNotClosed();
+
+        // Try encoding directly in to the active segment. If it doesn't fit, encode to a byte array so we know how large it is and copy
+        // it in to a new segment.
+        Segment segment = activeSegment;
+        int offset = segment.writeOffset;
+        int length;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        try {
+            if (buffer.limit() - offset < RECORD_HEADER_SIZE) {
+                throw new SegmentFullException(); // not even enough room left for the record header
+            }
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            try {
+                DataOutputStream dos = new DataOutputStream(new ByteBufferOutputStream(buffer));
+                codec.write(runner, dos);
+                dos.flush();
+            } catch (IOException ioe) {
+                wipe(segment, offset, buffer.position());
+                throw ioe;
+            } catch (RuntimeException re) {
+                wipe(segment, offset, buffer.position());
+                throw re;
+            }
+            length = buffer.position() - offset - 4;
+            finishRecord(segment, offset, RECORD_PUT, id, length);
+        } catch (SegmentFullException sfe) {
+            byte[] snapshot = codec.toByteArray(runner);
+            length = RECORD_HEADER_SIZE - 4 + snapshot.length;
+            segment = reserve(4 + length);
+            offset = segment.writeOffset;
+            buffer = segment.buffer.duplicate();
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            buffer.put(snapshot);
+            finishRecord(segment, offset, RECORD_PUT, id, length);
+        }
+
+        Long oldLocation = (Long) index.put(new Long(id), new Long(toLocation(segment.number, offset)));
+        segment.liveBytes += 4 + length;
+        if (oldLocation != null) {
+            discard(oldLocation.longValue());
+        }
+    }
+
+    /**
+     * Read the snapshot with some id back in to a runner.
+     * @param id id of snapshot
+     * @return runner restored from the snapshot, or {@code null} if there's no snapshot with that id
+     * @throws IllegalStateException if closed
+     * @throws IOException if the snapshot couldn't be read
+     */
+    public synchronized CoroutineRunner get(long id) throws IOException {
+        checkNotClosed();
+
+        Long location = (Long) index.get(new Long(id));
+        if (location == null) {
+            return null;
+        }
+
+        Segment segment = (Segment) segments.get(new Integer(toSegmentNumber(location.longValue())));
+        int offset = toOffset(location.longValue());
+        int length = segment.buffer.getInt(offset);
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.limit(offset + 4 + length);
+        buffer.position(offset + RECORD_HEADER_SIZE);
+        return codec.read(new DataInputStream(new ByteBufferInputStream(buffer)));
+    }
+
+    /**
+     * Remove the snapshot with some id.
+     * @param id id of snapshot
+     * @return {@code true} if a snapshot was removed, {@code false} if there was no snapshot with that id
+     * @throws IllegalStateException if closed
+     * @throws IOException if the removal couldn't be written
+     */
+    public synchronized boolean remove(long id) throws IOException {
+        checkNotClosed();
+
+        Long location = (Long) index.remove(new Long(id));
+        if (location == null) {
+            return false;
+        }
+
+        Segment segment = reserve(RECORD_HEADER_SIZE);
+        finishRecord(segment, segment.writeOffset, RECORD_REMOVE, id, RECORD_HEADER_SIZE - 4);
+        discard(location.longValue());
+        return true;
+    }
+
+    /**
+     * Check if a snapshot with some id exists.
+     * @param id id of snapshot
+     * @return {@code true} if a snapshot with that id exists, {@code false} otherwise
+     * @throws IllegalStateException if closed
+     */
+    public synchronized boolean contains(long id) {
+        checkNotClosed();
+        return index.containsKey(new Long(id));
+    }
+
+    /**
+     * Get the number of snapshots stored.
+     * @return number of snapshots stored
+     * @throws IllegalStateException if closed
+     */
+    public synchronized int size() {
+        checkNotClosed();
+        return index.size();
+    }
+
+    /**
+     * Get the number of segment files in use.
+     * @return number of segment files
+     * @throws IllegalStateException if closed
+     */
+    public synchronized int getSegmentCount() {
+        checkNotClosed();
+        return segments.size();
+    }
+
+    /**
+     * Flush writes to disk.
+     * @throws IllegalStateException if closed
+     */
+    public synchronized void flush() {
+        checkNotClosed();
+        for (Iterator it = segments.values().iterator(); it.hasNext();) {
+            ((Segment) it.next()).buffer.force();
+        }
+    }
+
+    /**
+     * Flush writes to disk and close segment files. Subsequent calls to this method do nothing.
+     * @throws IOException if a segment file couldn't be closed
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        IOException failure = null;
+        for (Iterator it = segments.values().iterator(); it.hasNext();) {
+            Segment segment = (Segment) it.next();
+            try {
+                segment.buffer.force();
+                segment.file.close();
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        }
+        segments.clear();
+        index.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+    }
+
+    private void finishRecord(Segment segment, int offset, byte type, long id, int length) {
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(offset + 4, type);
+        buffer.putLong(offset + 5, id);
+        buffer.putInt(offset, length); // written last -- see comment for RECORD_HEADER_SIZE
+        segment.writeOffset = offset + 4 + length;
+    }
+
+    // Zero out whatever part of a record that failed to encode made it in to a segment, otherwise the next record appended may end before
+    // the leftovers do and the leftovers will be read as a corrupt record when the segment gets scanned
+    private static void wipe(Segment segment, int offset, int endOffset) {
+        MappedByteBuffer buffer = segment.buffer;
+        for (int i = offset; i < endOffset; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    // Get a segment with enough room to append a record of some size, creating a new active segment if the current one is full
+    private Segment reserve(int recordSize) throws IOException {
+        if (activeSegment.writeOffset + recordSize <= activeSegment.buffer.capacity()) {
+            return activeSegment;
+        }
+        int size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize);
+        activeSegment = createSegment(activeSegment.number + 1, size);
+        return activeSegment;
+    }
+
+    // Called when the record at some location is no longer live
+    private void discard(long location) throws IOException {
+        Segment segment = (Segment) segments.get(new Integer(toSegmentNumber(location)));
+        int length = segment.buffer.getInt(toOffset(location));
+        segment.liveBytes -= 4 + length;
+
+        if (segment != activeSegment && segment.liveBytes * 2 < segment.writeOffset - SEGMENT_HEADER_SIZE) {
+            compact(segment);
+        }
+    }
+
+    // Move the live records in a segment to the active segment and delete the segment
+    private void compact(Segment segment) throws IOException {
+        boolean oldest = segments.firstKey().equals(new Integer(segment.number));
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset < segment.writeOffset) {
+            int length = buffer.getInt(offset);
+            byte type = buffer.get(offset + 4);
+            long id = buffer.getLong(offset + 5);
+            Long key = new Long(id);
+
+            boolean copy;
+            if (type == RECORD_PUT) {
+                Long location = (Long) index.get(key);
+                copy = location != null && location.longValue() == toLocation(segment.number, offset);
+            } else {
+                // Removals need to be kept around so long as an older segment may have a put for the same id
+                copy = !oldest && !index.containsKey(key);
+            }
+
+            if (copy) {
+                Segment dstSegment = reserve(4 + length);
+                int dstOffset = dstSegment.writeOffset;
+                ByteBuffer src = buffer.duplicate();
+                src.limit(offset + 4 + length);
+                src.position(offset + RECORD_HEADER_SIZE);
+                ByteBuffer dst = dstSegment.buffer.duplicate();
+                dst.position(dstOffset + RECORD_HEADER_SIZE);
+                dst.put(src);
+                finishRecord(dstSegment, dstOffset, type, id, length);
+                if (type == RECORD_PUT) {
+                    index.put(key, new Long(toLocation(dstSegment.number, dstOffset)));
+                    dstSegment.liveBytes += 4 + length;
+                }
+            }
+
+            offset += 4 + length;
+        }
+
+        // Wipe the segment before deleting it, in case deletion fails (e.g. on platforms that don't allow deleting mapped files)
+        buffer.putInt(0, 0);
+        buffer.force();
+        segment.file.close();
+        segments.remove(new Integer(segment.number));
+        if (!segment.path.delete()) {
+            segment.path.deleteOnExit();
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Unable to list " + directory);
+        }
+
+        ArrayList numbers = new ArrayList();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                numbers.add(new Integer(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException nfe) {
+                // not a segment file, skip
+            }
+        }
+
+        Collections.sort(numbers);
+        for (int i = 0; i < numbers.size(); i++) {
+            int number = ((Integer) numbers.get(i)).intValue();
+            Segment segment = openSegment(number, new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX));
+            if (segment == null) {
+                continue;
+            }
+            scan(segment);
+            activeSegment = segment;
+        }
+    }
+
+    private void scan(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0) {
+                break; // end of records
+            }
+            if (length < RECORD_HEADER_SIZE - 4 || offset + 4 + length > buffer.capacity()) {
+                throw new IOException("Corrupt record in " + segment.path + " at offset " + offset);
+            }
+            byte type = buffer.get(offset + 4);
+            Long key = new Long(buffer.getLong(offset + 5));
+
+            Long oldLocation;
+            switch (type) {
+                case RECORD_PUT:
+                    oldLocation = (Long) index.put(key, new Long(toLocation(segment.number, offset)));
+                    segment.liveBytes += 4 + length;
+                    break;
+                case RECORD_REMOVE:
+                    oldLocation = (Long) index.remove(key);
+                    break;
+                default:
+                    throw new IOException("Corrupt record in " + segment.path + " at offset " + offset);
+            }
+            if (oldLocation != null) {
+                Segment oldSegment = (Segment) segments.get(new Integer(toSegmentNumber(oldLocation.longValue())));
+                oldSegment.liveBytes -= 4 + oldSegment.buffer.getInt(toOffset(oldLocation.longValue()));
+            }
+
+            offset += 4 + length;
+        }
+        segment.writeOffset = offset;
+    }
+
+    private Segment createSegment(int number, int size) throws IOException {
+        File path = new File(directory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0L); // in case this is a segment file that was wiped but couldn't be deleted -- zero out its contents
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            buffer.putInt(0, SEGMENT_MAGIC);
+            Segment segment = new Segment(number, path, file, buffer);
+            segments.put(new Integer(number), segment);
+            return segment;
+        } catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+    }
+
+    private Segment openSegment(int number, File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            long size = file.length();
+            if (size < SEGMENT_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                file.close();
+                return null;
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size);
+            if (buffer.getInt(0) != SEGMENT_MAGIC) {
+                file.close(); // wiped by compaction (or not a segment file)
+                return null;
+            }
+            Segment segment = new Segment(number, path, file, buffer);
+            segments.put(new Integer(number), segment);
+            return segment;
+        } catch (IOException ioe) {
+            file.close();
+            throw ioe;
+        }
+    }
+
+    private static long toLocation(int segmentNumber, int offset) {
+        return ((long) segmentNumber << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int toSegmentNumber(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int toOffset(long location) {
+        return (int) location;
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final File path;
+        private final RandomAccessFile file;
+        private final MappedByteBuffer buffer;
+        private int writeOffset = SEGMENT_HEADER_SIZE;
+        private int liveBytes;
+
+        Segment(int number, File path, RandomAccessFile file, MappedByteBuffer buffer) {
+            this.number = number;
+            this.path = path;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class SegmentFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class ByteBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferOutputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                throw new SegmentFullException();
+            }
+            buffer.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer.remaining() < len) {
+                throw new SegmentFullException();
+            }
+            buffer.put(b, off, len);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+// A CoroutineException that skips filling in its stack trace. The stack trace of the wrapper is almost never interesting -- it always
+// points to CoroutineRunner.execute() -- so skipping it avoids the cost of fillInStackTrace() for coroutines that routinely end by
+// exception. The cause still has its stack trace intact.
+final class StacklessCoroutineException extends CoroutineException {
+    private static final long serialVersionUID = 4L;
+
+    StacklessCoroutineException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.lang.reflect.Array;
+
+/**
+ * Approximate size of the state saved by a suspended coroutine (see {@link CoroutineRunner#getStateSize() }). This covers the saved method
+ * frames: the frames themselves, the storage arrays holding their locals and operand stacks, and the monitors they hold.
+ * <p>
+ * Objects referenced by the saved state (including the context) are counted, but their sizes aren't included in the byte estimates --
+ * those objects are often shared with other coroutines or the rest of the program, and measuring them would require walking their object
+ * graphs. The exception is arrays referenced directly from the saved locals and operand stacks: their shallow sizes (not the sizes of the
+ * objects they reference) are included, once per reference. Byte estimates assume a 64-bit JVM with compressed references.
+ * <p>
+ * If the runner was read lazily (see {@link SnapshotCodec#readLazily(java.io.DataInput) }), frames that haven't been read in yet are
+ * counted as frames and sized by their encoded length in the snapshot (see {@link #getUnreadBytes() }), but their contents aren't
+ * counted.
+ * @author Kasra Faghihi
+ */
+public final class StateSize {
+    // Estimates of the sizes of objects on the heap (header + fields/elements, aligned to 8 bytes)
+    private static final int METHOD_STATE_BYTES = 56;
+    private static final int LOCK_STATE_BYTES = 16 + 32; // LockState + LinkedList
+    private static final int LOCK_STATE_ENTRY_BYTES = 24; // LinkedList node
+
+    private int frameCount;
+    private int intCount;
+    private int floatCount;
+    private int longCount;
+    private int doubleCount;
+    private int objectCount;
+    private int monitorCount;
+    private long heapBytes;
+    private long offHeapBytes;
+    private long unreadBytes;
+
+    StateSize() {
+        // do nothing
+    }
+
+    /**
+     * Get the number of saved method frames.
+     * @return number of saved method frames
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Get the number of {@code int}s saved across all frames (includes {@code boolean}s, {@code byte}s, {@code char}s, and
+     * {@code short}s).
+     * @return number of {@code int}s saved
+     */
+    public int getIntCount() {
+        return intCount;
+    }
+
+    /**
+     * Get the number of {@code float}s saved across all frames.
+     * @return number of {@code float}s saved
+     */
+    public int getFloatCount() {
+        return floatCount;
+    }
+
+    /**
+     * Get the number of {@code long}s saved across all frames.
+     * @return number of {@code long}s saved
+     */
+    public int getLongCount() {
+        return longCount;
+    }
+
+    /**
+     * Get the number of {@code double}s saved across all frames.
+     * @return number of {@code double}s saved
+     */
+    public int getDoubleCount() {
+        return doubleCount;
+    }
+
+    /**
+     * Get the number of object references saved across all frames, plus one if there's a context.
+     * @return number of object references saved
+     */
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Get the number of monitors held across all frames.
+     * @return number of monitors held
+     */
+    public int getMonitorCount() {
+        return monitorCount;
+    }
+
+    /**
+     * Get the approximate number of bytes that the saved state takes up on the heap.
+     * @return approximate number of heap bytes
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Get the number of bytes that the saved state takes up off-heap (see {@link CoroutineRunner#setOffHeapStorageEnabled(boolean) }).
+     * @return number of off-heap bytes
+     */
+    public long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * Get the number of bytes taken up by frames that are still in the snapshot being read lazily (see
+     * {@link SnapshotCodec#readLazily(java.io.DataInput) }). This is the encoded length of those frames, not how much they'll take up once
+     * read in.
+     * @return number of bytes of frames not read in yet
+     */
+    public long getUnreadBytes() {
+        return unreadBytes;
+    }
+
+    /**
+     * Get the approximate total number of bytes that the saved state takes up (heap, off-heap, and not read in yet).
+     * @return approximate total number of bytes
+     */
+    public long getTotalBytes() {
+        return heapBytes + offHeapBytes + unreadBytes;
+    }
+
+    void addFrame() {
+        frameCount++;
+        heapBytes += frameBytes();
+    }
+
+    void addInts(int count) {
+        intCount += count;
+    }
+
+    void addFloats(int count) {
+        floatCount += count;
+    }
+
+    void addLongs(int count) {
+        longCount += count;
+    }
+
+    void addDoubles(int count) {
+        doubleCount += count;
+    }
+
+    void addObjects(int count) {
+        objectCount += count;
+    }
+
+    void addMonitors(int count) {
+        monitorCount += count;
+        heapBytes += monitorBytes(count);
+    }
+
+    void addOffHeapBytes(long bytes) {
+        offHeapBytes += bytes;
+    }
+
+    void addUnreadFrames(int count, long bytes) {
+        frameCount += count;
+        unreadBytes += bytes;
+    }
+
+    // Counts an object referenced from a storage array
+    void addObject(Object obj) {
+        objectCount++;
+        heapBytes += referencedArrayBytes(obj);
+    }
+
+    // Adds the heap bytes taken up by an array of some length
+    void addArray(int length, int elementSize) {
+        heapBytes += arrayBytes(length, elementSize);
+    }
+
+    // The following are used directly by MethodState.getTotalBytes(), which needs the byte count without allocating a StateSize
+    static long frameBytes() {
+        return METHOD_STATE_BYTES;
+    }
+
+    static long monitorBytes(int count) {
+        return LOCK_STATE_BYTES + (long) count * LOCK_STATE_ENTRY_BYTES;
+    }
+
+    static long arrayBytes(int length, int elementSize) {
+        return align(16L + (long) length * elementSize);
+    }
+
+    // Shallow size of obj if it's an array, 0 otherwise
+    static long referencedArrayBytes(Object obj) {
+        if (obj == null || !obj.getClass().isArray()) {
+            return 0L;
+        }
+
+        Class componentType = obj.getClass().getComponentType();
+        int elementSize;
+        if (componentType == Boolean.TYPE || componentType == Byte.TYPE) {
+            elementSize = 1;
+        } else if (componentType == Character.TYPE || componentType == Short.TYPE) {
+            elementSize = 2;
+        } else if (componentType == Long.TYPE || componentType == Double.TYPE) {
+            elementSize = 8;
+        } else {
+            elementSize = 4; // ints, floats, and references
+        }
+        return arrayBytes(Array.getLength(obj), elementSize);
+    }
+
+    private static long align(long size) {
+        return (size + 7L) & ~7L;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "StateSize{" + "frameCount=" + frameCount + ", intCount=" + intCount + ", floatCount=" + floatCount + ", longCount="
+                + longCount + ", doubleCount=" + doubleCount + ", objectCount=" + objectCount + ", monitorCount=" + monitorCount
+                + ", heapBytes=" + heapBytes + ", offHeapBytes=" + offHeapBytes + ", unreadBytes=" + unreadBytes + '}';
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2015, Kasra Faghihi, All rights reserved.
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library.
+ */
+package com.offbynull.coroutines.user;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs a coroutine on its own thread rather than relying on instrumentation. Continuation.suspend() parks the coroutine's thread and hands
+// control back to the thread that called execute(), and execute() hands control back to the coroutine's thread. Only one of the two
+// threads is ever running at a time.
+//
+// On JVMs that support virtual threads (Java 21+), the coroutine runs on a virtual thread. Otherwise, it runs on a platform daemon thread.
+// Control is handed back and forth with LockSupport.park()/unpark() rather than with Object.wait()/notify() -- a virtual thread waiting on
+// an object monitor pins its carrier thread, so once there are more suspended coroutines than carrier threads, nothing else can run.
+// Object monitors are only used if LockSupport isn't available (pre-Java 5 JVMs, which don't have virtual threads either). Virtual threads
+// are looked up via reflection because this library targets Java 1.4. LockSupport is only checked for via reflection -- it's called
+// directly from LockSupportHandOff, which doesn't get loaded unless LockSupport is available, so handing off control doesn't go through
+// reflection.
+//
+// A suspended coroutine's thread stays parked until the coroutine is resumed. If a runner gets dropped while suspended without being
+// closed, its thread never exits -- see CoroutineRunner.close().
+final class ThreadBackedExecution {
+    private static final Method OF_VIRTUAL_METHOD;
+    private static final Method UNSTARTED_METHOD;
+    private static final boolean LOCK_SUPPORT_AVAILABLE;
+    static {
+        Method ofVirtualMethod = null;
+        Method unstartedMethod = null;
+        try {
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual", new Class[0]);
+            unstartedMethod = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", new Class[] {Runnable.class});
+        } catch (Exception e) {
+            // virtual threads not supported on this JVM
+            ofVirtualMethod = null;
+            unstartedMethod = null;
+        }
+        OF_VIRTUAL_METHOD = ofVirtualMethod;
+        UNSTARTED_METHOD = unstartedMethod;
+
+        boolean lockSupportAvailable;
+        try {
+            Class.forName("java.util.concurrent.locks.LockSupport");
+            lockSupportAvailable = true;
+        } catch (Exception e) {
+            // LockSupport not supported on this JVM
+            lockSupportAvailable = false;
+        }
+        LOCK_SUPPORT_AVAILABLE = lockSupportAvailable;
+    }
+
+    private final Coroutine coroutine;
+    private final Continuation continuation;
+
+    private final Object lock = new Object();   // only used if LockSupport isn't available
+    private Thread thread;                      // null if coroutine isn't started (only accessed by caller thread)
+    private Thread callerThread;                // thread that last called execute()
+    private volatile boolean coroutineTurn;     // true if coroutine thread has control, false if caller thread has control
+    private boolean finished;                   // true if coroutine thread has finished running the coroutine
+    private Throwable failure;                  // throwable that came out of the coroutine (if any)
+
+    // finished/failure/callerThread are only written by the thread that has control, right before it writes coroutineTurn to hand control
+    // over, and only read by the other thread after it reads coroutineTurn -- the volatile write/read makes them visible
+
+    ThreadBackedExecution(Coroutine coroutine, Continuation continuation) {
+        this.coroutine = coroutine;
+        this.continuation = continuation;
+    }
+
+    // Called from caller thread. Returns true if suspended, false if finished.
+    boolean execute() throws Exception {
+        callerThread = Thread.currentThread();
+        if (thread == null) {
+            finished = false;
+            thread = createThread(new Runnable() {
+                public void run() {
+                    runCoroutine();
+                }
+            });
+            coroutineTurn = true;
+            thread.start();
+        } else {
+            handOff(true, thread);
+        }
+
+        awaitTurn(false);
+
+        if (!finished) {
+            return true;
+        }
+
+        thread = null;
+        Throwable t = failure;
+        failure = null;
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return false;
+    }
+
+    // Called from caller thread. Returns true if the coroutine is parked in suspend().
+    boolean isSuspended() {
+        return thread != null;
+    }
+
+    // Called from coroutine thread (via Continuation.suspend()).
+    void suspend() {
+        continuation.checkCancelled(); // same as instrumented code -- if cancelled, unwind instead of suspending
+
+        handOff(false, callerThread);
+        awaitTurn(true);
+
+        continuation.checkCancelled();
+    }
+
+    private void runCoroutine() {
+        Throwable t = null;
+        try {
+            coroutine.run(continuation);
+        } catch (Throwable e) {
+            t = e;
+        }
+
+        failure = t;
+        finished = true;
+        handOff(false, callerThread);
+    }
+
+    private void handOff(boolean toCoroutine, Thread target) {
+        if (!LOCK_SUPPORT_AVAILABLE) {
+            synchronized (lock) {
+                coroutineTurn = toCoroutine;
+                lock.notifyAll();
+            }
+            return;
+        }
+
+        coroutineTurn = toCoroutine;
+        LockSupportHandOff.unpark(target);
+    }
+
+    private void awaitTurn(boolean coroutine) {
+        boolean interrupted = false;
+        if (!LOCK_SUPPORT_AVAILABLE) {
+            synchronized (lock) {
+                while (coroutineTurn != coroutine) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ie) {
+                        interrupted = true; // keep waiting, restore interrupt flag once we have control again
+                    }
+                }
+            }
+        } else {
+            while (coroutineTurn != coroutine) {
+                LockSupportHandOff.park(this); // may return spuriously, hence the loop
+                if (Thread.interrupted()) {
+                    interrupted = true; // park() returns right away while interrupted, so clear it and restore it once we have control
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread createThread(Runnable runnable) {
+        if (OF_VIRTUAL_METHOD != null) {
+            try {
+                Object builder = OF_VIRTUAL_METHOD.invoke(null, new Object[0]);
+                return (Thread) UNSTARTED_METHOD.invoke(builder, new Object[] {runnable});
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to create virtual thread: " + e);
+            }
+        }
+
+        Thread thread = new Thread(runnable, "coroutine");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Only loaded (and so only resolves LockSupport) if LOCK_SUPPORT_AVAILABLE is true.
+    private static final class LockSupportHandOff {
+        private LockSupportHandOff() {
+            // do nothing
+        }
+
+        static void park(Object blocker) {
+            LockSupport.park(blocker);
+        }
+
+        static void unpark(Thread thread) {
+            LockSupport.unpark(thread);
+        }
+    }
+}